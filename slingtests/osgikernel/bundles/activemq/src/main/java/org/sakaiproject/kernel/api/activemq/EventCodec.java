@@ -0,0 +1,447 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.activemq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.Map.Entry;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Writes the properties of an event into the body of a {@link BytesMessage} and reads
+ * them back, keeping the types that JMS message properties cannot carry: arrays, dates,
+ * calendars, sets and nested lists and maps.
+ * <p>
+ * The body starts with the schema version, which is also set on the message as the
+ * {@link #SCHEMA_VERSION_PROPERTY} property. Then comes the number of properties and
+ * each name and tagged value. Counts, lengths and integers are written as variable
+ * length integers, strings as UTF-8. A value of a type the codec does not know is
+ * written as its string form.
+ */
+public final class EventCodec {
+
+  /**
+   * The message property holding the schema version of the body.
+   */
+  public static final String SCHEMA_VERSION_PROPERTY = "sakaiEventSchema";
+  /**
+   * The schema version written by this codec.
+   */
+  public static final int SCHEMA_VERSION = 1;
+
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int BOOLEAN = 2;
+  private static final int BYTE = 3;
+  private static final int SHORT = 4;
+  private static final int CHAR = 5;
+  private static final int INT = 6;
+  private static final int LONG = 7;
+  private static final int FLOAT = 8;
+  private static final int DOUBLE = 9;
+  private static final int DATE = 10;
+  private static final int CALENDAR = 11;
+  private static final int BYTES = 12;
+  private static final int STRING_ARRAY = 13;
+  private static final int ARRAY = 14;
+  private static final int LIST = 15;
+  private static final int SET = 16;
+  private static final int MAP = 17;
+
+  private EventCodec() {
+  }
+
+  /**
+   * Write the properties into the message body and mark the message with the schema
+   * version.
+   *
+   * @param message
+   *          a new bytes message.
+   * @param properties
+   *          the event properties.
+   * @throws JMSException
+   */
+  public static void write(BytesMessage message, Map<String, ?> properties)
+      throws JMSException {
+    message.setIntProperty(SCHEMA_VERSION_PROPERTY, SCHEMA_VERSION);
+    message.writeBytes(encode(properties));
+  }
+
+  /**
+   * @return true if the message carries a body written by this codec.
+   * @throws JMSException
+   */
+  public static boolean isEncoded(Message message) throws JMSException {
+    return message instanceof BytesMessage
+        && message.propertyExists(SCHEMA_VERSION_PROPERTY);
+  }
+
+  /**
+   * Read the properties out of a message written by {@link #write(BytesMessage, Map)}.
+   *
+   * @throws JMSException
+   *           if the body was written with a later schema or is corrupt.
+   */
+  public static Map<String, Object> read(BytesMessage message) throws JMSException {
+    int version = message.getIntProperty(SCHEMA_VERSION_PROPERTY);
+    if (version > SCHEMA_VERSION) {
+      throw new JMSException("Event schema version " + version + " is newer than "
+          + SCHEMA_VERSION);
+    }
+    long length = message.getBodyLength();
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new JMSException("Corrupt event body: invalid length " + length);
+    }
+    byte[] body = new byte[(int) length];
+    message.readBytes(body);
+    return decode(body);
+  }
+
+  /**
+   * @return the properties encoded with the schema version in front.
+   */
+  public static byte[] encode(Map<String, ?> properties) {
+    Output out = new Output(64 + properties.size() * 32);
+    out.writeVarInt(SCHEMA_VERSION);
+    out.writeVarInt(properties.size());
+    for (Entry<String, ?> entry : properties.entrySet()) {
+      out.writeString(entry.getKey());
+      writeValue(out, entry.getValue());
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the properties in the order they were encoded.
+   * @throws JMSException
+   *           if the bytes are from a later schema or are corrupt.
+   */
+  public static Map<String, Object> decode(byte[] body) throws JMSException {
+    Input in = new Input(body);
+    try {
+      int version = in.readVarInt();
+      if (version > SCHEMA_VERSION) {
+        throw new JMSException("Event schema version " + version + " is newer than "
+            + SCHEMA_VERSION);
+      }
+      int size = in.readCount();
+      Map<String, Object> properties = new LinkedHashMap<String, Object>(size * 2);
+      for (int i = 0; i < size; i++) {
+        String name = in.readString();
+        properties.put(name, readValue(in));
+      }
+      return properties;
+    } catch (IOException e) {
+      JMSException jmse = new JMSException("Corrupt event body: " + e.getMessage());
+      jmse.setLinkedException(e);
+      throw jmse;
+    }
+  }
+
+  private static void writeValue(Output out, Object value) {
+    if (value == null) {
+      out.write(NULL);
+    } else if (value instanceof String) {
+      out.write(STRING);
+      out.writeString((String) value);
+    } else if (value instanceof Boolean) {
+      out.write(BOOLEAN);
+      out.write(((Boolean) value) ? 1 : 0);
+    } else if (value instanceof Integer) {
+      out.write(INT);
+      out.writeVarLong(zigZag((Integer) value));
+    } else if (value instanceof Long) {
+      out.write(LONG);
+      out.writeVarLong(zigZag((Long) value));
+    } else if (value instanceof Byte) {
+      out.write(BYTE);
+      out.write((Byte) value);
+    } else if (value instanceof Short) {
+      out.write(SHORT);
+      out.writeVarLong(zigZag((Short) value));
+    } else if (value instanceof Character) {
+      out.write(CHAR);
+      out.writeVarInt((Character) value);
+    } else if (value instanceof Float) {
+      out.write(FLOAT);
+      out.writeFixed(Float.floatToIntBits((Float) value), 4);
+    } else if (value instanceof Double) {
+      out.write(DOUBLE);
+      out.writeFixed(Double.doubleToLongBits((Double) value), 8);
+    } else if (value instanceof Date) {
+      out.write(DATE);
+      out.writeVarLong(zigZag(((Date) value).getTime()));
+    } else if (value instanceof Calendar) {
+      Calendar calendar = (Calendar) value;
+      out.write(CALENDAR);
+      out.writeVarLong(zigZag(calendar.getTimeInMillis()));
+      out.writeString(calendar.getTimeZone().getID());
+    } else if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      out.write(BYTES);
+      out.writeVarInt(bytes.length);
+      out.write(bytes, 0, bytes.length);
+    } else if (value instanceof String[]) {
+      String[] strings = (String[]) value;
+      out.write(STRING_ARRAY);
+      out.writeVarInt(strings.length);
+      for (String s : strings) {
+        writeValue(out, s);
+      }
+    } else if (value.getClass().isArray()) {
+      int length = Array.getLength(value);
+      out.write(ARRAY);
+      out.writeVarInt(length);
+      for (int i = 0; i < length; i++) {
+        writeValue(out, Array.get(value, i));
+      }
+    } else if (value instanceof Set<?>) {
+      out.write(SET);
+      writeCollection(out, (Set<?>) value);
+    } else if (value instanceof Collection<?>) {
+      out.write(LIST);
+      writeCollection(out, (Collection<?>) value);
+    } else if (value instanceof Map<?, ?>) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.write(MAP);
+      out.writeVarInt(map.size());
+      for (Entry<?, ?> entry : map.entrySet()) {
+        out.writeString(String.valueOf(entry.getKey()));
+        writeValue(out, entry.getValue());
+      }
+    } else {
+      out.write(STRING);
+      out.writeString(value.toString());
+    }
+  }
+
+  private static void writeCollection(Output out, Collection<?> collection) {
+    out.writeVarInt(collection.size());
+    for (Object o : collection) {
+      writeValue(out, o);
+    }
+  }
+
+  private static Object readValue(Input in) throws IOException {
+    int tag = in.read();
+    switch (tag) {
+    case NULL:
+      return null;
+    case STRING:
+      return in.readString();
+    case BOOLEAN:
+      return in.read() != 0;
+    case BYTE:
+      return (byte) in.read();
+    case SHORT:
+      return (short) unZigZag(in.readVarLong());
+    case CHAR:
+      return (char) in.readVarInt();
+    case INT:
+      return (int) unZigZag(in.readVarLong());
+    case LONG:
+      return unZigZag(in.readVarLong());
+    case FLOAT:
+      return Float.intBitsToFloat((int) in.readFixed(4));
+    case DOUBLE:
+      return Double.longBitsToDouble(in.readFixed(8));
+    case DATE:
+      return new Date(unZigZag(in.readVarLong()));
+    case CALENDAR: {
+      long millis = unZigZag(in.readVarLong());
+      Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(in.readString()));
+      calendar.setTimeInMillis(millis);
+      return calendar;
+    }
+    case BYTES:
+      return in.readBytes(in.readCount());
+    case STRING_ARRAY: {
+      String[] strings = new String[in.readCount()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = (String) readValue(in);
+      }
+      return strings;
+    }
+    case ARRAY: {
+      Object[] objects = new Object[in.readCount()];
+      for (int i = 0; i < objects.length; i++) {
+        objects[i] = readValue(in);
+      }
+      return objects;
+    }
+    case LIST: {
+      int size = in.readCount();
+      List<Object> list = new ArrayList<Object>(size);
+      for (int i = 0; i < size; i++) {
+        list.add(readValue(in));
+      }
+      return list;
+    }
+    case SET: {
+      int size = in.readCount();
+      Set<Object> set = new HashSet<Object>(size * 2);
+      for (int i = 0; i < size; i++) {
+        set.add(readValue(in));
+      }
+      return set;
+    }
+    case MAP: {
+      int size = in.readCount();
+      Map<String, Object> map = new LinkedHashMap<String, Object>(size * 2);
+      for (int i = 0; i < size; i++) {
+        String key = in.readString();
+        map.put(key, readValue(in));
+      }
+      return map;
+    }
+    default:
+      throw new IOException("Unknown value tag " + tag);
+    }
+  }
+
+  private static long zigZag(long n) {
+    return (n << 1) ^ (n >> 63);
+  }
+
+  private static long unZigZag(long n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  /**
+   * A growable byte buffer with the few encodings the codec needs.
+   */
+  private static class Output extends ByteArrayOutputStream {
+    private Output(int size) {
+      super(size);
+    }
+
+    private void writeVarInt(int n) {
+      writeVarLong(n & 0xffffffffL);
+    }
+
+    private void writeVarLong(long n) {
+      while ((n & ~0x7fL) != 0) {
+        write((int) ((n & 0x7f) | 0x80));
+        n >>>= 7;
+      }
+      write((int) n);
+    }
+
+    private void writeFixed(long n, int bytes) {
+      for (int i = bytes - 1; i >= 0; i--) {
+        write((int) (n >>> (i * 8)));
+      }
+    }
+
+    private void writeString(String s) {
+      try {
+        byte[] b = s.getBytes("UTF-8");
+        writeVarInt(b.length);
+        write(b, 0, b.length);
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Reads what {@link Output} wrote, failing on a truncated body. Every count and length
+   * is checked against what is left of the body before anything is allocated for it.
+   */
+  private static class Input {
+    private final byte[] buf;
+    private int pos;
+
+    private Input(byte[] buf) {
+      this.buf = buf;
+    }
+
+    private int read() throws IOException {
+      if (pos >= buf.length) {
+        throw new IOException("Unexpected end of event body");
+      }
+      return buf[pos++] & 0xff;
+    }
+
+    private int readVarInt() throws IOException {
+      return (int) readVarLong();
+    }
+
+    private long readVarLong() throws IOException {
+      long n = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = read();
+        n |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return n;
+        }
+      }
+      throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * @return a count or length, each item of which takes at least a byte of what is
+     *         left of the body.
+     */
+    private int readCount() throws IOException {
+      long n = readVarLong();
+      if (n < 0 || n > buf.length - pos) {
+        throw new IOException("Invalid length " + n + " with " + (buf.length - pos)
+            + " bytes left");
+      }
+      return (int) n;
+    }
+
+    private long readFixed(int bytes) throws IOException {
+      long n = 0;
+      for (int i = 0; i < bytes; i++) {
+        n = (n << 8) | read();
+      }
+      return n;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+      byte[] b = new byte[length];
+      System.arraycopy(buf, pos, b, 0, length);
+      pos += length;
+      return b;
+    }
+
+    private String readString() throws IOException {
+      int length = readCount();
+      String s = new String(buf, pos, length, "UTF-8");
+      pos += length;
+      return s;
+    }
+  }
+}
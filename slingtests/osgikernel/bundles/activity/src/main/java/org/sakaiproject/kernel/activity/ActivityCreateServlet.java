@@ -18,6 +18,7 @@
 package org.sakaiproject.kernel.activity;
 
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTOR_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.REQUEST_PARAM_APPLICATION_ID;
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.REQUEST_PARAM_TEMPLATE_ID;
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_STORE_NAME;
@@ -173,10 +174,11 @@ public class ActivityCreateServlet extends SlingAllMethodsServlet {
     LOG.debug("dispatch to {}  ", target);
     request.getRequestDispatcher(target).forward(wrappedRequest, response);
 
-    // next add the current user to the actor property
+    // next add the current user to the actor property, and when they acted
     try {
       Node activity = (Node) session.getItem(activityItemPath);
       activity.setProperty(ACTOR_PROPERTY, currentUser);
+      activity.setProperty(CREATED_PROPERTY, System.currentTimeMillis());
       if (session.hasPendingChanges()) {
         session.save();
       }
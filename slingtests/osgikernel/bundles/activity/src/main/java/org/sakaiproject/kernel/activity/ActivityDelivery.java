@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_NAME;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+import static org.sakaiproject.kernel.api.personal.PersonalConstants._USER_PRIVATE;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.kernel.api.activity.ActivityConstants;
+import org.sakaiproject.kernel.api.connections.ConnectionManager;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.sakaiproject.kernel.util.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+
+/**
+ * Copies activities into the feeds of the actor's connections on a bounded pool of
+ * workers, so a user with many connections does not hold up the event thread. The
+ * connections of an activity are split into chunks, each delivered in one admin
+ * session with one save for the new feed folders and one for the copies.
+ * <p>
+ * When the queue is full the policy decides what happens to a chunk: with
+ * {@link #POLICY_CALLER_RUNS} the submitting thread delivers it itself, which slows the
+ * producer down; with {@link #POLICY_DISCARD} it is dropped and counted.
+ */
+public class ActivityDelivery implements ActivityDeliveryMBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ActivityDelivery.class);
+
+  public static final String POLICY_CALLER_RUNS = "callerRuns";
+  public static final String POLICY_DISCARD = "discard";
+
+  private final SlingRepository slingRepository;
+  private final ConnectionManager connectionManager;
+  private final int chunkSize;
+  private final boolean discard;
+  private final ArrayBlockingQueue<Runnable> queue;
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private final AtomicLong completedChunks = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong callerRuns = new AtomicLong();
+  private final AtomicLong discarded = new AtomicLong();
+
+  /**
+   * A unit of work that is counted as pending until it has run or been dropped.
+   */
+  private abstract class Task implements Runnable {
+    public final void run() {
+      try {
+        execute();
+      } finally {
+        pending.decrementAndGet();
+      }
+    }
+
+    protected abstract void execute();
+  }
+
+  /**
+   * @param slingRepository
+   *          the repository to deliver into.
+   * @param connectionManager
+   *          finds the connections of an actor.
+   * @param threads
+   *          the number of workers.
+   * @param queueSize
+   *          the number of tasks that may wait for a worker.
+   * @param chunkSize
+   *          the number of feeds delivered to with one save.
+   * @param policy
+   *          {@link #POLICY_CALLER_RUNS} or {@link #POLICY_DISCARD}.
+   */
+  public ActivityDelivery(SlingRepository slingRepository,
+      ConnectionManager connectionManager, int threads, int queueSize, int chunkSize,
+      String policy) {
+    this.slingRepository = slingRepository;
+    this.connectionManager = connectionManager;
+    this.chunkSize = chunkSize;
+    this.discard = POLICY_DISCARD.equals(policy);
+    queue = new ArrayBlockingQueue<Runnable>(queueSize);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Activity Delivery " + threadNumber.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+    RejectedExecutionHandler rejectionHandler = new RejectedExecutionHandler() {
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        if (discard || executor.isShutdown()) {
+          discarded.incrementAndGet();
+          pending.decrementAndGet();
+          LOG.warn("Activity delivery queue is full, dropped a delivery");
+        } else {
+          callerRuns.incrementAndGet();
+          r.run();
+        }
+      }
+    };
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, queue,
+        threadFactory, rejectionHandler);
+  }
+
+  /**
+   * Deliver an activity to the feeds of the actor's accepted connections. Finding the
+   * connections happens on a worker too.
+   *
+   * @param activityPath
+   *          the path of the activity in its store.
+   * @param actor
+   *          the user who acted.
+   */
+  public void deliver(final String activityPath, final String actor) {
+    submit(new Task() {
+      @Override
+      protected void execute() {
+        List<String> connections = connectionManager.getConnectedUsers(actor,
+            ConnectionState.ACCEPTED);
+        if (connections == null || connections.size() == 0) {
+          LOG.debug("{} acted but has no connections; nothing to do.", actor);
+          return;
+        }
+        for (int i = 0; i < connections.size(); i += chunkSize) {
+          final List<String> chunk = new ArrayList<String>(connections.subList(i, Math
+              .min(i + chunkSize, connections.size())));
+          submit(new Task() {
+            @Override
+            protected void execute() {
+              deliverChunk(activityPath, chunk);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /**
+   * Stop taking deliveries and wait for the queued ones to finish.
+   *
+   * @param timeout
+   *          the most ms to wait.
+   */
+  public void shutdown(long timeout) {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+        LOG.warn("{} activity deliveries were still queued at shutdown", queue.size());
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return true if every submitted delivery finished within the timeout.
+   */
+  boolean awaitIdle(long timeout) throws InterruptedException {
+    long end = System.currentTimeMillis() + timeout;
+    while (pending.get() > 0) {
+      if (System.currentTimeMillis() > end) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private void submit(Task task) {
+    pending.incrementAndGet();
+    executor.execute(task);
+    int depth = queue.size();
+    int max = maxQueueDepth.get();
+    while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+      max = maxQueueDepth.get();
+    }
+  }
+
+  private void deliverChunk(String activityPath, List<String> connections) {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      // make the feed folders first, the copies need them saved.
+      List<String> deliveryPaths = new ArrayList<String>(connections.size());
+      for (String connection : connections) {
+        // /_user/private is a BigStore, get the hashed path
+        String activityFeedPath = PathUtils.toInternalHashedPath(_USER_PRIVATE,
+            connection, "/" + ACTIVITY_FEED_NAME);
+        Node activityFeedNode = JcrUtils.deepGetOrCreateNode(session, activityFeedPath);
+        if (activityFeedNode.isNew()) {
+          activityFeedNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+              ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE);
+        }
+        // activityFeed is a BigStore, get the hashed (real) path
+        String deliveryPath = PathUtils.toInternalHashedPath(activityFeedPath, UUID
+            .randomUUID().toString(), "");
+        JcrUtils.deepGetOrCreateNode(session, deliveryPath.substring(0, deliveryPath
+            .lastIndexOf("/")));
+        deliveryPaths.add(deliveryPath);
+      }
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+      Workspace workspace = session.getWorkspace();
+      int copied = 0;
+      for (String deliveryPath : deliveryPaths) {
+        try {
+          workspace.copy(activityPath, deliveryPath);
+          // refer back to the original item in the ActivityStore
+          Node feedItem = (Node) session.getItem(deliveryPath);
+          feedItem.setProperty(SOURCE_PROPERTY, activityPath);
+          copied++;
+        } catch (RepositoryException e) {
+          failed.incrementAndGet();
+          LOG.warn("Failed to deliver {} to {}: {}", new Object[] { activityPath,
+              deliveryPath, e.getMessage() });
+        }
+      }
+      session.save();
+      delivered.addAndGet(copied);
+    } catch (RepositoryException e) {
+      failed.addAndGet(connections.size());
+      LOG.error("Failed to deliver " + activityPath + " to " + connections.size()
+          + " feeds: " + e.getMessage(), e);
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+      completedChunks.incrementAndGet();
+    }
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  public int getActiveWorkers() {
+    return executor.getActiveCount();
+  }
+
+  public long getCompletedChunks() {
+    return completedChunks.get();
+  }
+
+  public long getDelivered() {
+    return delivered.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getCallerRuns() {
+    return callerRuns.get();
+  }
+
+  public long getDiscarded() {
+    return discarded.get();
+  }
+}
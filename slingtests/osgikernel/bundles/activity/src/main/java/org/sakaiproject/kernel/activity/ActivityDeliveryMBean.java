@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+/**
+ * JMX view of the activity delivery executor.
+ */
+public interface ActivityDeliveryMBean {
+
+  /**
+   * @return the number of chunks waiting for a worker.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the deepest the queue has been.
+   */
+  int getMaxQueueDepth();
+
+  /**
+   * @return the number of workers delivering a chunk right now.
+   */
+  int getActiveWorkers();
+
+  /**
+   * @return the number of chunks delivered.
+   */
+  long getCompletedChunks();
+
+  /**
+   * @return the number of feeds an activity was delivered to.
+   */
+  long getDelivered();
+
+  /**
+   * @return the number of feeds delivery failed for.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of chunks delivered on the event thread because the queue was
+   *         full.
+   */
+  long getCallerRuns();
+
+  /**
+   * @return the number of chunks dropped because the queue was full.
+   */
+  long getDiscarded();
+
+}
@@ -17,28 +17,33 @@
  */
 package org.sakaiproject.kernel.activity;
 
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_NAME;
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTOR_PROPERTY;
-import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.FEED_MODE_PULL;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.FEED_MODE_PUSH;
 import static org.sakaiproject.kernel.api.personal.PersonalConstants._USER_PRIVATE;
 
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.kernel.api.activity.ActivityConstants;
 import org.sakaiproject.kernel.api.connections.ConnectionManager;
-import org.sakaiproject.kernel.api.connections.ConnectionState;
 import org.sakaiproject.kernel.util.JcrUtils;
 import org.sakaiproject.kernel.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
-import java.util.UUID;
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * @scr.component immediate="true" label="ActivityEventProcessor"
@@ -46,19 +51,111 @@ import javax.jcr.Session;
  * @scr.property name="service.description" value="ActivityEventProcessor"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="event.topics" value="org/sakaiproject/kernel/activity"
+ * @scr.property name="sakai.activity.feed.mode" value="push"
+ *               description="push also copies each activity into the feed of every
+ *               connection of the actor, pull only merges the actor indexes when a feed is
+ *               read."
+ * @scr.property name="sakai.activity.delivery.threads" value="4" type="Integer"
+ *               description="The number of workers copying activities into feeds in push
+ *               mode."
+ * @scr.property name="sakai.activity.delivery.queue" value="1000" type="Integer"
+ *               description="The number of deliveries that may wait for a worker."
+ * @scr.property name="sakai.activity.delivery.chunk" value="100" type="Integer"
+ *               description="The number of feeds delivered to with one save."
+ * @scr.property name="sakai.activity.delivery.policy" value="callerRuns"
+ *               description="What happens to a delivery when the queue is full:
+ *               callerRuns delivers it on the event thread, discard drops it."
  * @scr.service interface="org.osgi.service.event.EventHandler"
+ * @scr.service interface="org.sakaiproject.kernel.activity.ActivityFeedMode"
  * @scr.reference name="SlingRepository"
  *                interface="org.apache.sling.jcr.api.SlingRepository"
  * @scr.reference name="ConnectionManager"
  *                interface="org.sakaiproject.kernel.api.connections.ConnectionManager"
  * 
  */
-public class ActivityEventProcessor implements EventHandler {
+public class ActivityEventProcessor implements EventHandler, ActivityFeedMode {
   private static final Logger LOG = LoggerFactory.getLogger(ActivityEventProcessor.class);
   protected ConnectionManager connectionManager = null;
 
   protected SlingRepository slingRepository;
 
+  static final String FEED_MODE = "sakai.activity.feed.mode";
+  static final String DELIVERY_THREADS = "sakai.activity.delivery.threads";
+  static final String DELIVERY_QUEUE = "sakai.activity.delivery.queue";
+  static final String DELIVERY_CHUNK = "sakai.activity.delivery.chunk";
+  static final String DELIVERY_POLICY = "sakai.activity.delivery.policy";
+  private static final String DELIVERY_MBEAN_NAME = "org.sakaiproject.kernel:type=ActivityDelivery";
+  private static final long SHUTDOWN_TIMEOUT = 30000L;
+
+  private volatile ActivityDelivery delivery;
+  private volatile boolean pull;
+
+  /**
+   * @param ctx
+   */
+  protected void activate(ComponentContext ctx) {
+    @SuppressWarnings("unchecked")
+    Dictionary props = ctx.getProperties();
+    String mode = (String) props.get(FEED_MODE);
+    pull = FEED_MODE_PULL.equals(mode);
+    LOG.info("Activity feeds are delivered in {} mode", pull ? FEED_MODE_PULL
+        : FEED_MODE_PUSH);
+    if (!pull) {
+      String policy = (String) props.get(DELIVERY_POLICY);
+      delivery = new ActivityDelivery(slingRepository, connectionManager, intProperty(
+          props, DELIVERY_THREADS, 4), intProperty(props, DELIVERY_QUEUE, 1000),
+          intProperty(props, DELIVERY_CHUNK, 100),
+          policy == null ? ActivityDelivery.POLICY_CALLER_RUNS : policy);
+      try {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(DELIVERY_MBEAN_NAME);
+        if (mbeanServer.isRegistered(name)) {
+          mbeanServer.unregisterMBean(name);
+        }
+        mbeanServer.registerMBean(delivery, name);
+      } catch (Exception e) {
+        LOG.warn("Unable to register activity delivery metrics {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param ctx
+   */
+  protected void deactivate(ComponentContext ctx) {
+    if (delivery != null) {
+      delivery.shutdown(SHUTDOWN_TIMEOUT);
+      delivery = null;
+      try {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(DELIVERY_MBEAN_NAME);
+        if (mbeanServer.isRegistered(name)) {
+          mbeanServer.unregisterMBean(name);
+        }
+      } catch (Exception e) {
+        LOG.warn("Unable to unregister activity delivery metrics {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.activity.ActivityFeedMode#isPull()
+   */
+  public boolean isPull() {
+    return pull;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int intProperty(Dictionary props, String name, int defaultValue) {
+    Integer value = (Integer) props.get(name);
+    if (value != null && value > 0) {
+      return value;
+    }
+    return defaultValue;
+  }
+
   public void handleEvent(Event event) {
     LOG.debug("handleEvent(Event {})", event);
     final String activityItemPath = (String) event.getProperty("activityItemPath");
@@ -78,8 +175,15 @@ public class ActivityEventProcessor implements EventHandler {
           throw new IllegalStateException("Could not determine actor of activity: "
               + activity);
         }
-        // TODO assume we were passed the connections hint; need to check
-        deliverActivityToConnections(session, activity, actor);
+        // every activity goes into the index of its actor once, feeds are merged from
+        // the indexes when they are read.
+        indexActivity(session, activity, actor);
+        ActivityDelivery pushDelivery = delivery;
+        if (pushDelivery != null) {
+          // TODO assume we were passed the connections hint; need to check
+          // copies are made by the delivery workers, not on the event thread.
+          pushDelivery.deliver(activity.getPath(), actor);
+        }
       } else {
         LOG.error("Could not process activity: {}", activityItemPath);
         throw new Error("Could not process activity: " + activityItemPath);
@@ -96,63 +200,28 @@ public class ActivityEventProcessor implements EventHandler {
 
   }
 
-  private void deliverActivityToConnections(Session session, Node activity, String actor)
+  private void indexActivity(Session session, Node activity, String actor)
       throws RepositoryException {
-    LOG.debug("deliverActivityToConnections(Session {}, Node {}, String {})",
-        new Object[] { session, activity, actor });
-    // get the users connected to the actor and distribute to them
-    String activityFeedPath = null;
-    List<String> connections = connectionManager.getConnectedUsers(actor,
-        ConnectionState.ACCEPTED);
-    if (connections == null || connections.size() <= 0) {
-      LOG.debug("{} acted but has no connections; nothing to do.", actor);
-    } else { // actor has connections
-      for (String connection : connections) {
-        // deliver to each connection
-        LOG.debug("{} acted; delivering activity to connection: {}", new Object[] {
-            actor, connection });
-        // /_user/private is a BigStore, get the hashed path
-        activityFeedPath = PathUtils.toInternalHashedPath(_USER_PRIVATE, connection,
-            "/activityFeed");
-        deliverActivityToFeed(session, activity, activityFeedPath);
-      }
-    }
-  }
-
-  private void deliverActivityToFeed(Session session, Node activity,
-      String activityFeedPath) throws RepositoryException {
-    // ensure the activityFeed node with the proper type
+    ActivityIndex.addEntry(session, actor, activity.getPath(), getCreated(activity));
+    // the actor's own feed is where the merged feed is read from.
+    String activityFeedPath = PathUtils.toInternalHashedPath(_USER_PRIVATE, actor, "/"
+        + ACTIVITY_FEED_NAME);
     Node activityFeedNode = JcrUtils.deepGetOrCreateNode(session, activityFeedPath);
     if (activityFeedNode.isNew()) {
       activityFeedNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
           ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE);
-      session.save();
-    }
-    // activityFeed exists, let's continue with delivery
-    // activityFeed is a BigStore, get the hashed (real) path
-    final String deliveryPath = PathUtils.toInternalHashedPath(activityFeedPath, UUID
-        .randomUUID().toString(), "");
-    // ensure the parent path exists before we copy source activity
-    final String parentPath = deliveryPath.substring(0, deliveryPath.lastIndexOf("/"));
-    final Node parentNode = JcrUtils.deepGetOrCreateNode(session, parentPath);
-    if (parentNode.isNew()) {
-      session.save();
     }
-    // now copy the activity from the store to the feed
-    copyActivityItem(session, activity.getPath(), deliveryPath);
+    session.save();
   }
 
-  private void copyActivityItem(Session session, String source, String destination)
-      throws RepositoryException {
-    LOG.debug("copyActivityItem(Session {}, String {}, String {})", new Object[] {
-        session, source, destination });
-    // now copy the activity from the source to the destination
-    session.getWorkspace().copy(source, destination);
-    // next let's create a source property to refer back to the original item
-    // in the ActivityStore
-    Node feedItem = (Node) session.getItem(destination);
-    feedItem.setProperty(SOURCE_PROPERTY, source);
-    session.save();
+  /**
+   * @return when the activity was created, or now if it was stored without a time.
+   */
+  private long getCreated(Node activity) throws RepositoryException {
+    if (activity.hasProperty(CREATED_PROPERTY)) {
+      return activity.getProperty(CREATED_PROPERTY).getLong();
+    }
+    return System.currentTimeMillis();
   }
 
   protected void bindSlingRepository(SlingRepository slingRepository) {
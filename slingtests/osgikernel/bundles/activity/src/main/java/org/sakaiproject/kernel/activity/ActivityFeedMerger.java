@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges activity streams that are each sorted newest first into one stream sorted
+ * newest first. Only the head of each stream is held, so reading n items from k streams
+ * reads at most n + k entries.
+ */
+public class ActivityFeedMerger implements Iterator<ActivityIndexEntry> {
+
+  private static class Head {
+    private ActivityIndexEntry entry;
+    private final Iterator<ActivityIndexEntry> stream;
+
+    private Head(ActivityIndexEntry entry, Iterator<ActivityIndexEntry> stream) {
+      this.entry = entry;
+      this.stream = stream;
+    }
+  }
+
+  private static final Comparator<Head> NEWEST_FIRST = new Comparator<Head>() {
+    public int compare(Head o1, Head o2) {
+      long c1 = o1.entry.getCreated();
+      long c2 = o2.entry.getCreated();
+      return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+    }
+  };
+
+  private final PriorityQueue<Head> heads;
+
+  /**
+   * @param streams
+   *          the streams to merge, each newest first.
+   */
+  public ActivityFeedMerger(List<Iterator<ActivityIndexEntry>> streams) {
+    heads = new PriorityQueue<Head>(Math.max(1, streams.size()), NEWEST_FIRST);
+    for (Iterator<ActivityIndexEntry> stream : streams) {
+      if (stream.hasNext()) {
+        heads.add(new Head(stream.next(), stream));
+      }
+    }
+  }
+
+  public boolean hasNext() {
+    return !heads.isEmpty();
+  }
+
+  public ActivityIndexEntry next() {
+    Head head = heads.poll();
+    if (head == null) {
+      throw new NoSuchElementException();
+    }
+    ActivityIndexEntry entry = head.entry;
+    if (head.stream.hasNext()) {
+      head.entry = head.stream.next();
+      heads.add(head);
+    }
+    return entry;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+/**
+ * How activities reach the feeds of the actor's connections, as configured on the
+ * ActivityEventProcessor.
+ */
+public interface ActivityFeedMode {
+
+  /**
+   * @return true if feeds are merged from the actor indexes when they are read, false if
+   *         each activity is copied into the feeds of the actor's connections.
+   */
+  boolean isPull();
+
+}
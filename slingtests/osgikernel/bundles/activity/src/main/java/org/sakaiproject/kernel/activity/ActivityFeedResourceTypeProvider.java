@@ -17,13 +17,20 @@
  */
 package org.sakaiproject.kernel.activity;
 
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_NAME;
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE;
 
+import org.apache.sling.api.resource.ResourceResolver;
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.resource.AbstractPathResourceTypeProvider;
 
+import javax.jcr.Session;
+
 /**
  * This class checks resource paths to see if there is a preferred resource type, where
- * the path is not a jcr path.
+ * the path is not a jcr path. The feed of the current user is typed even before it has
+ * been created, so that a user who has never posted can still read the merged feed of
+ * their connections.
  * 
  * @scr.component immediate="true" label="ActivityFeedResourceTypeProvider"
  *                description="ActivityFeedResourceTypeProvider"
@@ -40,4 +47,42 @@ public class ActivityFeedResourceTypeProvider extends AbstractPathResourceTypePr
     return ACTIVITY_FEED_RESOURCE_TYPE;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.resource.AbstractPathResourceTypeProvider#getResourceTypeFromPath(org.apache.sling.api.resource.ResourceResolver,
+   *      java.lang.String)
+   */
+  @Override
+  public String getResourceTypeFromPath(ResourceResolver resolver, String absRealPath) {
+    String resourceType = super.getResourceTypeFromPath(resolver, absRealPath);
+    if (resourceType == null) {
+      Session session = resolver.adaptTo(Session.class);
+      if (session != null
+          && isOwnFeed(session.getUserID(), removeExtension(absRealPath))) {
+        return ACTIVITY_FEED_RESOURCE_TYPE;
+      }
+    }
+    return resourceType;
+  }
+
+  /**
+   * @return true if the path is the activity feed in the user's private space.
+   */
+  static boolean isOwnFeed(String user, String path) {
+    return user != null
+        && path.equals(PersonalUtils.getPrivatePath(user, "/" + ACTIVITY_FEED_NAME));
+  }
+
+  /**
+   * @return the path without the selectors and extension of its last element.
+   */
+  static String removeExtension(String path) {
+    int i = path.indexOf('.', path.lastIndexOf('/'));
+    if (i < 0) {
+      return path;
+    }
+    return path.substring(0, i);
+  }
+
 }
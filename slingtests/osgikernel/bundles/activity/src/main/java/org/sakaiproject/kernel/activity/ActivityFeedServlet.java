@@ -17,24 +17,166 @@
  */
 package org.sakaiproject.kernel.activity;
 
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.REQUEST_PARAM_DAYS;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.REQUEST_PARAM_ITEMS;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.sakaiproject.kernel.api.connections.ConnectionManager;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
 import org.sakaiproject.kernel.resource.AbstractVirtualPathServlet;
+import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 import org.sakaiproject.kernel.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
 /**
+ * Serves the items of an activity feed by their virtual path. In pull mode a GET of the
+ * feed itself returns the recent activities of the connections of the current user,
+ * merged newest first from the index each actor keeps of their own activities, as
+ * <code>{"items": n, "results": [...]}</code>, whether or not the feed node has been
+ * created yet. In push mode the feed holds its own copies and is rendered as it always
+ * was. The mode is the one configured on the ActivityEventProcessor.
+ *
  * @scr.component metatype="no" immediate="true"
  * @scr.service interface="javax.servlet.Servlet"
  * @scr.property name="sling.servlet.resourceTypes" value="sakai/activityFeed"
  * @scr.property name="sling.servlet.methods" values.0="GET" values.1="POST"
  *               values.2="PUT" values.3="DELETE"
+ * @scr.reference name="SlingRepository"
+ *                interface="org.apache.sling.jcr.api.SlingRepository"
+ * @scr.reference name="ConnectionManager"
+ *                interface="org.sakaiproject.kernel.api.connections.ConnectionManager"
+ * @scr.reference name="ActivityFeedMode"
+ *                interface="org.sakaiproject.kernel.activity.ActivityFeedMode"
+ *                bind="bindActivityFeedMode" unbind="unbindActivityFeedMode"
  */
 public class ActivityFeedServlet extends AbstractVirtualPathServlet {
   private static final long serialVersionUID = -330576547323301568L;
   private static final Logger LOG = LoggerFactory.getLogger(ActivityFeedServlet.class);
+  private static final int DEFAULT_ITEMS = 25;
+  private static final int MAX_ITEMS = 100;
+  private static final int DEFAULT_DAYS = 30;
+  private static final long DAY = 24L * 60L * 60L * 1000L;
+
+  protected SlingRepository slingRepository;
+  protected ConnectionManager connectionManager;
+  protected ActivityFeedMode activityFeedMode;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.resource.AbstractVirtualPathServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    Resource resource = request.getResource();
+    Node feed = resource.adaptTo(Node.class);
+    String viewer = request.getRemoteUser();
+    String feedPath = null;
+    try {
+      if (feed != null && feed.getPath().equals(resource.getPath())) {
+        feedPath = feed.getPath();
+      } else if (feed == null
+          && ActivityFeedResourceTypeProvider.isOwnFeed(viewer,
+              ActivityFeedResourceTypeProvider.removeExtension(resource.getPath()))) {
+        // the feed of a user who has not posted yet.
+        feedPath = ActivityFeedResourceTypeProvider.removeExtension(resource.getPath());
+      }
+    } catch (RepositoryException e) {
+      LOG.warn(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      return;
+    }
+    ActivityFeedMode mode = activityFeedMode;
+    if (mode == null || !mode.isPull() || feedPath == null) {
+      // an item in the feed, or a feed that holds its own copies.
+      super.doGet(request, response);
+      return;
+    }
+    if (!ActivityFeedResourceTypeProvider.isOwnFeed(viewer, feedPath)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Only the owner of an activity feed may read it");
+      return;
+    }
+    int items = Math.min(intRequestParameter(request, REQUEST_PARAM_ITEMS, DEFAULT_ITEMS),
+        MAX_ITEMS);
+    long since = System.currentTimeMillis()
+        - intRequestParameter(request, REQUEST_PARAM_DAYS, DEFAULT_DAYS) * DAY;
+
+    Session session = request.getResourceResolver().adaptTo(Session.class);
+    Session adminSession = null;
+    try {
+      // the indexes are in each actor's private space.
+      adminSession = slingRepository.loginAdministrative(null);
+      List<Iterator<ActivityIndexEntry>> streams = new ArrayList<Iterator<ActivityIndexEntry>>();
+      List<String> connections = connectionManager.getConnectedUsers(viewer,
+          ConnectionState.ACCEPTED);
+      if (connections != null) {
+        for (String connection : connections) {
+          streams.add(ActivityIndex.newestFirst(adminSession, connection, since));
+        }
+      }
+      ActivityFeedMerger merged = new ActivityFeedMerger(streams);
+
+      JSONWriter write = new JSONWriter(response.getWriter());
+      write.object();
+      write.key(REQUEST_PARAM_ITEMS);
+      write.value(items);
+      write.key("results");
+      write.array();
+      int written = 0;
+      while (written < items && merged.hasNext()) {
+        ActivityIndexEntry entry = merged.next();
+        // the activity itself is read as the viewer, skipping what they cannot see.
+        if (!session.itemExists(entry.getSource())) {
+          continue;
+        }
+        Node activity = (Node) session.getItem(entry.getSource());
+        write.object();
+        ExtendedJSONWriter.writeNodeContentsToWriter(write, activity);
+        write.key(SOURCE_PROPERTY);
+        write.value(entry.getSource());
+        write.endObject();
+        written++;
+      }
+      write.endArray();
+      write.endObject();
+    } catch (RepositoryException e) {
+      LOG.warn(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } catch (IllegalStateException e) {
+      // an index that could not be read while merging.
+      LOG.warn(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } catch (JSONException e) {
+      LOG.warn(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
 
   @Override
   protected String getTargetPath(Resource baseResource, SlingHttpServletRequest request,
@@ -50,4 +192,45 @@ public class ActivityFeedServlet extends AbstractVirtualPathServlet {
     String[] pathParts = PathUtils.getNodePathParts(virtualPath);
     return PathUtils.toInternalHashedPath(realPath, pathParts[0], pathParts[1]);
   }
+
+  private int intRequestParameter(SlingHttpServletRequest request, String paramName,
+      int defaultVal) {
+    RequestParameter param = request.getRequestParameter(paramName);
+    if (param != null) {
+      try {
+        int value = Integer.parseInt(param.getString());
+        if (value > 0) {
+          return value;
+        }
+      } catch (NumberFormatException e) {
+        LOG.warn("{} parameter ({}) is invalid, defaulting to {}", new Object[] {
+            paramName, param.getString(), defaultVal });
+      }
+    }
+    return defaultVal;
+  }
+
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
+
+  protected void bindConnectionManager(ConnectionManager connectionManager) {
+    this.connectionManager = connectionManager;
+  }
+
+  protected void unbindConnectionManager(ConnectionManager connectionManager) {
+    this.connectionManager = null;
+  }
+
+  protected void bindActivityFeedMode(ActivityFeedMode activityFeedMode) {
+    this.activityFeedMode = activityFeedMode;
+  }
+
+  protected void unbindActivityFeedMode(ActivityFeedMode activityFeedMode) {
+    this.activityFeedMode = null;
+  }
 }
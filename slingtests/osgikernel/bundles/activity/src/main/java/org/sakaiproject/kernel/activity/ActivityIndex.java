@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_INDEX_NAME;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
+import org.sakaiproject.kernel.util.JcrUtils;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * The index of a user's own activities, kept in their private space and bucketed by
+ * year, month and day (UTC), so the newest activities can be read without touching the
+ * older ones. Entry names start with the zero padded creation time, so sorting the names
+ * of a bucket sorts its entries by time.
+ *
+ * <pre>
+ * /_user/private/aa/bb/cc/dd/user/activityIndex/2009/07/21/1248134400000-uuid
+ * </pre>
+ */
+public class ActivityIndex {
+
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  /**
+   * year, month and day.
+   */
+  private static final int BUCKET_LEVELS = 3;
+
+  private static final Comparator<Node> NEWEST_FIRST = new Comparator<Node>() {
+    public int compare(Node o1, Node o2) {
+      try {
+        return o2.getName().compareTo(o1.getName());
+      } catch (RepositoryException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  /**
+   * @return the path of the index of the user's activities.
+   */
+  public static String getIndexPath(String actor) {
+    return PersonalUtils.getPrivatePath(actor, "/" + ACTIVITY_INDEX_NAME);
+  }
+
+  /**
+   * Add an activity to the index of its actor. The caller saves the session.
+   *
+   * @param session
+   *          a session that may write to the actor's private space.
+   * @param actor
+   *          the user who acted.
+   * @param activityPath
+   *          the path of the activity in its store.
+   * @param created
+   *          when the activity happened, in ms since the epoch.
+   * @return the index entry.
+   * @throws RepositoryException
+   */
+  public static Node addEntry(Session session, String actor, String activityPath,
+      long created) throws RepositoryException {
+    Calendar c = Calendar.getInstance(UTC);
+    c.setTimeInMillis(created);
+    String path = String.format("%s/%04d/%02d/%02d/%013d-%s", getIndexPath(actor), c
+        .get(Calendar.YEAR), c.get(Calendar.MONTH) + 1, c.get(Calendar.DAY_OF_MONTH),
+        created, UUID.randomUUID().toString());
+    Node entry = JcrUtils.deepGetOrCreateNode(session, path);
+    entry.setProperty(SOURCE_PROPERTY, activityPath);
+    entry.setProperty(CREATED_PROPERTY, created);
+    return entry;
+  }
+
+  /**
+   * @param session
+   *          a session that may read the actor's private space.
+   * @param actor
+   *          the user whose activities to read.
+   * @param since
+   *          the oldest time to read back to, in ms since the epoch.
+   * @return the actor's activities, newest first, read lazily from the repository. An
+   *         actor with no index has no activities.
+   * @throws RepositoryException
+   */
+  public static Iterator<ActivityIndexEntry> newestFirst(Session session, String actor,
+      long since) throws RepositoryException {
+    String indexPath = getIndexPath(actor);
+    if (!session.itemExists(indexPath)) {
+      return Collections.<ActivityIndexEntry> emptyList().iterator();
+    }
+    return new NewestFirstIterator((Node) session.getItem(indexPath), actor, since);
+  }
+
+  /**
+   * Walks the buckets depth first, newest first, listing one bucket at a time.
+   */
+  private static class NewestFirstIterator implements Iterator<ActivityIndexEntry> {
+    private final String actor;
+    private final long since;
+    private final LinkedList<Iterator<Node>> levels = new LinkedList<Iterator<Node>>();
+    private ActivityIndexEntry next;
+
+    private NewestFirstIterator(Node index, String actor, long since)
+        throws RepositoryException {
+      this.actor = actor;
+      this.since = since;
+      levels.addFirst(sortedChildren(index));
+      next = advance();
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public ActivityIndexEntry next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      ActivityIndexEntry current = next;
+      try {
+        next = advance();
+      } catch (RepositoryException e) {
+        throw new IllegalStateException("Failed to read the activities of " + actor, e);
+      }
+      return current;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private ActivityIndexEntry advance() throws RepositoryException {
+      while (!levels.isEmpty()) {
+        Iterator<Node> level = levels.getFirst();
+        if (!level.hasNext()) {
+          levels.removeFirst();
+          continue;
+        }
+        Node node = level.next();
+        if (levels.size() <= BUCKET_LEVELS) {
+          levels.addFirst(sortedChildren(node));
+          continue;
+        }
+        if (!node.hasProperty(SOURCE_PROPERTY) || !node.hasProperty(CREATED_PROPERTY)) {
+          continue;
+        }
+        long created = node.getProperty(CREATED_PROPERTY).getLong();
+        if (created < since) {
+          // everything after this is older still.
+          levels.clear();
+          return null;
+        }
+        return new ActivityIndexEntry(actor, created, node.getProperty(SOURCE_PROPERTY)
+            .getString());
+      }
+      return null;
+    }
+
+    private Iterator<Node> sortedChildren(Node node) throws RepositoryException {
+      List<Node> children = new ArrayList<Node>();
+      for (NodeIterator i = node.getNodes(); i.hasNext();) {
+        children.add(i.nextNode());
+      }
+      Collections.sort(children, NEWEST_FIRST);
+      return children.iterator();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+/**
+ * One activity in the index of its actor: when it happened and where it is stored.
+ */
+public class ActivityIndexEntry {
+  private final String actor;
+  private final long created;
+  private final String source;
+
+  /**
+   * @param actor
+   *          the user who acted.
+   * @param created
+   *          when, in ms since the epoch.
+   * @param source
+   *          the path of the activity in its activity store.
+   */
+  public ActivityIndexEntry(String actor, long created, String source) {
+    this.actor = actor;
+    this.created = created;
+    this.source = source;
+  }
+
+  public String getActor() {
+    return actor;
+  }
+
+  public long getCreated() {
+    return created;
+  }
+
+  public String getSource() {
+    return source;
+  }
+}
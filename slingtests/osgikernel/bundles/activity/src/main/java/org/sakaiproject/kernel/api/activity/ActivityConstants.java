@@ -34,6 +34,30 @@ public interface ActivityConstants {
   public static final String PROPERTY_ROOT = "sakaiActivityFeed";
   public static final String ACTOR_PROPERTY = PROPERTY_ROOT + "Actor";
   public static final String SOURCE_PROPERTY = PROPERTY_ROOT + "Source";
+  public static final String CREATED_PROPERTY = PROPERTY_ROOT + "Created";
+
+  /**
+   * Name of the feed below a user's private space.
+   */
+  public static final String ACTIVITY_FEED_NAME = "activityFeed";
+  /**
+   * Name of the time sorted index of a user's own activities, below their private space.
+   */
+  public static final String ACTIVITY_INDEX_NAME = "activityIndex";
+
+  /**
+   * Feed modes. In push mode every activity is also copied into the feed of each
+   * connection of the actor, in pull mode feeds are only merged from the actor indexes
+   * when read.
+   */
+  public static final String FEED_MODE_PUSH = "push";
+  public static final String FEED_MODE_PULL = "pull";
+
+  /**
+   * Request parameters for reading a merged feed.
+   */
+  public static final String REQUEST_PARAM_ITEMS = "items";
+  public static final String REQUEST_PARAM_DAYS = "days";
 
   /**
    * Events
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.connections.ConnectionManager;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+
+/**
+ *
+ */
+public class ActivityDeliveryTest {
+
+  private static final String ACTIVITY = "/sites/a/activity/ab/cd/ef/gh/activity1";
+  private static final long WAIT = 5000L;
+
+  @Test
+  public void testDeliversInChunks() throws Exception {
+    List<String> connections = new ArrayList<String>();
+    for (int i = 0; i < 250; i++) {
+      connections.add("user" + i);
+    }
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers("alice", ConnectionState.ACCEPTED))
+        .andReturn(connections);
+
+    Workspace workspace = createNiceMock(Workspace.class);
+    Node node = createNiceMock(Node.class);
+    Session session = createNiceMock(Session.class);
+    expect(session.itemExists(isA(String.class))).andReturn(true).anyTimes();
+    expect(session.getItem(isA(String.class))).andReturn(node).anyTimes();
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    // one session per chunk.
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(session).times(3);
+    replay(connectionManager, workspace, node, session, slingRepository);
+
+    ActivityDelivery delivery = new ActivityDelivery(slingRepository, connectionManager,
+        2, 10, 100, ActivityDelivery.POLICY_CALLER_RUNS);
+    delivery.deliver(ACTIVITY, "alice");
+    assertTrue(delivery.awaitIdle(WAIT));
+    delivery.shutdown(WAIT);
+
+    assertEquals(3, delivery.getCompletedChunks());
+    assertEquals(250, delivery.getDelivered());
+    assertEquals(0, delivery.getFailed());
+    verify(connectionManager, slingRepository);
+  }
+
+  @Test
+  public void testDiscardWhenQueueIsFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ActivityDelivery delivery = new ActivityDelivery(null, blockingConnectionManager(
+        release, 2), 1, 1, 100, ActivityDelivery.POLICY_DISCARD);
+
+    // the first blocks the only worker, the second waits, the third has no room.
+    delivery.deliver(ACTIVITY, "alice");
+    waitForWorker(delivery);
+    delivery.deliver(ACTIVITY, "bob");
+    delivery.deliver(ACTIVITY, "carol");
+
+    assertEquals(1, delivery.getQueueDepth());
+    assertEquals(1, delivery.getMaxQueueDepth());
+    assertEquals(1, delivery.getDiscarded());
+    assertEquals(0, delivery.getCallerRuns());
+    release.countDown();
+    assertTrue(delivery.awaitIdle(WAIT));
+    delivery.shutdown(WAIT);
+  }
+
+  @Test
+  public void testCallerRunsWhenQueueIsFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ActivityDelivery delivery = new ActivityDelivery(null, blockingConnectionManager(
+        release, 3), 1, 1, 100, ActivityDelivery.POLICY_CALLER_RUNS);
+
+    delivery.deliver(ACTIVITY, "alice");
+    waitForWorker(delivery);
+    delivery.deliver(ACTIVITY, "bob");
+    // runs here, on the calling thread.
+    delivery.deliver(ACTIVITY, "carol");
+
+    assertEquals(1, delivery.getCallerRuns());
+    assertEquals(0, delivery.getDiscarded());
+    release.countDown();
+    assertTrue(delivery.awaitIdle(WAIT));
+    delivery.shutdown(WAIT);
+  }
+
+  /**
+   * @return a connection manager that finds no connections, but on a delivery worker
+   *         only once released.
+   */
+  private ConnectionManager blockingConnectionManager(final CountDownLatch release,
+      int calls) {
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(
+        connectionManager.getConnectedUsers(isA(String.class),
+            isA(ConnectionState.class))).andAnswer(new IAnswer<List<String>>() {
+      public List<String> answer() throws Throwable {
+        if (Thread.currentThread().getName().startsWith("Activity Delivery")) {
+          release.await();
+        }
+        return new ArrayList<String>();
+      }
+    }).times(calls);
+    replay(connectionManager);
+    return connectionManager;
+  }
+
+  private void waitForWorker(ActivityDelivery delivery) throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT;
+    while (delivery.getActiveWorkers() == 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+  }
+}
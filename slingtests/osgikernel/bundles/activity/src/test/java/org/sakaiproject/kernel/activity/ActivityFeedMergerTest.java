@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ *
+ */
+public class ActivityFeedMergerTest {
+
+  @Test
+  public void testMergesNewestFirst() {
+    List<Iterator<ActivityIndexEntry>> streams = new ArrayList<Iterator<ActivityIndexEntry>>();
+    streams.add(stream("alice", 90, 50, 10));
+    streams.add(stream("bob", 100, 60, 20, 5));
+    streams.add(stream("carol", 70));
+
+    ActivityFeedMerger merged = new ActivityFeedMerger(streams);
+
+    long[] expected = new long[] { 100, 90, 70, 60, 50, 20, 10, 5 };
+    for (long created : expected) {
+      assertEquals(created, merged.next().getCreated());
+    }
+    assertFalse(merged.hasNext());
+  }
+
+  @Test
+  public void testReadsOnlyWhatIsTaken() {
+    final int[] read = new int[1];
+    List<Iterator<ActivityIndexEntry>> streams = new ArrayList<Iterator<ActivityIndexEntry>>();
+    for (int actor = 0; actor < 10; actor++) {
+      final Iterator<ActivityIndexEntry> stream = stream("user" + actor, 1000 - actor,
+          500 - actor, 100 - actor);
+      streams.add(new Iterator<ActivityIndexEntry>() {
+        public boolean hasNext() {
+          return stream.hasNext();
+        }
+
+        public ActivityIndexEntry next() {
+          read[0]++;
+          return stream.next();
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      });
+    }
+
+    ActivityFeedMerger merged = new ActivityFeedMerger(streams);
+    for (int i = 0; i < 5; i++) {
+      assertEquals("user" + i, merged.next().getActor());
+    }
+
+    // one head per actor, and one more for each item taken.
+    assertEquals(15, read[0]);
+  }
+
+  @Test
+  public void testNoStreams() {
+    List<Iterator<ActivityIndexEntry>> streams = new ArrayList<Iterator<ActivityIndexEntry>>();
+    streams.add(Collections.<ActivityIndexEntry> emptyList().iterator());
+    assertFalse(new ActivityFeedMerger(streams).hasNext());
+    assertFalse(new ActivityFeedMerger(new ArrayList<Iterator<ActivityIndexEntry>>())
+        .hasNext());
+  }
+
+  private Iterator<ActivityIndexEntry> stream(String actor, long... created) {
+    List<ActivityIndexEntry> entries = new ArrayList<ActivityIndexEntry>();
+    for (long c : created) {
+      entries.add(new ActivityIndexEntry(actor, c, "/activity/" + actor + "/" + c));
+    }
+    return entries.iterator();
+  }
+}
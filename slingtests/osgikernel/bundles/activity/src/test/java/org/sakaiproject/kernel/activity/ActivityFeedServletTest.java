@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_NAME;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.REQUEST_PARAM_DAYS;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.REQUEST_PARAM_ITEMS;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.connections.ConnectionManager;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class ActivityFeedServletTest extends AbstractEasyMockTest {
+
+  @Test
+  public void testMergesTheFeedOfAUserWhoHasNotPosted() throws Exception {
+    long now = System.currentTimeMillis();
+    String feedPath = PersonalUtils.getPrivatePath("alice", "/" + ACTIVITY_FEED_NAME);
+    Resource resource = createMock(Resource.class);
+    expect(resource.adaptTo(Node.class)).andReturn(null);
+    expect(resource.getPath()).andReturn(feedPath + ".json").anyTimes();
+
+    Session session = createMock(Session.class);
+    expect(session.itemExists("/activity/bob")).andReturn(true);
+    expect(session.getItem("/activity/bob")).andReturn(activity());
+    expect(session.itemExists("/activity/hidden")).andReturn(false);
+    SlingHttpServletRequest request = request("alice", resource, session);
+
+    Session adminSession = createMock(Session.class);
+    // the index, then its year, month and day buckets.
+    index(adminSession, "bob", bucket(bucket(bucket(bucket(entry(now - 1000,
+        "/activity/bob"), entry(now - 2000, "/activity/hidden"))))));
+    expect(adminSession.itemExists(ActivityIndex.getIndexPath("carol"))).andReturn(false);
+    adminSession.logout();
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers("alice", ConnectionState.ACCEPTED))
+        .andReturn(Arrays.asList(new String[] { "bob", "carol" }));
+
+    StringWriter out = new StringWriter();
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    expect(response.getWriter()).andReturn(new PrintWriter(out));
+    ActivityFeedServlet servlet = servlet(adminSession, connectionManager, true);
+    replay();
+
+    servlet.doGet(request, response);
+
+    JSONObject feed = new JSONObject(out.toString());
+    assertEquals(25, feed.getInt(REQUEST_PARAM_ITEMS));
+    JSONArray results = feed.getJSONArray("results");
+    assertEquals(1, results.length());
+    assertEquals("/activity/bob", results.getJSONObject(0).getString(SOURCE_PROPERTY));
+    verify();
+  }
+
+  @Test
+  public void testOnlyTheOwnerMayReadAFeed() throws Exception {
+    String feedPath = PersonalUtils.getPrivatePath("bob", "/" + ACTIVITY_FEED_NAME);
+    Node feed = createMock(Node.class);
+    expect(feed.getPath()).andReturn(feedPath).anyTimes();
+    Resource resource = createMock(Resource.class);
+    expect(resource.adaptTo(Node.class)).andReturn(feed);
+    expect(resource.getPath()).andReturn(feedPath).anyTimes();
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource);
+    expect(request.getRemoteUser()).andReturn("alice");
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.sendError(HttpServletResponse.SC_FORBIDDEN,
+        "Only the owner of an activity feed may read it");
+    ActivityFeedServlet servlet = servlet(null, null, true);
+    replay();
+
+    servlet.doGet(request, response);
+    verify();
+  }
+
+  @Test
+  public void testTypesTheFeedOfAUserWhoHasNotPosted() throws Exception {
+    String feedPath = PersonalUtils.getPrivatePath("alice", "/" + ACTIVITY_FEED_NAME);
+    Session session = createMock(Session.class);
+    expect(session.getItem(isA(String.class))).andThrow(
+        new PathNotFoundException("Not found")).anyTimes();
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    replay();
+
+    ActivityFeedResourceTypeProvider provider = new ActivityFeedResourceTypeProvider();
+    assertEquals(ACTIVITY_FEED_RESOURCE_TYPE, provider.getResourceTypeFromPath(resolver,
+        feedPath + ".json"));
+    assertNull(provider.getResourceTypeFromPath(resolver, PersonalUtils.getPrivatePath(
+        "bob", "/" + ACTIVITY_FEED_NAME)));
+  }
+
+  private ActivityFeedServlet servlet(Session adminSession,
+      ConnectionManager connectionManager, final boolean pull) throws Exception {
+    ActivityFeedServlet servlet = new ActivityFeedServlet();
+    if (adminSession != null) {
+      SlingRepository slingRepository = createMock(SlingRepository.class);
+      expect(slingRepository.loginAdministrative(null)).andReturn(adminSession);
+      servlet.bindSlingRepository(slingRepository);
+    }
+    servlet.bindConnectionManager(connectionManager);
+    servlet.bindActivityFeedMode(new ActivityFeedMode() {
+      public boolean isPull() {
+        return pull;
+      }
+    });
+    return servlet;
+  }
+
+  private SlingHttpServletRequest request(String viewer, Resource resource,
+      Session session) {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource);
+    expect(request.getRemoteUser()).andReturn(viewer);
+    expect(request.getRequestParameter(REQUEST_PARAM_ITEMS)).andReturn(null);
+    expect(request.getRequestParameter(REQUEST_PARAM_DAYS)).andReturn(null);
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session);
+    expect(request.getResourceResolver()).andReturn(resolver);
+    return request;
+  }
+
+  private Node activity() throws RepositoryException {
+    Node activity = createMock(Node.class);
+    PropertyIterator properties = createMock(PropertyIterator.class);
+    expect(properties.hasNext()).andReturn(false);
+    expect(activity.getProperties()).andReturn(properties);
+    return activity;
+  }
+
+  private void index(Session adminSession, String actor, Node index)
+      throws RepositoryException {
+    expect(adminSession.itemExists(ActivityIndex.getIndexPath(actor))).andReturn(true);
+    expect(adminSession.getItem(ActivityIndex.getIndexPath(actor))).andReturn(index);
+  }
+
+  private Node bucket(Node... children) throws RepositoryException {
+    Node bucket = createMock(Node.class);
+    expect(bucket.getName()).andReturn("bucket").anyTimes();
+    NodeIterator nodes = createMock(NodeIterator.class);
+    for (Node child : children) {
+      expect(nodes.hasNext()).andReturn(true);
+      expect(nodes.nextNode()).andReturn(child);
+    }
+    expect(nodes.hasNext()).andReturn(false);
+    expect(bucket.getNodes()).andReturn(nodes);
+    return bucket;
+  }
+
+  private Node entry(long created, String source) throws RepositoryException {
+    Node entry = createMock(Node.class);
+    expect(entry.getName()).andReturn(String.format("%013d-entry", created)).anyTimes();
+    expect(entry.hasProperty(SOURCE_PROPERTY)).andReturn(true).anyTimes();
+    expect(entry.hasProperty(CREATED_PROPERTY)).andReturn(true).anyTimes();
+    Property createdProperty = createMock(Property.class);
+    expect(createdProperty.getLong()).andReturn(created).anyTimes();
+    expect(entry.getProperty(CREATED_PROPERTY)).andReturn(createdProperty).anyTimes();
+    Property sourceProperty = createMock(Property.class);
+    expect(sourceProperty.getString()).andReturn(source).anyTimes();
+    expect(entry.getProperty(SOURCE_PROPERTY)).andReturn(sourceProperty).anyTimes();
+    return entry;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+
+import org.easymock.Capture;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ *
+ */
+public class ActivityIndexTest extends AbstractEasyMockTest {
+
+  /**
+   * 2009-07-21T00:00:00Z
+   */
+  private static final long JULY_21 = 1248134400000L;
+  private static final long DAY = 24L * 60L * 60L * 1000L;
+
+  @Test
+  public void testAddEntryIsBucketedByCreatedTime() throws Exception {
+    final String bucketPath = ActivityIndex.getIndexPath("alice") + "/2009/07/21";
+    Session session = createMock(Session.class);
+    expect(session.itemExists(isA(String.class))).andAnswer(new IAnswer<Boolean>() {
+      public Boolean answer() throws Throwable {
+        return bucketPath.equals(getCurrentArguments()[0]);
+      }
+    }).anyTimes();
+    Node bucket = createMock(Node.class);
+    expect(session.getItem(bucketPath)).andReturn(bucket);
+    Capture<String> name = new Capture<String>();
+    Node entry = createMock(Node.class);
+    expect(bucket.hasNode(isA(String.class))).andReturn(false);
+    expect(bucket.addNode(capture(name))).andReturn(entry);
+    expect(entry.setProperty(SOURCE_PROPERTY, "/activity/1")).andReturn(null);
+    expect(entry.setProperty(CREATED_PROPERTY, JULY_21 + 5)).andReturn(null);
+    replay();
+
+    assertEquals(entry, ActivityIndex.addEntry(session, "alice", "/activity/1",
+        JULY_21 + 5));
+    assertTrue(name.getValue().startsWith("1248134400005-"));
+    verify();
+  }
+
+  @Test
+  public void testNewestFirst() throws Exception {
+    Session session = index("alice", bucket("2009", bucket("06", bucket("30", entry(
+        JULY_21 - DAY - 1, "/activity/1"))), bucket("07", bucket("20", entry(JULY_21
+        - DAY, "/activity/2"), entry(JULY_21 - 1, "/activity/3")), bucket("21", entry(
+        JULY_21, "/activity/4")))));
+    replay();
+
+    Iterator<ActivityIndexEntry> entries = ActivityIndex.newestFirst(session, "alice", 0);
+    String[] expected = new String[] { "/activity/4", "/activity/3", "/activity/2",
+        "/activity/1" };
+    for (String source : expected) {
+      ActivityIndexEntry entry = entries.next();
+      assertEquals(source, entry.getSource());
+      assertEquals("alice", entry.getActor());
+    }
+    assertFalse(entries.hasNext());
+  }
+
+  @Test
+  public void testNewestFirstStopsAtSince() throws Exception {
+    Session session = index("alice", bucket("2009", bucket("07", bucket("20", entry(
+        JULY_21 - DAY, "/activity/1"), entry(JULY_21 - 1, "/activity/2")), bucket("21",
+        entry(JULY_21, "/activity/3")))));
+    replay();
+
+    Iterator<ActivityIndexEntry> entries = ActivityIndex.newestFirst(session, "alice",
+        JULY_21 - 1);
+    assertEquals(JULY_21, entries.next().getCreated());
+    assertEquals(JULY_21 - 1, entries.next().getCreated());
+    assertFalse(entries.hasNext());
+  }
+
+  @Test
+  public void testNoIndexHasNoActivities() throws Exception {
+    Session session = createMock(Session.class);
+    expect(session.itemExists(ActivityIndex.getIndexPath("bob"))).andReturn(false);
+    replay();
+
+    assertFalse(ActivityIndex.newestFirst(session, "bob", 0).hasNext());
+    verify();
+  }
+
+  private Session index(String actor, Node... children) throws RepositoryException {
+    Node index = bucket("activityIndex", children);
+    Session session = createMock(Session.class);
+    expect(session.itemExists(ActivityIndex.getIndexPath(actor))).andReturn(true);
+    expect(session.getItem(ActivityIndex.getIndexPath(actor))).andReturn(index);
+    return session;
+  }
+
+  private Node bucket(String name, Node... children) throws RepositoryException {
+    Node bucket = createMock(Node.class);
+    expect(bucket.getName()).andReturn(name).anyTimes();
+    NodeIterator nodes = createMock(NodeIterator.class);
+    for (Node child : children) {
+      expect(nodes.hasNext()).andReturn(true);
+      expect(nodes.nextNode()).andReturn(child);
+    }
+    expect(nodes.hasNext()).andReturn(false);
+    expect(bucket.getNodes()).andReturn(nodes);
+    return bucket;
+  }
+
+  private Node entry(long created, String source) throws RepositoryException {
+    Node entry = createMock(Node.class);
+    expect(entry.getName()).andReturn(String.format("%013d-entry", created))
+        .anyTimes();
+    expect(entry.hasProperty(SOURCE_PROPERTY)).andReturn(true).anyTimes();
+    expect(entry.hasProperty(CREATED_PROPERTY)).andReturn(true).anyTimes();
+    Property createdProperty = createMock(Property.class);
+    expect(createdProperty.getLong()).andReturn(created).anyTimes();
+    expect(entry.getProperty(CREATED_PROPERTY)).andReturn(createdProperty).anyTimes();
+    Property sourceProperty = createMock(Property.class);
+    expect(sourceProperty.getString()).andReturn(source).anyTimes();
+    expect(entry.getProperty(SOURCE_PROPERTY)).andReturn(sourceProperty).anyTimes();
+    return entry;
+  }
+}
@@ -50,6 +50,9 @@ public abstract class AbstractPropertyOperationModifier extends
       List<Modification> changes) throws RepositoryException;
 
   /**
+   * Modifies the properties of the resource or of every resource in :applyTo. Nothing is
+   * saved here, the post operation saves the session once after {@link #doRun} and
+   * discards every change if anything failed, so all the resources are modified or none.
    * 
    * @param request
    * @param response
@@ -159,7 +162,7 @@ public abstract class AbstractPropertyOperationModifier extends
             }
           }
 
-          // Write the properties to the node and save them.
+          // Write the properties to the node.
           String[] newValues = new String[oldValues.size()];
           for (int i = 0; i < oldValues.size(); i++) {
             newValues[i] = oldValues.get(i);
@@ -167,9 +170,6 @@ public abstract class AbstractPropertyOperationModifier extends
           node.setProperty(prop, newValues);
         }
       }
-      if (node.isModified()) {
-        node.save();
-      }
     }
   }
 }
@@ -21,11 +21,18 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.Item;
@@ -36,7 +43,11 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Delete multiple resource requests and give a useful response
+ * Delete multiple resource requests and give a useful response. The deletes are saved in
+ * chunks rather than one at a time, if saving a chunk fails it is rolled back and every
+ * delete in it is reported with the status of the failure. With <code>atomic=true</code>
+ * the whole batch is saved at once and nothing is deleted unless every delete succeeds,
+ * the deletes that were rolled back are reported with a 409 status.
  * 
  * @scr.component immediate="true" label="BatchDeleteServlet"
  *                description="servlet to delete multiple resources"
@@ -46,6 +57,9 @@ import javax.servlet.http.HttpServletResponse;
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="sling.servlet.paths" value="/system/batch/delete"
  * @scr.property name="sling.servlet.methods" value="POST"
+ * @scr.property name="sakai.batch.delete.chunk" value="100" type="Integer"
+ *               description="The number of deletes saved together, 0 saves a whole batch
+ *               at once."
  * @scr.reference name="URIExpander" interface="org.sakaiproject.kernel.batch.URIExpander"
  */
 public class BatchDeleteServlet extends SlingAllMethodsServlet {
@@ -53,8 +67,15 @@ public class BatchDeleteServlet extends SlingAllMethodsServlet {
   public static final Logger log = LoggerFactory.getLogger(BatchDeleteServlet.class);
   private static final long serialVersionUID = 6387824420269087079L;
   public static final String RESOURCE_PATH_PARAMETER = "resources";
+  /**
+   * Set to true to delete all the resources or none of them.
+   */
+  public static final String ATOMIC_PARAMETER = "atomic";
+
+  static final String CHUNK = "sakai.batch.delete.chunk";
 
   private URIExpander uriExpander;
+  private int chunk = 100;
 
   protected void bindURIExpander(URIExpander uriExpander) {
     this.uriExpander = uriExpander;
@@ -76,24 +97,18 @@ public class BatchDeleteServlet extends SlingAllMethodsServlet {
       return;
     }
     Session session = request.getResourceResolver().adaptTo(Session.class);
+    boolean atomic = Boolean.parseBoolean(request.getParameter(ATOMIC_PARAMETER));
+    int[] status = removeResources(requestedResources, atomic, session, request);
+
     ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
     try {
       write.array();
-      for (String resourcePath : requestedResources) {
+      for (int i = 0; i < requestedResources.length; i++) {
         write.object();
         write.key("path");
-        write.value(resourcePath);
+        write.value(requestedResources[i]);
         write.key("succes");
-        try {
-          removeResource(resourcePath, session, request);
-          write.value(200);
-        } catch (AccessDeniedException e) {
-          write.value(401);
-        } catch (PathNotFoundException e) {
-          write.value(404);
-        } catch (RepositoryException e) {
-          write.value(500);
-        }
+        write.value(status[i]);
         write.endObject();
       }
       write.endArray();
@@ -104,38 +119,158 @@ public class BatchDeleteServlet extends SlingAllMethodsServlet {
   }
 
   /**
-   * Removes a resource
+   * Removes the resources, saving them in chunks.
+   * 
+   * @param resourcePaths
+   * @param atomic
+   *          true to save once and roll everything back if one remove fails.
+   * @param session
+   * @param request
+   * @return the status of each resource.
+   */
+  private int[] removeResources(String[] resourcePaths, boolean atomic, Session session,
+      SlingHttpServletRequest request) {
+    int[] status = new int[resourcePaths.length];
+    int saveEvery = atomic ? 0 : chunk;
+    Set<String> removed = new HashSet<String>();
+    List<String> unsaved = new ArrayList<String>();
+    int first = 0;
+    for (int i = 0; i < resourcePaths.length; i++) {
+      try {
+        String absPath = removeResource(resourcePaths[i], removed, session, request);
+        if (absPath != null) {
+          removed.add(absPath);
+          unsaved.add(absPath);
+        }
+        status[i] = HttpServletResponse.SC_OK;
+      } catch (AccessDeniedException e) {
+        status[i] = HttpServletResponse.SC_UNAUTHORIZED;
+      } catch (PathNotFoundException e) {
+        status[i] = HttpServletResponse.SC_NOT_FOUND;
+      } catch (RepositoryException e) {
+        log.warn("Failed to delete {}: {}", resourcePaths[i], e.getMessage());
+        status[i] = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+      }
+      if (atomic && status[i] != HttpServletResponse.SC_OK) {
+        rollback(session, status, 0, resourcePaths.length, HttpServletResponse.SC_CONFLICT,
+            removed, unsaved);
+        return status;
+      }
+      if (saveEvery > 0 && unsaved.size() >= saveEvery) {
+        save(session, status, first, i + 1, removed, unsaved);
+        first = i + 1;
+      }
+    }
+    if (!unsaved.isEmpty()) {
+      save(session, status, first, resourcePaths.length, removed, unsaved);
+    }
+    return status;
+  }
+
+  /**
+   * Saves the removes of a chunk, if that fails they are rolled back.
+   * 
+   * @param session
+   * @param status
+   * @param from
+   *          the first resource of the chunk.
+   * @param to
+   *          the resource after the chunk.
+   * @param removed
+   * @param unsaved
+   *          the paths removed by the chunk.
+   */
+  private void save(Session session, int[] status, int from, int to, Set<String> removed,
+      List<String> unsaved) {
+    try {
+      session.save();
+      unsaved.clear();
+    } catch (AccessDeniedException e) {
+      rollback(session, status, from, to, HttpServletResponse.SC_UNAUTHORIZED, removed,
+          unsaved);
+    } catch (RepositoryException e) {
+      log.warn("Failed to save deletes: {}", e.getMessage());
+      rollback(session, status, from, to, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          removed, unsaved);
+    }
+  }
+
+  /**
+   * Discards the unsaved removes and marks the resources that were removed with a status.
+   * The discarded paths are dropped from the removed ones, since they are back.
+   * 
+   * @param session
+   * @param status
+   * @param from
+   * @param to
+   * @param code
+   * @param removed
+   * @param unsaved
+   */
+  private void rollback(Session session, int[] status, int from, int to, int code,
+      Set<String> removed, List<String> unsaved) {
+    try {
+      session.refresh(false);
+    } catch (RepositoryException e) {
+      log.error("Failed to roll back deletes", e);
+    }
+    removed.removeAll(unsaved);
+    unsaved.clear();
+    for (int i = from; i < to; i++) {
+      if (status[i] == HttpServletResponse.SC_OK || status[i] == 0) {
+        status[i] = code;
+      }
+    }
+  }
+
+  /**
+   * Removes a resource, without saving it.
    * 
    * @param resourcePath
+   * @param removed
+   *          the paths removed so far, a resource below one of them is already gone.
    * @param session
+   * @return the path removed, or null if it went with one removed before.
    * @throws RepositoryException
    */
-  private void removeResource(String resourcePath, Session session,
-      SlingHttpServletRequest request) throws AccessDeniedException,
+  private String removeResource(String resourcePath, Set<String> removed,
+      Session session, SlingHttpServletRequest request) throws AccessDeniedException,
       PathNotFoundException, RepositoryException {
-    try {
-      if (session.itemExists(resourcePath)) {
-        Item i = session.getItem(resourcePath);
-        i.remove();
-        session.save();
-      } else {
-        // The path doesn't exists in JCR, maybe it exists in a bigstore..
-        String absPath = uriExpander.getJCRPathFromURI(session, request
-            .getResourceResolver(), resourcePath);
-
-        log.info("Trying to delete: " + absPath);
-
-        if (session.itemExists(absPath)) {
-          Item i = session.getItem(absPath);
-          i.remove();
-          session.save();
-        } else {
-          throw new PathNotFoundException();
+    String absPath = resourcePath;
+    if (!session.itemExists(absPath)) {
+      // The path doesn't exists in JCR, maybe it exists in a bigstore..
+      absPath = uriExpander.getJCRPathFromURI(session, request.getResourceResolver(),
+          resourcePath);
+
+      log.info("Trying to delete: " + absPath);
+
+      if (!session.itemExists(absPath)) {
+        if (isBelow(resourcePath, removed) || isBelow(absPath, removed)) {
+          return null;
         }
+        throw new PathNotFoundException();
       }
-    } catch (AccessDeniedException e) {
-      throw e;
     }
+    Item i = session.getItem(absPath);
+    i.remove();
+    return absPath;
+  }
+
+  /**
+   * @return true if one of the ancestors of the path is in paths.
+   */
+  private boolean isBelow(String path, Set<String> paths) {
+    for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/',
+        slash - 1)) {
+      if (paths.contains(path.substring(0, slash))) {
+        return true;
+      }
+    }
+    return false;
+  }
 
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    chunk = OsgiUtil.toInteger(properties.get(CHUNK), 100);
   }
 }
@@ -21,16 +21,42 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestDispatcherOptions;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceWrapper;
+import org.apache.sling.api.servlets.ServletResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
-import org.sakaiproject.kernel.util.ExtendedJSONWriter;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -45,6 +71,23 @@ import javax.servlet.http.HttpServletResponse;
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="sling.servlet.paths" value="/system/batch"
  * @scr.property name="sling.servlet.methods" value="GET"
+ * @scr.property name="sakai.batch.threads" value="20" type="Integer"
+ *               description="The number of workers shared by all parallel batches."
+ * @scr.property name="sakai.batch.concurrency" value="4" type="Integer"
+ *               description="The number of resources of one parallel batch fetched at
+ *               once."
+ * @scr.property name="sakai.batch.timeout" value="30000" type="Integer"
+ *               description="The time in ms a parallel batch may take, resources not
+ *               fetched by then are reported with a 504 status."
+ * @scr.property name="sakai.batch.cancelTimeout" value="5000" type="Integer"
+ *               description="The time in ms to wait for the resources that timed out to
+ *               stop, workers still running after that finish on their own sessions."
+ * @scr.reference name="SlingRepository"
+ *                interface="org.apache.sling.jcr.api.SlingRepository"
+ * @scr.reference name="ResourceResolverFactory"
+ *                interface="org.apache.sling.jcr.resource.JcrResourceResolverFactory"
+ * @scr.reference name="ServletResolver"
+ *                interface="org.apache.sling.api.servlets.ServletResolver"
  */
 public class BatchGetServlet extends SlingAllMethodsServlet {
 
@@ -55,6 +98,23 @@ public class BatchGetServlet extends SlingAllMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(BatchGetServlet.class);
 
   public static final String RESOURCE_PATH_PARAMETER = "resources";
+  /**
+   * Set to true to fetch the resources in parallel, each on its own session.
+   */
+  public static final String PARALLEL_PARAMETER = "parallel";
+
+  static final String THREADS = "sakai.batch.threads";
+  static final String CONCURRENCY = "sakai.batch.concurrency";
+  static final String TIMEOUT = "sakai.batch.timeout";
+  static final String CANCEL_TIMEOUT = "sakai.batch.cancelTimeout";
+
+  private transient ThreadPoolExecutor executor;
+  private transient SlingRepository slingRepository;
+  private transient JcrResourceResolverFactory resourceResolverFactory;
+  private transient ServletResolver servletResolver;
+  private int concurrency = 1;
+  private long timeout;
+  private long cancelTimeout;
 
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
@@ -66,54 +126,310 @@ public class BatchGetServlet extends SlingAllMethodsServlet {
       return;
     }
 
-    ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+    // resolve everything before writing, so a bad path is reported as an error.
+    SlingRequestPathInfo[] pathInfos = new SlingRequestPathInfo[requestedResources.length];
+    for (int i = 0; i < requestedResources.length; i++) {
+      String resourcePath = requestedResources[i];
+      if (!resourcePath.startsWith("/")) {
+        response
+            .sendError(HttpServletResponse.SC_BAD_REQUEST, "Resources must be absolute paths");
+        return;
+      }
+      pathInfos[i] = new SlingRequestPathInfo(resourcePath, request.getResourceResolver());
+      if (pathInfos[i].getResource() == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such resource: " + resourcePath);
+        return;
+      }
+    }
+
+    Writer out = response.getWriter();
+    out.write('[');
+    ThreadPoolExecutor pool = executor;
+    if (pool != null && concurrency > 1 && requestedResources.length > 1
+        && Boolean.parseBoolean(request.getParameter(PARALLEL_PARAMETER))) {
+      outputParallel(pool, requestedResources, request, response, out);
+    } else {
+      outputSequential(requestedResources, pathInfos, request, response, out);
+    }
+    out.write(']');
+  }
+
+  /**
+   * Fetch one resource at a time, each response is escaped straight into the output.
+   */
+  private void outputSequential(String[] requestedResources,
+      SlingRequestPathInfo[] pathInfos, SlingHttpServletRequest request,
+      SlingHttpServletResponse response, Writer out) throws IOException {
+    for (int i = 0; i < requestedResources.length; i++) {
+      if (i > 0) {
+        out.write(',');
+      }
+      JSONStringWriter data = openEntry(out, requestedResources[i]);
+      try {
+        ResponseWrapper responseWrapper = new ResponseWrapper(response, data);
+        outputResource(pathInfos[i], request, responseWrapper);
+        responseWrapper.writeDataTo(data);
+      } catch (Exception e) {
+        LOGGER.warn("Unable to get data for resource: " + requestedResources[i], e);
+      }
+      data.close();
+      out.write('}');
+    }
+  }
+
+  /**
+   * Fetch up to the configured number of resources at a time on the worker pool. Each
+   * response is held by its worker, and written out as soon as the ones before it have
+   * been.
+   */
+  private void outputParallel(ThreadPoolExecutor pool, String[] requestedResources,
+      SlingHttpServletRequest request, SlingHttpServletResponse response, Writer out)
+      throws IOException {
+    String userId = request.getResourceResolver().adaptTo(Session.class).getUserID();
+    CompletionService<ResponseWrapper> completionService = new ExecutorCompletionService<ResponseWrapper>(
+        pool);
+    Map<Future<ResponseWrapper>, ParallelGet> running = new HashMap<Future<ResponseWrapper>, ParallelGet>();
+    List<Future<ResponseWrapper>> completed = new ArrayList<Future<ResponseWrapper>>(
+        Collections.<Future<ResponseWrapper>> nCopies(requestedResources.length, null));
+    long deadline = System.currentTimeMillis() + timeout;
+    int next = 0;
+    int written = 0;
     try {
-      write.array();
-      for (String resourcePath : requestedResources) {
-        if (!resourcePath.startsWith("/")) {
-          response
-              .sendError(HttpServletResponse.SC_BAD_REQUEST, "Resources must be absolute paths");
-          return;
+      while (written < requestedResources.length) {
+        while (next < requestedResources.length && running.size() < concurrency) {
+          ParallelGet get = new ParallelGet(next, requestedResources[next], userId, request,
+              response);
+          running.put(completionService.submit(get), get);
+          next++;
         }
-        SlingRequestPathInfo pathInfo = new SlingRequestPathInfo(resourcePath, request.getResourceResolver());
-        Resource resource = pathInfo.getResource();
-        if (resource == null) {
-          response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such resource: " + resourcePath);
-          return;
+        // once out of time, only take what has already completed.
+        long wait = deadline - System.currentTimeMillis();
+        Future<ResponseWrapper> done = wait > 0 ? completionService.poll(wait,
+            TimeUnit.MILLISECONDS) : completionService.poll();
+        if (done == null) {
+          break;
         }
-        write.object();
-        write.key("path");
-        write.value(resourcePath);
-        write.key("data");
-        try {
-          outputResource(resource, pathInfo, request, response, write);
-        } catch (Exception e) {
-          LOGGER.warn("Unable to get data for resource: " + resourcePath, e);
+        completed.set(running.remove(done).index, done);
+        while (written < requestedResources.length && completed.get(written) != null) {
+          writeEntry(out, written, requestedResources[written], completed.get(written));
+          written++;
         }
-        write.endObject();
       }
-      write.endArray();
-    } catch (JSONException e) {
-      LOGGER.error("Error encoding output as JSON", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Unable to encode content as JSON");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // anything left has run out of time, its worker is given a while to stop.
+    long cancelDeadline = System.currentTimeMillis() + cancelTimeout;
+    for (Map.Entry<Future<ResponseWrapper>, ParallelGet> e : running.entrySet()) {
+      Future<ResponseWrapper> future = e.getKey();
+      ParallelGet get = e.getValue();
+      get.cancel(future, cancelDeadline);
+      if (future.isDone() && !future.isCancelled()) {
+        // finished after the last poll, before it could be cancelled.
+        completed.set(get.index, future);
+      }
+    }
+    for (; written < requestedResources.length; written++) {
+      if (completed.get(written) != null) {
+        writeEntry(out, written, requestedResources[written], completed.get(written));
+      } else {
+        LOGGER.warn("Timed out getting data for resource: {} ", requestedResources[written]);
+        if (written > 0) {
+          out.write(',');
+        }
+        writeStatus(out, requestedResources[written], HttpServletResponse.SC_GATEWAY_TIMEOUT);
+      }
+    }
+  }
+
+  private void writeEntry(Writer out, int index, String resourcePath,
+      Future<ResponseWrapper> done) throws IOException {
+    if (index > 0) {
+      out.write(',');
+    }
+    try {
+      ResponseWrapper responseWrapper = done.get();
+      if (responseWrapper.getStatus() >= HttpServletResponse.SC_BAD_REQUEST) {
+        writeStatus(out, resourcePath, responseWrapper.getStatus());
+      } else {
+        JSONStringWriter data = openEntry(out, resourcePath);
+        responseWrapper.writeDataTo(data);
+        data.close();
+        out.write('}');
+      }
+    } catch (ExecutionException e) {
+      LOGGER.warn("Unable to get data for resource: " + resourcePath, e.getCause());
+      writeStatus(out, resourcePath, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } catch (InterruptedException e) {
+      // the future is complete, so this does not wait.
+      Thread.currentThread().interrupt();
+      writeStatus(out, resourcePath, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     }
   }
 
-  private void outputResource(final Resource resource, SlingRequestPathInfo pathInfo, SlingHttpServletRequest request,
-      SlingHttpServletResponse response, ExtendedJSONWriter write) throws ServletException, IOException, JSONException {
+  private JSONStringWriter openEntry(Writer out, String resourcePath) throws IOException {
+    out.write("{\"path\":");
+    out.write(JSONObject.quote(resourcePath));
+    out.write(",\"data\":");
+    JSONStringWriter data = new JSONStringWriter(out);
+    data.open();
+    return data;
+  }
+
+  private void writeStatus(Writer out, String resourcePath, int status) throws IOException {
+    out.write("{\"path\":");
+    out.write(JSONObject.quote(resourcePath));
+    out.write(",\"status\":");
+    out.write(String.valueOf(status));
+    out.write('}');
+  }
+
+  private void outputResource(SlingRequestPathInfo pathInfo,
+      SlingHttpServletRequest request, ResponseWrapper responseWrapper)
+      throws ServletException, IOException {
+    Resource resource = pathInfo.getResource();
     RequestDispatcherOptions options = new RequestDispatcherOptions();
     ResourceWrapper resourceWrapper = new ResourceWrapper(resource);
-    ResponseWrapper responseWrapper = new ResponseWrapper(response); 
     options.setReplaceSelectors("");
     ResourceRequestWrapper requestWrapper = new ResourceRequestWrapper(request, resource, pathInfo);
-    request.getRequestDispatcher(resourceWrapper, options).forward(requestWrapper, responseWrapper);
-    outputResponseAsJSON(responseWrapper, write);
+    request.getRequestDispatcher(resourceWrapper, options).forward(requestWrapper,
+        responseWrapper);
+  }
+
+  /**
+   * One resource of a parallel batch. None of the outer request's session, resolver or
+   * dispatch state is thread safe, so the worker logs in as the same user, resolves the
+   * resource with its own resolver and calls the servlet resolved for it directly.
+   */
+  private class ParallelGet implements Callable<ResponseWrapper> {
+    private final int index;
+    private final String resourcePath;
+    private final String userId;
+    private final SlingHttpServletRequest request;
+    private final SlingHttpServletResponse response;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    ParallelGet(int index, String resourcePath, String userId,
+        SlingHttpServletRequest request, SlingHttpServletResponse response) {
+      this.index = index;
+      this.resourcePath = resourcePath;
+      this.userId = userId;
+      this.request = request;
+      this.response = response;
+    }
+
+    public ResponseWrapper call() throws Exception {
+      if (!started.compareAndSet(false, true)) {
+        // cancelled before it got a worker.
+        return null;
+      }
+      try {
+        Session adminSession = slingRepository.loginAdministrative(null);
+        Session session;
+        try {
+          session = adminSession.impersonate(new SimpleCredentials(userId, "dummy"
+              .toCharArray()));
+        } finally {
+          adminSession.logout();
+        }
+        try {
+          ResourceResolver resourceResolver = resourceResolverFactory
+              .getResourceResolver(session);
+          SlingRequestPathInfo pathInfo = new SlingRequestPathInfo(resourcePath,
+              resourceResolver);
+          if (pathInfo.getResource() == null) {
+            throw new ServletException("No such resource: " + resourcePath);
+          }
+          ResourceRequestWrapper requestWrapper = new ResourceRequestWrapper(request,
+              pathInfo.getResource(), pathInfo, resourceResolver);
+          Servlet servlet = servletResolver.resolveServlet(requestWrapper);
+          if (servlet == null) {
+            throw new ServletException("No servlet for resource: " + resourcePath);
+          }
+          ResponseWrapper responseWrapper = new ResponseWrapper(response);
+          servlet.service(requestWrapper, responseWrapper);
+          return responseWrapper;
+        } finally {
+          session.logout();
+        }
+      } finally {
+        finished.countDown();
+      }
+    }
+
+    /**
+     * Stop the get from starting, or interrupt it and wait until the deadline for it to
+     * finish if it already has. A worker that is still running after that is left to
+     * finish on its own session and resolver.
+     */
+    void cancel(Future<ResponseWrapper> future, long deadline) {
+      if (!future.cancel(true) || started.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        if (!finished.await(Math.max(0, deadline - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS)) {
+          LOGGER.warn("Batch get of {} did not stop when it timed out, leaving it to finish",
+              resourcePath);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    int threads = OsgiUtil.toInteger(properties.get(THREADS), 20);
+    concurrency = OsgiUtil.toInteger(properties.get(CONCURRENCY), 4);
+    timeout = OsgiUtil.toInteger(properties.get(TIMEOUT), 30000);
+    cancelTimeout = OsgiUtil.toInteger(properties.get(CANCEL_TIMEOUT), 5000);
+    if (threads > 0 && concurrency > 1) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "Batch Get " + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
+
+  protected void bindResourceResolverFactory(
+      JcrResourceResolverFactory resourceResolverFactory) {
+    this.resourceResolverFactory = resourceResolverFactory;
+  }
+
+  protected void unbindResourceResolverFactory(
+      JcrResourceResolverFactory resourceResolverFactory) {
+    this.resourceResolverFactory = null;
+  }
+
+  protected void bindServletResolver(ServletResolver servletResolver) {
+    this.servletResolver = servletResolver;
   }
 
-  private void outputResponseAsJSON(ResponseWrapper responseWrapper,
-      ExtendedJSONWriter write) throws UnsupportedEncodingException, JSONException {
-    write.value(responseWrapper.getDataAsString());
+  protected void unbindServletResolver(ServletResolver servletResolver) {
+    this.servletResolver = null;
   }
 
 }
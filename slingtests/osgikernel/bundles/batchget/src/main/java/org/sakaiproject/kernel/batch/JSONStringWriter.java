@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes characters into another writer as the contents of a JSON string, escaping as
+ * it goes, so a response can be embedded in a JSON document without being buffered.
+ * The quotes around the string are written by {@link #open()} and {@link #close()}.
+ */
+public class JSONStringWriter extends Writer {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Writer out;
+  private char last;
+
+  /**
+   * @param out
+   *          the writer of the enclosing JSON document.
+   */
+  public JSONStringWriter(Writer out) {
+    this.out = out;
+  }
+
+  /**
+   * Start the string.
+   *
+   * @throws IOException
+   */
+  public void open() throws IOException {
+    out.write('"');
+    last = 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.Writer#write(char[], int, int)
+   */
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    int end = off + len;
+    int start = off;
+    for (int i = off; i < end; i++) {
+      char c = cbuf[i];
+      String escape = escape(c);
+      if (escape != null) {
+        out.write(cbuf, start, i - start);
+        out.write(escape);
+        start = i + 1;
+      }
+      last = c;
+    }
+    out.write(cbuf, start, end - start);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.Writer#write(java.lang.String, int, int)
+   */
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    char[] cbuf = new char[len];
+    str.getChars(off, off + len, cbuf, 0);
+    write(cbuf, 0, len);
+  }
+
+  private String escape(char c) {
+    switch (c) {
+    case '"':
+      return "\\\"";
+    case '\\':
+      return "\\\\";
+    case '/':
+      // stops a response containing </script> ending an enclosing script block.
+      return last == '<' ? "\\/" : null;
+    case '\b':
+      return "\\b";
+    case '\f':
+      return "\\f";
+    case '\n':
+      return "\\n";
+    case '\r':
+      return "\\r";
+    case '\t':
+      return "\\t";
+    default:
+      if (c < ' ' || c == '\u2028' || c == '\u2029') {
+        return new String(new char[] { '\\', 'u', HEX[c >> 12], HEX[(c >> 8) & 0xf],
+            HEX[(c >> 4) & 0xf], HEX[c & 0xf] });
+      }
+      return null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.Writer#flush()
+   */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * End the string, the enclosing writer is left open.
+   *
+   * @see java.io.Writer#close()
+   */
+  @Override
+  public void close() throws IOException {
+    out.write('"');
+  }
+}
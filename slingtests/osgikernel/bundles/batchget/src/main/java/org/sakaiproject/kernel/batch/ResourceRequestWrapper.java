@@ -3,12 +3,20 @@ package org.sakaiproject.kernel.batch;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.wrappers.SlingHttpServletRequestWrapper;
 
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
 public class ResourceRequestWrapper extends SlingHttpServletRequestWrapper {
 
   private Resource wrappedResource;
   private SlingRequestPathInfo pathInfo;
+  private ResourceResolver resourceResolver;
+  private Map<String, Object> attributes;
 
   public ResourceRequestWrapper(SlingHttpServletRequest wrappedRequest, Resource wrappedResource, SlingRequestPathInfo pathInfo) {
     super(wrappedRequest);
@@ -16,6 +24,29 @@ public class ResourceRequestWrapper extends SlingHttpServletRequestWrapper {
     this.wrappedResource = wrappedResource;
   }
 
+  /**
+   * A request served on another thread than the wrapped one. It reads through its own
+   * resolver and keeps its own copy of the attributes, so the wrapped request is only
+   * ever read.
+   *
+   * @param wrappedRequest
+   * @param wrappedResource
+   * @param pathInfo
+   * @param resourceResolver
+   */
+  public ResourceRequestWrapper(SlingHttpServletRequest wrappedRequest,
+      Resource wrappedResource, SlingRequestPathInfo pathInfo,
+      ResourceResolver resourceResolver) {
+    this(wrappedRequest, wrappedResource, pathInfo);
+    this.resourceResolver = resourceResolver;
+    attributes = new HashMap<String, Object>();
+    for (Enumeration<?> names = wrappedRequest.getAttributeNames(); names != null
+        && names.hasMoreElements();) {
+      String name = (String) names.nextElement();
+      attributes.put(name, wrappedRequest.getAttribute(name));
+    }
+  }
+
     /*new RequestPathInfo() {
 
     public String getExtension() {
@@ -50,4 +81,40 @@ public class ResourceRequestWrapper extends SlingHttpServletRequestWrapper {
     return wrappedResource;
   }
 
+  @Override
+  public ResourceResolver getResourceResolver() {
+    return resourceResolver == null ? super.getResourceResolver() : resourceResolver;
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes == null ? super.getAttribute(name) : attributes.get(name);
+  }
+
+  @Override
+  public Enumeration<?> getAttributeNames() {
+    return attributes == null ? super.getAttributeNames() : Collections
+        .enumeration(attributes.keySet());
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    if (attributes == null) {
+      super.setAttribute(name, value);
+    } else if (value == null) {
+      attributes.remove(name);
+    } else {
+      attributes.put(name, value);
+    }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    if (attributes == null) {
+      super.removeAttribute(name);
+    } else {
+      attributes.remove(name);
+    }
+  }
+
 }
@@ -4,16 +4,39 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
 
 import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
 
 public class ResponseWrapper extends SlingHttpServletResponseWrapper {
 
+  /**
+   * Hold everything written until it is asked for. The status and headers are kept
+   * here too, so the wrapped response is never changed.
+   *
+   * @param wrappedResponse
+   */
   public ResponseWrapper(SlingHttpServletResponse wrappedResponse) {
+    this(wrappedResponse, null);
+  }
+
+  /**
+   * @param wrappedResponse
+   * @param target
+   *          where characters written to the writer go as they are written, if null they
+   *          are held. Bytes written to the output stream are always held, since they can
+   *          only be decoded once complete.
+   */
+  public ResponseWrapper(SlingHttpServletResponse wrappedResponse, Writer target) {
     super(wrappedResponse);
+    held = target == null;
+    chars = held ? new CharArrayWriter() : null;
+    pw = new PrintWriter(held ? chars : target);
   }
 
   ByteArrayOutputStream boas = new ByteArrayOutputStream();
@@ -22,10 +45,18 @@ public class ResponseWrapper extends SlingHttpServletResponseWrapper {
     public void write(int b) throws IOException {
       boas.write(b);
     }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      boas.write(b, off, len);
+    }
   };
-  PrintWriter pw = new PrintWriter(servletOutputStream);
+  private final boolean held;
+  private final CharArrayWriter chars;
+  private final PrintWriter pw;
   private String type;
   private String charset;
+  private int status = HttpServletResponse.SC_OK;
 
   @Override
   public String getCharacterEncoding() {
@@ -77,8 +108,120 @@ public class ResponseWrapper extends SlingHttpServletResponseWrapper {
   }
 
   public String getDataAsString() throws UnsupportedEncodingException {
-    pw.close();
-    return boas.toString("utf-8");
+    pw.flush();
+    StringBuilder sb = new StringBuilder();
+    if (chars != null) {
+      sb.append(chars.toCharArray());
+    }
+    return sb.append(boas.toString("utf-8")).toString();
+  }
+
+  /**
+   * Write out whatever has been held.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public void writeDataTo(Writer out) throws IOException {
+    pw.flush();
+    if (chars != null) {
+      chars.writeTo(out);
+    }
+    if (boas.size() > 0) {
+      out.write(boas.toString("utf-8"));
+    }
+  }
+
+  /**
+   * @return the status set on a held response.
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  @Override
+  public void setStatus(int sc) {
+    if (held) {
+      status = sc;
+    } else {
+      super.setStatus(sc);
+    }
+  }
+
+  @Override
+  public void sendError(int sc) throws IOException {
+    if (held) {
+      status = sc;
+    } else {
+      super.sendError(sc);
+    }
+  }
+
+  @Override
+  public void sendError(int sc, String msg) throws IOException {
+    if (held) {
+      status = sc;
+    } else {
+      super.sendError(sc, msg);
+    }
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    if (held) {
+      status = HttpServletResponse.SC_MOVED_TEMPORARILY;
+    } else {
+      super.sendRedirect(location);
+    }
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if (!held) {
+      super.setHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    if (!held) {
+      super.addHeader(name, value);
+    }
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+    if (!held) {
+      super.setDateHeader(name, date);
+    }
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    if (!held) {
+      super.addDateHeader(name, date);
+    }
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    if (!held) {
+      super.setIntHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    if (!held) {
+      super.addIntHeader(name, value);
+    }
+  }
+
+  @Override
+  public void setContentLength(int len) {
+    if (!held) {
+      super.setContentLength(len);
+    }
   }
 
   @Override
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.jcr.Item;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ *
+ */
+public class BatchDeleteServletTest extends AbstractEasyMockTest {
+
+  private static final String[] NODES = new String[] { "/a", "/a/b", "/c", "/d", "/e" };
+
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private ResourceResolver resourceResolver;
+  private Session session;
+  private URIExpander uriExpander;
+  private StringWriter output;
+
+  /**
+   * The nodes in the session, and the nodes as last saved.
+   */
+  private Set<String> nodes;
+  private Set<String> saved;
+  private int saves;
+  /**
+   * Saves fail while this node is removed and not saved.
+   */
+  private String failSaveWithout;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    nodes = new TreeSet<String>();
+    for (String node : NODES) {
+      nodes.add(node);
+    }
+    saved = new TreeSet<String>(nodes);
+    saves = 0;
+    failSaveWithout = null;
+
+    request = createMock(SlingHttpServletRequest.class);
+    response = createMock(SlingHttpServletResponse.class);
+    resourceResolver = createMock(ResourceResolver.class);
+    session = createMock(Session.class);
+    uriExpander = createMock(URIExpander.class);
+    output = new StringWriter();
+    expect(request.getResourceResolver()).andReturn(resourceResolver).anyTimes();
+    expect(resourceResolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    expect(response.getWriter()).andReturn(new PrintWriter(output)).anyTimes();
+    expect(
+        uriExpander.getJCRPathFromURI(eq(session), eq(resourceResolver),
+            isA(String.class))).andAnswer(new IAnswer<String>() {
+      public String answer() throws Throwable {
+        return (String) getCurrentArguments()[2];
+      }
+    }).anyTimes();
+
+    expect(session.itemExists(isA(String.class))).andAnswer(new IAnswer<Boolean>() {
+      public Boolean answer() throws Throwable {
+        return nodes.contains(getCurrentArguments()[0]);
+      }
+    }).anyTimes();
+    for (final String node : NODES) {
+      Item item = createMock(Item.class);
+      item.remove();
+      expectLastCall().andAnswer(new IAnswer<Object>() {
+        public Object answer() throws Throwable {
+          for (Iterator<String> i = nodes.iterator(); i.hasNext();) {
+            String path = i.next();
+            if (path.equals(node) || path.startsWith(node + "/")) {
+              i.remove();
+            }
+          }
+          return null;
+        }
+      }).anyTimes();
+      expect(session.getItem(node)).andReturn(item).anyTimes();
+    }
+    session.save();
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        saves++;
+        if (failSaveWithout != null && !nodes.contains(failSaveWithout)) {
+          throw new RepositoryException("Failed to save");
+        }
+        saved = new TreeSet<String>(nodes);
+        return null;
+      }
+    }).anyTimes();
+    session.refresh(false);
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        nodes = new TreeSet<String>(saved);
+        return null;
+      }
+    }).anyTimes();
+  }
+
+  private String delete(int chunk, boolean atomic, String... paths) throws Exception {
+    expect(request.getParameterValues(BatchDeleteServlet.RESOURCE_PATH_PARAMETER))
+        .andReturn(paths);
+    expect(request.getParameter(BatchDeleteServlet.ATOMIC_PARAMETER)).andReturn(
+        String.valueOf(atomic));
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(BatchDeleteServlet.CHUNK, chunk);
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    replay();
+
+    BatchDeleteServlet servlet = new BatchDeleteServlet();
+    servlet.activate(componentContext);
+    servlet.bindURIExpander(uriExpander);
+    servlet.doPost(request, response);
+    verify();
+    return output.toString();
+  }
+
+  @Test
+  public void testChunked() throws Exception {
+    assertEquals("[{\"path\":\"/a\",\"succes\":200},{\"path\":\"/a/b\",\"succes\":200},"
+        + "{\"path\":\"/c\",\"succes\":200},{\"path\":\"/x\",\"succes\":404},"
+        + "{\"path\":\"/d\",\"succes\":200}]", delete(2, false, "/a", "/a/b", "/c", "/x",
+        "/d"));
+    assertEquals(2, saves);
+    assertEquals("[/e]", saved.toString());
+  }
+
+  @Test
+  public void testChunkRolledBack() throws Exception {
+    failSaveWithout = "/a";
+    assertEquals("[{\"path\":\"/a\",\"succes\":500},{\"path\":\"/a/x\",\"succes\":404},"
+        + "{\"path\":\"/c\",\"succes\":200}]", delete(1, false, "/a", "/a/x", "/c"));
+    assertEquals(2, saves);
+    assertEquals("[/a, /a/b, /d, /e]", saved.toString());
+  }
+
+  @Test
+  public void testAtomic() throws Exception {
+    assertEquals("[{\"path\":\"/a\",\"succes\":200},{\"path\":\"/c\",\"succes\":200},"
+        + "{\"path\":\"/d\",\"succes\":200}]", delete(1, true, "/a", "/c", "/d"));
+    assertEquals(1, saves);
+    assertEquals("[/e]", saved.toString());
+  }
+
+  @Test
+  public void testAtomicConflict() throws Exception {
+    assertEquals("[{\"path\":\"/a\",\"succes\":409},{\"path\":\"/x\",\"succes\":404},"
+        + "{\"path\":\"/c\",\"succes\":409}]", delete(1, true, "/a", "/x", "/c"));
+    assertEquals(0, saves);
+    assertEquals(NODES.length, nodes.size());
+  }
+}
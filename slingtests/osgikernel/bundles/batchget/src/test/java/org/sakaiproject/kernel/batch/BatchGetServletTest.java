@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestDispatcherOptions;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.ServletResolver;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Credentials;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.servlet.GenericServlet;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class BatchGetServletTest extends AbstractEasyMockTest {
+
+  private BatchGetServlet servlet;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private ResourceResolver resourceResolver;
+  private StringWriter output;
+  private AtomicInteger openSessions;
+  private Object[] bindings;
+
+  /**
+   * Serves a resource on a worker, writing its path, or an error for a path ending in
+   * "gone". A path ending in "slow" waits for its latch and one ending in "late" sleeps
+   * first. One ending in "stuck" waits for its latch even when interrupted.
+   */
+  private class ResourceServlet extends GenericServlet {
+    private static final long serialVersionUID = 1L;
+    private final ResourceResolver workerResolver;
+    private final CountDownLatch slowLatch = new CountDownLatch(1);
+    private final CountDownLatch stuckLatch = new CountDownLatch(1);
+    private final AtomicInteger running = new AtomicInteger();
+    private final Map<String, Boolean> threads = new ConcurrentHashMap<String, Boolean>();
+
+    ResourceServlet(ResourceResolver workerResolver) {
+      this.workerResolver = workerResolver;
+    }
+
+    @Override
+    public void service(ServletRequest req, ServletResponse res) throws ServletException,
+        IOException {
+      running.incrementAndGet();
+      try {
+        SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) req;
+        assertTrue(slingRequest.getResourceResolver() == workerResolver);
+        threads.put(Thread.currentThread().getName(), true);
+        String path = slingRequest.getResource().getPath();
+        if (path.endsWith("gone")) {
+          ((HttpServletResponse) res).sendError(HttpServletResponse.SC_NOT_FOUND);
+          return;
+        }
+        if (path.endsWith("slow")) {
+          slowLatch.await();
+        } else if (path.endsWith("late")) {
+          Thread.sleep(200);
+        } else if (path.endsWith("stuck")) {
+          while (true) {
+            try {
+              stuckLatch.await();
+              break;
+            } catch (InterruptedException e) {
+              // keeps going.
+            }
+          }
+        }
+        res.getWriter().write("ok " + path);
+      } catch (InterruptedException e) {
+        throw new ServletException(e);
+      } finally {
+        running.decrementAndGet();
+      }
+    }
+  }
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    request = createMock(SlingHttpServletRequest.class);
+    response = createMock(SlingHttpServletResponse.class);
+    resourceResolver = createMock(ResourceResolver.class);
+    output = new StringWriter();
+    expect(request.getResourceResolver()).andReturn(resourceResolver).anyTimes();
+    expect(response.getWriter()).andReturn(new PrintWriter(output)).anyTimes();
+  }
+
+  @After
+  public void tearDown() {
+    if (servlet != null) {
+      servlet.deactivate(null);
+    }
+  }
+
+  private void activate(int timeout) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(BatchGetServlet.THREADS, 4);
+    properties.put(BatchGetServlet.CONCURRENCY, 4);
+    properties.put(BatchGetServlet.TIMEOUT, timeout);
+    properties.put(BatchGetServlet.CANCEL_TIMEOUT, 500);
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    servlet = new BatchGetServlet();
+    replay();
+    servlet.activate(componentContext);
+  }
+
+  private void addResources(ResourceResolver resolver, String... paths) {
+    for (String path : paths) {
+      Resource resource = createMock(Resource.class);
+      expect(resource.getPath()).andReturn(path).anyTimes();
+      expect(resolver.getResource(path)).andReturn(resource).anyTimes();
+    }
+  }
+
+  private void request(String parallel, String... paths) {
+    expect(request.getParameterValues(BatchGetServlet.RESOURCE_PATH_PARAMETER)).andReturn(
+        paths);
+    expect(request.getParameter(BatchGetServlet.PARALLEL_PARAMETER)).andReturn(parallel)
+        .anyTimes();
+    addResources(resourceResolver, paths);
+  }
+
+  /**
+   * Sets up a worker session for bob, counting the sessions left open.
+   */
+  private ResourceServlet expectWorkers(String... paths) throws Exception {
+    Session session = createMock(Session.class);
+    expect(resourceResolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    expect(session.getUserID()).andReturn("bob").anyTimes();
+    expect(request.getAttributeNames()).andReturn(
+        Collections.enumeration(Collections.emptySet())).anyTimes();
+
+    final AtomicInteger open = new AtomicInteger();
+    IAnswer<Object> logout = new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        open.decrementAndGet();
+        return null;
+      }
+    };
+    final Session adminSession = createMock(Session.class);
+    final Session userSession = createMock(Session.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andAnswer(new IAnswer<Session>() {
+      public Session answer() throws Throwable {
+        open.incrementAndGet();
+        return adminSession;
+      }
+    }).anyTimes();
+    expect(adminSession.impersonate(isA(Credentials.class))).andAnswer(
+        new IAnswer<Session>() {
+          public Session answer() throws Throwable {
+            assertEquals("bob", ((SimpleCredentials) getCurrentArguments()[0]).getUserID());
+            open.incrementAndGet();
+            return userSession;
+          }
+        }).anyTimes();
+    adminSession.logout();
+    expectLastCall().andAnswer(logout).anyTimes();
+    userSession.logout();
+    expectLastCall().andAnswer(logout).anyTimes();
+
+    ResourceResolver workerResolver = createMock(ResourceResolver.class);
+    JcrResourceResolverFactory resourceResolverFactory = createMock(JcrResourceResolverFactory.class);
+    expect(resourceResolverFactory.getResourceResolver(userSession)).andReturn(
+        workerResolver).anyTimes();
+    addResources(workerResolver, paths);
+
+    ResourceServlet resourceServlet = new ResourceServlet(workerResolver);
+    ServletResolver servletResolver = createMock(ServletResolver.class);
+    expect(servletResolver.resolveServlet(isA(SlingHttpServletRequest.class))).andReturn(
+        resourceServlet).anyTimes();
+
+    openSessions = open;
+    bindings = new Object[] { slingRepository, resourceResolverFactory, servletResolver };
+    return resourceServlet;
+  }
+
+  private void bind() {
+    if (bindings != null) {
+      servlet.bindSlingRepository((SlingRepository) bindings[0]);
+      servlet.bindResourceResolverFactory((JcrResourceResolverFactory) bindings[1]);
+      servlet.bindServletResolver((ServletResolver) bindings[2]);
+    }
+  }
+
+  @Test
+  public void testSequential() throws Exception {
+    request(null, "/a", "/b");
+    RequestDispatcher dispatcher = createMock(RequestDispatcher.class);
+    expect(
+        request.getRequestDispatcher(isA(Resource.class),
+            isA(RequestDispatcherOptions.class))).andReturn(dispatcher).anyTimes();
+    dispatcher.forward(isA(ServletRequest.class), isA(ServletResponse.class));
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        Object[] args = getCurrentArguments();
+        String path = ((SlingHttpServletRequest) args[0]).getResource().getPath();
+        ((ServletResponse) args[1]).getWriter().write("ok " + path);
+        return null;
+      }
+    }).anyTimes();
+    activate(30000);
+
+    servlet.doGet(request, response);
+    assertEquals("[{\"path\":\"/a\",\"data\":\"ok /a\"},{\"path\":\"/b\",\"data\":\"ok /b\"}]",
+        output.toString());
+    verify();
+  }
+
+  @Test
+  public void testParallelInRequestOrder() throws Exception {
+    String[] paths = new String[] { "/late", "/b", "/gone", "/d" };
+    request("true", paths);
+    ResourceServlet resourceServlet = expectWorkers(paths);
+    activate(30000);
+    bind();
+
+    servlet.doGet(request, response);
+    assertEquals("[{\"path\":\"/late\",\"data\":\"ok /late\"},"
+        + "{\"path\":\"/b\",\"data\":\"ok /b\"}," + "{\"path\":\"/gone\",\"status\":404},"
+        + "{\"path\":\"/d\",\"data\":\"ok /d\"}]", output.toString());
+    assertFalse(resourceServlet.threads.containsKey(Thread.currentThread().getName()));
+    assertEquals(0, openSessions.get());
+    verify();
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    String[] paths = new String[] { "/a", "/slow", "/c" };
+    request("true", paths);
+    ResourceServlet resourceServlet = expectWorkers(paths);
+    activate(200);
+    bind();
+
+    servlet.doGet(request, response);
+    assertEquals("[{\"path\":\"/a\",\"data\":\"ok /a\"},"
+        + "{\"path\":\"/slow\",\"status\":504}," + "{\"path\":\"/c\",\"data\":\"ok /c\"}]",
+        output.toString());
+    // the timed out worker has been stopped before the response returned.
+    assertEquals(0, resourceServlet.running.get());
+    assertEquals(0, openSessions.get());
+    verify();
+  }
+
+  @Test
+  public void testStuckWorkerIsLeftToFinish() throws Exception {
+    String[] paths = new String[] { "/a", "/stuck" };
+    request("true", paths);
+    ResourceServlet resourceServlet = expectWorkers(paths);
+    activate(200);
+    bind();
+
+    servlet.doGet(request, response);
+    assertEquals("[{\"path\":\"/a\",\"data\":\"ok /a\"},"
+        + "{\"path\":\"/stuck\",\"status\":504}]", output.toString());
+    // the response did not wait for the worker, which still has its session.
+    assertEquals(1, resourceServlet.running.get());
+    assertEquals(1, openSessions.get());
+
+    resourceServlet.stuckLatch.countDown();
+    for (int i = 0; i < 100 && openSessions.get() > 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(0, resourceServlet.running.get());
+    assertEquals(0, openSessions.get());
+    verify();
+  }
+}
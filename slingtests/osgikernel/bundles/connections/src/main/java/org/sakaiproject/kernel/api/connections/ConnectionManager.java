@@ -19,6 +19,7 @@ package org.sakaiproject.kernel.api.connections;
 
 import org.apache.sling.api.resource.Resource;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -52,4 +53,25 @@ public interface ConnectionManager {
    */
   List<String> getConnectedUsers(String user, ConnectionState state);
 
+  /**
+   * Get the connections of several users at once, optionally limited by state of the
+   * connection
+   * 
+   * @param users the ids of the users to get connections for
+   * @param state [OPTIONAL] if null then all connections are returned regardless of state
+   * @return a map of each user id to the list of user ids it is connected to
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  Map<String, List<String>> getConnectedUsers(Collection<String> users, ConnectionState state);
+
+  /**
+   * Get the users both users have an accepted connection with
+   * 
+   * @param user the id of one user
+   * @param otherUser the id of the other user
+   * @return a list of user ids connected to both users
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  List<String> getMutualConnections(String user, String otherUser);
+
 }
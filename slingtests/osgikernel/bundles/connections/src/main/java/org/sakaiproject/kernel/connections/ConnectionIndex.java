@@ -0,0 +1,339 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.connections;
+
+import org.sakaiproject.kernel.api.connections.ConnectionConstants;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+import javax.jcr.Item;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+/**
+ * An in memory adjacency index of the connection store: for each of the most recently
+ * used users, the peers they have a connection node for, grouped by the state of that
+ * connection. Users are keyed by the base path of their connection store (see
+ * {@link ConnectionUtils#getConnectionPathBase(String, String)}) so that repository
+ * events can be mapped back to an entry without reversing the hash.
+ * <p>
+ * Entries are loaded on demand by the connection manager, kept current by the manager
+ * as it makes transitions, and corrected from observation for changes made elsewhere.
+ * A load only installs its result if nothing changed for that user while it was
+ * running. Each change stamps the user with the next value of a counter; users whose
+ * stamp has been dropped are treated as changed at the latest dropped stamp, so a
+ * bounded set of stamps never lets a stale load through.
+ */
+public class ConnectionIndex implements EventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionIndex.class);
+
+  /**
+   * Number of path elements in the base of a users connection store below the store
+   * root, the 4 hash levels and the user.
+   */
+  private static final int BASE_DEPTH = 5;
+
+  private final String storePath;
+  private final Session session;
+  private final Map<String, Map<ConnectionState, Set<String>>> adjacency;
+  private final Map<String, Long> generations;
+  private long counter;
+  /**
+   * The generation of every user without a stamp of its own.
+   */
+  private long floor;
+
+  /**
+   * @param storePath
+   *          the root of the connection store, eg /_user/contacts
+   * @param session
+   *          a session to read changed states with, if null changes found through
+   *          observation drop the users entry.
+   * @param maxUsers
+   *          the number of users to hold before the least recently used is dropped.
+   */
+  public ConnectionIndex(String storePath, Session session, final int maxUsers) {
+    this.storePath = storePath;
+    this.session = session;
+    adjacency = new LinkedHashMap<String, Map<ConnectionState, Set<String>>>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Entry<String, Map<ConnectionState, Set<String>>> eldest) {
+        return size() > maxUsers;
+      }
+    };
+    generations = new LinkedHashMap<String, Long>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Long> eldest) {
+        if (size() > maxUsers) {
+          floor = Math.max(floor, eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @param basePath
+   *          the base of the users connection store.
+   * @return a counter that moves on every change to the user, pass it to
+   *         {@link #put(String, Map, long)}.
+   */
+  public synchronized long getGeneration(String basePath) {
+    Long generation = generations.get(basePath);
+    return generation == null ? floor : generation;
+  }
+
+  /**
+   * @param basePath
+   *          the base of the users connection store.
+   * @param state
+   *          the state to list, if null all peers are listed.
+   * @return the peers in that state, or null if the user is not loaded.
+   */
+  public synchronized List<String> get(String basePath, ConnectionState state) {
+    Map<ConnectionState, Set<String>> peers = adjacency.get(basePath);
+    if (peers == null) {
+      return null;
+    }
+    List<String> l = new ArrayList<String>();
+    if (state == null) {
+      for (Set<String> s : peers.values()) {
+        l.addAll(s);
+      }
+    } else {
+      Set<String> s = peers.get(state);
+      if (s != null) {
+        l.addAll(s);
+      }
+    }
+    return l;
+  }
+
+  /**
+   * Install a loaded entry.
+   *
+   * @param basePath
+   *          the base of the users connection store.
+   * @param peers
+   *          the peers of the user by state.
+   * @param loadGeneration
+   *          the generation of the user before the load started.
+   * @return true if the entry was installed, false if the user changed during the load.
+   */
+  public synchronized boolean put(String basePath, Map<ConnectionState, Set<String>> peers,
+      long loadGeneration) {
+    if (getGeneration(basePath) != loadGeneration) {
+      return false;
+    }
+    adjacency.put(basePath, peers);
+    return true;
+  }
+
+  /**
+   * Record the state of one connection, if the user is loaded.
+   *
+   * @param basePath
+   *          the base of the users connection store.
+   * @param peer
+   *          the name of the connection node.
+   * @param state
+   *          the new state, NONE or null removes the peer.
+   */
+  public synchronized void update(String basePath, String peer, ConnectionState state) {
+    changed(basePath);
+    Map<ConnectionState, Set<String>> peers = adjacency.get(basePath);
+    if (peers != null) {
+      for (Set<String> s : peers.values()) {
+        s.remove(peer);
+      }
+      if (state != null && state != ConnectionState.NONE) {
+        add(peers, state, peer);
+      }
+    }
+  }
+
+  /**
+   * Drop the entry of one user, it will be loaded again when next needed.
+   *
+   * @param basePath
+   *          the base of the users connection store.
+   */
+  public synchronized void invalidate(String basePath) {
+    changed(basePath);
+    adjacency.remove(basePath);
+  }
+
+  /**
+   * Drop every entry.
+   */
+  public synchronized void clear() {
+    floor = ++counter;
+    generations.clear();
+    adjacency.clear();
+  }
+
+  private void changed(String basePath) {
+    // moved to the end, so the stamps dropped first are the oldest.
+    generations.remove(basePath);
+    generations.put(basePath, ++counter);
+  }
+
+  /**
+   * @return the number of users loaded.
+   */
+  public synchronized int size() {
+    return adjacency.size();
+  }
+
+  /**
+   * Add a peer to a map of peers by state.
+   *
+   * @param peers
+   * @param state
+   * @param peer
+   */
+  public static void add(Map<ConnectionState, Set<String>> peers, ConnectionState state,
+      String peer) {
+    Set<String> s = peers.get(state);
+    if (s == null) {
+      s = new LinkedHashSet<String>();
+      peers.put(state, s);
+    }
+    s.add(peer);
+  }
+
+  /**
+   * @return an empty map of peers by state.
+   */
+  public static Map<ConnectionState, Set<String>> newPeers() {
+    return new EnumMap<ConnectionState, Set<String>>(ConnectionState.class);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        onEvent(event.getType(), event.getPath());
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to read event, clearing connection index {} ", e
+            .getMessage());
+        clear();
+      }
+    }
+  }
+
+  void onEvent(int type, String path) {
+    boolean property = type != Event.NODE_ADDED && type != Event.NODE_REMOVED;
+    String nodePath = path;
+    if (property) {
+      int i = path.lastIndexOf('/');
+      if (!ConnectionConstants.SAKAI_CONNECTION_STATE.equals(path.substring(i + 1))) {
+        return;
+      }
+      nodePath = path.substring(0, i);
+    }
+    if (nodePath.equals(storePath)) {
+      if (type == Event.NODE_REMOVED) {
+        clear();
+      }
+      return;
+    }
+    if (!nodePath.startsWith(storePath + "/")) {
+      return;
+    }
+    String[] elements = nodePath.substring(storePath.length() + 1).split("/");
+    if (elements.length < BASE_DEPTH) {
+      // a hash folder, only its removal touches anybody.
+      if (type == Event.NODE_REMOVED) {
+        clear();
+      }
+      return;
+    }
+    StringBuilder sb = new StringBuilder(storePath);
+    for (int i = 0; i < BASE_DEPTH; i++) {
+      sb.append('/').append(elements[i]);
+    }
+    String basePath = sb.toString();
+    if (elements.length != 2 * BASE_DEPTH) {
+      // the users base, a hash folder below it or something below a connection node.
+      if (type == Event.NODE_REMOVED && elements.length < 2 * BASE_DEPTH) {
+        invalidate(basePath);
+      }
+      return;
+    }
+    String peer = elements[2 * BASE_DEPTH - 1];
+    if (type == Event.NODE_REMOVED || type == Event.PROPERTY_REMOVED) {
+      update(basePath, peer, ConnectionState.NONE);
+    } else if (property) {
+      update(basePath, peer, readState(basePath, path));
+    }
+    // a new connection node has no state until its state property arrives.
+  }
+
+  /**
+   * @return the state now held in the repository, or null if it cant be read, in which
+   *         case the user has already been invalidated.
+   */
+  private ConnectionState readState(String basePath, String propertyPath) {
+    if (session != null) {
+      try {
+        session.refresh(false);
+        if (session.itemExists(propertyPath)) {
+          Item item = session.getItem(propertyPath);
+          if (!item.isNode()) {
+            return ConnectionState.valueOf(((Property) item).getString());
+          }
+        }
+        return ConnectionState.NONE;
+      } catch (RepositoryException e) {
+        LOGGER.debug("Unable to read {} {} ", propertyPath, e.getMessage());
+      } catch (IllegalArgumentException e) {
+        LOGGER.debug("Unknown connection state at {} ", propertyPath);
+      }
+    }
+    invalidate(basePath);
+    return null;
+  }
+}
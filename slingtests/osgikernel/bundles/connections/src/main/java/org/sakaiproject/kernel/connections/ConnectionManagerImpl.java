@@ -53,13 +53,18 @@ import org.sakaiproject.kernel.api.connections.ConnectionState;
 import org.sakaiproject.kernel.api.locking.LockManager;
 import org.sakaiproject.kernel.api.locking.LockTimeoutException;
 import org.sakaiproject.kernel.util.JcrUtils;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
 
 import javax.jcr.Node;
@@ -67,6 +72,7 @@ import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.observation.Event;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -92,6 +98,21 @@ public class ConnectionManagerImpl implements ConnectionManager {
   
   protected SlingRepository slingRepository;
 
+  /**
+   * The store the adjacency index covers.
+   */
+  private static final String CONTACTS_PATH = "/_user/contacts";
+
+  /**
+   * The number of users whose connections are held in memory.
+   */
+  private static final int MAX_INDEXED_USERS = 10000;
+
+  private ConnectionIndex connectionIndex = new ConnectionIndex(CONTACTS_PATH, null,
+      MAX_INDEXED_USERS);
+
+  private Session observationSession;
+
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
   static {
@@ -171,11 +192,10 @@ public class ConnectionManagerImpl implements ConnectionManager {
    * @param userContactNode
    *          the node to check (should be a user contact node)
    * @return the connection state (may be NONE)
-   * @throws ConnectionException
    * @throws RepositoryException
    */
   private ConnectionState getConnectionState(Node userContactNode)
-      throws ConnectionException, RepositoryException {
+      throws RepositoryException {
     if (userContactNode == null) {
       throw new IllegalArgumentException(
           "Node cannot be null to check for connection state");
@@ -240,6 +260,11 @@ public class ConnectionManagerImpl implements ConnectionManager {
         if (adminSession.hasPendingChanges()) {
           adminSession.save();
         }
+        // keep the index current rather than waiting for observation.
+        connectionIndex.update(ConnectionUtils.getConnectionPathBase(contactsPath,
+            thisUserId), thisNode.getName(), getConnectionState(thisNode));
+        connectionIndex.update(ConnectionUtils.getConnectionPathBase(contactsPath,
+            otherUserId), otherNode.getName(), getConnectionState(otherNode));
       } finally {
         // destroy the admin session
         adminSession.logout();
@@ -257,42 +282,97 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.kernel.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(String user, ConnectionState state) {
-    ArrayList<String> l = new ArrayList<String>();
-    // search string should look something like this
-    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\" and @sakai:state=\"ACCEPTED\"]"
+    List<String> l = new ArrayList<String>();
+    l.add(user);
+    return getConnectedUsers(l, state).get(user);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.connections.ConnectionManager#getConnectedUsers(java.util.Collection,
+   *      org.sakaiproject.kernel.api.connections.ConnectionState)
+   */
+  public Map<String, List<String>> getConnectedUsers(Collection<String> users,
+      ConnectionState state) {
+    Map<String, List<String>> connected = new LinkedHashMap<String, List<String>>();
+    ConnectionIndex index = connectionIndex;
+    Session adminSession = null;
     try {
-      Session adminSession = slingRepository.loginAdministrative(null);
-      try {
-        // TODO probably better not to hard code /_user/contacts but I am not sure how to
-        // avoid it right now -AZ
-        // this will generate the bigstore path
-        String connectionPath = ConnectionUtils.getConnectionPathBase("/_user/contacts",
-            user);
-        // create the search query string
-        String search = "/jcr:root" + ISO9075.encodePath(connectionPath)
-            + "//element(*)[@" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY
-            + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"";
-        if (state != null) {
-          search += " and @" + ConnectionConstants.SAKAI_CONNECTION_STATE + "=\""
-              + state.name() + "\"]";
-        } else {
-          search += "]";
-        }
-        QueryManager qm = adminSession.getWorkspace().getQueryManager();
-        Query query = qm.createQuery(search, Query.XPATH);
-        QueryResult result = query.execute();
-        NodeIterator nodeIterator = result.getNodes();
-        while (nodeIterator.hasNext()) {
-          Node node = nodeIterator.nextNode();
-          l.add(node.getName());
+      for (String user : users) {
+        String basePath = ConnectionUtils.getConnectionPathBase(CONTACTS_PATH, user);
+        List<String> l = index.get(basePath, state);
+        if (l == null) {
+          if (adminSession == null) {
+            adminSession = slingRepository.loginAdministrative(null);
+          }
+          long generation = index.getGeneration(basePath);
+          Map<ConnectionState, Set<String>> peers = loadPeers(adminSession, basePath);
+          index.put(basePath, peers, generation);
+          l = new ArrayList<String>();
+          for (Entry<ConnectionState, Set<String>> e : peers.entrySet()) {
+            if (state == null || state == e.getKey()) {
+              l.addAll(e.getValue());
+            }
+          }
         }
-      } finally {
-        adminSession.logout();
+        connected.put(user, l);
       }
     } catch (RepositoryException e) {
       throw new IllegalStateException(e.getMessage(), e);
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+    return connected;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.connections.ConnectionManager#getMutualConnections(java.lang.String,
+   *      java.lang.String)
+   */
+  public List<String> getMutualConnections(String user, String otherUser) {
+    List<String> users = new ArrayList<String>();
+    users.add(user);
+    users.add(otherUser);
+    Map<String, List<String>> connected = getConnectedUsers(users, ACCEPTED);
+    Set<String> mutual = new LinkedHashSet<String>(connected.get(user));
+    mutual.retainAll(connected.get(otherUser));
+    return new ArrayList<String>(mutual);
+  }
+
+  /**
+   * Read every connection of a user with its state.
+   * 
+   * @param session
+   * @param basePath
+   *          the base of the users connection store.
+   * @return the peers of the user by state.
+   * @throws RepositoryException
+   */
+  private Map<ConnectionState, Set<String>> loadPeers(Session session, String basePath)
+      throws RepositoryException {
+    Map<ConnectionState, Set<String>> peers = ConnectionIndex.newPeers();
+    // search string should look something like this
+    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\"]"
+    String search = "/jcr:root" + ISO9075.encodePath(basePath) + "//element(*)[@"
+        + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY + "=\""
+        + ConnectionConstants.SAKAI_CONTACT_RT + "\"]";
+    QueryManager qm = session.getWorkspace().getQueryManager();
+    Query query = qm.createQuery(search, Query.XPATH);
+    QueryResult result = query.execute();
+    NodeIterator nodeIterator = result.getNodes();
+    while (nodeIterator.hasNext()) {
+      Node node = nodeIterator.nextNode();
+      ConnectionState state = getConnectionState(node);
+      if (state != NONE) {
+        ConnectionIndex.add(peers, state, node.getName());
+      }
     }
-    return l;
+    return peers;
   }
 
   private String contactsPathForConnectResource(Resource resource) {
@@ -359,6 +439,41 @@ public class ConnectionManagerImpl implements ConnectionManager {
     }
   }
 
+  protected void activate(ComponentContext componentContext) {
+    try {
+      observationSession = slingRepository.loginAdministrative(null);
+      ConnectionIndex index = new ConnectionIndex(CONTACTS_PATH, observationSession,
+          MAX_INDEXED_USERS);
+      observationSession.getWorkspace().getObservationManager().addEventListener(
+          index,
+          Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED
+              | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, CONTACTS_PATH, true,
+          null, null, false);
+      connectionIndex = index;
+    } catch (RepositoryException e) {
+      LOGGER.warn("Connections will not be indexed: " + e.getMessage(), e);
+      if (observationSession != null) {
+        observationSession.logout();
+        observationSession = null;
+      }
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    ConnectionIndex index = connectionIndex;
+    connectionIndex = new ConnectionIndex(CONTACTS_PATH, null, MAX_INDEXED_USERS);
+    if (observationSession != null) {
+      try {
+        observationSession.getWorkspace().getObservationManager().removeEventListener(
+            index);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to stop observing connections {} ", e.getMessage());
+      }
+      observationSession.logout();
+      observationSession = null;
+    }
+  }
+
   protected void bindSlingRepository(SlingRepository slingRepository) {
     this.slingRepository = slingRepository;
   }
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.observation.Event;
+
+/**
+ * 
+ */
+public class ConnectionIndexTest {
+
+  private static final String STORE = "/_user/contacts";
+  private static final String BASE = "/_user/contacts/b3/da/a7/7b/user1";
+  private static final String CONNECTION = BASE + "/a1/88/1c/06/user2";
+  private static final String OTHER = "/_user/contacts/a1/88/1c/06/user2";
+  private static final String THIRD = "/_user/contacts/0f/3c/5e/2a/user3";
+
+  @Test
+  public void testLoadAndUpdate() {
+    ConnectionIndex index = new ConnectionIndex(STORE, null, 10);
+    assertNull(index.get(BASE, null));
+    assertTrue(index.put(BASE, peers(), index.getGeneration(BASE)));
+
+    index.update(BASE, "user2", ConnectionState.ACCEPTED);
+    assertEquals(1, index.get(BASE, ConnectionState.ACCEPTED).size());
+    assertEquals(0, index.get(BASE, ConnectionState.PENDING).size());
+
+    index.update(BASE, "user2", ConnectionState.NONE);
+    assertEquals(0, index.get(BASE, null).size());
+  }
+
+  @Test
+  public void testChangeDuringLoad() {
+    ConnectionIndex index = new ConnectionIndex(STORE, null, 10);
+    long generation = index.getGeneration(BASE);
+    index.update(BASE, "user2", ConnectionState.ACCEPTED);
+    assertFalse(index.put(BASE, peers(), generation));
+    assertNull(index.get(BASE, null));
+  }
+
+  @Test
+  public void testChangeToOtherUserDuringLoad() {
+    ConnectionIndex index = new ConnectionIndex(STORE, null, 10);
+    long generation = index.getGeneration(BASE);
+    index.update(OTHER, "user2", ConnectionState.ACCEPTED);
+    assertTrue(index.put(BASE, peers(), generation));
+  }
+
+  @Test
+  public void testEviction() {
+    ConnectionIndex index = new ConnectionIndex(STORE, null, 2);
+    index.put(BASE, peers(), index.getGeneration(BASE));
+    index.put(OTHER, peers(), index.getGeneration(OTHER));
+    assertNotNull(index.get(BASE, null));
+    index.put(THIRD, peers(), index.getGeneration(THIRD));
+    assertEquals(2, index.size());
+    assertNull("Expected the least recently used to go", index.get(OTHER, null));
+  }
+
+  @Test
+  public void testChangeDuringLoadWithDroppedStamp() {
+    ConnectionIndex index = new ConnectionIndex(STORE, null, 1);
+    long generation = index.getGeneration(BASE);
+    index.update(BASE, "user2", ConnectionState.ACCEPTED);
+    // the stamp of BASE is dropped, the change must still be seen.
+    index.update(OTHER, "user2", ConnectionState.ACCEPTED);
+    assertFalse(index.put(BASE, peers(), generation));
+  }
+
+  @Test
+  public void testObservedRemoval() {
+    ConnectionIndex index = new ConnectionIndex(STORE, null, 10);
+    Map<ConnectionState, Set<String>> peers = peers();
+    ConnectionIndex.add(peers, ConnectionState.ACCEPTED, "user2");
+    ConnectionIndex.add(peers, ConnectionState.ACCEPTED, "user3");
+    index.put(BASE, peers, index.getGeneration(BASE));
+
+    index.onEvent(Event.NODE_REMOVED, CONNECTION);
+    assertEquals(1, index.get(BASE, ConnectionState.ACCEPTED).size());
+
+    // other properties do not matter.
+    index.onEvent(Event.PROPERTY_CHANGED, BASE + "/a1/88/1c/06/user3/firstName");
+    assertEquals(1, index.get(BASE, ConnectionState.ACCEPTED).size());
+
+    index.onEvent(Event.NODE_REMOVED, BASE + "/a1");
+    assertNull(index.get(BASE, null));
+  }
+
+  @Test
+  public void testObservedStateWithoutSession() {
+    ConnectionIndex index = new ConnectionIndex(STORE, null, 10);
+    index.put(BASE, peers(), index.getGeneration(BASE));
+    index.onEvent(Event.PROPERTY_CHANGED, CONNECTION + "/sakai:state");
+    // the state cant be read, so the user is dropped.
+    assertNull(index.get(BASE, null));
+  }
+
+  @Test
+  public void testObservedStoreRemoval() {
+    ConnectionIndex index = new ConnectionIndex(STORE, null, 10);
+    index.put(BASE, peers(), index.getGeneration(BASE));
+    index.onEvent(Event.NODE_REMOVED, "/_user/other/b3");
+    assertEquals(1, index.size());
+    index.onEvent(Event.NODE_REMOVED, "/_user/contacts/b3");
+    assertEquals(0, index.size());
+  }
+
+  private Map<ConnectionState, Set<String>> peers() {
+    return ConnectionIndex.newPeers();
+  }
+}
@@ -24,35 +24,39 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.commons.scheduler.Job;
-import org.apache.sling.commons.scheduler.JobContext;
-import org.apache.sling.commons.scheduler.Scheduler;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
 import org.osgi.service.component.ComponentContext;
-import org.osgi.service.event.Event;
-import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.kernel.api.activemq.EventCodec;
 import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.sakaiproject.kernel.api.message.MessageUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.Serializable;
-import java.util.Date;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Dictionary;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.ValueFormatException;
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
@@ -61,6 +65,7 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Session;
 import javax.jms.Topic;
+import javax.mail.MessagingException;
 
 @Component(label = "%email.out.name", description = "%email.out.description", immediate = true, metatype = true)
 public class OutgoingEmailMessageListener implements MessageListener {
@@ -77,6 +82,23 @@ public class OutgoingEmailMessageListener implements MessageListener {
   private static final String MAX_RETRIES = "sakai.email.maxRetries";
   @Property(intValue = 30)
   private static final String RETRY_INTERVAL = "sakai.email.retryIntervalMinutes";
+  @Property(intValue = 1440)
+  private static final String MAX_RETRY_INTERVAL = "sakai.email.maxRetryIntervalMinutes";
+  @Property(intValue = 7200)
+  private static final String MAX_RETRY_WINDOW = "sakai.email.maxRetryWindowMinutes";
+  @Property(intValue = 4)
+  private static final String MAX_CONNECTIONS = "sakai.email.maxConnections";
+  @Property(intValue = 60)
+  private static final String KEEP_ALIVE = "sakai.email.keepAliveSeconds";
+  @Property(intValue = 1000)
+  private static final String QUEUE_SIZE = "sakai.email.queueSize";
+
+  private static final int DEFAULT_MAX_RETRY_INTERVAL = 1440;
+  private static final int DEFAULT_MAX_RETRY_WINDOW = 7200;
+  private static final int DEFAULT_MAX_CONNECTIONS = 4;
+  private static final int DEFAULT_KEEP_ALIVE = 60;
+  private static final int DEFAULT_QUEUE_SIZE = 1000;
+  private static final long SHUTDOWN_WAIT = 10000L;
 
   protected static final String TOPIC_NAME = "org/sakaiproject/kernel/message/email/outgoing";
 
@@ -85,10 +107,6 @@ public class OutgoingEmailMessageListener implements MessageListener {
   @Reference
   protected JcrResourceResolverFactory jcrResourceResolverFactory;
   @Reference
-  protected Scheduler scheduler;
-  @Reference
-  protected EventAdmin eventAdmin;
-  @Reference
   protected ConnectionFactoryService connFactoryService;
 
   protected static final String NODE_PATH_PROPERTY = "nodePath";
@@ -103,6 +121,20 @@ public class OutgoingEmailMessageListener implements MessageListener {
   private String smtpServer;
 
   private Integer retryInterval;
+  private int maxRetryInterval = DEFAULT_MAX_RETRY_INTERVAL;
+  private int maxRetryWindow = DEFAULT_MAX_RETRY_WINDOW;
+  private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+  private int keepAlive = DEFAULT_KEEP_ALIVE;
+  private int queueSize = DEFAULT_QUEUE_SIZE;
+
+  private SmtpTransportPool transportPool;
+  private volatile BlockingQueue<OutgoingEmail> outbound;
+  private ExecutorService senders;
+  private ScheduledExecutorService retries;
+  /**
+   * Messages queued or being sent. Retries waiting out their backoff are not counted.
+   */
+  private final AtomicInteger pending = new AtomicInteger();
 
   public OutgoingEmailMessageListener() {
   }
@@ -111,15 +143,74 @@ public class OutgoingEmailMessageListener implements MessageListener {
     this.connFactoryService = connFactoryService;
   }
 
+  /**
+   * An outbound message waiting in the queue for a connection.
+   */
+  private static class OutgoingEmail {
+    private String nodePath;
+    private List<String> recipients;
+    private Object objRcpt;
+
+    private OutgoingEmail(String nodePath, Object objRcpt, List<String> recipients) {
+      this.nodePath = nodePath;
+      this.objRcpt = objRcpt;
+      this.recipients = recipients;
+    }
+  }
+
+  /**
+   * Takes messages off the outbound queue until interrupted.
+   */
+  private class Sender implements Runnable {
+    private BlockingQueue<OutgoingEmail> queue;
+
+    private Sender(BlockingQueue<OutgoingEmail> queue) {
+      this.queue = queue;
+    }
+
+    public void run() {
+      while (!Thread.currentThread().isInterrupted()) {
+        OutgoingEmail email;
+        try {
+          email = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        try {
+          send(email);
+        } catch (RuntimeException e) {
+          LOGGER.error(e.getMessage(), e);
+        } finally {
+          pending.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Queue the message for sending. Blocks while the outbound queue is full, holding back
+   * the JMS delivery thread rather than buffering without bound.
+   */
   @SuppressWarnings("unchecked")
   public void onMessage(Message message) {
     try {
-      String nodePath = message.getStringProperty(NODE_PATH_PROPERTY);
-      Object objRcpt = message.getObjectProperty(RECIPIENTS);
+      String nodePath;
+      Object objRcpt;
+      if (EventCodec.isEncoded(message)) {
+        // bridged events carry every property, whatever its type, in the body.
+        Map<String, Object> properties = EventCodec.read((BytesMessage) message);
+        nodePath = (String) properties.get(NODE_PATH_PROPERTY);
+        objRcpt = properties.get(RECIPIENTS);
+      } else {
+        nodePath = message.getStringProperty(NODE_PATH_PROPERTY);
+        objRcpt = message.getObjectProperty(RECIPIENTS);
+      }
       List<String> recipients = null;
 
       if (objRcpt instanceof List<?>) {
         recipients = (List<String>) objRcpt;
+      } else if (objRcpt instanceof String[]) {
+        recipients = Arrays.asList((String[]) objRcpt);
       } else if (objRcpt instanceof String) {
         recipients = new LinkedList<String>();
         String[] rcpts = StringUtils.split((String) objRcpt, ',');
@@ -127,13 +218,46 @@ public class OutgoingEmailMessageListener implements MessageListener {
           recipients.add(rcpt);
         }
       }
+      enqueue(new OutgoingEmail(nodePath, objRcpt, recipients));
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
 
-      javax.jcr.Session adminSession = repository.loginAdministrative(null);
+  private boolean enqueue(OutgoingEmail email) {
+    BlockingQueue<OutgoingEmail> queue = outbound;
+    if (queue == null) {
+      LOGGER.error("Outgoing email is not running, dropped message {} ", email.nodePath);
+      return false;
+    }
+    pending.incrementAndGet();
+    try {
+      while (!queue.offer(email, 1, TimeUnit.SECONDS)) {
+        if (queue != outbound) {
+          pending.decrementAndGet();
+          LOGGER.error("Outgoing email stopped, dropped message {} ", email.nodePath);
+          return false;
+        }
+        LOGGER.debug("Outbound email queue is full, waiting");
+      }
+      return true;
+    } catch (InterruptedException e) {
+      pending.decrementAndGet();
+      Thread.currentThread().interrupt();
+      LOGGER.error("Interrupted queueing message {} ", email.nodePath);
+      return false;
+    }
+  }
+
+  private void send(OutgoingEmail email) {
+    javax.jcr.Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative(null);
       ResourceResolver resolver = jcrResourceResolverFactory.getResourceResolver(adminSession);
 
-      Node messageNode = resolver.getResource(nodePath).adaptTo(Node.class);
+      Node messageNode = resolver.getResource(email.nodePath).adaptTo(Node.class);
 
-      if (objRcpt != null) {
+      if (email.objRcpt != null) {
         // validate the message
         if (messageNode != null) {
           if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)
@@ -146,37 +270,16 @@ public class OutgoingEmailMessageListener implements MessageListener {
             if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_TO)
                 && messageNode.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
               // make a commons-email message from the message
-              MultiPartEmail email;
               try {
-                email = constructMessage(messageNode, recipients);
-
-                email.setSmtpPort(smtpPort);
-                email.setHostName(smtpServer);
-
-                email.send();
+                MultiPartEmail multiPartEmail = constructMessage(messageNode, email.recipients);
+                multiPartEmail.setMailSession(transportPool.getMailSession());
+                multiPartEmail.buildMimeMessage();
+                transportPool.send(multiPartEmail.getMimeMessage());
               } catch (EmailException e) {
                 setError(messageNode, e.getMessage());
-                // Get the SMTP error code
-                // There has to be a better way to do this
-                if (e.getCause() != null && e.getCause().getMessage() != null) {
-                  String smtpError = e.getCause().getMessage().trim();
-                  try {
-                    int errorCode = Integer.parseInt(smtpError.substring(0, 3));
-                    // All retry-able SMTP errors should have codes starting
-                    // with 4
-                    scheduleRetry(errorCode, messageNode);
-                  } catch (NumberFormatException nfe) {
-                    // smtpError didn't start with an error code, let's dig for
-                    // it
-                    String searchFor = "response:";
-                    int rindex = smtpError.indexOf(searchFor);
-                    if (rindex > -1 && (rindex + searchFor.length()) < smtpError.length()) {
-                      int errorCode = Integer.parseInt(smtpError.substring(searchFor.length(),
-                          searchFor.length() + 3));
-                      scheduleRetry(errorCode, messageNode);
-                    }
-                  }
-                }
+              } catch (MessagingException e) {
+                setError(messageNode, e.getMessage());
+                scheduleRetry(getSmtpErrorCode(e), messageNode, email);
               }
             } else {
               setError(messageNode, "Message must have a to and from set");
@@ -191,16 +294,61 @@ public class OutgoingEmailMessageListener implements MessageListener {
         }
       } else {
         String retval = "null";
-        if (objRcpt != null) {
-          retval = objRcpt.getClass().toString();
+        if (email.objRcpt != null) {
+          retval = email.objRcpt.getClass().toString();
         }
         setError(messageNode, "Expected recipients to be String or List<String>.  Found " + retval);
       }
-    } catch (JMSException e) {
-      LOGGER.error(e.getMessage(), e);
+      if (adminSession.hasPendingChanges()) {
+        adminSession.save();
+      }
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Find the SMTP reply code in a send failure. A failure to reach the server at all has
+   * no code and is treated as a 421, service not available, so that it is retried.
+   *
+   * @return the reply code, or -1 if there is none.
+   */
+  private int getSmtpErrorCode(MessagingException e) {
+    boolean ioFailure = false;
+    Throwable t = e;
+    while (t != null) {
+      if (t instanceof IOException) {
+        ioFailure = true;
+      }
+      if (t.getMessage() != null) {
+        String smtpError = t.getMessage().trim();
+        if (smtpError.length() >= 3 && Character.isDigit(smtpError.charAt(0))
+            && Character.isDigit(smtpError.charAt(1)) && Character.isDigit(smtpError.charAt(2))) {
+          return Integer.parseInt(smtpError.substring(0, 3));
+        }
+        // smtpError didn't start with an error code, let's dig for it
+        String searchFor = "response:";
+        int rindex = smtpError.indexOf(searchFor);
+        if (rindex > -1 && (rindex + searchFor.length() + 3) <= smtpError.length()) {
+          try {
+            return Integer.parseInt(smtpError.substring(rindex + searchFor.length(),
+                rindex + searchFor.length() + 3).trim());
+          } catch (NumberFormatException nfe) {
+            // keep looking down the chain.
+          }
+        }
+      }
+      if (t instanceof MessagingException && ((MessagingException) t).getNextException() != null) {
+        t = ((MessagingException) t).getNextException();
+      } else {
+        t = t.getCause();
+      }
     }
+    return ioFailure ? 421 : -1;
   }
 
   private MultiPartEmail constructMessage(Node messageNode, List<String> recipients)
@@ -240,8 +388,9 @@ public class OutgoingEmailMessageListener implements MessageListener {
       throw new EmailException("Must provide a 'from' address.");
     }
 
-    if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODY)) {
-      email.setMsg(messageNode.getProperty(MessageConstants.PROP_SAKAI_BODY).getString());
+    String body = MessageUtils.getBody(messageNode);
+    if (body != null) {
+      email.setMsg(body);
     }
 
     if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_SUBJECT)) {
@@ -266,7 +415,13 @@ public class OutgoingEmailMessageListener implements MessageListener {
     return email;
   }
 
-  private void scheduleRetry(int errorCode, Node messageNode) throws RepositoryException {
+  /**
+   * Queue the message again after a backoff that doubles with each attempt, from the
+   * retry interval up to the maximum retry interval. Retries stop after the maximum
+   * number of retries, or once the next one would fall outside the maximum retry window.
+   */
+  private void scheduleRetry(int errorCode, Node messageNode, final OutgoingEmail email)
+      throws RepositoryException {
     // All retry-able SMTP errors should have codes starting with 4
     if ((int) (errorCode / 100) == 4) {
       long retryCount = 0;
@@ -275,30 +430,18 @@ public class OutgoingEmailMessageListener implements MessageListener {
             .getLong();
       }
 
-      if (retryCount < maxRetries) {
-        Job job = new Job() {
-
-          public void execute(JobContext jc) {
-            Map<String, Serializable> config = jc.getConfiguration();
-            Properties eventProps = new Properties();
-            eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
-
-            Event retryEvent = new Event(TOPIC_NAME, eventProps);
-            eventAdmin.postEvent(retryEvent);
-
-          }
-        };
-
-        HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
-        jobConfig.put(NODE_PATH_PROPERTY, messageNode.getPath());
-
-        int retryIntervalMillis = retryInterval * 60000;
-        Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
-
+      long backoffMinutes = getBackoffMinutes(retryCount);
+      if (retryCount < maxRetries
+          && getRetryWindowMinutes(retryCount) + backoffMinutes <= maxRetryWindow) {
+        messageNode.setProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT, retryCount + 1);
         try {
-          scheduler.fireJobAt(null, job, jobConfig, nextTry);
-        } catch (Exception e) {
-          LOGGER.error(e.getMessage(), e);
+          retries.schedule(new Runnable() {
+            public void run() {
+              enqueue(email);
+            }
+          }, backoffMinutes, TimeUnit.MINUTES);
+        } catch (RejectedExecutionException e) {
+          LOGGER.warn("Outgoing email stopped, not retrying message {} ", email.nodePath);
         }
       } else {
         setError(messageNode, "Unable to send message, exhausted SMTP retries.");
@@ -308,6 +451,27 @@ public class OutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  /**
+   * @param retryCount
+   *          the number of retries already made.
+   * @return the minutes to wait before the next retry.
+   */
+  long getBackoffMinutes(long retryCount) {
+    return Math.min((long) retryInterval << Math.min(retryCount, 30), maxRetryInterval);
+  }
+
+  /**
+   * @param retries
+   * @return the minutes from the first failure to the last of that many retries.
+   */
+  long getRetryWindowMinutes(long retries) {
+    long minutes = 0;
+    for (long i = 0; i < retries; i++) {
+      minutes += getBackoffMinutes(i);
+    }
+    return minutes;
+  }
+
   protected void activate(ComponentContext ctx) {
     @SuppressWarnings("unchecked")
     Dictionary props = ctx.getProperties();
@@ -330,8 +494,32 @@ public class OutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("SMTP retry interval not set.");
     }
 
-    if (maxRetries * retryInterval < 4320 /* minutes in 3 days */) {
-      LOGGER.warn("SMTP retry window is very short.");
+    Integer _maxRetryInterval = (Integer) props.get(MAX_RETRY_INTERVAL);
+    if (_maxRetryInterval != null && _maxRetryInterval > 0) {
+      maxRetryInterval = _maxRetryInterval;
+    }
+    Integer _maxRetryWindow = (Integer) props.get(MAX_RETRY_WINDOW);
+    if (_maxRetryWindow != null && _maxRetryWindow > 0) {
+      maxRetryWindow = _maxRetryWindow;
+    }
+
+    if (maxRetries != null && retryInterval != null) {
+      long window = Math.min(getRetryWindowMinutes(maxRetries), maxRetryWindow);
+      if (window < 4320 /* minutes in 3 days */) {
+        LOGGER.warn("SMTP retry window is very short, {} minutes.", window);
+      }
+    }
+    Integer _maxConnections = (Integer) props.get(MAX_CONNECTIONS);
+    if (_maxConnections != null && _maxConnections > 0) {
+      maxConnections = _maxConnections;
+    }
+    Integer _keepAlive = (Integer) props.get(KEEP_ALIVE);
+    if (_keepAlive != null && _keepAlive >= 0) {
+      keepAlive = _keepAlive;
+    }
+    Integer _queueSize = (Integer) props.get(QUEUE_SIZE);
+    if (_queueSize != null && _queueSize > 0) {
+      queueSize = _queueSize;
     }
 
     Integer _smtpPort = (Integer) props.get(SMTP_PORT);
@@ -354,6 +542,8 @@ public class OutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("No SMTP server set");
     }
 
+    startSending();
+
     String _brokerUrl = (String) props.get(BROKER_URL);
 
     try {
@@ -394,6 +584,63 @@ public class OutgoingEmailMessageListener implements MessageListener {
       } catch (JMSException e) {
       }
     }
+    stopSending();
+  }
+
+  private void startSending() {
+    if (smtpServer == null || smtpPort == null) {
+      LOGGER.error("No SMTP server to send to, outgoing email is not running");
+      return;
+    }
+    transportPool = new SmtpTransportPool(smtpServer, smtpPort, maxConnections,
+        keepAlive * 1000L);
+    BlockingQueue<OutgoingEmail> queue = new ArrayBlockingQueue<OutgoingEmail>(queueSize);
+    senders = Executors.newFixedThreadPool(maxConnections);
+    for (int i = 0; i < maxConnections; i++) {
+      senders.execute(new Sender(queue));
+    }
+    retries = Executors.newSingleThreadScheduledExecutor();
+    outbound = queue;
+  }
+
+  /**
+   * Stop taking messages, give those already queued a short while to go, then close the
+   * connections. Retries still waiting out their backoff are dropped.
+   */
+  private void stopSending() {
+    if (outbound == null) {
+      return;
+    }
+    if (!awaitIdle(SHUTDOWN_WAIT)) {
+      LOGGER.warn("Stopping outgoing email with {} messages unsent", pending.get());
+    }
+    outbound = null;
+    retries.shutdownNow();
+    senders.shutdownNow();
+    transportPool.close();
+  }
+
+  /**
+   * Wait for the outbound queue to empty.
+   *
+   * @param timeout
+   *          the longest to wait in ms.
+   * @return true if nothing is left queued or being sent.
+   */
+  boolean awaitIdle(long timeout) {
+    long end = System.currentTimeMillis() + timeout;
+    while (pending.get() > 0) {
+      if (System.currentTimeMillis() > end) {
+        return false;
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
   }
 
   private void setError(Node node, String error) throws RepositoryException {
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A bounded pool of connected SMTP transports to one server. A transport stays open
+ * between messages and is reused until it has been idle longer than the keep alive, so
+ * a burst of mail goes down a few connections rather than one per message.
+ */
+public class SmtpTransportPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  private static class PooledTransport {
+    private Transport transport;
+    private long lastUsed;
+
+    private PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+  }
+
+  private final Session mailSession;
+  private final String host;
+  private final int port;
+  private final long keepAlive;
+  private final Semaphore permits;
+  private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+  private final AtomicInteger opened = new AtomicInteger();
+  private volatile boolean closed;
+
+  /**
+   * @param host
+   *          the SMTP server.
+   * @param port
+   *          the SMTP port.
+   * @param maxConnections
+   *          the most connections open to the server at once.
+   * @param keepAlive
+   *          how long in ms an unused connection is kept open.
+   */
+  public SmtpTransportPool(String host, int port, int maxConnections, long keepAlive) {
+    this.host = host;
+    this.port = port;
+    this.keepAlive = keepAlive;
+    this.permits = new Semaphore(maxConnections, true);
+    Properties props = new Properties();
+    props.put("mail.smtp.host", host);
+    props.put("mail.smtp.port", String.valueOf(port));
+    this.mailSession = Session.getInstance(props);
+  }
+
+  /**
+   * @return the mail session messages for this pool should be created in.
+   */
+  public Session getMailSession() {
+    return mailSession;
+  }
+
+  /**
+   * Send a message down a pooled connection, waiting for one to be free. A connection
+   * that fails is closed rather than returned to the pool.
+   *
+   * @param message
+   *          the message, with its recipients set.
+   * @throws MessagingException
+   *           if the server could not be reached or refused the message.
+   */
+  public void send(MimeMessage message) throws MessagingException {
+    if (closed) {
+      throw new MessagingException("SMTP transport pool is closed");
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException("Interrupted waiting for an SMTP connection");
+    }
+    PooledTransport pooled = null;
+    try {
+      pooled = borrow();
+      message.saveChanges();
+      pooled.transport.sendMessage(message, message.getAllRecipients());
+      pooled.lastUsed = System.currentTimeMillis();
+      release(pooled);
+      pooled = null;
+    } finally {
+      if (pooled != null) {
+        close(pooled);
+      }
+      permits.release();
+    }
+  }
+
+  /**
+   * @return the number of connections opened since the pool was created.
+   */
+  public int getOpenedCount() {
+    return opened.get();
+  }
+
+  /**
+   * Close every idle connection and refuse further sends. Connections in use are closed
+   * as they are returned.
+   */
+  public void close() {
+    closed = true;
+    synchronized (idle) {
+      for (PooledTransport pooled : idle) {
+        close(pooled);
+      }
+      idle.clear();
+    }
+  }
+
+  private PooledTransport borrow() throws MessagingException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      PooledTransport pooled;
+      synchronized (idle) {
+        pooled = idle.poll();
+      }
+      if (pooled == null) {
+        break;
+      }
+      if (now - pooled.lastUsed < keepAlive && pooled.transport.isConnected()) {
+        return pooled;
+      }
+      close(pooled);
+    }
+    Transport transport = mailSession.getTransport("smtp");
+    transport.connect(host, port, null, null);
+    opened.incrementAndGet();
+    return new PooledTransport(transport);
+  }
+
+  private void release(PooledTransport pooled) {
+    synchronized (idle) {
+      if (!closed) {
+        // most recently used first, so the oldest connections are left to expire.
+        idle.addFirst(pooled);
+        return;
+      }
+    }
+    close(pooled);
+  }
+
+  private void close(PooledTransport pooled) {
+    try {
+      pooled.transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close SMTP connection: {}", e.getMessage());
+    }
+  }
+}
@@ -1,15 +1,21 @@
 package org.sakaiproject.kernel.email.outgoing;
 
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -23,6 +29,7 @@ import org.subethamail.wiser.WiserMessage;
 
 import java.io.ByteArrayInputStream;
 import java.net.BindException;
+import java.net.ServerSocket;
 import java.util.Properties;
 
 import javax.jcr.Node;
@@ -40,6 +47,7 @@ import javax.mail.internet.MimeMultipart;
 public class OutgoingEmailMessageListenerTest {
   private static final String NODE_PATH_PROPERTY = "nodePath";
   private static final String PATH = "/foo";
+  private static final long WAIT = 5000;
 
   private ConnectionFactoryService connFactoryService;
   private OutgoingEmailMessageListener oeml;
@@ -64,7 +72,12 @@ public class OutgoingEmailMessageListenerTest {
     ComponentContext ctx = createMock(ComponentContext.class);
     expect(ctx.getProperties()).andReturn(props);
 
+    // messages are sent off the JMS thread, which saves and logs out the session.
     adminSession = createMock(Session.class);
+    expect(adminSession.hasPendingChanges()).andReturn(true).anyTimes();
+    adminSession.save();
+    expectLastCall().anyTimes();
+    adminSession.logout();
 
     messageNode = createMock(Node.class);
 
@@ -89,6 +102,11 @@ public class OutgoingEmailMessageListenerTest {
     wiser.getMessages().clear();
   }
 
+  @After
+  public void tearDown() {
+    oeml.deactivate(null);
+  }
+
   @BeforeClass
   public static void startWiser() {
     wiser = new Wiser();
@@ -130,6 +148,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
   }
 
   @Test
@@ -156,6 +176,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
   }
 
   @Test
@@ -185,6 +207,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
   }
 
   @Test
@@ -215,6 +239,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
   }
 
   @Test
@@ -247,6 +273,8 @@ public class OutgoingEmailMessageListenerTest {
     expect(messageNode.getProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(toProp);
     expect(messageNode.getProperty(MessageConstants.PROP_SAKAI_FROM)).andReturn(fromProp);
     expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODY)).andReturn(false);
+    expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODYPATH))
+        .andReturn(false);
     expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_SUBJECT)).andReturn(false);
     expect(messageNode.hasNodes()).andReturn(false);
     expect(
@@ -256,6 +284,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName, toProp, fromProp);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
 
     for (WiserMessage m : wiser.getMessages()) {
       assertEquals("tonobody@example.com", m.getEnvelopeReceiver());
@@ -302,6 +332,8 @@ public class OutgoingEmailMessageListenerTest {
         .times(2);
     expect(messageNode.getProperty(MessageConstants.PROP_SAKAI_FROM)).andReturn(fromProp);
     expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODY)).andReturn(false);
+    expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODYPATH))
+        .andReturn(false);
     expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_SUBJECT)).andReturn(false);
     expect(messageNode.hasNodes()).andReturn(false);
     expect(
@@ -311,6 +343,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName, toProp, fromProp);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
 
     int i = 0;
     for (WiserMessage m : wiser.getMessages()) {
@@ -362,6 +396,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName, toProp, fromProp, bodyProp);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
 
     for (WiserMessage m : wiser.getMessages()) {
       assertEquals("tonobody@example.com", m.getEnvelopeReceiver());
@@ -404,6 +440,8 @@ public class OutgoingEmailMessageListenerTest {
     expect(messageNode.getProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(toProp);
     expect(messageNode.getProperty(MessageConstants.PROP_SAKAI_FROM)).andReturn(fromProp);
     expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODY)).andReturn(false);
+    expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODYPATH))
+        .andReturn(false);
     expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_SUBJECT)).andReturn(true);
     expect(messageNode.hasNodes()).andReturn(false);
     expect(
@@ -415,6 +453,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName, toProp, fromProp, subjProp);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
 
     for (WiserMessage m : wiser.getMessages()) {
       assertEquals("tonobody@example.com", m.getEnvelopeReceiver());
@@ -432,6 +472,7 @@ public class OutgoingEmailMessageListenerTest {
     replay(message);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
   }
 
   @Test
@@ -446,6 +487,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
   }
 
   @Test
@@ -511,6 +554,8 @@ public class OutgoingEmailMessageListenerTest {
     expect(messageNode.getProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(toProp);
     expect(messageNode.getProperty(MessageConstants.PROP_SAKAI_FROM)).andReturn(fromProp);
     expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODY)).andReturn(false);
+    expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_BODYPATH))
+        .andReturn(false);
     expect(messageNode.hasProperty(MessageConstants.PROP_SAKAI_SUBJECT)).andReturn(false);
     expect(messageNode.hasNodes()).andReturn(true);
     expect(messageNode.getNodes()).andReturn(nodeIterator);
@@ -522,10 +567,123 @@ public class OutgoingEmailMessageListenerTest {
         ctProp, childNode, nodeType, nodeIterator);
 
     oeml.onMessage(message);
+    assertTrue(oeml.awaitIdle(WAIT));
+    verify(adminSession);
 
     for (WiserMessage m : wiser.getMessages()) {
       assertEquals("tonobody@example.com", m.getEnvelopeReceiver());
       assertEquals("fromnobody@example.com", m.getEnvelopeSender());
     }
   }
+
+  @Test
+  public void testBackoff() {
+    // doubling from the 30 minute retry interval up to a day.
+    assertEquals(30, oeml.getBackoffMinutes(0));
+    assertEquals(60, oeml.getBackoffMinutes(1));
+    assertEquals(960, oeml.getBackoffMinutes(5));
+    assertEquals(1440, oeml.getBackoffMinutes(6));
+    assertEquals(1440, oeml.getBackoffMinutes(239));
+    assertEquals(0, oeml.getRetryWindowMinutes(0));
+    assertEquals(1890, oeml.getRetryWindowMinutes(6));
+    assertEquals(1890 + 1440, oeml.getRetryWindowMinutes(7));
+  }
+
+  @Test
+  public void testRetryScheduled() throws Exception {
+    sendToClosedPort(3, true);
+  }
+
+  @Test
+  public void testRetriesStopAtWindow() throws Exception {
+    // 8 retries take 4770 minutes, a ninth would wait until 6210, within 5 days.
+    sendToClosedPort(8, true);
+    // a tenth would wait until 7650, past the 7200 minute window.
+    sendToClosedPort(9, false);
+  }
+
+  /**
+   * Send a message that has been retried before to a port nothing listens on, which
+   * fails as a 421.
+   */
+  private void sendToClosedPort(long retryCount, boolean retried) throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    int closedPort = socket.getLocalPort();
+    socket.close();
+
+    Properties props = new Properties();
+    props.put("sakai.smtp.server", "localhost");
+    props.put("sakai.smtp.port", closedPort);
+    props.put("sakai.email.maxRetries", 240);
+    props.put("sakai.email.retryIntervalMinutes", 30);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props);
+
+    Session session = createMock(Session.class);
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+    session.logout();
+    Node node = createMock(Node.class);
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session);
+    Resource res = createMock(Resource.class);
+    expect(res.adaptTo(Node.class)).andReturn(node);
+    ResourceResolver rr = createMock(ResourceResolver.class);
+    expect(rr.getResource(PATH)).andReturn(res);
+    JcrResourceResolverFactory jrrf = createMock(JcrResourceResolverFactory.class);
+    expect(jrrf.getResourceResolver(session)).andReturn(rr);
+
+    Message message = createMock(Message.class);
+    expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
+    expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
+        "tonobody@example.com");
+    Property boxName = createMock(Property.class);
+    expect(boxName.getString()).andReturn(MessageConstants.BOX_OUTBOX);
+    Property toProp = createMock(Property.class);
+    expect(toProp.getString()).andReturn("tonobody@example.com");
+    Property fromProp = createMock(Property.class);
+    expect(fromProp.getString()).andReturn("fromnobody@example.com");
+    Property countProp = createMock(Property.class);
+    expect(countProp.getLong()).andReturn(retryCount);
+
+    expect(node.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)).andReturn(true);
+    expect(node.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)).andReturn(boxName);
+    expect(node.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)).andReturn(false)
+        .andReturn(true);
+    expect(node.hasProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(true).times(2);
+    expect(node.hasProperty(MessageConstants.PROP_SAKAI_FROM)).andReturn(true).times(2);
+    expect(node.getProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(toProp);
+    expect(node.getProperty(MessageConstants.PROP_SAKAI_FROM)).andReturn(fromProp);
+    expect(node.hasProperty(MessageConstants.PROP_SAKAI_BODY)).andReturn(false);
+    expect(node.hasProperty(MessageConstants.PROP_SAKAI_BODYPATH)).andReturn(false);
+    expect(node.hasProperty(MessageConstants.PROP_SAKAI_SUBJECT)).andReturn(false);
+    expect(node.hasNodes()).andReturn(false);
+    expect(node.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)).andReturn(true);
+    expect(node.getProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)).andReturn(countProp);
+    if (retried) {
+      expect(node.setProperty(eq(MessageConstants.PROP_SAKAI_MESSAGEERROR),
+          isA(String.class))).andReturn(null);
+      expect(node.setProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT, retryCount + 1))
+          .andReturn(null);
+    } else {
+      expect(node.setProperty(eq(MessageConstants.PROP_SAKAI_MESSAGEERROR),
+          isA(String.class))).andReturn(null).times(2);
+    }
+
+    replay(ctx, session, node, repository, res, rr, jrrf, message, boxName, toProp,
+        fromProp, countProp);
+
+    OutgoingEmailMessageListener listener = new OutgoingEmailMessageListener(
+        connFactoryService);
+    listener.bindJcrResourceResolverFactory(jrrf);
+    listener.bindRepository(repository);
+    listener.activate(ctx);
+    try {
+      listener.onMessage(message);
+      assertTrue(listener.awaitIdle(WAIT));
+    } finally {
+      listener.deactivate(null);
+    }
+    verify(session, node);
+  }
 }
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+import java.net.BindException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpTransportPoolTest {
+
+  private Wiser wiser;
+  private int smtpPort;
+  private SmtpTransportPool pool;
+
+  @Before
+  public void startWiser() {
+    wiser = new Wiser();
+    smtpPort = 8125;
+    boolean started = false;
+    while (!started) {
+      wiser.setPort(smtpPort);
+      try {
+        wiser.start();
+        started = true;
+      } catch (RuntimeException re) {
+        if (re.getCause() instanceof BindException) {
+          smtpPort++;
+        }
+      }
+    }
+  }
+
+  @After
+  public void stopWiser() {
+    if (pool != null) {
+      pool.close();
+    }
+    wiser.stop();
+  }
+
+  @Test
+  public void testConnectionsAreReused() throws Exception {
+    pool = new SmtpTransportPool("localhost", smtpPort, 2, 60000L);
+    final int threads = 4;
+    final int perThread = 5;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger failures = new AtomicInteger();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < perThread; i++) {
+              pool.send(createMessage("to" + thread + "-" + i + "@example.com"));
+            }
+          } catch (MessagingException e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, failures.get());
+    assertEquals(threads * perThread, wiser.getMessages().size());
+    assertTrue(pool.getOpenedCount() <= 2);
+  }
+
+  @Test
+  public void testIdleConnectionsExpire() throws Exception {
+    pool = new SmtpTransportPool("localhost", smtpPort, 1, 0L);
+    for (int i = 0; i < 3; i++) {
+      pool.send(createMessage("to" + i + "@example.com"));
+    }
+    assertEquals(3, wiser.getMessages().size());
+    assertEquals(3, pool.getOpenedCount());
+  }
+
+  @Test
+  public void testClosedPoolRefusesToSend() throws Exception {
+    pool = new SmtpTransportPool("localhost", smtpPort, 1, 60000L);
+    pool.close();
+    try {
+      pool.send(createMessage("to@example.com"));
+      fail("A closed pool should not send");
+    } catch (MessagingException e) {
+      assertEquals(0, wiser.getMessages().size());
+    }
+  }
+
+  private MimeMessage createMessage(String to) throws MessagingException {
+    MimeMessage message = new MimeMessage(pool.getMailSession());
+    message.setFrom(new InternetAddress("from@example.com"));
+    message.setRecipient(Message.RecipientType.TO, new InternetAddress(to));
+    message.setSubject("Pooled");
+    message.setText("Sent down a pooled connection.");
+    return message;
+  }
+}
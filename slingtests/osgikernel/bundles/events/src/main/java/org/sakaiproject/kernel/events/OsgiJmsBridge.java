@@ -26,23 +26,39 @@ import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.kernel.api.activemq.EventCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
-import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.Topic;
 
 /**
  * Bridge to send OSGi events onto a JMS topic.
+ * <p>
+ * JMS sessions are not thread safe, so each sending thread borrows a session and its
+ * producer from a small pool and has it to itself until the send is done. Topics are
+ * created once and cached, and the connection is started once when the bridge is
+ * activated. Only events whose topics pass the include and exclude filters are sent.
+ * With a batch size above one, events are queued and sent by a single thread in
+ * transactions of up to that many messages.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true)
 @Service
@@ -64,17 +80,72 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
   static final String ACKNOWLEDGE_MODE = "bridge.acknowledgeMode";
 
+  @Property(value = { "*" })
+  static final String INCLUDE_TOPICS = "bridge.includeTopics";
+
+  @Property(value = { "org/osgi/*" })
+  static final String EXCLUDE_TOPICS = "bridge.excludeTopics";
+
+  @Property(intValue = 8)
+  static final String MAX_SESSIONS = "bridge.maxSessions";
+
+  @Property(intValue = 1)
+  static final String BATCH_SIZE = "bridge.batchSize";
+
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queueSize";
+
+  private static final int DEFAULT_MAX_SESSIONS = 8;
+  private static final int DEFAULT_QUEUE_SIZE = 10000;
+  private static final long SHUTDOWN_WAIT = 5000L;
+
   @Reference
   private ConnectionFactoryService connFactoryService;
 
   private ConnectionFactory connFactory;
   private Connection conn;
-  private Session clientSession;
   private String brokerUrl;
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
 
+  private String[] includeTopics;
+  private String[] excludeTopics;
+  private int batchSize;
+  private int queueSize;
+
+  /**
+   * Idle sessions, each confined to the thread that borrows it until it is returned.
+   */
+  private ConcurrentLinkedQueue<BridgeSession> idleSessions;
+  private Semaphore sessionPermits;
+  private ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+  private ConcurrentHashMap<String, Boolean> bridged = new ConcurrentHashMap<String, Boolean>();
+
+  private BlockingQueue<Event> batchQueue;
+  private Thread batchSender;
+
+  /**
+   * A session with the anonymous producer that sends on it.
+   */
+  private static class BridgeSession {
+    private Session session;
+    private MessageProducer producer;
+
+    private BridgeSession(Session session, MessageProducer producer) {
+      this.session = session;
+      this.producer = producer;
+    }
+
+    private void close() {
+      try {
+        session.close();
+      } catch (JMSException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+
   /**
    * Default constructor.
    */
@@ -109,6 +180,16 @@ public class OsgiJmsBridge implements EventHandler {
     connectionClientId = (String) props.get(CONNECTION_CLIENT_ID);
     String _brokerUrl = (String) props.get(BROKER_URL);
 
+    includeTopics = toArray(props.get(INCLUDE_TOPICS), new String[] { "*" });
+    excludeTopics = toArray(props.get(EXCLUDE_TOPICS), new String[0]);
+    Integer _batchSize = (Integer) props.get(BATCH_SIZE);
+    batchSize = _batchSize == null || _batchSize < 1 ? 1 : _batchSize;
+    Integer _maxSessions = (Integer) props.get(MAX_SESSIONS);
+    int maxSessions = _maxSessions == null || _maxSessions < 1 ? DEFAULT_MAX_SESSIONS
+        : _maxSessions;
+    Integer _queueSize = (Integer) props.get(QUEUE_SIZE);
+    queueSize = _queueSize == null || _queueSize < 1 ? DEFAULT_QUEUE_SIZE : _queueSize;
+
     LOGGER.debug(
         "Broker URL: {}, Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
         new Object[] { _brokerUrl, transacted, acknowledgeMode, connectionClientId });
@@ -128,17 +209,38 @@ public class OsgiJmsBridge implements EventHandler {
     }
     brokerUrl = _brokerUrl;
 
-    // may want to consider getting this connection from a pool but activity
-    // is expected to be high enough that the connection will be used almost
-    // constantly or at least with very little delay between messages.
+    topics.clear();
+    bridged.clear();
+    idleSessions = new ConcurrentLinkedQueue<BridgeSession>();
+    sessionPermits = new Semaphore(batchSize > 1 ? 1 : maxSessions, true);
     try {
       conn = connFactory.createConnection();
       conn.setClientID(connectionClientId);
 
-      clientSession = conn.createSession(transacted, acknowledgeMode);
+      // open the first session now so that a broken broker fails activation.
+      idleSessions.add(createSession());
+      conn.start();
     } catch (JMSException e) {
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (JMSException e1) {
+          LOGGER.warn(e1.getMessage(), e1);
+        }
+      }
       throw new RuntimeException(e.getMessage(), e);
     }
+
+    if (batchSize > 1) {
+      batchQueue = new LinkedBlockingQueue<Event>(queueSize);
+      batchSender = new Thread(new Runnable() {
+        public void run() {
+          sendBatches();
+        }
+      }, "OsgiJmsBridge batch sender");
+      batchSender.setDaemon(true);
+      batchSender.start();
+    }
   }
 
   /**
@@ -147,11 +249,31 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
-    if (clientSession != null) {
+    if (batchSender != null) {
+      long end = System.currentTimeMillis() + SHUTDOWN_WAIT;
+      while (!batchQueue.isEmpty() && System.currentTimeMillis() < end) {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      batchSender.interrupt();
       try {
-        clientSession.close();
-      } catch (JMSException e) {
-        LOGGER.warn(e.getMessage(), e);
+        batchSender.join(SHUTDOWN_WAIT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (!batchQueue.isEmpty()) {
+        LOGGER.warn("Dropped {} events not yet bridged to JMS", batchQueue.size());
+      }
+      batchSender = null;
+      batchQueue = null;
+    }
+    if (idleSessions != null) {
+      BridgeSession bridgeSession;
+      while ((bridgeSession = idleSessions.poll()) != null) {
+        bridgeSession.close();
       }
     }
     if (conn != null) {
@@ -168,36 +290,194 @@ public class OsgiJmsBridge implements EventHandler {
    *
    * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
    */
-  @SuppressWarnings("unchecked")
   public void handleEvent(Event event) {
     LOGGER.trace("Receiving event");
-    if (connFactory != null) {
-      LOGGER.debug("Processing event {}", event);
+    if (connFactory == null || !isBridged(event.getTopic())) {
+      return;
+    }
+    LOGGER.debug("Processing event {}", event);
+    BlockingQueue<Event> queue = batchQueue;
+    if (queue != null) {
+      try {
+        if (!queue.offer(event, 1, TimeUnit.SECONDS)) {
+          LOGGER.warn("Bridge queue is full, dropped event {}", event.getTopic());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    BridgeSession bridgeSession = null;
+    try {
+      bridgeSession = borrowSession();
+      send(bridgeSession, event);
+      if (transacted) {
+        bridgeSession.session.commit();
+      }
+      releaseSession(bridgeSession);
+      bridgeSession = null;
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (bridgeSession != null) {
+        // a session that has failed is not trusted again.
+        discardSession(bridgeSession);
+      }
+    }
+  }
+
+  /**
+   * Send queued events in transactions of up to the batch size, until interrupted.
+   */
+  private void sendBatches() {
+    List<Event> batch = new ArrayList<Event>(batchSize);
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        batch.add(batchQueue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      batchQueue.drainTo(batch, batchSize - 1);
+      BridgeSession bridgeSession = null;
       try {
-        // post to JMS
-        Topic emailTopic = clientSession.createTopic(event.getTopic());
-        MessageProducer client = clientSession.createProducer(emailTopic);
-        Message msg = clientSession.createMessage();
-        msg.setJMSType(event.getTopic());
-        for (String name : event.getPropertyNames()) {
-          Object obj = event.getProperty(name);
-          // "Only objectified primitive objects, String, Map and List types are
-          // allowed" as stated by an exception when putting something into the
-          // message that was not of one of these types.
-          if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-              || obj instanceof Number || obj instanceof Map || obj instanceof String
-              || obj instanceof List) {
-            msg.setObjectProperty(name, obj);
+        bridgeSession = borrowSession();
+        for (Event event : batch) {
+          send(bridgeSession, event);
+        }
+        bridgeSession.session.commit();
+        releaseSession(bridgeSession);
+        bridgeSession = null;
+      } catch (JMSException e) {
+        LOGGER.error("Failed to bridge " + batch.size() + " events: " + e.getMessage(), e);
+        if (bridgeSession != null) {
+          try {
+            bridgeSession.session.rollback();
+          } catch (JMSException e1) {
+            LOGGER.debug(e1.getMessage(), e1);
           }
         }
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        if (bridgeSession != null) {
+          discardSession(bridgeSession);
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  private void send(BridgeSession bridgeSession, Event event) throws JMSException {
+    Session session = bridgeSession.session;
+    Topic topic = getTopic(session, event.getTopic());
+    BytesMessage msg = session.createBytesMessage();
+    msg.setJMSType(event.getTopic());
+    String[] names = event.getPropertyNames();
+    Map<String, Object> properties = new LinkedHashMap<String, Object>(names.length * 2);
+    for (String name : names) {
+      Object obj = event.getProperty(name);
+      properties.put(name, obj);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types. These stay on the message
+      // for selectors, the body carries every property whatever its type.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List) {
+        msg.setObjectProperty(name, obj);
+      }
+    }
+    EventCodec.write(msg, properties);
+    bridgeSession.producer.send(topic, msg);
+  }
+
+  /**
+   * Topics are not tied to the session that created them, so one per name is enough.
+   */
+  private Topic getTopic(Session session, String name) throws JMSException {
+    Topic topic = topics.get(name);
+    if (topic == null) {
+      topic = session.createTopic(name);
+      Topic cached = topics.putIfAbsent(name, topic);
+      if (cached != null) {
+        topic = cached;
+      }
+    }
+    return topic;
+  }
 
-        clientSession.run();
-        conn.start();
-        client.send(msg);
+  private BridgeSession borrowSession() throws JMSException, InterruptedException {
+    sessionPermits.acquire();
+    BridgeSession bridgeSession = idleSessions.poll();
+    if (bridgeSession == null) {
+      try {
+        bridgeSession = createSession();
       } catch (JMSException e) {
-        LOGGER.error(e.getMessage(), e);
+        sessionPermits.release();
+        throw e;
       }
     }
+    return bridgeSession;
+  }
+
+  private void releaseSession(BridgeSession bridgeSession) {
+    idleSessions.add(bridgeSession);
+    sessionPermits.release();
+  }
+
+  private void discardSession(BridgeSession bridgeSession) {
+    bridgeSession.close();
+    sessionPermits.release();
+  }
+
+  private BridgeSession createSession() throws JMSException {
+    boolean batched = batchSize > 1;
+    Session session = conn.createSession(transacted || batched, batched ? Session.SESSION_TRANSACTED
+        : acknowledgeMode);
+    try {
+      return new BridgeSession(session, session.createProducer(null));
+    } catch (JMSException e) {
+      session.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return true if the topic matches an include pattern and no exclude pattern. A
+   *         pattern is either an exact topic, or ends in * to match every topic with
+   *         that prefix, as in the event.topics property.
+   */
+  boolean isBridged(String topic) {
+    Boolean result = bridged.get(topic);
+    if (result == null) {
+      result = matches(includeTopics, topic) && !matches(excludeTopics, topic);
+      bridged.put(topic, result);
+    }
+    return result;
+  }
+
+  private boolean matches(String[] patterns, String topic) {
+    for (String pattern : patterns) {
+      if (pattern.endsWith("*")) {
+        if (topic.startsWith(pattern.substring(0, pattern.length() - 1))) {
+          return true;
+        }
+      } else if (pattern.equals(topic)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String[] toArray(Object value, String[] defaultValue) {
+    if (value instanceof String[]) {
+      return (String[]) value;
+    } else if (value instanceof String) {
+      return new String[] { (String) value };
+    }
+    return defaultValue;
   }
 
   /**
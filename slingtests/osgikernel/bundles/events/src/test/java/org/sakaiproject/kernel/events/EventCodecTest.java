@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.events;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.api.activemq.EventCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.jms.JMSException;
+
+/**
+ *
+ */
+public class EventCodecTest {
+
+  @Test
+  public void testRoundTripPrimitives() throws Exception {
+    Map<String, Object> props = new LinkedHashMap<String, Object>();
+    props.put("string", "caf\u00e9 \u4e2d");
+    props.put("empty", "");
+    props.put("boolean", Boolean.TRUE);
+    props.put("byte", Byte.MIN_VALUE);
+    props.put("short", Short.MIN_VALUE);
+    props.put("char", 'x');
+    props.put("int", Integer.MIN_VALUE);
+    props.put("negative", -1);
+    props.put("long", Long.MAX_VALUE);
+    props.put("float", 1.5f);
+    props.put("double", Double.NaN);
+    props.put("null", null);
+
+    Map<String, Object> decoded = EventCodec.decode(EventCodec.encode(props));
+
+    assertEquals(props, decoded);
+    assertEquals(Arrays.asList(props.keySet().toArray()), Arrays.asList(decoded.keySet()
+        .toArray()));
+  }
+
+  @Test
+  public void testRoundTripDatesAndArrays() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    Date date = new Date(1234567890123L);
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("Europe/London"));
+    calendar.setTimeInMillis(-1000L);
+    props.put("date", date);
+    props.put("calendar", calendar);
+    props.put("bytes", new byte[] { 0, -1, 127 });
+    props.put("strings", new String[] { "a", null, "c" });
+    props.put("ints", new int[] { 1, 2, 3 });
+
+    Map<String, Object> decoded = EventCodec.decode(EventCodec.encode(props));
+
+    assertEquals(date, decoded.get("date"));
+    Calendar decodedCalendar = (Calendar) decoded.get("calendar");
+    assertEquals(-1000L, decodedCalendar.getTimeInMillis());
+    assertEquals("Europe/London", decodedCalendar.getTimeZone().getID());
+    assertArrayEquals(new byte[] { 0, -1, 127 }, (byte[]) decoded.get("bytes"));
+    assertArrayEquals(new String[] { "a", null, "c" }, (String[]) decoded.get("strings"));
+    assertArrayEquals(new Object[] { 1, 2, 3 }, (Object[]) decoded.get("ints"));
+  }
+
+  @Test
+  public void testRoundTripNestedValues() throws Exception {
+    Map<String, Object> inner = new HashMap<String, Object>();
+    inner.put("when", new Date(0));
+    inner.put("tags", new String[] { "x" });
+    List<Object> list = new ArrayList<Object>();
+    list.add("one");
+    list.add(inner);
+    Set<String> set = new HashSet<String>(Arrays.asList("a", "b"));
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("list", list);
+    props.put("set", set);
+    props.put("map", inner);
+
+    Map<String, Object> decoded = EventCodec.decode(EventCodec.encode(props));
+
+    assertEquals(set, decoded.get("set"));
+    List<?> decodedList = (List<?>) decoded.get("list");
+    assertEquals("one", decodedList.get(0));
+    Map<?, ?> decodedInner = (Map<?, ?>) decodedList.get(1);
+    assertEquals(new Date(0), decodedInner.get("when"));
+    assertArrayEquals(new String[] { "x" }, (String[]) decodedInner.get("tags"));
+    assertEquals(new Date(0), ((Map<?, ?>) decoded.get("map")).get("when"));
+  }
+
+  @Test
+  public void testUnknownTypeIsWrittenAsString() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("builder", new StringBuilder("value"));
+
+    Map<String, Object> decoded = EventCodec.decode(EventCodec.encode(props));
+
+    assertEquals("value", decoded.get("builder"));
+    assertNull(decoded.get("missing"));
+  }
+
+  @Test
+  public void testNewerSchemaIsRejected() throws Exception {
+    byte[] body = EventCodec.encode(new HashMap<String, Object>());
+    body[0] = (byte) (EventCodec.SCHEMA_VERSION + 1);
+    try {
+      EventCodec.decode(body);
+      fail("Should not read a body from a later schema");
+    } catch (JMSException e) {
+      assertTrue(e.getMessage().contains("newer"));
+    }
+  }
+
+  @Test
+  public void testTruncatedBodyIsRejected() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("string", "a longer value");
+    byte[] body = EventCodec.encode(props);
+    byte[] truncated = new byte[body.length - 3];
+    System.arraycopy(body, 0, truncated, 0, truncated.length);
+    try {
+      EventCodec.decode(truncated);
+      fail("Should not read a truncated body");
+    } catch (JMSException e) {
+      assertTrue(e.getMessage().startsWith("Corrupt"));
+    }
+  }
+
+  @Test
+  public void testOversizedLengthsAreRejected() throws Exception {
+    // a property count, a string length and each kind of array claiming more than is left.
+    byte[][] bodies = new byte[][] {
+        { 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 },
+        { 1, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f },
+        { 1, 1, 1, 'a', 12, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 },
+        { 1, 1, 1, 'a', 13, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 },
+        { 1, 1, 1, 'a', 14, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 },
+        { 1, 1, 1, 'a', 15, 100 }, { 1, 1, 1, 'a', 17, 100 } };
+    for (byte[] body : bodies) {
+      try {
+        EventCodec.decode(body);
+        fail("Should not read a body with an oversized length " + Arrays.toString(body));
+      } catch (JMSException e) {
+        assertTrue(e.getMessage().startsWith("Corrupt"));
+      }
+    }
+  }
+}
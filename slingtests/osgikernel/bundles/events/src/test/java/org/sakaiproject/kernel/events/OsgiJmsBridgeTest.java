@@ -28,23 +28,26 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
-import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQBytesMessage;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.kernel.api.activemq.EventCodec;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
-import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.Topic;
@@ -62,7 +65,7 @@ public class OsgiJmsBridgeTest {
   private Session sess;
   private Topic topic;
   private MessageProducer prod;
-  private Message message;
+  private BytesMessage message;
   private OsgiJmsBridge bridge;
   private Event event;
 
@@ -152,8 +155,9 @@ public class OsgiJmsBridgeTest {
       namesCount++;
     }
 
-    // there should be an entry for each property plus the name of the topics
-    assertEquals(props.size() + 1, namesCount);
+    // there should be an entry for each property plus the name of the topics and
+    // the schema version of the body
+    assertEquals(props.size() + 2, namesCount);
   }
 
   /**
@@ -191,8 +195,39 @@ public class OsgiJmsBridgeTest {
       namesCount++;
     }
 
-    // there should be an entry for each property plus the name of the topics
-    assertEquals(props.size() + 1, namesCount);
+    // there should be an entry for each property plus the name of the topics and
+    // the schema version of the body
+    assertEquals(props.size() + 2, namesCount);
+  }
+
+  /**
+   * Properties JMS cannot carry as message properties should arrive in the body.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testHandleEventCarriesAllTypesInBody() throws Exception {
+    setUpFullProcess(true);
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod);
+
+    Dictionary<Object, Object> props = buildEventProperties();
+    Date date = new Date();
+    props.put("date", date);
+    props.put("strings", new String[] { "a", "b" });
+    sendMessage(props);
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod);
+
+    message.reset();
+    assertTrue(EventCodec.isEncoded(message));
+    Map<String, Object> decoded = EventCodec.read(message);
+    assertEquals(props.size() + 1, decoded.size());
+    assertEquals(date, decoded.get("date"));
+    assertEquals("b", ((String[]) decoded.get("strings"))[1]);
+    assertEquals(Integer.MAX_VALUE, decoded.get("integer"));
+    assertNull(message.getObjectProperty("date"));
   }
 
   @Test
@@ -261,6 +296,9 @@ public class OsgiJmsBridgeTest {
     // handling.
     sess = createMock(Session.class);
     expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    conn.start();
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
     sess.close();
     expectLastCall();
 
@@ -268,7 +306,7 @@ public class OsgiJmsBridgeTest {
     expect(sess.createTopic((String) anyObject())).andThrow(new JMSException("can't create topic"));
 
     // start the mocks
-    replay(ctx, connFactoryService, connFactory, conn, sess);
+    replay(ctx, connFactoryService, connFactory, conn, sess, prod);
 
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
@@ -278,6 +316,53 @@ public class OsgiJmsBridgeTest {
     verify(ctx, connFactory);
   }
 
+  /**
+   * Two events on the same topic should share one topic and the pooled session.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testTopicIsCached() throws Exception {
+    setUpFullProcess(true);
+    BytesMessage second = new ActiveMQBytesMessage();
+    expect(sess.createBytesMessage()).andReturn(second);
+    prod.send(topic, second);
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod);
+
+    Dictionary<Object, Object> props = buildEventProperties();
+    sendMessage(props);
+    bridge.handleEvent(new Event("test-event", props));
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod);
+  }
+
+  /**
+   * An event on an excluded topic never reaches JMS.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testExcludedTopicIsNotSent() throws Exception {
+    compProps.put(OsgiJmsBridge.EXCLUDE_TOPICS, new String[] { "test-*" });
+    setUpConnection(true);
+    conn.start();
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
+    sess.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, prod);
+
+    sendMessage(buildEventProperties());
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, prod);
+    assertTrue(bridge.isBridged("other-event"));
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -361,24 +446,20 @@ public class OsgiJmsBridgeTest {
       sess = createMock(Session.class);
       expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
 
-      // expect the session to get run
-      sess.run();
-      expectLastCall();
+      // mock an anonymous producer for the session to create and expect it
+      prod = createMock(MessageProducer.class);
+      expect(sess.createProducer(null)).andReturn(prod);
 
       // mock a destination as a topic from the session and expect it
       topic = createMock(Topic.class);
       expect(sess.createTopic((String) anyObject())).andReturn(topic);
 
-      // mock a producer for the session to create and expect it
-      prod = createMock(MessageProducer.class);
-      expect(sess.createProducer(topic)).andReturn(prod);
-
-      // mock the return of a mapped message
-      message = new ActiveMQMessage();
-      expect(sess.createMessage()).andReturn(message);
+      // mock the return of a bytes message
+      message = new ActiveMQBytesMessage();
+      expect(sess.createBytesMessage()).andReturn(message);
 
       // expect the message to be sent
-      prod.send(message);
+      prod.send(topic, message);
 
       if (closeConnection) {
         sess.close();
@@ -15,37 +15,29 @@
  * KIND, either express or implied. See the License for the
  * specific language governing permissions and limitations under the License.
  */
-package org.sakaiproject.kernel.site;
+package org.sakaiproject.kernel.locking;
 
+import java.util.List;
 import java.util.Map;
 
 /**
- * 
+ * Diagnostic view of the locks on this node.
  */
-public class MembershipTree {
-
-  private Map<GroupKey, Membership> groups;
-  private Map<UserKey, Membership> users;
+public interface LockDiagnostics {
 
   /**
-   * @param groups
-   * @param users
+   * @return the locks currently held on this node.
    */
-  public MembershipTree(Map<GroupKey, Membership> groups, Map<UserKey, Membership> users) {
-    this.groups = groups;
-    this.users = users;
-  }
+  List<LockHolder> getHolders();
+
   /**
-   * @return the groups
+   * @return the number of threads waiting, keyed by the path they are waiting for.
    */
-  public Map<GroupKey, Membership> getGroups() {
-    return groups;
-  }
+  Map<String, Integer> getWaiters();
+
   /**
-   * @return the users
+   * @return the acquisition statistics.
    */
-  public Map<UserKey, Membership> getUsers() {
-    return users;
-  }
+  LockStatistics getStatistics();
 
 }
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the locks held on this node as json.
+ *
+ * <pre>
+ * {
+ *   &quot;held&quot;: [
+ *     { &quot;path&quot;: &quot;/_user/message/a1&quot;, &quot;lockId&quot;: 123, &quot;thread&quot;: &quot;GET /_user/message.json&quot;,
+ *       &quot;acquired&quot;: 1253499599589, &quot;heldFor&quot;: 12, &quot;expires&quot;: 1253499899589 }
+ *   ],
+ *   &quot;waiters&quot;: { &quot;/_user/message/a1&quot;: 2 },
+ *   &quot;timeouts&quot;: 0,
+ *   &quot;leaked&quot;: 0,
+ *   &quot;recentLeaks&quot;: [ ],
+ *   &quot;buckets&quot;: [1, 2, 5, ...],
+ *   &quot;histograms&quot;: { &quot;/_user/message&quot;: [10, 2, 0, ...] }
+ * }
+ * </pre>
+ *
+ * Each histogram has a count per bucket, with a final count for waits longer than the
+ * last bucket.
+ *
+ * @scr.component immediate="true" metatype="no" label="LockDiagnosticsServlet"
+ *                description="Reports the state of the lock manager"
+ * @scr.service interface="javax.servlet.Servlet"
+ * @scr.property name="service.description" value="Reports the state of the lock manager"
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="sling.servlet.paths" value="/system/locks"
+ * @scr.property name="sling.servlet.methods" value="GET"
+ * @scr.reference name="lockDiagnostics"
+ *                interface="org.sakaiproject.kernel.locking.LockDiagnostics"
+ *                bind="bindLockDiagnostics" unbind="unbindLockDiagnostics"
+ */
+public class LockDiagnosticsServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -4250390394622719346L;
+  private LockDiagnostics lockDiagnostics;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!"admin".equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Only the admin user may view the lock manager");
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONWriter write = new JSONWriter(response.getWriter());
+      write.object();
+      write.key("held").array();
+      for (LockHolder holder : lockDiagnostics.getHolders()) {
+        writeHolder(write, holder);
+      }
+      write.endArray();
+      write.key("waiters").object();
+      for (Entry<String, Integer> e : lockDiagnostics.getWaiters().entrySet()) {
+        write.key(e.getKey()).value(e.getValue());
+      }
+      write.endObject();
+      LockStatistics statistics = lockDiagnostics.getStatistics();
+      write.key("timeouts").value(statistics.getTimeoutCount());
+      write.key("leaked").value(statistics.getLeakedCount());
+      write.key("recentLeaks").array();
+      for (LockHolder holder : statistics.getRecentLeaks()) {
+        writeHolder(write, holder);
+      }
+      write.endArray();
+      write.key("buckets").array();
+      for (long bucket : LockStatistics.BUCKETS) {
+        write.value(bucket);
+      }
+      write.endArray();
+      write.key("histograms").object();
+      for (Map.Entry<String, long[]> e : statistics.getHistograms().entrySet()) {
+        write.key(e.getKey()).array();
+        for (long count : e.getValue()) {
+          write.value(count);
+        }
+        write.endArray();
+      }
+      write.endObject();
+      write.endObject();
+    } catch (JSONException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  private void writeHolder(JSONWriter write, LockHolder holder) throws JSONException {
+    write.object();
+    write.key("path").value(holder.getPath());
+    write.key("lockId").value(holder.getLockId());
+    write.key("thread").value(holder.getThread());
+    write.key("acquired").value(holder.getAcquired());
+    write.key("heldFor").value(holder.getHeldFor());
+    write.key("expires").value(holder.getExpires());
+    write.endObject();
+  }
+
+  protected void bindLockDiagnostics(LockDiagnostics lockDiagnostics) {
+    this.lockDiagnostics = lockDiagnostics;
+  }
+
+  protected void unbindLockDiagnostics(LockDiagnostics lockDiagnostics) {
+    this.lockDiagnostics = null;
+  }
+}
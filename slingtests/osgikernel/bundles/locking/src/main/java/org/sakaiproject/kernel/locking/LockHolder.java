@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+/**
+ * A record of a lock held on this node, kept for diagnostics.
+ */
+public class LockHolder {
+
+  private String path;
+  private long lockId;
+  private long ownerId;
+  private String thread;
+  private long acquired;
+  private long expires;
+
+  /**
+   * @param lock
+   *          the lock that was taken.
+   * @param thread
+   *          the name of the thread taking the lock. Sling names request threads after
+   *          the request, so this also identifies the request.
+   * @param ownerId
+   *          the lock manager owner id of the thread.
+   */
+  public LockHolder(LockImpl lock, String thread, long ownerId) {
+    this.path = lock.getLocked();
+    this.lockId = lock.getLockId();
+    this.ownerId = ownerId;
+    this.thread = thread;
+    this.acquired = System.currentTimeMillis();
+    this.expires = lock.getExpires();
+  }
+
+  /**
+   * @return the locked path.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the id of the lock.
+   */
+  public long getLockId() {
+    return lockId;
+  }
+
+  /**
+   * @return the lock manager owner id of the holding thread.
+   */
+  public long getOwnerId() {
+    return ownerId;
+  }
+
+  /**
+   * @return the name of the thread, and so the request, holding the lock.
+   */
+  public String getThread() {
+    return thread;
+  }
+
+  /**
+   * @return when the lock was taken.
+   */
+  public long getAcquired() {
+    return acquired;
+  }
+
+  /**
+   * @return how long the lock has been held in ms.
+   */
+  public long getHeldFor() {
+    return System.currentTimeMillis() - acquired;
+  }
+
+  /**
+   * @return when the lease on the lock runs out.
+   */
+  public long getExpires() {
+    return expires;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return path + " held by " + thread + " for " + getHeldFor() + "ms";
+  }
+}
@@ -54,6 +54,10 @@ public class LockImpl implements Lock, ThreadBound {
    * The ID of the lock instance.
    */
   private long lockId;
+  /**
+   * The time after which the lock may be taken over by another owner.
+   */
+  private long expires;
 
   /**
    * Create a new lock on the item id, with owner ownerId for the lockmanage instanceId
@@ -64,13 +68,16 @@ public class LockImpl implements Lock, ThreadBound {
    *          the owner of the lock.
    * @param instanceId
    *          the instance of the lock manager creating the lock.
+   * @param expires
+   *          the time after which the lock may be taken over by another owner.
    */
-  public LockImpl(String id, long lockId, long ownerId, long instanceId) {
+  public LockImpl(String id, long lockId, long ownerId, long instanceId, long expires) {
     this.locked = true;
     this.id = id;
     this.ownerId = ownerId;
     this.instanceId = instanceId;
     this.lockId = lockId;
+    this.expires = expires;
   }
 
   /**
@@ -143,6 +150,20 @@ public class LockImpl implements Lock, ThreadBound {
     return locked;
   }
 
+  /**
+   * @return true if the lease on the lock has run out.
+   */
+  public boolean isExpired() {
+    return System.currentTimeMillis() > expires;
+  }
+
+  /**
+   * @return the time after which the lock may be taken over by another owner.
+   */
+  public long getExpires() {
+    return expires;
+  }
+
   /**
    * {@inheritDoc}
    * unbind this lock, performing an unlock in the process.
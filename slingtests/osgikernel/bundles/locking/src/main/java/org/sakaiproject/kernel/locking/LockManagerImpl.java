@@ -18,6 +18,7 @@
 package org.sakaiproject.kernel.locking;
 
 
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.locking.Lock;
 import org.sakaiproject.kernel.api.locking.LockManager;
 import org.sakaiproject.kernel.api.locking.LockTimeoutException;
@@ -27,21 +28,42 @@ import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to manage the locks. Within this
+ * JVM lock operations are serialized per stripe of the path hash, threads waiting for a
+ * lock are queued in arrival order and woken when the lock is released. Locks are
+ * leased, a lock held past its lease may be taken over by a waiting thread. The locks
+ * held on this node, their waiters and acquisition times are available through
+ * {@link LockDiagnostics} and over JMX.
  *
  * @scr.component immediate="true" metatype="no"
  * @scr.property name="service.description" value="In JVM Lock Manager"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.service interface="org.sakaiproject.kernel.api.locking.LockManager"
+ * @scr.service interface="org.sakaiproject.kernel.locking.LockDiagnostics"
  * @scr.reference name="cacheManagerService"
  *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
  *                bind="bindCacheManagerService" unbind="unbindCacheManagerService"
  */
-public class LockManagerImpl implements LockManager {
+public class LockManagerImpl implements LockManager, LockDiagnostics {
 
   /**
    * The name of the cluster replicated cache. This cache must be configured with a
@@ -61,6 +83,25 @@ public class LockManagerImpl implements LockManager {
    * debug flag set at service creation.
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
+  /**
+   * The number of stripes, must be a power of 2.
+   */
+  private static final int STRIPES = 64;
+  /**
+   * How long waitForLock waits before giving up, in ms.
+   */
+  private static final long DEFAULT_WAIT_TIMEOUT = 30000L;
+  /**
+   * How long a lock is leased for before it may be taken over, in ms. This must be
+   * shorter than the expiry of the lock map cache.
+   */
+  private static final long DEFAULT_LEASE = 300000L;
+  /**
+   * The longest a waiting thread sleeps before checking the lock again, in ms. Releases
+   * on this node wake waiters immediately, this only matters for locks held by other
+   * nodes in the cluster.
+   */
+  private static final long RECHECK_INTERVAL = 500L;
   /**
    * Service dependency, the Cache Manager
    */
@@ -91,7 +132,37 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  /**
+   * Stripes guarding the lock operations, selected by the hash of the path.
+   */
+  private Stripe[] stripes = new Stripe[STRIPES];
+  private long waitTimeout;
+  private long lease;
+  /**
+   * The locks taken on this node, keyed by path.
+   */
+  private Map<String, LockHolder> holders = new ConcurrentHashMap<String, LockHolder>();
+  private LockStatistics statistics = new LockStatistics();
+
+  /**
+   * The threads waiting for one path, in arrival order.
+   */
+  private static final class Waiters {
+    private LinkedList<Long> queue = new LinkedList<Long>();
+    private Condition released;
+
+    private Waiters(Condition released) {
+      this.released = released;
+    }
+  }
+
+  /**
+   * A fair mutex over a subset of paths, and the waiters for those paths.
+   */
+  private static final class Stripe {
+    private ReentrantLock mutex = new ReentrantLock(true);
+    private Map<String, Waiters> waiters = new HashMap<String, Waiters>();
+  }
 
   /**
    * @throws NoSuchAlgorithmException
@@ -99,8 +170,24 @@ public class LockManagerImpl implements LockManager {
    */
   public LockManagerImpl()
       throws NoSuchAlgorithmException {
+    this(DEFAULT_WAIT_TIMEOUT, DEFAULT_LEASE);
+  }
+
+  /**
+   * @param waitTimeout
+   *          how long waitForLock waits before giving up, in ms.
+   * @param lease
+   *          how long a lock is leased for before it may be taken over, in ms.
+   * @throws NoSuchAlgorithmException
+   */
+  public LockManagerImpl(long waitTimeout, long lease) throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    this.waitTimeout = waitTimeout;
+    this.lease = lease;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
   }
 
   public Lock getLock(String id) {
@@ -114,19 +201,54 @@ public class LockManagerImpl implements LockManager {
   public Lock getLock(String id, boolean create) {
     LockImpl lock = lockMap.get(id);
     if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
+      if (lock == null || !lock.isLocked() || lock.isExpired()) {
+        Stripe stripe = stripeFor(id);
+        stripe.mutex.lock();
+        try {
+          lock = tryLock(id);
+          if (lock == null) {
+            lock = lockMap.get(id);
           }
+        } finally {
+          stripe.mutex.unlock();
         }
       }
     }
+    if (lock != null) {
+      lock.bind(this);
+    }
+    return lock;
+  }
+
+  /**
+   * Take the lock if it is free, expired or already owned by this thread. Must be called
+   * with the stripe for the id held.
+   *
+   * @param id
+   * @return the lock if this thread now owns it, null if it is held elsewhere.
+   */
+  private LockImpl tryLock(String id) {
+    LockImpl lock = lockMap.get(id);
+    if (lock != null) {
+      lock.bind(this);
+      if (lock.isLocked()) {
+        if (lock.isOwner()) {
+          return lock;
+        }
+        if (!lock.isExpired()) {
+          return null;
+        }
+        LOGGER.warn("Lease expired on lock {} held by {}, taking it over", id, lock
+            .getOwner());
+      }
+    }
+    lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId, System
+        .currentTimeMillis()
+        + lease);
     lock.bind(this);
+    lockMap.put(id, lock);
+    holders.put(id, new LockHolder(lock, Thread.currentThread().getName(), threadId.get()));
+    getRequestLocks().put(id, lock);
     return lock;
   }
 
@@ -148,9 +270,37 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      release(lock.getLocked(), lock.getLockId());
+    }
+  }
+
+  /**
+   * Release a lock and wake its waiters.
+   *
+   * @param id
+   *          the locked path.
+   * @param lockId
+   *          the id of the lock being released.
+   */
+  private void release(String id, long lockId) {
+    Stripe stripe = stripeFor(id);
+    stripe.mutex.lock();
+    try {
+      LockImpl current = lockMap.get(id);
+      // the lock may have been taken over after the lease expired, leave that alone.
+      if (current == null || current.getLockId() == lockId) {
+        lockMap.remove(id);
+      }
+      LockHolder holder = holders.get(id);
+      if (holder != null && holder.getLockId() == lockId) {
+        holders.remove(id);
       }
+      Waiters waiters = stripe.waiters.get(id);
+      if (waiters != null) {
+        waiters.released.signalAll();
+      }
+    } finally {
+      stripe.mutex.unlock();
     }
   }
 
@@ -169,45 +319,74 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
-   * {@inheritDoc}
+   * {@inheritDoc} Waiting threads are granted the lock in the order they asked for it.
    *
    * @see org.sakaiproject.kernel.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    Long me = threadId.get();
+    long start = System.currentTimeMillis();
+    long deadline = start + waitTimeout;
+    Stripe stripe = stripeFor(id);
+    stripe.mutex.lock();
+    try {
+      LockImpl held = lockMap.get(id);
+      if (held != null) {
+        held.bind(this);
+        if (held.isLocked() && held.isOwner()) {
+          return held;
         }
-        return lock;
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+      Waiters waiters = stripe.waiters.get(id);
+      if (waiters == null) {
+        waiters = new Waiters(stripe.mutex.newCondition());
+        stripe.waiters.put(id, waiters);
       }
+      waiters.queue.add(me);
       try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        while (true) {
+          if (me.equals(waiters.queue.getFirst())) {
+            LockImpl lock = tryLock(id);
+            if (lock != null) {
+              if (debug) {
+                LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+              }
+              statistics.recordAcquire(id, System.currentTimeMillis() - start);
+              return lock;
+            }
+          }
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            statistics.recordTimeout(id);
+            throw new LockTimeoutException("Failed to lock node " + id);
+          }
+          waiters.released.await(Math.min(remaining, RECHECK_INTERVAL),
+              TimeUnit.MILLISECONDS);
         }
-        Thread.sleep(sleepTime);
       } catch (InterruptedException e) {
+        statistics.recordTimeout(id);
+        Thread.currentThread().interrupt();
+        throw new LockTimeoutException("Interrupted waiting to lock node " + id, e);
+      } finally {
+        waiters.queue.remove(me);
+        if (waiters.queue.isEmpty()) {
+          stripe.waiters.remove(id);
+        } else {
+          // let the next in the queue check the lock.
+          waiters.released.signalAll();
+        }
       }
+    } finally {
+      stripe.mutex.unlock();
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
   }
 
   /**
-   * {@inheritDoc}
+   * {@inheritDoc} Any lock still held by this thread afterwards has leaked out of the
+   * request, it is recorded in the statistics and released.
    *
    * @see org.sakaiproject.kernel.api.locking.LockManager#clearLocks()
    */
@@ -215,9 +394,93 @@ public class LockManagerImpl implements LockManager {
     Cache<LockImpl> requestLocks = getRequestLocks();
     // clearing the requestLocks will invoke unbind which will unlock.
     requestLocks.clear();
+    long me = threadId.get();
+    for (LockHolder holder : holders.values()) {
+      if (holder.getOwnerId() == me) {
+        statistics.recordLeak(holder);
+        release(holder.getPath(), holder.getLockId());
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockDiagnostics#getHolders()
+   */
+  public List<LockHolder> getHolders() {
+    return new ArrayList<LockHolder>(holders.values());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockDiagnostics#getWaiters()
+   */
+  public Map<String, Integer> getWaiters() {
+    Map<String, Integer> waiting = new TreeMap<String, Integer>();
+    for (Stripe stripe : stripes) {
+      stripe.mutex.lock();
+      try {
+        for (Entry<String, Waiters> e : stripe.waiters.entrySet()) {
+          waiting.put(e.getKey(), e.getValue().queue.size());
+        }
+      } finally {
+        stripe.mutex.unlock();
+      }
+    }
+    return waiting;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockDiagnostics#getStatistics()
+   */
+  public LockStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @param id
+   * @return the stripe guarding the id.
+   */
+  private Stripe stripeFor(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (stripes.length - 1)];
+  }
+
+  /**
+   * Register the lock monitor with the platform MBean server.
+   *
+   * @param ctx
+   * @throws Exception
+   */
+  protected void activate(ComponentContext ctx) throws Exception {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(LockMonitor.OBJECT_NAME);
+    if (mbeanServer.isRegistered(name)) {
+      mbeanServer.unregisterMBean(name);
+    }
+    mbeanServer.registerMBean(new LockMonitor(this), name);
+  }
+
+  /**
+   * Remove the lock monitor from the platform MBean server.
+   *
+   * @param ctx
+   * @throws Exception
+   */
+  protected void deactivate(ComponentContext ctx) throws Exception {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(LockMonitor.OBJECT_NAME);
+    if (mbeanServer.isRegistered(name)) {
+      mbeanServer.unregisterMBean(name);
+    }
   }
 
- 
   /**
    * @param cacheManagerService
    */
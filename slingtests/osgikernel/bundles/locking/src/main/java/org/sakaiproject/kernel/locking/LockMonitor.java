@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Exposes {@link LockDiagnostics} over JMX.
+ */
+public class LockMonitor implements LockMonitorMBean {
+
+  /**
+   * The name the monitor is registered under.
+   */
+  public static final String OBJECT_NAME = "org.sakaiproject.kernel:type=LockManager";
+
+  private LockDiagnostics diagnostics;
+
+  /**
+   * @param diagnostics
+   */
+  public LockMonitor(LockDiagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#getHeldLockCount()
+   */
+  public int getHeldLockCount() {
+    return diagnostics.getHolders().size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#getWaitingThreadCount()
+   */
+  public int getWaitingThreadCount() {
+    int waiting = 0;
+    for (Integer n : diagnostics.getWaiters().values()) {
+      waiting += n;
+    }
+    return waiting;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#getTimeoutCount()
+   */
+  public long getTimeoutCount() {
+    return diagnostics.getStatistics().getTimeoutCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#getLeakedLockCount()
+   */
+  public long getLeakedLockCount() {
+    return diagnostics.getStatistics().getLeakedCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#getHeldLocks()
+   */
+  public String[] getHeldLocks() {
+    return toStrings(diagnostics.getHolders());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#getWaitingPaths()
+   */
+  public String[] getWaitingPaths() {
+    Map<String, Integer> waiters = diagnostics.getWaiters();
+    String[] paths = new String[waiters.size()];
+    int i = 0;
+    for (Entry<String, Integer> e : waiters.entrySet()) {
+      paths[i++] = e.getKey() + " " + e.getValue() + " waiting";
+    }
+    return paths;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#getRecentLeaks()
+   */
+  public String[] getRecentLeaks() {
+    return toStrings(diagnostics.getStatistics().getRecentLeaks());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#getAcquisitionHistograms()
+   */
+  public String[] getAcquisitionHistograms() {
+    Map<String, long[]> histograms = diagnostics.getStatistics().getHistograms();
+    String[] lines = new String[histograms.size()];
+    int i = 0;
+    for (Entry<String, long[]> e : histograms.entrySet()) {
+      StringBuilder sb = new StringBuilder(e.getKey());
+      long[] counts = e.getValue();
+      for (int b = 0; b < counts.length; b++) {
+        if (counts[b] > 0) {
+          if (b < LockStatistics.BUCKETS.length) {
+            sb.append(" <=").append(LockStatistics.BUCKETS[b]).append("ms:");
+          } else {
+            sb.append(" >").append(LockStatistics.BUCKETS[b - 1]).append("ms:");
+          }
+          sb.append(counts[b]);
+        }
+      }
+      lines[i++] = sb.toString();
+    }
+    return lines;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.LockMonitorMBean#resetStatistics()
+   */
+  public void resetStatistics() {
+    diagnostics.getStatistics().reset();
+  }
+
+  private String[] toStrings(List<LockHolder> holders) {
+    String[] s = new String[holders.size()];
+    for (int i = 0; i < s.length; i++) {
+      s[i] = holders.get(i).toString();
+    }
+    return s;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+/**
+ * JMX view of the lock manager.
+ */
+public interface LockMonitorMBean {
+
+  /**
+   * @return the number of locks held on this node.
+   */
+  int getHeldLockCount();
+
+  /**
+   * @return the number of threads waiting for a lock.
+   */
+  int getWaitingThreadCount();
+
+  /**
+   * @return the number of times a thread gave up waiting for a lock.
+   */
+  long getTimeoutCount();
+
+  /**
+   * @return the number of locks found held after their request cleared its locks.
+   */
+  long getLeakedLockCount();
+
+  /**
+   * @return a description of each held lock, with its holder and hold time.
+   */
+  String[] getHeldLocks();
+
+  /**
+   * @return each path that has waiters, with the number waiting.
+   */
+  String[] getWaitingPaths();
+
+  /**
+   * @return a description of the most recently leaked locks.
+   */
+  String[] getRecentLeaks();
+
+  /**
+   * @return the acquisition latency histogram for each path prefix.
+   */
+  String[] getAcquisitionHistograms();
+
+  /**
+   * Reset the latency, timeout and leak counters.
+   */
+  void resetStatistics();
+
+}
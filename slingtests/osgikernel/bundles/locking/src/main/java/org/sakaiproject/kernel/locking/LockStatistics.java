@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock acquisition latency histograms grouped by path prefix, along with counts of
+ * timeouts and a record of leaked locks.
+ */
+public class LockStatistics {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LockStatistics.class);
+  /**
+   * The upper bound of each histogram bucket in ms, there is a final bucket for
+   * anything longer.
+   */
+  public static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000,
+      5000, 10000, 30000 };
+  /**
+   * The number of path segments that make up a prefix.
+   */
+  private static final int PREFIX_DEPTH = 2;
+  /**
+   * The most prefixes tracked separately, anything after that is counted as
+   * {@link #OTHER}.
+   */
+  private static final int MAX_PREFIXES = 200;
+  /**
+   * The prefix used once {@link #MAX_PREFIXES} have been seen.
+   */
+  public static final String OTHER = "other";
+  /**
+   * The number of leaked locks to remember.
+   */
+  private static final int MAX_LEAKS = 100;
+
+  private Map<String, AtomicLongArray> histograms = new ConcurrentHashMap<String, AtomicLongArray>();
+  private AtomicLong timeouts = new AtomicLong();
+  private AtomicLong leaked = new AtomicLong();
+  private LinkedList<LockHolder> recentLeaks = new LinkedList<LockHolder>();
+
+  /**
+   * Record the time taken to acquire a lock.
+   *
+   * @param path
+   *          the locked path.
+   * @param millis
+   *          the time taken in ms.
+   */
+  public void recordAcquire(String path, long millis) {
+    AtomicLongArray histogram = getHistogram(prefix(path));
+    int i = 0;
+    while (i < BUCKETS.length && millis > BUCKETS[i]) {
+      i++;
+    }
+    histogram.incrementAndGet(i);
+  }
+
+  /**
+   * Record a thread giving up waiting for a lock.
+   *
+   * @param path
+   */
+  public void recordTimeout(String path) {
+    timeouts.incrementAndGet();
+  }
+
+  /**
+   * Record a lock that was still held after its request cleared its locks.
+   *
+   * @param holder
+   */
+  public void recordLeak(LockHolder holder) {
+    leaked.incrementAndGet();
+    LOGGER.warn("Lock leaked past clearLocks: {} ", holder);
+    synchronized (recentLeaks) {
+      recentLeaks.addFirst(holder);
+      if (recentLeaks.size() > MAX_LEAKS) {
+        recentLeaks.removeLast();
+      }
+    }
+  }
+
+  /**
+   * @return a snapshot of the histograms keyed by path prefix, each one has a count per
+   *         entry in {@link #BUCKETS} and a final count for longer waits.
+   */
+  public Map<String, long[]> getHistograms() {
+    Map<String, long[]> snapshot = new java.util.TreeMap<String, long[]>();
+    for (Map.Entry<String, AtomicLongArray> e : histograms.entrySet()) {
+      AtomicLongArray h = e.getValue();
+      long[] counts = new long[h.length()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = h.get(i);
+      }
+      snapshot.put(e.getKey(), counts);
+    }
+    return snapshot;
+  }
+
+  /**
+   * @return the number of times a thread gave up waiting for a lock.
+   */
+  public long getTimeoutCount() {
+    return timeouts.get();
+  }
+
+  /**
+   * @return the number of locks found held after their request cleared its locks.
+   */
+  public long getLeakedCount() {
+    return leaked.get();
+  }
+
+  /**
+   * @return the most recently leaked locks, newest first.
+   */
+  public List<LockHolder> getRecentLeaks() {
+    synchronized (recentLeaks) {
+      return new ArrayList<LockHolder>(recentLeaks);
+    }
+  }
+
+  /**
+   * Reset all the counters.
+   */
+  public void reset() {
+    histograms.clear();
+    timeouts.set(0);
+    leaked.set(0);
+    synchronized (recentLeaks) {
+      recentLeaks.clear();
+    }
+  }
+
+  private AtomicLongArray getHistogram(String prefix) {
+    AtomicLongArray histogram = histograms.get(prefix);
+    if (histogram == null) {
+      synchronized (histograms) {
+        histogram = histograms.get(prefix);
+        if (histogram == null) {
+          if (histograms.size() >= MAX_PREFIXES && !OTHER.equals(prefix)) {
+            return getHistogram(OTHER);
+          }
+          histogram = new AtomicLongArray(BUCKETS.length + 1);
+          histograms.put(prefix, histogram);
+        }
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * @param path
+   * @return the first {@link #PREFIX_DEPTH} segments of the path.
+   */
+  static String prefix(String path) {
+    int end = 0;
+    for (int i = 0; i < PREFIX_DEPTH; i++) {
+      int next = path.indexOf('/', end + 1);
+      if (next < 0) {
+        return path;
+      }
+      end = next;
+    }
+    return path.substring(0, end);
+  }
+}
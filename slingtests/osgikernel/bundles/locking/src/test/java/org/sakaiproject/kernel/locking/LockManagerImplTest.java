@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class LockManagerImplTest {
+
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void before() throws Exception {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  @After
+  public void after() {
+    cacheManagerService.stop();
+  }
+
+  private LockManagerImpl createLockManager(long waitTimeout, long lease) throws Exception {
+    LockManagerImpl lockManager = new LockManagerImpl(waitTimeout, lease);
+    lockManager.bindCacheManagerService(cacheManagerService);
+    return lockManager;
+  }
+
+  @Test
+  public void testReentrantLock() throws Exception {
+    LockManagerImpl lockManager = createLockManager(1000, 60000);
+    Lock lock = lockManager.waitForLock("/a");
+    assertTrue(lock.isOwner());
+    assertSame(lock, lockManager.waitForLock("/a"));
+    lockManager.clearLocks();
+    assertFalse(lock.isLocked());
+  }
+
+  @Test
+  public void testWakeupOnUnlock() throws Exception {
+    final LockManagerImpl lockManager = createLockManager(10000, 60000);
+    Lock lock = lockManager.waitForLock("/a");
+    final CountDownLatch acquired = new CountDownLatch(1);
+    final long[] waited = new long[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          long start = System.currentTimeMillis();
+          lockManager.waitForLock("/a");
+          waited[0] = System.currentTimeMillis() - start;
+          acquired.countDown();
+        } catch (LockTimeoutException e) {
+          // the latch will not count down.
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(100);
+    lock.unlock();
+    assertTrue("Expected waiter to get the lock", acquired.await(5, TimeUnit.SECONDS));
+    assertTrue("Expected the waiter to be woken by the unlock, waited " + waited[0],
+        waited[0] < 400);
+  }
+
+  @Test
+  public void testWaitersAreQueuedInOrder() throws Exception {
+    final LockManagerImpl lockManager = createLockManager(10000, 60000);
+    Lock lock = lockManager.waitForLock("/a");
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      final String name = String.valueOf(i);
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            lockManager.waitForLock("/a");
+            order.add(name);
+            Thread.sleep(10);
+          } catch (Exception e) {
+            order.add("failed " + e.getMessage());
+          } finally {
+            lockManager.clearLocks();
+          }
+        }
+      };
+      t.start();
+      threads.add(t);
+      Thread.sleep(50);
+    }
+    lock.unlock();
+    for (Thread t : threads) {
+      t.join(5000);
+    }
+    assertEquals("[0, 1, 2, 3]", order.toString());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    final LockManagerImpl lockManager = createLockManager(200, 60000);
+    lockManager.waitForLock("/a");
+    final Exception[] failure = new Exception[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("/a");
+        } catch (LockTimeoutException e) {
+          failure[0] = e;
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    assertTrue("Expected a timeout", failure[0] instanceof LockTimeoutException);
+    lockManager.clearLocks();
+  }
+
+  @Test
+  public void testLeaseExpiry() throws Exception {
+    final LockManagerImpl lockManager = createLockManager(5000, 100);
+    Lock first = lockManager.waitForLock("/a");
+    final Lock[] second = new Lock[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          second[0] = lockManager.waitForLock("/a");
+        } catch (LockTimeoutException e) {
+          fail(e.getMessage());
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    assertTrue("Expected the lock to be taken over", second[0] != null
+        && second[0].getLockId() != first.getLockId());
+    // releasing the expired lock must not release the new owner.
+    first.unlock();
+    Lock current = lockManager.getLock("/a", false);
+    assertEquals(second[0].getLockId(), current.getLockId());
+    assertTrue(current.isLocked());
+  }
+
+  @Test
+  public void testDiagnostics() throws Exception {
+    final LockManagerImpl lockManager = createLockManager(5000, 60000);
+    Lock lock = lockManager.waitForLock("/_user/message/a");
+    assertEquals(1, lockManager.getHolders().size());
+    LockHolder holder = lockManager.getHolders().get(0);
+    assertEquals("/_user/message/a", holder.getPath());
+    assertEquals(Thread.currentThread().getName(), holder.getThread());
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("/_user/message/a");
+        } catch (LockTimeoutException e) {
+          // nothing to check here.
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(100);
+    assertEquals(Integer.valueOf(1), lockManager.getWaiters().get("/_user/message/a"));
+    lock.unlock();
+    waiter.join(5000);
+    assertEquals(0, lockManager.getWaiters().size());
+    assertEquals(0, lockManager.getHolders().size());
+    long[] histogram = lockManager.getStatistics().getHistograms().get("/_user/message");
+    long acquired = 0;
+    for (long count : histogram) {
+      acquired += count;
+    }
+    assertEquals(2, acquired);
+    LockMonitor monitor = new LockMonitor(lockManager);
+    assertEquals(0, monitor.getHeldLockCount());
+    assertEquals(1, monitor.getAcquisitionHistograms().length);
+  }
+
+  @Test
+  public void testLeakedLockIsReleased() throws Exception {
+    LockManagerImpl lockManager = createLockManager(1000, 60000);
+    lockManager.waitForLock("/a");
+    // removeChildren drops entries without unbinding them, so the lock is forgotten.
+    cacheManagerService.getCache("lockmanager.requestmap", CacheScope.REQUEST)
+        .removeChildren("/a");
+    lockManager.clearLocks();
+    assertEquals(1, lockManager.getStatistics().getLeakedCount());
+    assertEquals("/a", lockManager.getStatistics().getRecentLeaks().get(0).getPath());
+    assertEquals(0, lockManager.getHolders().size());
+    assertNull(lockManager.getLock("/a", false));
+  }
+}
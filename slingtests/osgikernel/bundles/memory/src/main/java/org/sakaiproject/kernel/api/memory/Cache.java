@@ -18,7 +18,9 @@
 
 package org.sakaiproject.kernel.api.memory;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A Cache managed by the cache manager.
@@ -83,4 +85,61 @@ public interface Cache<V> {
    */
   List<V> list();
 
+  /**
+   * Cache an object only if there is no entry for the key, as a single atomic
+   * operation.
+   *
+   * @param key
+   *          The key with which to find the object.
+   * @param payload
+   *          The object to cache.
+   * @return the existing payload, or null if there was none and the payload was cached.
+   */
+  V putIfAbsent(String key, V payload);
+
+  /**
+   * Replace an entry only if it currently holds the expected payload, as a single
+   * atomic operation.
+   *
+   * @param key
+   *          The cache key.
+   * @param expected
+   *          The payload that must currently be cached, compared with equals.
+   * @param payload
+   *          The new payload.
+   * @return true if the entry was replaced.
+   */
+  boolean replace(String key, V expected, V payload);
+
+  /**
+   * Get the entry for the key, using the loader to create and cache it if there is no
+   * entry. Concurrent callers for the same key will not both load the entry, so the
+   * loader should be quick.
+   *
+   * @param key
+   *          The cache key.
+   * @param loader
+   *          Creates the payload when there is no entry. If the loader returns null
+   *          nothing is cached.
+   * @return the cached or loaded payload.
+   */
+  V computeIfAbsent(String key, CacheLoader<V> loader);
+
+  /**
+   * Get several entries at once.
+   *
+   * @param keys
+   *          The cache keys.
+   * @return a map of key to payload containing only the keys that were found.
+   */
+  Map<String, V> getAll(Collection<String> keys);
+
+  /**
+   * Cache several objects at once.
+   *
+   * @param entries
+   *          a map of key to payload.
+   */
+  void putAll(Map<? extends String, ? extends V> entries);
+
 }
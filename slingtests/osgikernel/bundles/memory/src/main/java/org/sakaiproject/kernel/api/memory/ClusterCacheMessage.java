@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+import java.io.Serializable;
+
+/**
+ * A single change to a cluster scoped cache, sent from the node where the change was
+ * made to all the other nodes in the cluster.
+ */
+public class ClusterCacheMessage implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 4204523957632458371L;
+
+  /**
+   * The type of change.
+   */
+  public enum Type {
+    /**
+     * Remove the key from the cache.
+     */
+    INVALIDATE(),
+    /**
+     * Remove the key and all child keys from the cache.
+     */
+    INVALIDATE_CHILDREN(),
+    /**
+     * Remove everything from the cache.
+     */
+    CLEAR(),
+    /**
+     * Replace the value of the key with the value carried in the message.
+     */
+    PUT();
+  }
+
+  private String origin;
+  private String cacheName;
+  private Type type;
+  private String key;
+  private Object value;
+
+  /**
+   * @param origin
+   *          the id of the node that made the change.
+   * @param cacheName
+   *          the name of the cache that was changed.
+   * @param type
+   *          the type of change.
+   * @param key
+   *          the key that was changed, null for {@link Type#CLEAR}.
+   * @param value
+   *          the new value, only used for {@link Type#PUT}.
+   */
+  public ClusterCacheMessage(String origin, String cacheName, Type type, String key,
+      Object value) {
+    this.origin = origin;
+    this.cacheName = cacheName;
+    this.type = type;
+    this.key = key;
+    this.value = value;
+  }
+
+  /**
+   * @return the id of the node that made the change.
+   */
+  public String getOrigin() {
+    return origin;
+  }
+
+  /**
+   * @return the name of the cache that was changed.
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the type of change.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the key that was changed, null for {@link Type#CLEAR}.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the replicated value, null unless this is a {@link Type#PUT}.
+   */
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return type + " " + cacheName + ":" + key + " from " + origin;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+import java.util.List;
+
+/**
+ * Carries changes to {@link CacheScope#CLUSTERINVALIDATED} and
+ * {@link CacheScope#CLUSTERREPLICATED} caches between the nodes of a cluster. Register
+ * an implementation as an OSGi service to replace the default transport, which only
+ * knows about the local node.
+ */
+public interface ClusterCacheTransport {
+
+  /**
+   * @return an id for this node, unique within the cluster.
+   */
+  String getNodeId();
+
+  /**
+   * Send a batch of changes to every other node in the cluster. The messages must be
+   * delivered in order and the batch must not be delivered back to this node.
+   *
+   * @param messages
+   *          the changes to send.
+   */
+  void send(List<ClusterCacheMessage> messages);
+
+  /**
+   * Register a listener for changes made on other nodes.
+   *
+   * @param listener
+   */
+  void register(ClusterCacheListener listener);
+
+  /**
+   * Unregister a listener.
+   *
+   * @param listener
+   */
+  void unregister(ClusterCacheListener listener);
+
+}
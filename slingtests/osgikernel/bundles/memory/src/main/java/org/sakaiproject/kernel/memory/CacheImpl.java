@@ -21,17 +21,34 @@ import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 /**
  *
  */
 public class CacheImpl<V> implements Cache<V> {
 
+  /**
+   * Locks for single key writes, striped by cache name and key. They are shared by all
+   * instances so that two CacheImpls on the same ehcache exclude each other.
+   */
+  private static final Object[] LOCKS = new Object[64];
+  static {
+    for (int i = 0; i < LOCKS.length; i++) {
+      LOCKS[i] = new Object();
+    }
+  }
+
   private String cacheName;
   private net.sf.ehcache.Cache cache;
+  private PrefixKeyIndex keyIndex;
 
   /**
    * @param cacheManager
@@ -52,6 +69,7 @@ public class CacheImpl<V> implements Cache<V> {
           throw new RuntimeException("Failed to create Cache with name " + cacheName);
         }
       }
+      keyIndex = PrefixKeyIndex.getIndex(cache);
     }
   }
 
@@ -78,13 +96,8 @@ public class CacheImpl<V> implements Cache<V> {
    * 
    * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
    */
-  @SuppressWarnings("unchecked")
   public V get(String key) {
-    Element e = cache.get(key);
-    if (e == null) {
-      return null;
-    }
-    return (V) e.getObjectValue();
+    return value(cache.get(key));
   }
 
   /**
@@ -92,17 +105,12 @@ public class CacheImpl<V> implements Cache<V> {
    * 
    * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String, java.lang.Object)
    */
-  @SuppressWarnings("unchecked")
   public V put(String key, V payload) {
-    V previous = null;
-    if (cache.isKeyInCache(key)) {
-      Element e = cache.get(key);
-      if (e != null) {
-        previous = (V) e.getObjectValue();
-      }
+    synchronized (lockFor(key)) {
+      V previous = value(cache.get(key));
+      cache.put(new Element(key, payload));
+      return previous;
     }
-    cache.put(new Element(key, payload));
-    return previous;
   }
 
   /**
@@ -111,7 +119,9 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    cache.remove(key);
+    synchronized (lockFor(key)) {
+      cache.remove(key);
+    }
   }
 
   /**
@@ -120,14 +130,16 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
-    cache.remove(key);
+    remove(key);
     if (!key.endsWith("/")) {
       key = key + "/";
     }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
+    for (String k : keyIndex.getChildKeys(key)) {
+      synchronized (lockFor(k)) {
+        if (!cache.remove(k)) {
+          // already gone from the cache without the index being told.
+          keyIndex.remove(k);
+        }
       }
     }
   }
@@ -139,15 +151,118 @@ public class CacheImpl<V> implements Cache<V> {
    */
   @SuppressWarnings("unchecked")
   public List<V> list() {
-    List<String> keys = cache.getKeys();
+    List<String> keys = keyIndex.getKeys();
     List<V> values = new ArrayList<V>();
     for (String k : keys) {
       Element e = cache.get(k);
       if ( e != null ) {
         values.add((V) e.getObjectValue());
+      } else {
+        synchronized (lockFor(k)) {
+          keyIndex.remove(k);
+        }
       }
     }
     return values;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#putIfAbsent(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    synchronized (lockFor(key)) {
+      V current = value(cache.get(key));
+      if (current == null) {
+        cache.put(new Element(key, payload));
+      }
+      return current;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#replace(java.lang.String,
+   *      java.lang.Object, java.lang.Object)
+   */
+  public boolean replace(String key, V expected, V payload) {
+    synchronized (lockFor(key)) {
+      V current = value(cache.get(key));
+      if (current == null || !current.equals(expected)) {
+        return false;
+      }
+      cache.put(new Element(key, payload));
+      return true;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#computeIfAbsent(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheLoader)
+   */
+  public V computeIfAbsent(String key, CacheLoader<V> loader) {
+    V current = value(cache.get(key));
+    if (current != null) {
+      return current;
+    }
+    synchronized (lockFor(key)) {
+      current = value(cache.get(key));
+      if (current == null) {
+        current = loader.load(key);
+        if (current != null) {
+          cache.put(new Element(key, current));
+        }
+      }
+      return current;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#getAll(java.util.Collection)
+   */
+  public Map<String, V> getAll(Collection<String> keys) {
+    Map<String, V> found = new LinkedHashMap<String, V>();
+    for (String key : keys) {
+      V v = value(cache.get(key));
+      if (v != null) {
+        found.put(key, v);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#putAll(java.util.Map)
+   */
+  public void putAll(Map<? extends String, ? extends V> entries) {
+    for (Entry<? extends String, ? extends V> e : entries.entrySet()) {
+      synchronized (lockFor(e.getKey())) {
+        cache.put(new Element(e.getKey(), e.getValue()));
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private V value(Element e) {
+    if (e == null) {
+      return null;
+    }
+    return (V) e.getObjectValue();
+  }
+
+  private Object lockFor(String key) {
+    int h = cacheName.hashCode() * 31 + key.hashCode();
+    h ^= (h >>> 16);
+    return LOCKS[h & (LOCKS.length - 1)];
+  }
+
 }
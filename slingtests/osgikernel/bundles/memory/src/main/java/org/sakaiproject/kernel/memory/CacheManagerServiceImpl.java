@@ -23,6 +23,9 @@ import net.sf.ehcache.management.ManagementService;
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.ClusterCacheListener;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheTransport;
 import org.sakaiproject.kernel.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,7 +34,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.MBeanServer;
 
@@ -45,6 +50,10 @@ import javax.management.MBeanServer;
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="service.description"
  *      value="Cache Manager Service Implementation"
+ * @scr.reference name="ClusterCacheTransport"
+ *                interface="org.sakaiproject.kernel.api.memory.ClusterCacheTransport"
+ *                cardinality="0..1" policy="dynamic" bind="bindTransport"
+ *                unbind="unbindTransport"
  */
 public class CacheManagerServiceImpl implements CacheManagerService {
 
@@ -54,9 +63,39 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  /**
+   * The longest time in ms a cluster cache change waits before being sent.
+   */
+  private static final long CLUSTER_FLUSH_INTERVAL = 100;
+  /**
+   * The number of pending cluster cache changes that causes an immediate send.
+   */
+  private static final int CLUSTER_MAX_BATCH = 500;
+  private Map<String, ClusterCacheImpl<?>> clusterCaches = new ConcurrentHashMap<String, ClusterCacheImpl<?>>();
+  private ClusterMessageBatcher clusterBatcher;
+  private ClusterCacheListener clusterListener = new ClusterCacheListener() {
+    public void receive(List<ClusterCacheMessage> messages) {
+      applyClusterMessages(messages);
+    }
+  };
 
   public CacheManagerServiceImpl() throws IOException {
+    this(new LoopbackClusterTransport(), CLUSTER_FLUSH_INTERVAL);
+  }
+
+  /**
+   * @param transport
+   *          the transport used to reach the other nodes in the cluster.
+   * @param flushInterval
+   *          the longest time in ms a cluster cache change waits before being sent, 0
+   *          sends every change immediately.
+   * @throws IOException
+   */
+  public CacheManagerServiceImpl(ClusterCacheTransport transport, long flushInterval)
+      throws IOException {
     create();
+    clusterBatcher = new ClusterMessageBatcher(transport, flushInterval, CLUSTER_MAX_BATCH);
+    transport.register(clusterListener);
   }
 
   private void create() throws IOException {
@@ -98,6 +137,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    clusterBatcher.stop();
+    clusterBatcher.getTransport().unregister(clusterListener);
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -112,9 +153,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, false);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, true);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -176,6 +217,83 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * Get a cache that is held locally and kept in step with the other nodes in the
+   * cluster.
+   *
+   * @param name
+   * @param replicate
+   *          true to replicate values, false to only invalidate.
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterCache(String name, boolean replicate) {
+    if (name == null) {
+      name = "default";
+    }
+    synchronized (clusterCaches) {
+      ClusterCacheImpl<V> c = (ClusterCacheImpl<V>) clusterCaches.get(name);
+      if (c == null) {
+        c = new ClusterCacheImpl<V>(name, new CacheImpl<V>(cacheManager, name), replicate,
+            clusterBatcher);
+        clusterCaches.put(name, c);
+      } else if (c.isReplicated() != replicate) {
+        logger.warn("Cache {} is already in use with replication set to {}", name, c
+            .isReplicated());
+      }
+      return c;
+    }
+  }
+
+  /**
+   * Apply changes received from another node.
+   *
+   * @param messages
+   */
+  private void applyClusterMessages(List<ClusterCacheMessage> messages) {
+    String nodeId = clusterBatcher.getTransport().getNodeId();
+    for (ClusterCacheMessage message : messages) {
+      if (nodeId.equals(message.getOrigin())) {
+        continue;
+      }
+      ClusterCacheImpl<?> c = clusterCaches.get(message.getCacheName());
+      if (c != null) {
+        c.apply(message);
+      }
+    }
+  }
+
+  /**
+   * Switch to a transport provided by another bundle.
+   *
+   * @param transport
+   */
+  protected void bindTransport(ClusterCacheTransport transport) {
+    ClusterCacheTransport previous = clusterBatcher.getTransport();
+    clusterBatcher.flush();
+    previous.unregister(clusterListener);
+    transport.register(clusterListener);
+    clusterBatcher.setTransport(transport);
+  }
+
+  /**
+   * Fall back to a transport that only knows about this node.
+   *
+   * @param transport
+   */
+  protected void unbindTransport(ClusterCacheTransport transport) {
+    if (clusterBatcher.getTransport() == transport) {
+      bindTransport(new LoopbackClusterTransport());
+    }
+  }
+
+  /**
+   * Send any pending cluster cache changes now, rather than waiting for the next batch.
+   */
+  public void flushCluster() {
+    clusterBatcher.flush();
+  }
+
   /**
    * {@inheritDoc}
    *
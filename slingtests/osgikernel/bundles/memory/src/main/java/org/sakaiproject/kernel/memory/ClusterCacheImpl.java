@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage.Type;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A cache that holds its entries in a local cache and tells the rest of the cluster
+ * about every change. In invalidation mode other nodes drop their copy of a changed
+ * key, in replication mode they receive the new value.
+ */
+public class ClusterCacheImpl<V> implements Cache<V> {
+
+  private String cacheName;
+  private Cache<V> local;
+  private boolean replicate;
+  private ClusterMessageBatcher batcher;
+
+  /**
+   * @param cacheName
+   *          the cluster wide name of the cache.
+   * @param local
+   *          the cache holding the entries on this node.
+   * @param replicate
+   *          true to send values to other nodes, false to only invalidate them.
+   * @param batcher
+   *          the batcher that sends changes to other nodes.
+   */
+  public ClusterCacheImpl(String cacheName, Cache<V> local, boolean replicate,
+      ClusterMessageBatcher batcher) {
+    this.cacheName = cacheName;
+    this.local = local;
+    this.replicate = replicate;
+    this.batcher = batcher;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    send(Type.CLEAR, null, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    sendPut(key, payload);
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.remove(key);
+    send(Type.INVALIDATE, key, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    send(Type.INVALIDATE_CHILDREN, key, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return local.list();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#putIfAbsent(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    V current = local.putIfAbsent(key, payload);
+    if (current == null) {
+      sendPut(key, payload);
+    }
+    return current;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#replace(java.lang.String,
+   *      java.lang.Object, java.lang.Object)
+   */
+  public boolean replace(String key, V expected, V payload) {
+    if (local.replace(key, expected, payload)) {
+      sendPut(key, payload);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * {@inheritDoc} A value loaded on this node is replicated, but does not invalidate
+   * other nodes, since it was read rather than changed.
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#computeIfAbsent(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheLoader)
+   */
+  public V computeIfAbsent(String key, final CacheLoader<V> loader) {
+    final boolean[] loaded = new boolean[1];
+    V current = local.computeIfAbsent(key, new CacheLoader<V>() {
+      public V load(String k) {
+        loaded[0] = true;
+        return loader.load(k);
+      }
+    });
+    if (loaded[0] && current != null && replicate) {
+      send(Type.PUT, key, current);
+    }
+    return current;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#getAll(java.util.Collection)
+   */
+  public Map<String, V> getAll(Collection<String> keys) {
+    return local.getAll(keys);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#putAll(java.util.Map)
+   */
+  public void putAll(Map<? extends String, ? extends V> entries) {
+    local.putAll(entries);
+    for (Entry<? extends String, ? extends V> e : entries.entrySet()) {
+      sendPut(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * Apply a change made on another node to the local entries, without sending it on.
+   *
+   * @param message
+   */
+  @SuppressWarnings("unchecked")
+  public void apply(ClusterCacheMessage message) {
+    switch (message.getType()) {
+    case INVALIDATE:
+      local.remove(message.getKey());
+      break;
+    case INVALIDATE_CHILDREN:
+      local.removeChildren(message.getKey());
+      break;
+    case CLEAR:
+      local.clear();
+      break;
+    case PUT:
+      if (replicate) {
+        local.put(message.getKey(), (V) message.getValue());
+      } else {
+        local.remove(message.getKey());
+      }
+      break;
+    }
+  }
+
+  /**
+   * @return true if this cache replicates values, false if it only invalidates.
+   */
+  public boolean isReplicated() {
+    return replicate;
+  }
+
+  private void sendPut(String key, V payload) {
+    if (replicate) {
+      send(Type.PUT, key, payload);
+    } else {
+      send(Type.INVALIDATE, key, null);
+    }
+  }
+
+  private void send(Type type, String key, V value) {
+    batcher.queue(new ClusterCacheMessage(batcher.getTransport().getNodeId(), cacheName,
+        type, key, value));
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheTransport;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects outgoing cluster cache messages and sends them as batches. Messages are
+ * coalesced while they wait: a later change to a key replaces an earlier one, a subtree
+ * invalidation absorbs pending changes below it and a clear absorbs everything pending
+ * for that cache. A batch is sent when it reaches the maximum size or when the flush
+ * interval expires, whichever comes first.
+ */
+public class ClusterMessageBatcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterMessageBatcher.class);
+
+  private volatile ClusterCacheTransport transport;
+  private final int maxBatchSize;
+  private final Map<String, ClusterCacheMessage> pending = new LinkedHashMap<String, ClusterCacheMessage>();
+  private ScheduledExecutorService flusher;
+
+  /**
+   * @param transport
+   *          the transport to send batches with.
+   * @param flushInterval
+   *          the maximum time in ms a message waits before being sent, 0 or less sends
+   *          every message as soon as it is queued.
+   * @param maxBatchSize
+   *          the number of pending messages that triggers an immediate send.
+   */
+  public ClusterMessageBatcher(ClusterCacheTransport transport, long flushInterval,
+      int maxBatchSize) {
+    this.transport = transport;
+    this.maxBatchSize = flushInterval > 0 ? Math.max(1, maxBatchSize) : 1;
+    if (flushInterval > 0) {
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ClusterCacheFlusher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      flusher.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            flush();
+          } catch (Throwable t) {
+            LOGGER.warn("Failed to send cluster cache batch " + t.getMessage(), t);
+          }
+        }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @param transport
+   *          the transport to use for subsequent batches.
+   */
+  public void setTransport(ClusterCacheTransport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * @return the transport batches are sent with.
+   */
+  public ClusterCacheTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Queue a message, coalescing it with any pending messages it supersedes.
+   *
+   * @param message
+   */
+  public void queue(ClusterCacheMessage message) {
+    boolean full;
+    synchronized (pending) {
+      String cacheName = message.getCacheName();
+      if (message.getType() == Type.CLEAR) {
+        removePending(cacheName, null);
+      } else if (message.getType() == Type.INVALIDATE_CHILDREN) {
+        removePending(cacheName, message.getKey());
+      } else {
+        pending.remove(pendingKey(message));
+      }
+      pending.put(pendingKey(message), message);
+      full = pending.size() >= maxBatchSize;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Send everything that is pending.
+   */
+  public void flush() {
+    List<ClusterCacheMessage> batch;
+    synchronized (pending) {
+      if (pending.size() == 0) {
+        return;
+      }
+      batch = new ArrayList<ClusterCacheMessage>(pending.values());
+      pending.clear();
+    }
+    transport.send(batch);
+  }
+
+  /**
+   * Send anything pending and stop the background flush.
+   */
+  public void stop() {
+    if (flusher != null) {
+      flusher.shutdown();
+    }
+    flush();
+  }
+
+  /**
+   * @return the number of messages waiting to be sent.
+   */
+  public int getPendingCount() {
+    synchronized (pending) {
+      return pending.size();
+    }
+  }
+
+  /**
+   * Remove pending messages for a cache that are at or below the prefix, or all of them
+   * if the prefix is null.
+   */
+  private void removePending(String cacheName, String prefix) {
+    String childPrefix = null;
+    if (prefix != null) {
+      childPrefix = prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+    for (Iterator<ClusterCacheMessage> i = pending.values().iterator(); i.hasNext();) {
+      ClusterCacheMessage m = i.next();
+      if (!m.getCacheName().equals(cacheName)) {
+        continue;
+      }
+      if (prefix == null) {
+        i.remove();
+      } else if (m.getKey() != null
+          && (m.getKey().equals(prefix) || m.getKey().startsWith(childPrefix))) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Messages for the same cache and key share a slot, subtree invalidations and clears
+   * get their own slots so they are not confused with a change to a single key.
+   */
+  private String pendingKey(ClusterCacheMessage message) {
+    switch (message.getType()) {
+    case CLEAR:
+      return "C:" + message.getCacheName();
+    case INVALIDATE_CHILDREN:
+      return "T:" + message.getCacheName() + ":" + message.getKey();
+    default:
+      return "K:" + message.getCacheName() + ":" + message.getKey();
+    }
+  }
+}
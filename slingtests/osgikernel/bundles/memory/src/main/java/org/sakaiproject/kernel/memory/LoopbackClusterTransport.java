@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.ClusterCacheListener;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link ClusterCacheTransport} that delivers messages to other transports attached to
+ * the same {@link Hub} inside this JVM. Each transport on a hub behaves as one node, so
+ * several cache managers can be run as a cluster without a network. Batches are
+ * serialized on the way through, so nodes never share value instances. A transport
+ * created without a hub is the only node in its cluster and sends nowhere.
+ */
+public class LoopbackClusterTransport implements ClusterCacheTransport {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LoopbackClusterTransport.class);
+
+  /**
+   * The in JVM network that loopback transports attach to.
+   */
+  public static class Hub {
+    private List<LoopbackClusterTransport> nodes = new CopyOnWriteArrayList<LoopbackClusterTransport>();
+
+    /**
+     * @param from
+     *          the sending node.
+     * @param messages
+     *          the batch to deliver to every other node.
+     */
+    void deliver(LoopbackClusterTransport from, List<ClusterCacheMessage> messages) {
+      if (nodes.size() < 2) {
+        return;
+      }
+      byte[] batch = serialize(messages);
+      for (LoopbackClusterTransport node : nodes) {
+        if (node != from) {
+          node.receive(deserialize(batch));
+        }
+      }
+    }
+  }
+
+  private final String nodeId;
+  private final Hub hub;
+  private List<ClusterCacheListener> listeners = new CopyOnWriteArrayList<ClusterCacheListener>();
+
+  /**
+   * Create a transport that is the only node in its cluster.
+   */
+  public LoopbackClusterTransport() {
+    this(new Hub(), UUID.randomUUID().toString());
+  }
+
+  /**
+   * @param hub
+   *          the hub shared with the other nodes.
+   * @param nodeId
+   *          the id of this node.
+   */
+  public LoopbackClusterTransport(Hub hub, String nodeId) {
+    this.hub = hub;
+    this.nodeId = nodeId;
+    hub.nodes.add(this);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.ClusterCacheTransport#getNodeId()
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.ClusterCacheTransport#send(java.util.List)
+   */
+  public void send(List<ClusterCacheMessage> messages) {
+    hub.deliver(this, messages);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.ClusterCacheTransport#register(org.sakaiproject.kernel.api.memory.ClusterCacheListener)
+   */
+  public void register(ClusterCacheListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.ClusterCacheTransport#unregister(org.sakaiproject.kernel.api.memory.ClusterCacheListener)
+   */
+  public void unregister(ClusterCacheListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Detach this node from the hub.
+   */
+  public void leave() {
+    hub.nodes.remove(this);
+  }
+
+  private void receive(List<ClusterCacheMessage> messages) {
+    for (ClusterCacheListener listener : listeners) {
+      listener.receive(messages);
+    }
+  }
+
+  private static byte[] serialize(List<ClusterCacheMessage> messages) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(baos);
+      out.writeObject(new ArrayList<ClusterCacheMessage>(messages));
+      out.close();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      LOGGER.error("Unable to serialize cluster cache messages " + messages, e);
+      throw new RuntimeException(e.getMessage(), e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<ClusterCacheMessage> deserialize(byte[] batch) {
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(batch)) {
+        @Override
+        protected Class<?> resolveClass(java.io.ObjectStreamClass desc) throws IOException,
+            ClassNotFoundException {
+          ClassLoader cl = Thread.currentThread().getContextClassLoader();
+          if (cl != null) {
+            try {
+              return Class.forName(desc.getName(), false, cl);
+            } catch (ClassNotFoundException e) {
+              // fall back to the default resolution.
+            }
+          }
+          return super.resolveClass(desc);
+        }
+      };
+      return (List<ClusterCacheMessage>) in.readObject();
+    } catch (IOException e) {
+      throw new RuntimeException(e.getMessage(), e);
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException(e.getMessage(), e);
+    }
+  }
+}
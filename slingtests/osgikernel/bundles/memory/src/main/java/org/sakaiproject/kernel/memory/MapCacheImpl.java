@@ -18,12 +18,16 @@
 package org.sakaiproject.kernel.memory;
 
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
 import org.sakaiproject.kernel.api.memory.ThreadBound;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  *
@@ -88,10 +92,9 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     if ( !key.endsWith("/") ) {
       key = key + "/";
     }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    for (Iterator<String> keys = super.keySet().iterator(); keys.hasNext();) {
+      if (keys.next().startsWith(key)) {
+        keys.remove();
       }
     }
   }
@@ -104,6 +107,61 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     return new ArrayList<V>(super.values());
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.memory.Cache#putIfAbsent(java.lang.String, java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    V current = super.get(key);
+    if (current == null) {
+      super.put(key, payload);
+    }
+    return current;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.memory.Cache#replace(java.lang.String, java.lang.Object, java.lang.Object)
+   */
+  public boolean replace(String key, V expected, V payload) {
+    V current = super.get(key);
+    if (current == null || !current.equals(expected)) {
+      return false;
+    }
+    super.put(key, payload);
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.memory.Cache#computeIfAbsent(java.lang.String, org.sakaiproject.kernel.api.memory.CacheLoader)
+   */
+  public V computeIfAbsent(String key, CacheLoader<V> loader) {
+    V current = super.get(key);
+    if (current == null) {
+      current = loader.load(key);
+      if (current != null) {
+        super.put(key, current);
+      }
+    }
+    return current;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.memory.Cache#getAll(java.util.Collection)
+   */
+  public Map<String, V> getAll(Collection<String> keys) {
+    Map<String, V> found = new LinkedHashMap<String, V>();
+    for (String key : keys) {
+      V v = super.get(key);
+      if (v != null) {
+        found.put(key, v);
+      }
+    }
+    return found;
+  }
+
 
 
 
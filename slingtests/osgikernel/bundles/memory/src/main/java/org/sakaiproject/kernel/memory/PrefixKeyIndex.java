@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index of the keys in an ehcache, so that the keys under a path can be found
+ * without scanning the whole cache. The index listens to the cache it is registered
+ * with, so it sees changes made through any {@link CacheImpl} on that cache as well as
+ * evictions and expiries. Expired entries that ehcache has not noticed yet may still be
+ * listed, callers should drop keys that no longer resolve.
+ * <p>
+ * Ehcache notifies on the thread that changed the cache, so a change made through
+ * {@link CacheImpl} reaches the index inside the stripe lock of its key. Removals the
+ * cache makes by itself, evictions and expiries, hold no lock, so a key is looked up
+ * again after it is removed from the index and put back if the cache holds it, which
+ * keeps a put that raced the removal from being lost.
+ */
+public class PrefixKeyIndex implements CacheEventListener {
+
+  private final Ehcache cache;
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+
+  private PrefixKeyIndex(Ehcache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Get the index registered with a cache, registering a new one if there is none.
+   *
+   * @param cache
+   * @return the index for the cache.
+   */
+  public static PrefixKeyIndex getIndex(Ehcache cache) {
+    synchronized (cache) {
+      for (Object listener : cache.getCacheEventNotificationService()
+          .getCacheEventListeners()) {
+        if (listener instanceof PrefixKeyIndex) {
+          return (PrefixKeyIndex) listener;
+        }
+      }
+      PrefixKeyIndex index = new PrefixKeyIndex(cache);
+      cache.getCacheEventNotificationService().registerListener(index);
+      for (Object key : cache.getKeys()) {
+        index.add(key);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * @return a snapshot of all the keys in the index.
+   */
+  public List<String> getKeys() {
+    return new ArrayList<String>(keys);
+  }
+
+  /**
+   * @param key
+   * @return a snapshot of the keys that are children of the key, not including the key
+   *         itself.
+   */
+  public List<String> getChildKeys(String key) {
+    String prefix = key.endsWith("/") ? key : key + "/";
+    // every key starting with "a/b/" sorts from "a/b/" up to, but not including, "a/b0".
+    String end = prefix.substring(0, prefix.length() - 1) + (char) ('/' + 1);
+    return new ArrayList<String>(keys.subSet(prefix, end));
+  }
+
+  /**
+   * @return the number of keys in the index.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Remove a key, used to drop keys that have expired without the cache noticing.
+   *
+   * @param key
+   */
+  public void remove(Object key) {
+    if (keys.remove(key) && cache.isKeyInCache(key)) {
+      add(key);
+    }
+  }
+
+  private void add(Object key) {
+    if (key instanceof String) {
+      keys.add((String) key);
+    }
+  }
+
+  private void removeElement(Element element) {
+    if (element != null) {
+      remove(element.getObjectKey());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementPut(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    if (element != null) {
+      add(element.getObjectKey());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementUpdated(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+    notifyElementPut(cache, element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementRemoved(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    removeElement(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementExpired(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    removeElement(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementEvicted(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    removeElement(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyRemoveAll(net.sf.ehcache.Ehcache)
+   */
+  public void notifyRemoveAll(Ehcache cache) {
+    keys.clear();
+    // keys put while the cache was being cleared.
+    for (Object key : cache.getKeys()) {
+      add(key);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#dispose()
+   */
+  public void dispose() {
+    keys.clear();
+  }
+
+  /**
+   * The index belongs to a single cache and cannot be cloned with it.
+   *
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("A key index belongs to a single cache");
+  }
+}
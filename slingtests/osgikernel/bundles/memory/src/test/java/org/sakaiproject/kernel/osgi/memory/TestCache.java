@@ -21,17 +21,23 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
 import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.sakaiproject.kernel.api.memory.ThreadBound;
 import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 
 public class TestCache {
 
@@ -92,6 +98,93 @@ public class TestCache {
     }
   }
 
+  @Test
+  public void testRemoveChildrenLeavesSiblings() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("SiblingTestCache", scope);
+      cache.put("fish", "cat");
+      cache.put("fish/child", "childcat");
+      cache.put("fishcake", "cake");
+      cache.put("fish0", "zero");
+      cache.removeChildren("fish");
+      assertNull("Expected key to be removed", cache.get("fish/child"));
+      assertEquals("Expected sibling to remain", "cake", cache.get("fishcake"));
+      assertEquals("Expected sibling to remain", "zero", cache.get("fish0"));
+      assertEquals("Expected only siblings to be listed", 2, cache.list().size());
+      cache.clear();
+      assertEquals("Expected empty list after clear", 0, cache.list().size());
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testRemoveChildrenAfterConcurrentWrites() throws InterruptedException {
+    final Cache<String> cache = cacheManagerService.getCache("RaceTestCache",
+        CacheScope.INSTANCE);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final Random random = new Random(t);
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 20000; i++) {
+            String key = "race/" + random.nextInt(20);
+            if (random.nextBoolean()) {
+              cache.put(key, "v");
+            } else {
+              cache.remove(key);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    cache.removeChildren("race");
+    for (int i = 0; i < 20; i++) {
+      assertNull("Expected every child to be removed", cache.get("race/" + i));
+    }
+    assertEquals(0, cache.list().size());
+    cacheManagerService.unbind(CacheScope.INSTANCE);
+  }
+
+  @Test
+  public void testAtomicOperations() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("AtomicTestCache", scope);
+      assertNull("Expected no previous entry", cache.putIfAbsent("fish", "cat"));
+      assertEquals("Expected existing entry", "cat", cache.putIfAbsent("fish", "dog"));
+      assertEquals("cat", cache.get("fish"));
+      assertFalse("Expected replace to fail", cache.replace("fish", "dog", "cow"));
+      assertTrue("Expected replace to succeed", cache.replace("fish", "cat", "cow"));
+      assertFalse("Expected replace of missing key to fail", cache.replace("bird",
+          "cat", "cow"));
+      assertEquals("cow", cache.get("fish"));
+      final int[] loads = new int[1];
+      CacheLoader<String> loader = new CacheLoader<String>() {
+        public String load(String key) {
+          loads[0]++;
+          return "loaded-" + key;
+        }
+      };
+      assertEquals("loaded-bird", cache.computeIfAbsent("bird", loader));
+      assertEquals("loaded-bird", cache.computeIfAbsent("bird", loader));
+      assertEquals("cow", cache.computeIfAbsent("fish", loader));
+      assertEquals("Expected a single load", 1, loads[0]);
+      Map<String, String> entries = new HashMap<String, String>();
+      entries.put("a", "1");
+      entries.put("b", "2");
+      cache.putAll(entries);
+      Map<String, String> found = cache.getAll(Arrays.asList("a", "b", "missing"));
+      assertEquals(2, found.size());
+      assertEquals("2", found.get("b"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
   @Test
   public void testThreadUnbinding() {
     ThreadBound testItem = createMock(ThreadBound.class);
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.ClusterCacheListener;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage.Type;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.ClusterMessageBatcher;
+import org.sakaiproject.kernel.memory.LoopbackClusterTransport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestClusterCache {
+
+  private CacheManagerServiceImpl nodeA;
+  private CacheManagerServiceImpl nodeB;
+
+  @Before
+  public void setUp() throws IOException {
+    LoopbackClusterTransport.Hub hub = new LoopbackClusterTransport.Hub();
+    nodeA = new CacheManagerServiceImpl(new LoopbackClusterTransport(hub, "A"), 0);
+    nodeB = new CacheManagerServiceImpl(new LoopbackClusterTransport(hub, "B"), 0);
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.stop();
+    nodeB.stop();
+  }
+
+  @Test
+  public void testInvalidation() {
+    Cache<String> a = nodeA.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> b = nodeB.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    b.put("fish", "cat");
+    a.put("fish", "dog");
+    assertFalse("Expected remote copy to be invalidated", b.containsKey("fish"));
+    assertEquals("dog", a.get("fish"));
+    b.put("tree/leaf", "green");
+    a.removeChildren("tree");
+    assertNull("Expected child key to be invalidated", b.get("tree/leaf"));
+  }
+
+  @Test
+  public void testReplication() {
+    Cache<String> a = nodeA.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    Cache<String> b = nodeB.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    a.put("fish", "cat");
+    assertEquals("Expected value to replicate", "cat", b.get("fish"));
+    b.put("fish", "dog");
+    assertEquals("Expected value to replicate back", "dog", a.get("fish"));
+    a.remove("fish");
+    assertNull(b.get("fish"));
+    b.put("foo", "bar");
+    b.clear();
+    assertNull(a.get("foo"));
+  }
+
+  @Test
+  public void testCoalescing() {
+    final List<List<ClusterCacheMessage>> batches = new ArrayList<List<ClusterCacheMessage>>();
+    LoopbackClusterTransport.Hub hub = new LoopbackClusterTransport.Hub();
+    LoopbackClusterTransport sender = new LoopbackClusterTransport(hub, "sender");
+    LoopbackClusterTransport receiver = new LoopbackClusterTransport(hub, "receiver");
+    receiver.register(new ClusterCacheListener() {
+      public void receive(List<ClusterCacheMessage> messages) {
+        batches.add(messages);
+      }
+    });
+    ClusterMessageBatcher batcher = new ClusterMessageBatcher(sender, 60000, 1000);
+    batcher.queue(message(Type.PUT, "c1", "a/b", "1"));
+    batcher.queue(message(Type.PUT, "c1", "a/b", "2"));
+    batcher.queue(message(Type.INVALIDATE, "c1", "a/c", null));
+    batcher.queue(message(Type.INVALIDATE, "c1", "x", null));
+    batcher.queue(message(Type.INVALIDATE_CHILDREN, "c1", "a", null));
+    batcher.queue(message(Type.INVALIDATE, "c2", "x", null));
+    assertEquals(3, batcher.getPendingCount());
+    batcher.queue(message(Type.CLEAR, "c1", null, null));
+    assertEquals(2, batcher.getPendingCount());
+    batcher.stop();
+    assertEquals(1, batches.size());
+    List<ClusterCacheMessage> batch = batches.get(0);
+    assertEquals(2, batch.size());
+    assertEquals(Type.INVALIDATE, batch.get(0).getType());
+    assertEquals("c2", batch.get(0).getCacheName());
+    assertEquals(Type.CLEAR, batch.get(1).getType());
+  }
+
+  private ClusterCacheMessage message(Type type, String cache, String key, String value) {
+    return new ClusterCacheMessage("sender", cache, type, key, value);
+  }
+}
@@ -74,6 +74,10 @@ public interface MessageConstants {
    * This property will hold the value for the body.
    */
   public static final String PROP_SAKAI_BODY = "sakai:body";
+  /**
+   * The path of a shared body, held in place of sakai:body by inbound mail.
+   */
+  public static final String PROP_SAKAI_BODYPATH = "sakai:bodypath";
   /**
    * This property will hold the path to the previous message (starts after the message
    * store.)
@@ -94,6 +98,19 @@ public interface MessageConstants {
    */
   public static final String PROP_SAKAI_CREATED = "sakai:created";
 
+  public static final String PROP_SAKAI_CATEGORY = "sakai:category";
+
+  /**
+   * Maintained message counts on a message store, one value per box, category and read
+   * state.
+   */
+  public static final String PROP_SAKAI_MESSAGECOUNTS = "sakai:messagecounts";
+
+  /**
+   * On a message, the box, category and read state it is counted under in its store.
+   */
+  public static final String PROP_SAKAI_COUNTED = "sakai:counted";
+
   /**
    * The name for the outbox box.
    */
@@ -132,6 +149,10 @@ public interface MessageConstants {
   public static final String FOLDER_MESSAGES = "message";
   public static final String _USER_MESSAGE = "/_user/message";
   public static final String _GROUP_MESSAGE = "/_group/message";
+  /**
+   * Where inbound mail bodies are stored once, for every recipient to reference.
+   */
+  public static final String _SHARED_MESSAGE = "/_shared/message";
   /**
    * JCR folder name for chat logs.
    */
@@ -176,4 +197,6 @@ public interface MessageConstants {
   public static final String MESSAGE_CREATE_PREPROCESSOR = "CreateMessagePreProcessor";
 
   public static final int CLEAUNUP_EVERY_X_SECONDS = 7200;
+
+  public static final long RECONCILE_COUNTS_EVERY_X_SECONDS = 86400L;
 }
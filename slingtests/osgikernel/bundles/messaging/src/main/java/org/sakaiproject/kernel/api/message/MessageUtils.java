@@ -17,10 +17,59 @@
  */
 package org.sakaiproject.kernel.api.message;
 
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 
 /**
  * 
  */
 public class MessageUtils {
 
+  /**
+   * Get the text body of a message. Messages carry it in sakai:body, except large inbound
+   * mail which refers to a shared body through sakai:bodypath; there the body is the
+   * shared text file, or the first text part of a multipart body.
+   * 
+   * @param message
+   * @return the body, or null if the message has no text body the session can read.
+   * @throws RepositoryException
+   */
+  public static String getBody(Node message) throws RepositoryException {
+    if (message.hasProperty(MessageConstants.PROP_SAKAI_BODY)) {
+      return message.getProperty(MessageConstants.PROP_SAKAI_BODY).getString();
+    }
+    if (!message.hasProperty(MessageConstants.PROP_SAKAI_BODYPATH)) {
+      return null;
+    }
+    Session session = message.getSession();
+    String bodyPath = message.getProperty(MessageConstants.PROP_SAKAI_BODYPATH).getString();
+    if (!session.itemExists(bodyPath)) {
+      return null;
+    }
+    return getSharedBody((Node) session.getItem(bodyPath));
+  }
+
+  private static String getSharedBody(Node body) throws RepositoryException {
+    if (body.hasProperty(MessageConstants.PROP_SAKAI_BODY)) {
+      return body.getProperty(MessageConstants.PROP_SAKAI_BODY).getString();
+    }
+    if (body.hasNode("body/jcr:content")) {
+      Node content = body.getNode("body/jcr:content");
+      if (content.getProperty("jcr:mimeType").getString().toLowerCase().startsWith(
+          "text/")) {
+        return content.getProperty("jcr:data").getString();
+      }
+      return null;
+    }
+    for (NodeIterator parts = body.getNodes(); parts.hasNext();) {
+      Node part = parts.nextNode();
+      String text = part.isNodeType("nt:file") ? null : getSharedBody(part);
+      if (text != null) {
+        return text;
+      }
+    }
+    return null;
+  }
 }
@@ -95,7 +95,8 @@ public interface MessagingService {
    */
 
   /**
-   * Searches for mailboxes on the system associated with a supplied e-mail address
+   * Searches for mailboxes on the system associated with a supplied e-mail address, only
+   * mailboxes the session can read are returned.
    * 
    * @param session
    *          The session from which to execute the search
@@ -106,6 +107,17 @@ public interface MessagingService {
   public List<String> getMailboxesForEmailAddress(Session session, String emailAddress)
       throws InvalidQueryException, RepositoryException;
 
+  /**
+   * Looks up the mailboxes associated with a supplied e-mail address, as seen by an
+   * administrator, without needing a session of the caller's own.
+   * 
+   * @param emailAddress
+   *          The email address for which to search
+   * @return A list of the mailbox / principal names
+   */
+  public List<String> getMailboxesForEmailAddress(String emailAddress)
+      throws RepositoryException;
+
   /**
    * Gets the full JCR path for a given recipient and a message ID.
    * @param rcpt The recipient. Can be either a site, group or a user. Sites should be prefixed with s-, groups with g-.
@@ -144,6 +156,23 @@ public interface MessagingService {
    */
   public String getUriToStore(String rcpt, Session session) throws MessagingException;
 
+  /**
+   * Gets the bucket a message is written into, creating any missing buckets on the way
+   * down. New buckets are created under a lock on their path, so concurrent deliveries
+   * never add the same bucket twice. They are saved apart from the session, which is
+   * left for the caller to save.
+   * 
+   * @param session
+   * @param path
+   *          The path of the bucket, the parent of the message path.
+   * @return The bucket.
+   * @throws RepositoryException
+   * @throws MessagingException
+   *           If a bucket could not be locked.
+   */
+  public Node getOrCreateBucket(Session session, String path) throws RepositoryException,
+      MessagingException;
+
 
 
   /**
@@ -36,6 +36,7 @@ import java.util.Map.Entry;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -53,6 +54,9 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * count.json?filters=sakai:read,sakai:messagebox&values=true,inbox&groupby=sakai:category
  * 
+ * Counts by sakai:messagebox, sakai:read and sakai:category are answered from the
+ * counts maintained on the store, see {@link MessageCounts}, anything else is queried.
+ * 
  * @scr.component metatype="no" immediate="true"
  * @scr.service interface="javax.servlet.Servlet"
  * @scr.property name="sling.servlet.resourceTypes" values="sakai/messagestore"
@@ -79,15 +83,21 @@ public class CountServlet extends SlingAllMethodsServlet {
   @Override
   protected void doGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
-    LOGGER.info("In count servlet" );
+    LOGGER.debug("In count servlet" );
 
     // Get this node so we can get the session off it.
     Node node = (Node) request.getResource().adaptTo(Node.class);
 
     try {
+      String storePath = messagingService.getFullPathToStore(request.getRemoteUser(),
+          node.getSession());
+      if (writeMaintainedCounts(request, response, node.getSession(), storePath)) {
+        return;
+      }
+
       // Do the query
       // We do the query on the user his messageStore's path.
-      String messageStorePath = ISO9075.encodePath(messagingService.getFullPathToStore(request.getRemoteUser(), node.getSession()));
+      String messageStorePath = ISO9075.encodePath(storePath);
       // String messageStorePath = node.getPath();
       StringBuilder queryString = new StringBuilder("/jcr:root"
           + messageStorePath + "//*[@sling:resourceType=\"sakai/message\" and @"
@@ -114,7 +124,7 @@ public class CountServlet extends SlingAllMethodsServlet {
 
       queryString.append("]");
 
-      LOGGER.info("Using QUery {} ",queryString.toString());
+      LOGGER.debug("Using QUery {} ",queryString.toString());
       // Do the query and output how many results we have.
       QueryManager queryManager = node.getSession().getWorkspace()
           .getQueryManager();
@@ -175,4 +185,69 @@ public class CountServlet extends SlingAllMethodsServlet {
     }
 
   }
+
+  /**
+   * Answer from the counts maintained on the store, when it has them and the request
+   * only filters and groups by properties that are counted.
+   * 
+   * @return true if the response was written.
+   */
+  private boolean writeMaintainedCounts(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, Session session, String storePath)
+      throws RepositoryException, JSONException, IOException {
+    if (!session.itemExists(storePath)) {
+      return false;
+    }
+    Node store = (Node) session.getItem(storePath);
+    if (!MessageCounts.isCounted(store)) {
+      return false;
+    }
+    Map<String, String> filters = new HashMap<String, String>();
+    if (request.getRequestParameter("filters") != null
+        && request.getRequestParameter("values") != null) {
+      String[] keys = request.getRequestParameter("filters").getString().split(",");
+      String[] values = request.getRequestParameter("values").getString().split(",");
+      if (keys.length != values.length) {
+        return false;
+      }
+      for (int i = 0; i < keys.length; i++) {
+        if (MessageConstants.PROP_SAKAI_TYPE.equals(keys[i])
+            && MessageConstants.TYPE_INTERNAL.equals(values[i])) {
+          // only internal messages are counted anyway.
+          continue;
+        }
+        if (!MessageCounts.isCountable(keys[i])) {
+          return false;
+        }
+        filters.put(keys[i], values[i]);
+      }
+    }
+    String groupedby = null;
+    if (request.getRequestParameter("groupedby") != null) {
+      groupedby = request.getRequestParameter("groupedby").getString();
+      if (!MessageCounts.isCountable(groupedby)) {
+        return false;
+      }
+    }
+    MessageCounts counts = MessageCounts.load(store);
+    JSONWriter write = new JSONWriter(response.getWriter());
+    write.object();
+    write.key("count");
+    if (groupedby == null) {
+      write.value(counts.count(filters));
+    } else {
+      write.array();
+      for (Entry<String, Long> e : counts.countGroupedBy(groupedby, filters).entrySet()) {
+        write.object();
+        write.key("group");
+        write.value(e.getKey());
+        write.key("count");
+        write.value(e.getValue());
+        write.endObject();
+      }
+      write.endArray();
+    }
+    write.endObject();
+    return true;
+  }
 }
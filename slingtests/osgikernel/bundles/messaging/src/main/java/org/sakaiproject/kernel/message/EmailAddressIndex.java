@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+/**
+ * The message stores under {@link MessageConstants#_USER_MESSAGE} by their
+ * {@link MessageConstants#SAKAI_EMAIL_ADDRESS}, loaded with one query and kept current by
+ * observing that property, which is where both user creation and the change email
+ * address servlet write the address.
+ */
+public class EmailAddressIndex implements EventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(EmailAddressIndex.class);
+  private static final String EMAIL_PROPERTY_SUFFIX = "/"
+      + MessageConstants.SAKAI_EMAIL_ADDRESS;
+
+  /**
+   * The session events are resolved with, only used from the observation thread.
+   */
+  private Session session;
+  private Map<String, Set<String>> storesByAddress = new HashMap<String, Set<String>>();
+  private Map<String, String> addressByStore = new HashMap<String, String>();
+
+  /**
+   * @param session
+   *          an administrative session, that must stay live while the index is observing.
+   */
+  public EmailAddressIndex(Session session) {
+    this.session = session;
+  }
+
+  /**
+   * Load every addressed message store.
+   * 
+   * @throws RepositoryException
+   */
+  public void load() throws RepositoryException {
+    String queryString = "/jcr:root" + MessageConstants._USER_MESSAGE + "//element(*)[@"
+        + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY + "='"
+        + MessageConstants.SAKAI_MESSAGESTORE_RT + "' and @"
+        + MessageConstants.SAKAI_EMAIL_ADDRESS + "]";
+    Query query = session.getWorkspace().getQueryManager().createQuery(queryString,
+        Query.XPATH);
+    NodeIterator stores = query.execute().getNodes();
+    int loaded = 0;
+    while (stores.hasNext()) {
+      Node store = stores.nextNode();
+      put(store.getPath(), store.getProperty(MessageConstants.SAKAI_EMAIL_ADDRESS)
+          .getString());
+      loaded++;
+    }
+    LOGGER.info("Indexed {} mailbox email addresses.", loaded);
+  }
+
+  /**
+   * @param address
+   * @return the names of the mailboxes with the address, empty if there are none.
+   */
+  public synchronized List<String> getMailboxes(String address) {
+    List<String> mailboxes = new ArrayList<String>();
+    Set<String> stores = storesByAddress.get(address);
+    if (stores != null) {
+      for (String store : stores) {
+        mailboxes.add(store.substring(store.lastIndexOf('/') + 1));
+      }
+    }
+    return mailboxes;
+  }
+
+  /**
+   * @param address
+   * @param reader
+   *          the session the mailboxes are looked up for.
+   * @return the names of the mailboxes with the address that the reader can see, as a
+   *         query on the reader's session would return them.
+   * @throws RepositoryException
+   */
+  public List<String> getMailboxes(String address, Session reader)
+      throws RepositoryException {
+    List<String> stores = new ArrayList<String>();
+    synchronized (this) {
+      Set<String> indexed = storesByAddress.get(address);
+      if (indexed != null) {
+        stores.addAll(indexed);
+      }
+    }
+    // the index is read by an administrator, check access outside the lock.
+    List<String> mailboxes = new ArrayList<String>();
+    for (String store : stores) {
+      if (reader.itemExists(store)) {
+        mailboxes.add(store.substring(store.lastIndexOf('/') + 1));
+      }
+    }
+    return mailboxes;
+  }
+
+  /**
+   * Record the address of a store, replacing any address it had.
+   * 
+   * @param store
+   *          the path of the store.
+   * @param address
+   */
+  public synchronized void put(String store, String address) {
+    remove(store);
+    Set<String> stores = storesByAddress.get(address);
+    if (stores == null) {
+      stores = new LinkedHashSet<String>();
+      storesByAddress.put(address, stores);
+    }
+    stores.add(store);
+    addressByStore.put(store, address);
+  }
+
+  /**
+   * @param store
+   *          the path of a store that no longer has an address.
+   */
+  public synchronized void remove(String store) {
+    String address = addressByStore.remove(store);
+    if (address != null) {
+      Set<String> stores = storesByAddress.get(address);
+      stores.remove(store);
+      if (stores.isEmpty()) {
+        storesByAddress.remove(address);
+      }
+    }
+  }
+
+  /**
+   * @return the number of indexed stores.
+   */
+  public synchronized int size() {
+    return addressByStore.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        String path = event.getPath();
+        if (event.getType() == Event.NODE_REMOVED) {
+          remove(path);
+        } else if (path.endsWith(EMAIL_PROPERTY_SUFFIX)) {
+          String store = path.substring(0, path.length() - EMAIL_PROPERTY_SUFFIX.length());
+          update(store);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to update the email address index: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Re-read the address of a store from the repository.
+   */
+  private void update(String store) throws RepositoryException {
+    if (!session.itemExists(store)) {
+      remove(store);
+      return;
+    }
+    Item item = session.getItem(store);
+    if (item.isNode()) {
+      Node node = (Node) item;
+      if (node.hasProperty(MessageConstants.SAKAI_EMAIL_ADDRESS)
+          && node.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)
+          && MessageConstants.SAKAI_MESSAGESTORE_RT.equals(node.getProperty(
+              JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY).getString())) {
+        put(store, node.getProperty(MessageConstants.SAKAI_EMAIL_ADDRESS).getString());
+        return;
+      }
+    }
+    remove(store);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message;
+
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.sakaiproject.kernel.api.message.MessagingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+/**
+ * Rebuilds the message counts of every message store from the messages in it. Stores
+ * that have never been counted get their counts here, and any drift in the maintained
+ * counts is logged and corrected.
+ * 
+ * @scr.component metatype="no" immediate="true"
+ * @scr.service interface="java.lang.Runnable"
+ * @scr.property name="service.description" value="Reconciles the maintained message counts."
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="scheduler.period" value="86400" type="Long"
+ * @scr.property name="scheduler.concurrent" value="false" type="Boolean"
+ * @scr.reference interface="org.apache.sling.jcr.api.SlingRepository"
+ *                name="SlingRepository" bind="bindSlingRepository"
+ *                unbind="unbindSlingRepository"
+ * @scr.reference interface="org.sakaiproject.kernel.api.locking.LockManager"
+ *                name="LockManager" bind="bindLockManager" unbind="unbindLockManager"
+ */
+public class MessageCountReconciler implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(MessageCountReconciler.class);
+
+  private SlingRepository slingRepository;
+
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
+
+  private LockManager lockManager;
+
+  protected void bindLockManager(LockManager lockManager) {
+    this.lockManager = lockManager;
+  }
+
+  protected void unbindLockManager(LockManager lockManager) {
+    this.lockManager = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    LOGGER.info("Starting message count reconciliation.");
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      QueryManager queryManager = session.getWorkspace().getQueryManager();
+      Query query = queryManager.createQuery("//element(*)[@"
+          + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY + "='"
+          + MessageConstants.SAKAI_MESSAGESTORE_RT + "']", Query.XPATH);
+      // Collect the paths first, the saves below would disturb the result.
+      List<String> stores = new ArrayList<String>();
+      NodeIterator nodes = query.execute().getNodes();
+      while (nodes.hasNext()) {
+        stores.add(nodes.nextNode().getPath());
+      }
+      int corrected = 0;
+      for (String path : stores) {
+        try {
+          if (reconcile(session, path)) {
+            corrected++;
+          }
+        } catch (LockTimeoutException e) {
+          LOGGER.warn("Skipped the counts of {}, the store is busy.", path);
+        } catch (RepositoryException e) {
+          LOGGER.warn("Failed to reconcile the counts of {}: {}", path, e.getMessage());
+          session.refresh(false);
+        }
+      }
+      LOGGER.info("Reconciled the counts of {} message stores, {} corrected.", stores
+          .size(), corrected);
+    } catch (RepositoryException e) {
+      LOGGER.warn("Got a repository exception during message count reconciliation.");
+      throw new MessagingException(e.getMessage(), e);
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   * Recount a single store, one counts node at a time under the lock on that node, so no
+   * message is counted twice or missed while the count is running. A store counted for
+   * the first time is marked before it is counted, so messages that arrive while it is
+   * being counted are counted as they arrive.
+   * 
+   * @return true if the counts had to be corrected.
+   */
+  private boolean reconcile(Session session, String path) throws RepositoryException,
+      LockTimeoutException {
+    if (!session.itemExists(path)) {
+      return false;
+    }
+    Node store = (Node) session.getItem(path);
+    boolean corrected = false;
+    if (!MessageCounts.isCounted(store)) {
+      LOGGER.debug("Counting {} for the first time", path);
+      new MessageCounts().store(store);
+      session.save();
+      corrected = true;
+    }
+    List<String> countsPaths = new ArrayList<String>();
+    countsPaths.add(path);
+    for (NodeIterator buckets = store.getNodes(); buckets.hasNext();) {
+      countsPaths.add(buckets.nextNode().getPath());
+    }
+    for (String countsPath : countsPaths) {
+      Lock lock = lockManager.waitForLock(countsPath);
+      try {
+        if (!session.itemExists(countsPath)) {
+          continue;
+        }
+        Node counts = (Node) session.getItem(countsPath);
+        // the store itself only counts the messages held directly in it.
+        String messages = countsPath.equals(path) ? "/element(*)" : "//element(*)";
+        Query query = session.getWorkspace().getQueryManager().createQuery(
+            "/jcr:root" + ISO9075.encodePath(countsPath) + messages + "[@"
+                + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY + "='"
+                + MessageConstants.SAKAI_MESSAGE_RT + "']", Query.XPATH);
+        MessageCounts rebuilt = MessageCounts.rebuild(query.execute().getNodes());
+        MessageCounts maintained = MessageCounts.loadOwn(counts);
+        if (!maintained.equals(rebuilt)) {
+          LOGGER.warn("Message counts of {} drifted, was {} now {}", new Object[] {
+              countsPath, maintained, rebuilt });
+          rebuilt.store(counts);
+          corrected = true;
+        }
+        // only counts that drifted and messages whose marks were wrong are saved.
+        if (session.hasPendingChanges()) {
+          session.save();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return corrected;
+  }
+}
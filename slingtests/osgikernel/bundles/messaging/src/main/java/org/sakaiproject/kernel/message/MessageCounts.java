@@ -0,0 +1,384 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message;
+
+import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_CATEGORY;
+import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_COUNTED;
+import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_MESSAGEBOX;
+import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_MESSAGECOUNTS;
+import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_READ;
+import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_TYPE;
+import static org.sakaiproject.kernel.api.message.MessageConstants.SAKAI_MESSAGE_RT;
+import static org.sakaiproject.kernel.api.message.MessageConstants.TYPE_INTERNAL;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * The maintained counts of the internal messages in a message store, by box, category
+ * and read state. The counts are split over the buckets directly under the store, each
+ * bucket holds the counts of the messages below it in a multi valued property, and the
+ * counts of the store are their sum. So a message is counted under the lock of its own
+ * bucket, in the same save as the message, and deliveries to one store do not queue on
+ * a single node. Each counted message records what it was counted as, so a change to a
+ * message becomes a move from one count to another. Stores without the property on the
+ * store itself have not been counted yet; they are left alone until the reconciliation
+ * job builds them.
+ */
+public class MessageCounts {
+
+  /**
+   * The properties counts can be filtered and grouped by, in key order.
+   */
+  private static final String[] PROPERTIES = { PROP_SAKAI_MESSAGEBOX, PROP_SAKAI_CATEGORY,
+      PROP_SAKAI_READ };
+  private static final char SEPARATOR = '\t';
+
+  private Map<String, Long> counts = new TreeMap<String, Long>();
+
+  /**
+   * @param store
+   *          a message store.
+   * @return true if the store carries maintained counts.
+   * @throws RepositoryException
+   */
+  public static boolean isCounted(Node store) throws RepositoryException {
+    return store.hasProperty(PROP_SAKAI_MESSAGECOUNTS);
+  }
+
+  /**
+   * @param messagePath
+   *          the path of a message, it need not exist.
+   * @param storePath
+   *          the path of the store of the message.
+   * @return the path of the node that holds the counts of the message, the bucket directly
+   *         under the store, or the store for a message held directly in it. Lock this
+   *         path when counting the message.
+   */
+  public static String getCountsPath(String messagePath, String storePath) {
+    int i = messagePath.indexOf('/', storePath.length() + 1);
+    return i < 0 ? storePath : messagePath.substring(0, i);
+  }
+
+  /**
+   * @param store
+   *          a message store.
+   * @return the counts of the store summed over its buckets, empty if it has none.
+   * @throws RepositoryException
+   */
+  public static MessageCounts load(Node store) throws RepositoryException {
+    MessageCounts messageCounts = loadOwn(store);
+    for (NodeIterator buckets = store.getNodes(); buckets.hasNext();) {
+      messageCounts.add(buckets.nextNode());
+    }
+    return messageCounts;
+  }
+
+  /**
+   * @param node
+   *          a store or a bucket directly under one.
+   * @return the counts held on the node itself, empty if it has none.
+   * @throws RepositoryException
+   */
+  public static MessageCounts loadOwn(Node node) throws RepositoryException {
+    MessageCounts messageCounts = new MessageCounts();
+    messageCounts.add(node);
+    return messageCounts;
+  }
+
+  private void add(Node node) throws RepositoryException {
+    if (node.hasProperty(PROP_SAKAI_MESSAGECOUNTS)) {
+      for (Value v : node.getProperty(PROP_SAKAI_MESSAGECOUNTS).getValues()) {
+        String s = v.getString();
+        int i = s.lastIndexOf(SEPARATOR);
+        if (i > 0) {
+          adjust(s.substring(0, i), Long.valueOf(s.substring(i + 1)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the counts to a store or a bucket, the caller saves.
+   *
+   * @param store
+   * @throws RepositoryException
+   */
+  public void store(Node store) throws RepositoryException {
+    List<String> values = new ArrayList<String>();
+    for (Entry<String, Long> e : counts.entrySet()) {
+      if (e.getValue() != 0) {
+        values.add(e.getKey() + SEPARATOR + e.getValue());
+      }
+    }
+    store.setProperty(PROP_SAKAI_MESSAGECOUNTS, values.toArray(new String[values.size()]));
+  }
+
+  /**
+   * @param key
+   *          a key from {@link #keyOf(Node)}.
+   * @param delta
+   */
+  public void adjust(String key, long delta) {
+    Long count = counts.get(key);
+    counts.put(key, (count == null ? 0 : count) + delta);
+  }
+
+  /**
+   * @param property
+   * @return true if counts can be filtered or grouped by the property.
+   */
+  public static boolean isCountable(String property) {
+    return indexOf(property) >= 0;
+  }
+
+  /**
+   * @param filters
+   *          property values the messages must have, every property must be countable.
+   * @return the number of messages matching the filters.
+   */
+  public long count(Map<String, String> filters) {
+    long total = 0;
+    for (Entry<String, Long> e : counts.entrySet()) {
+      if (matches(e.getKey(), filters)) {
+        total += e.getValue();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @param groupedby
+   *          a countable property.
+   * @param filters
+   *          property values the messages must have, every property must be countable.
+   * @return the number of messages matching the filters for each value of groupedby,
+   *         messages without the property are not counted.
+   */
+  public Map<String, Long> countGroupedBy(String groupedby, Map<String, String> filters) {
+    int index = indexOf(groupedby);
+    Map<String, Long> groups = new HashMap<String, Long>();
+    for (Entry<String, Long> e : counts.entrySet()) {
+      if (e.getValue() != 0 && matches(e.getKey(), filters)) {
+        String group = split(e.getKey())[index];
+        if (group.length() > 0) {
+          Long count = groups.get(group);
+          groups.put(group, (count == null ? 0 : count) + e.getValue());
+        }
+      }
+    }
+    return groups;
+  }
+
+  /**
+   * Bring the counts of the store up to date with a created or changed message. The
+   * caller holds the lock on the counts node and saves the message and the counts node
+   * together.
+   *
+   * @param message
+   * @param store
+   *          the store of the message.
+   * @param counts
+   *          the node at {@link #getCountsPath(String, String)} for the message.
+   * @return true if the counts changed.
+   * @throws RepositoryException
+   */
+  public static boolean track(Node message, Node store, Node counts)
+      throws RepositoryException {
+    if (!isCounted(store)) {
+      return false;
+    }
+    String previous = message.hasProperty(PROP_SAKAI_COUNTED) ? message.getProperty(
+        PROP_SAKAI_COUNTED).getString() : null;
+    String current = keyOf(message);
+    if (current == null ? previous == null : current.equals(previous)) {
+      return false;
+    }
+    MessageCounts own = loadOwn(counts);
+    if (previous != null) {
+      own.adjust(previous, -1);
+    }
+    if (current != null) {
+      own.adjust(current, 1);
+    }
+    own.store(counts);
+    message.setProperty(PROP_SAKAI_COUNTED, current);
+    return true;
+  }
+
+  /**
+   * Take a message that has been removed out of the counts of the store. The caller
+   * holds the lock on the counts node and saves.
+   *
+   * @param counted
+   *          the {@link org.sakaiproject.kernel.api.message.MessageConstants#PROP_SAKAI_COUNTED}
+   *          value of the removed message.
+   * @param store
+   * @param counts
+   *          the node at {@link #getCountsPath(String, String)} for the message.
+   * @throws RepositoryException
+   */
+  public static void untrack(String counted, Node store, Node counts)
+      throws RepositoryException {
+    if (counted != null && isCounted(store)) {
+      MessageCounts own = loadOwn(counts);
+      own.adjust(counted, -1);
+      own.store(counts);
+    }
+  }
+
+  /**
+   * Count messages from scratch, marking each with what it was counted as where the mark
+   * is missing or wrong. The caller stores the counts and saves.
+   *
+   * @param messages
+   *          every message under a store or a bucket.
+   * @return the counts of the messages.
+   * @throws RepositoryException
+   */
+  public static MessageCounts rebuild(NodeIterator messages) throws RepositoryException {
+    MessageCounts messageCounts = new MessageCounts();
+    while (messages.hasNext()) {
+      Node message = messages.nextNode();
+      String key = keyOf(message);
+      if (key != null) {
+        messageCounts.adjust(key, 1);
+        if (!message.hasProperty(PROP_SAKAI_COUNTED)
+            || !key.equals(message.getProperty(PROP_SAKAI_COUNTED).getString())) {
+          message.setProperty(PROP_SAKAI_COUNTED, key);
+        }
+      } else if (message.hasProperty(PROP_SAKAI_COUNTED)) {
+        message.getProperty(PROP_SAKAI_COUNTED).remove();
+      }
+    }
+    return messageCounts;
+  }
+
+  /**
+   * @param message
+   * @return the key a message is counted under, or null if it is not counted.
+   * @throws RepositoryException
+   */
+  public static String keyOf(Node message) throws RepositoryException {
+    if (!message.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)
+        || !SAKAI_MESSAGE_RT.equals(message.getProperty(
+            JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY).getString())
+        || !message.hasProperty(PROP_SAKAI_TYPE)
+        || !TYPE_INTERNAL.equals(message.getProperty(PROP_SAKAI_TYPE).getString())) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < PROPERTIES.length; i++) {
+      if (i > 0) {
+        sb.append(SEPARATOR);
+      }
+      if (message.hasProperty(PROPERTIES[i])) {
+        // booleans and the strings "true" and "false" count the same.
+        sb.append(message.getProperty(PROPERTIES[i]).getString().replace(SEPARATOR, ' '));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean matches(String key, Map<String, String> filters) {
+    String[] values = split(key);
+    for (Entry<String, String> f : filters.entrySet()) {
+      if (!values[indexOf(f.getKey())].equals(f.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String[] split(String key) {
+    String[] values = new String[PROPERTIES.length];
+    int start = 0;
+    for (int i = 0; i < values.length; i++) {
+      int end = key.indexOf(SEPARATOR, start);
+      if (end < 0) {
+        end = key.length();
+      }
+      values[i] = key.substring(start, end);
+      start = end + 1;
+    }
+    return values;
+  }
+
+  private static int indexOf(String property) {
+    for (int i = 0; i < PROPERTIES.length; i++) {
+      if (PROPERTIES[i].equals(property)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof MessageCounts)) {
+      return false;
+    }
+    return nonZero(counts).equals(nonZero(((MessageCounts) obj).counts));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return nonZero(counts).hashCode();
+  }
+
+  private static Map<String, Long> nonZero(Map<String, Long> counts) {
+    Map<String, Long> m = new TreeMap<String, Long>();
+    for (Entry<String, Long> e : counts.entrySet()) {
+      if (e.getValue() != 0) {
+        m.put(e.getKey(), e.getValue());
+      }
+    }
+    return m;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return nonZero(counts).toString();
+  }
+}
@@ -20,6 +20,7 @@ package org.sakaiproject.kernel.message;
 import static org.sakaiproject.kernel.api.message.MessageConstants.BOX_OUTBOX;
 import static org.sakaiproject.kernel.api.message.MessageConstants.EVENT_LOCATION;
 import static org.sakaiproject.kernel.api.message.MessageConstants.PENDINGMESSAGE_EVENT;
+import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_COUNTED;
 import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_MESSAGEBOX;
 import static org.sakaiproject.kernel.api.message.MessageConstants.PROP_SAKAI_SENDSTATE;
 import static org.sakaiproject.kernel.api.message.MessageConstants.STATE_NONE;
@@ -27,10 +28,15 @@ import static org.sakaiproject.kernel.api.message.MessageConstants.STATE_NOTIFIE
 import static org.sakaiproject.kernel.api.message.MessageConstants.STATE_PENDING;
 
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.servlets.post.Modification;
 import org.apache.sling.servlets.post.SlingPostProcessor;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.api.message.MessagingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +46,9 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Map.Entry;
 
 import javax.jcr.Item;
@@ -59,6 +68,15 @@ import javax.jcr.Session;
  * @scr.reference name="EventAdmin"
  *                interface="org.osgi.service.event.EventAdmin"
  *                bind="bindEventAdmin" unbind="unbindEventAdmin"
+ * @scr.reference name="SlingRepository"
+ *                interface="org.apache.sling.jcr.api.SlingRepository"
+ *                bind="bindSlingRepository" unbind="unbindSlingRepository"
+ * @scr.reference name="LockManager"
+ *                interface="org.sakaiproject.kernel.api.locking.LockManager"
+ *                bind="bindLockManager" unbind="unbindLockManager"
+ * @scr.reference name="MessagingService"
+ *                interface="org.sakaiproject.kernel.api.message.MessagingService"
+ *                bind="bindMessagingService" unbind="unbindMessagingService"
  * 
  */
 public class MessagePostProcessor implements SlingPostProcessor {
@@ -67,6 +85,9 @@ public class MessagePostProcessor implements SlingPostProcessor {
       .getLogger(MessagePostProcessor.class);
 
   private EventAdmin eventAdmin;
+  private SlingRepository slingRepository;
+  private LockManager lockManager;
+  private MessagingService messagingService;
 
   /**
    * @param eventAdmin
@@ -84,6 +105,30 @@ public class MessagePostProcessor implements SlingPostProcessor {
     this.eventAdmin = null;
   }
 
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
+
+  protected void bindLockManager(LockManager lockManager) {
+    this.lockManager = lockManager;
+  }
+
+  protected void unbindLockManager(LockManager lockManager) {
+    this.lockManager = null;
+  }
+
+  protected void bindMessagingService(MessagingService messagingService) {
+    this.messagingService = messagingService;
+  }
+
+  protected void unbindMessagingService(MessagingService messagingService) {
+    this.messagingService = null;
+  }
+
   /**
    * {@inheritDoc} This post processor is only interested in posts to messages,
    * so it should iterate rapidly through all messages.
@@ -148,6 +193,185 @@ public class MessagePostProcessor implements SlingPostProcessor {
         }
       }
     }
+
+    countChanges(s, changes);
+  }
+
+  /**
+   * Bring the counts of the message stores touched by the post up to date, and save
+   * them with the rest of the post under the locks on the counts nodes of the messages.
+   * A failure here leaves the counts to the reconciliation job rather than failing the
+   * post.
+   * 
+   * @param session
+   * @param changes
+   */
+  private void countChanges(Session session, List<Modification> changes) {
+    // store path to the changed messages, and to the paths and counts of removed
+    // messages.
+    Map<String, List<Node>> tracked = new TreeMap<String, List<Node>>();
+    Map<String, Map<String, String>> untracked = new TreeMap<String, Map<String, String>>();
+    Session adminSession = null;
+    try {
+      for (Modification m : changes) {
+        switch (m.getType()) {
+        case CREATE:
+        case MODIFY:
+          Node message = getMessage(session, m.getSource());
+          if (message != null) {
+            addTracked(tracked, messagingService.getMessageStorePathFromMessageNode(message),
+                message);
+          }
+          break;
+        case MOVE:
+          Node moved = getMessage(session, m.getDestination());
+          if (moved != null && moved.hasProperty(PROP_SAKAI_COUNTED)) {
+            String to = messagingService.getMessageStorePathFromMessageNode(moved);
+            String from = findStore(session, m.getSource());
+            if (from != null && !from.equals(to)) {
+              // counted again from scratch in the new store.
+              addUntracked(untracked, from, m.getSource(), moved.getProperty(
+                  PROP_SAKAI_COUNTED).getString());
+              moved.setProperty(PROP_SAKAI_COUNTED, (String) null);
+            }
+            addTracked(tracked, to, moved);
+          }
+          break;
+        case DELETE:
+          // the session no longer has the node, the saved state still does.
+          if (adminSession == null) {
+            adminSession = slingRepository.loginAdministrative(null);
+          }
+          if (adminSession.itemExists(m.getSource())) {
+            Item item = adminSession.getItem(m.getSource());
+            if (item.isNode() && ((Node) item).hasProperty(PROP_SAKAI_COUNTED)) {
+              String store = findStore(session, m.getSource());
+              addUntracked(untracked, store, m.getSource(), ((Node) item).getProperty(
+                  PROP_SAKAI_COUNTED).getString());
+            }
+          }
+          break;
+        }
+      }
+      // the counts nodes to lock, in path order so two posts cannot wait on each other.
+      Set<String> countsPaths = new TreeSet<String>();
+      for (Entry<String, List<Node>> e : tracked.entrySet()) {
+        for (Node n : e.getValue()) {
+          countsPaths.add(MessageCounts.getCountsPath(n.getPath(), e.getKey()));
+        }
+      }
+      for (Entry<String, Map<String, String>> e : untracked.entrySet()) {
+        for (String path : e.getValue().keySet()) {
+          countsPaths.add(MessageCounts.getCountsPath(path, e.getKey()));
+        }
+      }
+      if (countsPaths.isEmpty()) {
+        return;
+      }
+      List<Lock> locks = new ArrayList<Lock>();
+      try {
+        for (String countsPath : countsPaths) {
+          locks.add(lockManager.waitForLock(countsPath));
+        }
+        for (Entry<String, Map<String, String>> e : untracked.entrySet()) {
+          Node store = (Node) session.getItem(e.getKey());
+          for (Entry<String, String> removed : e.getValue().entrySet()) {
+            String countsPath = MessageCounts.getCountsPath(removed.getKey(), e.getKey());
+            // a removed bucket took its counts with it.
+            if (session.itemExists(countsPath)) {
+              MessageCounts.untrack(removed.getValue(), store, (Node) session
+                  .getItem(countsPath));
+            }
+          }
+        }
+        for (Entry<String, List<Node>> e : tracked.entrySet()) {
+          Node store = (Node) session.getItem(e.getKey());
+          for (Node n : e.getValue()) {
+            MessageCounts.track(n, store, (Node) session.getItem(MessageCounts
+                .getCountsPath(n.getPath(), e.getKey())));
+          }
+        }
+        session.save();
+      } catch (LockTimeoutException e) {
+        LOGGER.warn("Unable to lock {} to count messages ", countsPaths);
+      } finally {
+        for (Lock lock : locks) {
+          lock.unlock();
+        }
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to count messages {} ", e.getMessage());
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * @param session
+   * @param path
+   *          the path of a message or one of its properties.
+   * @return the message, or null if the path is not part of one.
+   * @throws RepositoryException
+   */
+  private Node getMessage(Session session, String path) throws RepositoryException {
+    if (path == null || !session.itemExists(path)) {
+      return null;
+    }
+    Item item = session.getItem(path);
+    Node n = item.isNode() ? (Node) item : item.getParent();
+    if (n.hasProperty(PROP_SAKAI_COUNTED) || MessageCounts.keyOf(n) != null) {
+      return n;
+    }
+    return null;
+  }
+
+  /**
+   * @param session
+   * @param path
+   *          a path that may no longer exist.
+   * @return the path of the message store over the path, or null.
+   * @throws RepositoryException
+   */
+  private String findStore(Session session, String path) throws RepositoryException {
+    String p = path;
+    while (p.lastIndexOf('/') > 0) {
+      p = p.substring(0, p.lastIndexOf('/'));
+      if (session.itemExists(p)) {
+        Item item = session.getItem(p);
+        if (item.isNode() && messagingService.isMessageStore((Node) item)) {
+          return p;
+        }
+      }
+    }
+    return null;
+  }
+
+  private void addTracked(Map<String, List<Node>> tracked, String store, Node message) {
+    if (store == null) {
+      return;
+    }
+    List<Node> messages = tracked.get(store);
+    if (messages == null) {
+      messages = new ArrayList<Node>();
+      tracked.put(store, messages);
+    }
+    // tracking is idempotent, a message changed twice is counted once.
+    messages.add(message);
+  }
+
+  private void addUntracked(Map<String, Map<String, String>> untracked, String store,
+      String path, String counted) {
+    if (store == null) {
+      return;
+    }
+    Map<String, String> removed = untracked.get(store);
+    if (removed == null) {
+      removed = new HashMap<String, String>();
+      untracked.put(store, removed);
+    }
+    removed.put(path, counted);
   }
 
   /**
@@ -114,6 +114,9 @@ public class MessageSearchResultProcessor implements SearchResultProcessor {
         }
       }
     }
+
+    // large inbound mail refers to a shared body through sakai:bodypath, which is listed
+    // with the other properties; the body is fetched from there for a single message.
     write.endObject();
   }
 
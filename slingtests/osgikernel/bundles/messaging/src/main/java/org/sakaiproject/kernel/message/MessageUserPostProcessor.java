@@ -90,6 +90,10 @@ public class MessageUserPostProcessor implements UserPostProcessor {
           messageStore.setProperty(MessageConstants.SAKAI_EMAIL_ADDRESS, principalName + "@localhost");
           messageStore.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
               MessageConstants.SAKAI_MESSAGESTORE_RT);
+          if (!messageStore.hasNodes() && !MessageCounts.isCounted(messageStore)) {
+            // a new store starts out counted, existing ones are left to reconciliation.
+            new MessageCounts().store(messageStore);
+          }
           // ACL's are managed by the Personal User Post processor.
 
           addEntry(messageStore.getPath(), authorizable, session, WRITE_GRANTED,
@@ -20,7 +20,10 @@ package org.sakaiproject.kernel.message;
 import static org.sakaiproject.kernel.api.message.MessageConstants.SAKAI_MESSAGESTORE_RT;
 
 import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.locking.Lock;
 import org.sakaiproject.kernel.api.locking.LockManager;
 import org.sakaiproject.kernel.api.locking.LockTimeoutException;
 import org.sakaiproject.kernel.api.message.MessageConstants;
@@ -38,6 +41,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
@@ -47,6 +51,7 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
+import javax.jcr.observation.Event;
 import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
@@ -63,8 +68,14 @@ import javax.jcr.query.QueryResult;
  */
 public class MessagingServiceImpl implements MessagingService {
 
+  private static final AtomicLong MESSAGE_SEQUENCE = new AtomicLong();
+
   /** @scr.reference */
   private LockManager lockManager;
+  /** @scr.reference */
+  private SlingRepository slingRepository;
+  private Session observationSession;
+  private EmailAddressIndex emailAddressIndex;
   private SiteService siteService;
   protected void bindSiteService(SiteService siteService) {
     this.siteService = siteService;
@@ -76,7 +87,70 @@ public class MessagingServiceImpl implements MessagingService {
   private static final Logger LOGGER = LoggerFactory
       .getLogger(MessagingServiceImpl.class);
 
+  protected void activate(ComponentContext componentContext) {
+    try {
+      observationSession = slingRepository.loginAdministrative(null);
+      EmailAddressIndex index = new EmailAddressIndex(observationSession);
+      // observe before loading, so no change falls between the two.
+      observationSession.getWorkspace().getObservationManager().addEventListener(index,
+          Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+              | Event.PROPERTY_REMOVED, MessageConstants._USER_MESSAGE, true, null, null,
+          false);
+      index.load();
+      emailAddressIndex = index;
+    } catch (RepositoryException e) {
+      LOGGER.warn("Email addresses will be looked up by query: " + e.getMessage(), e);
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    EmailAddressIndex index = emailAddressIndex;
+    emailAddressIndex = null;
+    if (observationSession != null) {
+      try {
+        if (index != null) {
+          observationSession.getWorkspace().getObservationManager().removeEventListener(
+              index);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to stop observing email addresses {} ", e.getMessage());
+      }
+      observationSession.logout();
+      observationSession = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.message.MessagingService#getMailboxesForEmailAddress(java.lang.String)
+   */
+  public List<String> getMailboxesForEmailAddress(String emailAddress)
+      throws RepositoryException {
+    EmailAddressIndex index = emailAddressIndex;
+    if (index != null) {
+      return index.getMailboxes(emailAddress);
+    }
+    Session session = slingRepository.loginAdministrative(null);
+    try {
+      return getMailboxesForEmailAddress(session, emailAddress);
+    } finally {
+      session.logout();
+    }
+  }
+
+  /**
+   * {@inheritDoc} Answered from the index where there is one, keeping only the mailboxes
+   * the session can read.
+   * 
+   * @see org.sakaiproject.kernel.api.message.MessagingService#getMailboxesForEmailAddress(javax.jcr.Session,
+   *      java.lang.String)
+   */
   public List<String> getMailboxesForEmailAddress(Session session, String emailAddress) throws InvalidQueryException, RepositoryException {
+    EmailAddressIndex index = emailAddressIndex;
+    if (index != null) {
+      return index.getMailboxes(emailAddress, session);
+    }
     String queryString = "/" + MessageConstants._USER_MESSAGE + "//element(*)MetaData[@sling:resourceType='" 
                              + MessageConstants.SAKAI_MESSAGESTORE_RT + "' and @" 
                              + MessageConstants.SAKAI_EMAIL_ADDRESS + "='" + emailAddress + "']";
@@ -103,8 +177,10 @@ public class MessagingServiceImpl implements MessagingService {
   }
   
   private String generateMessageId() {
+    // the sequence keeps ids apart when one thread sends twice in a millisecond.
     String messageId = String.valueOf(Thread.currentThread().getId())
-        + String.valueOf(System.currentTimeMillis());
+        + String.valueOf(System.currentTimeMillis()) + "-"
+        + String.valueOf(MESSAGE_SEQUENCE.incrementAndGet());
     try {
       return messageId = org.sakaiproject.kernel.util.StringUtils.sha1Hash(messageId);
     } catch (Exception ex) {
@@ -114,7 +190,10 @@ public class MessagingServiceImpl implements MessagingService {
 
   /**
    * 
-   * {@inheritDoc}
+   * {@inheritDoc} Messages are appended holding only the lock on the top level bucket
+   * they go under, which also holds their part of the counts of the mailbox, so
+   * deliveries to the same mailbox run in parallel. The message and its count are saved
+   * together.
    * 
    * @throws MessagingException
    * 
@@ -130,37 +209,87 @@ public class MessagingServiceImpl implements MessagingService {
 
     String user = session.getUserID();
     String messagePathBase = getFullPathToStore(user, session);
+    //String messagePath = MessageUtils.getMessagePath(user, ISO9075.encodePath(messageId));
+    String messagePath = getFullPathToMessage(user, messageId, session);
+    String bucketPath = messagePath.substring(0, messagePath.lastIndexOf('/'));
+    String countsPath = MessageCounts.getCountsPath(messagePath, messagePathBase);
+    Lock lock = null;
     try {
-      lockManager.waitForLock(messagePathBase);
-    } catch (LockTimeoutException e1) {
-      throw new MessagingException("Unable to lock user mailbox");
-    }
-    try {
-      //String messagePath = MessageUtils.getMessagePath(user, ISO9075.encodePath(messageId));
-      String messagePath = getFullPathToMessage(user, messageId, session);
-      try {
-        msg = JcrUtils.deepGetOrCreateNode(session, messagePath);
-        
-        for (Entry<String, Object> e : mapProperties.entrySet()) {
+      getOrCreateBucket(session, bucketPath);
+      lock = lockManager.waitForLock(countsPath);
+
+      msg = JcrUtils.deepGetOrCreateNode(session, messagePath);
+      for (Entry<String, Object> e : mapProperties.entrySet()) {
+        if (!MessageConstants.PROP_SAKAI_COUNTED.equals(e.getKey())) {
           msg.setProperty(e.getKey(), e.getValue().toString());
         }
-        // Add the id for this message.
-        msg.setProperty(MessageConstants.PROP_SAKAI_ID, messageId);
-        msg.setProperty(MessageConstants.PROP_SAKAI_CREATED, DateUtils.rfc3339());
-        
-        if (session.hasPendingChanges()) {
-          session.save();
-        }
-        
-      } catch (RepositoryException e) {
-        LOGGER.warn("RepositoryException on trying to save message."
-            + e.getMessage());
-        e.printStackTrace();
-        throw new MessagingException("Unable to save message.");
       }
+      // Add the id for this message.
+      msg.setProperty(MessageConstants.PROP_SAKAI_ID, messageId);
+      msg.setProperty(MessageConstants.PROP_SAKAI_CREATED, DateUtils.rfc3339());
+      Node counts = (Node) session.getItem(countsPath);
+      MessageCounts.track(msg, (Node) session.getItem(messagePathBase), counts);
+      counts.save();
       return msg;
+    } catch (LockTimeoutException e) {
+      throw new MessagingException("Unable to lock user mailbox");
+    } catch (RepositoryException e) {
+      LOGGER.warn("RepositoryException on trying to save message."
+          + e.getMessage());
+      e.printStackTrace();
+      throw new MessagingException("Unable to save message.");
+    } finally {
+      if (lock != null) {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc} Each new bucket is created and saved under a lock on its own path, so
+   * two deliveries needing the same bucket never both add it; buckets that exist are not
+   * locked. New buckets are saved on an administrative session of their own, so nothing
+   * pending on the caller's session is saved with them.
+   * 
+   * @see org.sakaiproject.kernel.api.message.MessagingService#getOrCreateBucket(javax.jcr.Session,
+   *      java.lang.String)
+   */
+  public Node getOrCreateBucket(Session session, String path) throws RepositoryException,
+      MessagingException {
+    if (session.itemExists(path)) {
+      return (Node) session.getItem(path);
+    }
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      createBucket(adminSession, path);
+    } catch (LockTimeoutException e) {
+      throw new MessagingException("Unable to lock " + path, e);
+    } finally {
+      adminSession.logout();
+    }
+    return (Node) session.getItem(path);
+  }
+
+  private Node createBucket(Session session, String path) throws RepositoryException,
+      LockTimeoutException {
+    if (session.itemExists(path)) {
+      return (Node) session.getItem(path);
+    }
+    int i = path.lastIndexOf('/');
+    Node parent = i == 0 ? session.getRootNode() : createBucket(session, path
+        .substring(0, i));
+    String name = path.substring(i + 1);
+    Lock lock = lockManager.waitForLock(path);
+    try {
+      // someone else may have created it while we waited.
+      if (parent.hasNode(name)) {
+        return parent.getNode(name);
+      }
+      Node bucket = parent.addNode(name);
+      parent.save();
+      return bucket;
     } finally {
-      lockManager.clearLocks();
+      lock.unlock();
     }
   }
 
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A small pool of administrative sessions, so message delivery does not log in for every
+ * event. A session is only ever used by one thread at a time; it is handed back with its
+ * pending changes discarded, and sessions beyond the idle limit are logged out.
+ */
+public class AdminSessionPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdminSessionPool.class);
+
+  private final SlingRepository repository;
+  private final int maxIdle;
+  private final LinkedList<Session> idle = new LinkedList<Session>();
+  private boolean closed;
+
+  /**
+   * @param repository
+   *          the repository to log in to.
+   * @param maxIdle
+   *          the most sessions kept for reuse.
+   */
+  public AdminSessionPool(SlingRepository repository, int maxIdle) {
+    this.repository = repository;
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * @return an administrative session, to be given back with {@link #release(Session)}.
+   * @throws RepositoryException
+   */
+  public Session borrow() throws RepositoryException {
+    synchronized (idle) {
+      while (!idle.isEmpty()) {
+        Session session = idle.removeFirst();
+        if (session.isLive()) {
+          return session;
+        }
+      }
+    }
+    return repository.loginAdministrative(null);
+  }
+
+  /**
+   * Give a session back to the pool.
+   * 
+   * @param session
+   *          a session from {@link #borrow()}, may be null.
+   */
+  public void release(Session session) {
+    if (session == null) {
+      return;
+    }
+    try {
+      session.refresh(false);
+    } catch (RepositoryException e) {
+      LOGGER.warn("Discarding a session that could not be refreshed: {}", e.getMessage());
+      session.logout();
+      return;
+    }
+    synchronized (idle) {
+      if (!closed && idle.size() < maxIdle && session.isLive()) {
+        idle.addFirst(session);
+        return;
+      }
+    }
+    session.logout();
+  }
+
+  /**
+   * Log out every idle session, sessions released after this are logged out too.
+   */
+  public void close() {
+    synchronized (idle) {
+      closed = true;
+      for (Session session : idle) {
+        session.logout();
+      }
+      idle.clear();
+    }
+  }
+}
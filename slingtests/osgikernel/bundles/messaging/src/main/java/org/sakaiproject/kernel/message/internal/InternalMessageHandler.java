@@ -19,16 +19,33 @@
 package org.sakaiproject.kernel.message.internal;
 
 import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
 import org.sakaiproject.kernel.api.message.MessageConstants;
 import org.sakaiproject.kernel.api.message.MessageRoute;
 import org.sakaiproject.kernel.api.message.MessageRoutes;
 import org.sakaiproject.kernel.api.message.MessageTransport;
+import org.sakaiproject.kernel.api.message.MessagingException;
 import org.sakaiproject.kernel.api.message.MessagingService;
+import org.sakaiproject.kernel.message.MessageCounts;
 import org.sakaiproject.kernel.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
@@ -44,16 +61,29 @@ import javax.jcr.Session;
  *                description="Handler for internally delivered messages."
  *                immediate="true"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="sakai.message.delivery.batchsize" value="100" type="Integer"
+ *               description="The number of recipients written with one save."
+ * @scr.property name="sakai.message.delivery.attempts" value="3" type="Integer"
+ *               description="The number of times delivery to a recipient is tried."
  * @scr.service interface="org.sakaiproject.kernel.api.message.MessageTransport"
  * @scr.reference interface="org.apache.sling.jcr.api.SlingRepository"
  *                name="SlingRepository"
  * @scr.reference interface="org.sakaiproject.kernel.api.message.MessagingService"
  *                name="MessagingService"
+ * @scr.reference interface="org.sakaiproject.kernel.api.locking.LockManager"
+ *                name="LockManager"
  */
 public class InternalMessageHandler implements MessageTransport {
   private static final Logger LOG = LoggerFactory
       .getLogger(InternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
+  private static final String BATCH_SIZE = "sakai.message.delivery.batchsize";
+  private static final String MAX_ATTEMPTS = "sakai.message.delivery.attempts";
+  private static final int MAX_IDLE_SESSIONS = 4;
+
+  private int batchSize = 100;
+  private int maxAttempts = 3;
+  private AdminSessionPool sessionPool;
 
   /**
    * The JCR Repository we access.
@@ -84,6 +114,14 @@ public class InternalMessageHandler implements MessageTransport {
     this.messagingService = null;
   }
 
+  private LockManager lockManager;
+  protected void bindLockManager(LockManager lockManager) {
+    this.lockManager = lockManager;
+  }
+  protected void unbindLockManager(LockManager lockManager) {
+    this.lockManager = null;
+  }
+
   /**
    * Default constructor
    */
@@ -91,54 +129,183 @@ public class InternalMessageHandler implements MessageTransport {
   }
 
   /**
-   * {@inheritDoc}
+   * @param ctx
+   */
+  protected void activate(ComponentContext ctx) {
+    @SuppressWarnings("unchecked")
+    Dictionary props = ctx.getProperties();
+    Integer _batchSize = (Integer) props.get(BATCH_SIZE);
+    if (_batchSize != null && _batchSize > 0) {
+      batchSize = _batchSize;
+    }
+    Integer _maxAttempts = (Integer) props.get(MAX_ATTEMPTS);
+    if (_maxAttempts != null && _maxAttempts > 0) {
+      maxAttempts = _maxAttempts;
+    }
+    sessionPool = new AdminSessionPool(slingRepository, MAX_IDLE_SESSIONS);
+  }
+
+  /**
+   * @param ctx
+   */
+  protected void deactivate(ComponentContext ctx) {
+    if (sessionPool != null) {
+      sessionPool.close();
+      sessionPool = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc} Recipients are delivered to in chunks, each written with one save. When
+   * a chunk fails its recipients are retried one at a time, so one bad mailbox does not
+   * hold up the rest.
+   * 
    * @see org.sakaiproject.kernel.api.message.MessageTransport#send(org.sakaiproject.kernel.api.message.MessageRoutes, org.osgi.service.event.Event, javax.jcr.Node)
    */
   public void send(MessageRoutes routes, Event event, Node originalMessage) {
+    LOG.debug("Started handling the message.");
+    List<String> rcpts = new ArrayList<String>();
+    for (MessageRoute route : routes) {
+      if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        rcpts.add(route.getRcpt());
+      }
+    }
+    if (rcpts.isEmpty()) {
+      return;
+    }
+
+    Session session = null;
     try {
-      LOG.info("Started handling the message.");
-
-      Session session = slingRepository.loginAdministrative(null);
-      
-      
-      for ( MessageRoute route : routes ) {
-        if ( MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport()) ) {
-          String rcpt = route.getRcpt();
-          // the path were we want to save messages in.
-          String messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
-          String toPath = messagingService.getFullPathToMessage(rcpt, messageId, session);
-
-          // Copy the node into the user his folder.
-          JcrUtils.deepGetOrCreateNode(session, toPath);
-          session.save();
-
-          /*
-           * This gives PathNotFoundExceptions... Workspace workspace =
-           * session.getWorkspace(); workspace.copy(originalMessage.getPath(),
-           * toPath);
-           */
-
-          Node n = (Node) session.getItem(toPath);
-
-          PropertyIterator pi = originalMessage.getProperties();
-          while (pi.hasNext()) {
-            Property p = pi.nextProperty();
-            if (!p.getName().contains("jcr:"))
-              n.setProperty(p.getName(), p.getValue());
-          }
+      session = sessionPool.borrow();
+      String messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)
+          .getString();
 
-          // Add some extra properties on the just created node.
-          n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-          n.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-              MessageConstants.BOX_INBOX);
-          n.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE,
-              MessageConstants.STATE_NOTIFIED);
-          n.save();
+      // the number of attempts made for each recipient that has not been delivered to.
+      Map<String, Integer> attempts = new LinkedHashMap<String, Integer>();
+      for (int i = 0; i < rcpts.size(); i += batchSize) {
+        List<String> chunk = rcpts.subList(i, Math.min(i + batchSize, rcpts.size()));
+        if (!deliver(session, originalMessage, messageId, chunk)) {
+          for (String rcpt : chunk) {
+            attempts.put(rcpt, 1);
+          }
+        }
+      }
+      for (Iterator<Entry<String, Integer>> i = attempts.entrySet().iterator(); i
+          .hasNext();) {
+        Entry<String, Integer> e = i.next();
+        List<String> rcpt = Collections.singletonList(e.getKey());
+        while (e.getValue() < maxAttempts) {
+          e.setValue(e.getValue() + 1);
+          if (deliver(session, originalMessage, messageId, rcpt)) {
+            i.remove();
+            break;
+          }
         }
       }
+      if (!attempts.isEmpty()) {
+        LOG.error("Unable to deliver message {} to {} (recipient=attempts)", messageId,
+            attempts);
+      }
     } catch (RepositoryException e) {
       LOG.error(e.getMessage(), e);
+    } finally {
+      if (session != null) {
+        sessionPool.release(session);
+      }
+    }
+  }
+
+  /**
+   * Write a copy of the message into the store of every recipient, and save them all at
+   * once. The counts are updated under the locks on the counts nodes of the copies, the
+   * locks are taken in path order.
+   * 
+   * @return true if the copies were saved, false if the session was rolled back.
+   */
+  private boolean deliver(Session session, Node originalMessage, String messageId,
+      List<String> rcpts) {
+    List<Lock> locks = new ArrayList<Lock>();
+    try {
+      // counts path to the store and the copies counted on it, in path order so two
+      // deliveries cannot wait on each other.
+      Map<String, String> stores = new TreeMap<String, String>();
+      Map<String, List<Node>> counted = new HashMap<String, List<Node>>();
+      for (String rcpt : rcpts) {
+        // the path were we want to save messages in.
+        String toPath = messagingService.getFullPathToMessage(rcpt, messageId, session);
+
+        /*
+         * This gives PathNotFoundExceptions... Workspace workspace =
+         * session.getWorkspace(); workspace.copy(originalMessage.getPath(),
+         * toPath);
+         */
+
+        // Copy the node into the user his folder, creating its bucket under the lock the
+        // messaging service creates buckets with.
+        messagingService.getOrCreateBucket(session, toPath.substring(0, toPath
+            .lastIndexOf('/')));
+        Node n = JcrUtils.deepGetOrCreateNode(session, toPath);
+
+        PropertyIterator pi = originalMessage.getProperties();
+        while (pi.hasNext()) {
+          Property p = pi.nextProperty();
+          if (!p.getName().contains("jcr:")
+              && !MessageConstants.PROP_SAKAI_COUNTED.equals(p.getName()))
+            n.setProperty(p.getName(), p.getValue());
+        }
+
+        // Add some extra properties on the just created node.
+        n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
+        n.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+            MessageConstants.BOX_INBOX);
+        n.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE,
+            MessageConstants.STATE_NOTIFIED);
+
+        String storePath = messagingService.getFullPathToStore(rcpt, session);
+        String countsPath = MessageCounts.getCountsPath(toPath, storePath);
+        List<Node> messages = counted.get(countsPath);
+        if (messages == null) {
+          messages = new ArrayList<Node>();
+          counted.put(countsPath, messages);
+          stores.put(countsPath, storePath);
+        }
+        messages.add(n);
+      }
+
+      for (Entry<String, String> e : stores.entrySet()) {
+        try {
+          locks.add(lockManager.waitForLock(e.getKey()));
+        } catch (LockTimeoutException ex) {
+          // the reconciliation job will count the messages.
+          LOG.warn("Unable to lock {} to count a delivered message ", e.getKey());
+          continue;
+        }
+        Node store = (Node) session.getItem(e.getValue());
+        Node counts = (Node) session.getItem(e.getKey());
+        for (Node n : counted.get(e.getKey())) {
+          MessageCounts.track(n, store, counts);
+        }
+      }
+      session.save();
+      return true;
+    } catch (RepositoryException e) {
+      LOG.warn("Failed to deliver message {} to {}: {}", new Object[] { messageId, rcpts,
+          e.getMessage() });
+    } catch (MessagingException e) {
+      LOG.warn("Failed to deliver message {} to {}: {}", new Object[] { messageId, rcpts,
+          e.getMessage() });
+    } finally {
+      // only the locks taken here, the caller may hold others.
+      for (Lock lock : locks) {
+        lock.unlock();
+      }
+    }
+    try {
+      session.refresh(false);
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to roll back a failed delivery: {}", e.getMessage());
     }
+    return false;
   }
 
   /**
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * 
+ */
+public class EmailAddressIndexTest {
+
+  private static final String BOB = "/_user/message/ab/cd/ef/gh/bob";
+  private static final String ALICE = "/_user/message/12/34/56/78/alice";
+
+  @Test
+  public void testPutAndReplace() {
+    EmailAddressIndex index = new EmailAddressIndex(null);
+    index.put(BOB, "bob@localhost");
+    index.put(ALICE, "team@example.com");
+    assertEquals(Arrays.asList("bob"), index.getMailboxes("bob@localhost"));
+    assertEquals(Arrays.asList("alice"), index.getMailboxes("team@example.com"));
+
+    // bob changes address, and shares it with alice.
+    index.put(BOB, "team@example.com");
+    assertTrue(index.getMailboxes("bob@localhost").isEmpty());
+    assertEquals(Arrays.asList("alice", "bob"), index.getMailboxes("team@example.com"));
+
+    index.remove(ALICE);
+    assertEquals(Arrays.asList("bob"), index.getMailboxes("team@example.com"));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testMailboxesTheReaderCanSee() throws Exception {
+    Session reader = createMock(Session.class);
+    expect(reader.itemExists(BOB)).andReturn(true);
+    expect(reader.itemExists(ALICE)).andReturn(false);
+    replay(reader);
+
+    EmailAddressIndex index = new EmailAddressIndex(null);
+    index.put(ALICE, "team@example.com");
+    index.put(BOB, "team@example.com");
+    assertEquals(Arrays.asList("bob"), index.getMailboxes("team@example.com", reader));
+    assertTrue(index.getMailboxes("nobody@example.com", reader).isEmpty());
+    verify(reader);
+  }
+
+  @Test
+  public void testEvents() throws Exception {
+    Property email = createMock(Property.class);
+    expect(email.getString()).andReturn("robert@example.com");
+    Property resourceType = createMock(Property.class);
+    expect(resourceType.getString()).andReturn(MessageConstants.SAKAI_MESSAGESTORE_RT);
+    Node store = createMock(Node.class);
+    expect(store.isNode()).andReturn(true);
+    expect(store.hasProperty(MessageConstants.SAKAI_EMAIL_ADDRESS)).andReturn(true);
+    expect(store.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY))
+        .andReturn(true);
+    expect(store.getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY))
+        .andReturn(resourceType);
+    expect(store.getProperty(MessageConstants.SAKAI_EMAIL_ADDRESS)).andReturn(email);
+    Session session = createMock(Session.class);
+    expect(session.itemExists(BOB)).andReturn(true);
+    expect(session.getItem(BOB)).andReturn(store);
+    replay(email, resourceType, store, session);
+
+    EmailAddressIndex index = new EmailAddressIndex(session);
+    index.put(BOB, "bob@localhost");
+    index.put(ALICE, "alice@localhost");
+    index.onEvent(events(event(Event.PROPERTY_CHANGED, BOB + "/"
+        + MessageConstants.SAKAI_EMAIL_ADDRESS), event(Event.PROPERTY_CHANGED, BOB
+        + "/sakai:subject"), event(Event.NODE_REMOVED, ALICE)));
+
+    assertTrue(index.getMailboxes("bob@localhost").isEmpty());
+    assertTrue(index.getMailboxes("alice@localhost").isEmpty());
+    assertEquals(Arrays.asList("bob"), index.getMailboxes("robert@example.com"));
+    verify(email, resourceType, store, session);
+  }
+
+  private Event event(int type, String path) throws Exception {
+    Event event = createMock(Event.class);
+    expect(event.getType()).andReturn(type).anyTimes();
+    expect(event.getPath()).andReturn(path).anyTimes();
+    replay(event);
+    return event;
+  }
+
+  private EventIterator events(Event... events) {
+    final Iterator<Event> i = Arrays.asList(events).iterator();
+    return new EventIterator() {
+      public Event nextEvent() {
+        return i.next();
+      }
+
+      public boolean hasNext() {
+        return i.hasNext();
+      }
+
+      public Object next() {
+        return i.next();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      public long getPosition() {
+        return 0;
+      }
+
+      public long getSize() {
+        return -1;
+      }
+
+      public void skip(long skipNum) {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
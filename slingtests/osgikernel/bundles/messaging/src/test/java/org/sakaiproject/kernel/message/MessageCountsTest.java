@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.Value;
+
+/**
+ * 
+ */
+public class MessageCountsTest {
+
+  private static final String INBOX_UNREAD = "inbox\tmessage\tfalse";
+  private static final String INBOX_READ = "inbox\tmessage\ttrue";
+  private static final String OUTBOX_READ = "outbox\t\ttrue";
+
+  @Test
+  public void testKeyOf() throws Exception {
+    Node message = createMessage(MessageConstants.TYPE_INTERNAL, "inbox", "message",
+        "false", null);
+    replay(message);
+    assertEquals(INBOX_UNREAD, MessageCounts.keyOf(message));
+
+    Node outbox = createMessage(MessageConstants.TYPE_INTERNAL, "outbox", null, "true",
+        null);
+    replay(outbox);
+    assertEquals(OUTBOX_READ, MessageCounts.keyOf(outbox));
+
+    Node chat = createMessage(MessageConstants.TYPE_CHAT, "inbox", null, "false", null);
+    replay(chat);
+    assertNull(MessageCounts.keyOf(chat));
+  }
+
+  @Test
+  public void testCount() {
+    MessageCounts counts = new MessageCounts();
+    counts.adjust(INBOX_UNREAD, 3);
+    counts.adjust(INBOX_READ, 2);
+    counts.adjust(OUTBOX_READ, 4);
+
+    Map<String, String> filters = new HashMap<String, String>();
+    assertEquals(9, counts.count(filters));
+    filters.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, "inbox");
+    assertEquals(5, counts.count(filters));
+    filters.put(MessageConstants.PROP_SAKAI_READ, "false");
+    assertEquals(3, counts.count(filters));
+
+    filters.clear();
+    filters.put(MessageConstants.PROP_SAKAI_READ, "true");
+    Map<String, Long> groups = counts.countGroupedBy(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+        filters);
+    assertEquals(2, groups.size());
+    assertEquals(Long.valueOf(2), groups.get("inbox"));
+    assertEquals(Long.valueOf(4), groups.get("outbox"));
+
+    // messages without a category are not a group of their own.
+    groups = counts.countGroupedBy(MessageConstants.PROP_SAKAI_CATEGORY, filters);
+    assertEquals(1, groups.size());
+    assertEquals(Long.valueOf(2), groups.get("message"));
+
+    assertTrue(MessageCounts.isCountable(MessageConstants.PROP_SAKAI_READ));
+    assertFalse(MessageCounts.isCountable(MessageConstants.PROP_SAKAI_TO));
+  }
+
+  @Test
+  public void testTrackRead() throws Exception {
+    // an unread message that is being marked read.
+    Node message = createMessage(MessageConstants.TYPE_INTERNAL, "inbox", "message",
+        "true", INBOX_UNREAD);
+    expect(message.setProperty(MessageConstants.PROP_SAKAI_COUNTED, INBOX_READ))
+        .andReturn(null);
+    Node store = createMock(Node.class);
+    expect(store.hasProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS)).andReturn(true)
+        .anyTimes();
+    final String[][] stored = new String[1][];
+    Node bucket = createStore(stored, INBOX_UNREAD + "\t2", OUTBOX_READ + "\t1");
+    replay(message, store, bucket);
+
+    assertTrue(MessageCounts.track(message, store, bucket));
+    assertArrayEquals(new String[] { INBOX_UNREAD + "\t1", INBOX_READ + "\t1",
+        OUTBOX_READ + "\t1" }, stored[0]);
+    verify(message, store, bucket);
+  }
+
+  @Test
+  public void testTrackUnchanged() throws Exception {
+    Node message = createMessage(MessageConstants.TYPE_INTERNAL, "inbox", "message",
+        "false", INBOX_UNREAD);
+    Node store = createMock(Node.class);
+    expect(store.hasProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS)).andReturn(true)
+        .anyTimes();
+    replay(message, store);
+
+    assertFalse(MessageCounts.track(message, store, store));
+    verify(message, store);
+  }
+
+  @Test
+  public void testUntrack() throws Exception {
+    final String[][] stored = new String[1][];
+    Node store = createStore(stored, INBOX_UNREAD + "\t1", OUTBOX_READ + "\t1");
+    replay(store);
+
+    MessageCounts.untrack(INBOX_UNREAD, store, store);
+    assertArrayEquals(new String[] { OUTBOX_READ + "\t1" }, stored[0]);
+    verify(store);
+  }
+
+  @Test
+  public void testGetCountsPath() {
+    assertEquals("/_user/message/ab/bob/c1", MessageCounts.getCountsPath(
+        "/_user/message/ab/bob/c1/d2/e3/f4/msg", "/_user/message/ab/bob"));
+    assertEquals("/_user/message/ab/bob", MessageCounts.getCountsPath(
+        "/_user/message/ab/bob/msg", "/_user/message/ab/bob"));
+  }
+
+  @Test
+  public void testLoadSumsBuckets() throws Exception {
+    final String[][] stored = new String[1][];
+    Node first = createStore(stored, INBOX_UNREAD + "\t2", OUTBOX_READ + "\t1");
+    Node second = createStore(stored, INBOX_UNREAD + "\t1");
+    Node empty = createMock(Node.class);
+    expect(empty.hasProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS)).andReturn(false)
+        .anyTimes();
+    Node store = createStore(stored, INBOX_READ + "\t1");
+    NodeIterator buckets = createMock(NodeIterator.class);
+    expect(buckets.hasNext()).andReturn(true).times(3);
+    expect(buckets.hasNext()).andReturn(false);
+    expect(buckets.nextNode()).andReturn(first);
+    expect(buckets.nextNode()).andReturn(second);
+    expect(buckets.nextNode()).andReturn(empty);
+    expect(store.getNodes()).andReturn(buckets);
+    replay(first, second, empty, buckets, store);
+
+    MessageCounts counts = MessageCounts.load(store);
+    Map<String, String> filters = new HashMap<String, String>();
+    assertEquals(5, counts.count(filters));
+    filters.put(MessageConstants.PROP_SAKAI_READ, "false");
+    assertEquals(3, counts.count(filters));
+    // the store itself only holds its own share.
+    assertEquals(1, MessageCounts.loadOwn(store).count(new HashMap<String, String>()));
+  }
+
+  @Test
+  public void testRebuildMarksOnlyChangedMessages() throws Exception {
+    Node counted = createMessage(MessageConstants.TYPE_INTERNAL, "inbox", "message",
+        "false", INBOX_UNREAD);
+    Node changed = createMessage(MessageConstants.TYPE_INTERNAL, "inbox", "message",
+        "true", INBOX_UNREAD);
+    expect(changed.setProperty(MessageConstants.PROP_SAKAI_COUNTED, INBOX_READ))
+        .andReturn(null);
+    NodeIterator messages = createMock(NodeIterator.class);
+    expect(messages.hasNext()).andReturn(true);
+    expect(messages.nextNode()).andReturn(counted);
+    expect(messages.hasNext()).andReturn(true);
+    expect(messages.nextNode()).andReturn(changed);
+    expect(messages.hasNext()).andReturn(false);
+    replay(counted, changed, messages);
+
+    MessageCounts rebuilt = MessageCounts.rebuild(messages);
+    Map<String, String> filters = new HashMap<String, String>();
+    assertEquals(2, rebuilt.count(filters));
+    filters.put(MessageConstants.PROP_SAKAI_READ, "true");
+    assertEquals(1, rebuilt.count(filters));
+    verify(counted, changed, messages);
+  }
+
+  @Test
+  public void testUncountedStore() throws Exception {
+    Node message = createMock(Node.class);
+    Node store = createMock(Node.class);
+    expect(store.hasProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS)).andReturn(false)
+        .anyTimes();
+    replay(message, store);
+
+    assertFalse(MessageCounts.track(message, store, store));
+    MessageCounts.untrack(INBOX_UNREAD, store, store);
+    verify(message, store);
+  }
+
+  private Node createMessage(String type, String box, String category, String read,
+      String counted) throws Exception {
+    Node message = createMock(Node.class);
+    addProperty(message, JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        MessageConstants.SAKAI_MESSAGE_RT);
+    addProperty(message, MessageConstants.PROP_SAKAI_TYPE, type);
+    addProperty(message, MessageConstants.PROP_SAKAI_MESSAGEBOX, box);
+    addProperty(message, MessageConstants.PROP_SAKAI_CATEGORY, category);
+    addProperty(message, MessageConstants.PROP_SAKAI_READ, read);
+    addProperty(message, MessageConstants.PROP_SAKAI_COUNTED, counted);
+    return message;
+  }
+
+  private void addProperty(Node node, String name, String value) throws Exception {
+    expect(node.hasProperty(name)).andReturn(value != null).anyTimes();
+    if (value != null) {
+      Property property = createMock(Property.class);
+      expect(property.getString()).andReturn(value).anyTimes();
+      replay(property);
+      expect(node.getProperty(name)).andReturn(property).anyTimes();
+    }
+  }
+
+  private Node createStore(final String[][] stored, String... counts) throws Exception {
+    Value[] values = new Value[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      values[i] = createMock(Value.class);
+      expect(values[i].getString()).andReturn(counts[i]).anyTimes();
+      replay(values[i]);
+    }
+    Property property = createMock(Property.class);
+    expect(property.getValues()).andReturn(values).anyTimes();
+    replay(property);
+
+    Node store = createMock(Node.class);
+    expect(store.hasProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS)).andReturn(true)
+        .anyTimes();
+    expect(store.getProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS)).andReturn(
+        property).anyTimes();
+    expect(
+        store.setProperty(eq(MessageConstants.PROP_SAKAI_MESSAGECOUNTS),
+            isA(String[].class))).andAnswer(new IAnswer<Property>() {
+      public Property answer() throws Throwable {
+        stored[0] = (String[]) getCurrentArguments()[1];
+        return null;
+      }
+    });
+    return store;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.sakaiproject.kernel.api.message.MessageTransport;
+import org.sakaiproject.kernel.api.message.MessagingException;
+import org.sakaiproject.kernel.api.message.MessagingService;
+import org.sakaiproject.kernel.message.listener.MessageRoutesImpl;
+
+import java.util.Hashtable;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+
+/**
+ * 
+ */
+public class InternalMessageHandlerTest {
+
+  private InternalMessageHandler handler;
+  private SlingRepository slingRepository;
+  private Session session;
+  private MessagingService messagingService;
+  private LockManager lockManager;
+  private Node originalMessage;
+  private int[] saves;
+  private int[] locks;
+
+  @Before
+  public void setup() throws Exception {
+    saves = new int[1];
+    Node delivered = createNiceMock(Node.class);
+    session = createMock(Session.class);
+    expect(session.itemExists(isA(String.class))).andReturn(true).anyTimes();
+    expect(session.getItem(isA(String.class))).andReturn(delivered).anyTimes();
+    session.save();
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        saves[0]++;
+        return null;
+      }
+    }).anyTimes();
+    session.refresh(false);
+    expectLastCall().anyTimes();
+    expect(session.isLive()).andReturn(true).anyTimes();
+
+    // one login however many events are handled.
+    slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(session);
+
+    Property id = createMock(Property.class);
+    expect(id.getString()).andReturn("msgid").anyTimes();
+    PropertyIterator properties = createMock(PropertyIterator.class);
+    expect(properties.hasNext()).andReturn(false).anyTimes();
+    originalMessage = createMock(Node.class);
+    expect(originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)).andReturn(id)
+        .anyTimes();
+    expect(originalMessage.getProperties()).andReturn(properties).anyTimes();
+
+    messagingService = createMock(MessagingService.class);
+    for (String rcpt : new String[] { "a", "b", "c", "d", "e" }) {
+      expect(messagingService.getFullPathToMessage(rcpt, "msgid", session)).andReturn(
+          "/_user/message/" + rcpt + "/msgid").anyTimes();
+      expect(messagingService.getFullPathToStore(rcpt, session)).andReturn(
+          "/_user/message/" + rcpt).anyTimes();
+    }
+    expect(messagingService.getFullPathToMessage("bad", "msgid", session)).andReturn(
+        "/_user/message/bad/msgid").anyTimes();
+    expect(messagingService.getFullPathToStore("bad", session)).andThrow(
+        new MessagingException("No such site")).times(3);
+
+    expect(messagingService.getOrCreateBucket(eq(session), isA(String.class))).andReturn(
+        delivered).anyTimes();
+
+    // every lock taken is released, and nothing else is.
+    locks = new int[1];
+    final Lock lock = createMock(Lock.class);
+    lock.unlock();
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        locks[0]--;
+        return null;
+      }
+    }).anyTimes();
+    lockManager = createMock(LockManager.class);
+    expect(lockManager.waitForLock(isA(String.class))).andAnswer(new IAnswer<Lock>() {
+      public Lock answer() throws Throwable {
+        locks[0]++;
+        return lock;
+      }
+    }).anyTimes();
+
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("sakai.message.delivery.batchsize", 2);
+    props.put("sakai.message.delivery.attempts", 3);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props).anyTimes();
+
+    replay(delivered, session, slingRepository, id, properties, originalMessage,
+        messagingService, lock, lockManager, ctx);
+
+    handler = new InternalMessageHandler();
+    handler.bindSlingRepository(slingRepository);
+    handler.bindMessagingService(messagingService);
+    handler.bindLockManager(lockManager);
+    handler.activate(ctx);
+  }
+
+  @Test
+  public void testOneSavePerChunk() throws Exception {
+    handler.send(routes("a", "b", "c", "d", "e"), null, originalMessage);
+    assertEquals(3, saves[0]);
+
+    // the session is pooled, not logged in again.
+    handler.send(routes("a"), null, originalMessage);
+    assertEquals(4, saves[0]);
+    assertEquals(0, locks[0]);
+    verify(slingRepository);
+  }
+
+  @Test
+  public void testRetryPerRecipient() throws Exception {
+    // the chunk with the bad recipient fails, its other recipient is delivered on its
+    // own and the bad one is tried until it runs out of attempts.
+    handler.send(routes("a", "b", "bad", "c"), null, originalMessage);
+    assertEquals(2, saves[0]);
+    assertEquals(0, locks[0]);
+    verify(messagingService);
+  }
+
+  private MessageRoutesImpl routes(String... rcpts) throws Exception {
+    Property to = createMock(Property.class);
+    StringBuilder sb = new StringBuilder();
+    for (String rcpt : rcpts) {
+      sb.append(sb.length() == 0 ? "" : ",").append(MessageTransport.INTERNAL_TRANSPORT)
+          .append(":").append(rcpt);
+    }
+    expect(to.getString()).andReturn(sb.toString());
+    Node message = createMock(Node.class);
+    expect(message.getProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(to);
+    replay(to, message);
+    return new MessageRoutesImpl(message);
+  }
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.kernel.api.presence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -82,6 +83,35 @@ public interface PresenceService {
    */
   String getLocation(String uuid);
 
+  /**
+   * @param uuids
+   *          the user ids.
+   * @return a map of user id to status for every user asked for, looked up in one pass.
+   */
+  Map<String, String> getStatuses(Collection<String> uuids);
+
+  /**
+   * @param uuids
+   *          the user ids.
+   * @return a map of user id to location for every user asked for, looked up in one
+   *         pass.
+   */
+  Map<String, String> getLocations(Collection<String> uuids);
+
+  /**
+   * Look up the status and the location of a set of users together, the users that are
+   * not known on this node are read back from the cluster once for both.
+   * 
+   * @param uuids
+   *          the user ids.
+   * @param statuses
+   *          filled with user id to status for every user asked for.
+   * @param locations
+   *          filled with user id to location for every user asked for.
+   */
+  void getPresence(Collection<String> uuids, Map<String, String> statuses,
+      Map<String, String> locations);
+
   /**
    * @param connections
    *          a list of connections.
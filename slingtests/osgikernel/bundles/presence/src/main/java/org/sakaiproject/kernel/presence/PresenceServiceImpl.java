@@ -17,10 +17,11 @@
  */
 package org.sakaiproject.kernel.presence;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.kernel.api.memory.Cache;
@@ -35,7 +36,11 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 /**
- * The <code>PresenceServiceImpl</code>
+ * The <code>PresenceServiceImpl</code> keeps presence in a {@link PresenceStore} and
+ * writes each change through to a cluster replicated cache. Users not in the store, or
+ * whose record was loaded from the cache and has not been refreshed since the last tick,
+ * are read back from the cache in bulk. A user is expected to ping one node, a user
+ * moving between nodes may show the status they left on this node until it times out.
  * 
  * @scr.component immediate="true" label="Sakai Presence Service"
  *                description="Service for getting info about the presence status and locations of current users" 
@@ -49,25 +54,24 @@ public class PresenceServiceImpl implements PresenceService {
 
   private Logger LOGGER = LoggerFactory.getLogger(PresenceServiceImpl.class);
 
-  private static final String LOCATION_CACHE = "presence.location";
   private static final String USER_STATUS_CACHE = "presence.status";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
+  private static final long TICK = 20000L; // 20s
   // private static final int USER_ELEMENT = 0;
   private static final int TIMESTAMP_ELEMENT = 1;
   private static final int LOCATION_ELEMENT = 2;
   private static final int STATUS_ELEMENT = 3;
   private static final int STATUS_SIZE = 4;
+  private static final String NONE = "none";
 
   private Cache<String> userStatusCache;
-  private Cache<Map<String, String>> locationCache;
+  private PresenceStore store = new PresenceStore((int) (PRESENCE_TTL / TICK));
 
   private CacheManagerService cacheManagerService;
 
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    // the caches must be replicating in the cluster.
-    locationCache = cacheManagerService.getCache(LOCATION_CACHE,
-        CacheScope.CLUSTERREPLICATED);
+    // the cache must be replicating in the cluster.
     userStatusCache = cacheManagerService.getCache(USER_STATUS_CACHE,
         CacheScope.CLUSTERREPLICATED);
   }
@@ -75,7 +79,6 @@ public class PresenceServiceImpl implements PresenceService {
   protected void unbindCacheManagerService(
       CacheManagerService cacheManagerService) {
     if (this.cacheManagerService == cacheManagerService) {
-      locationCache = null;
       userStatusCache = null;
       this.cacheManagerService = null;
     }
@@ -87,7 +90,10 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    int now = getTimeStamp();
+    if (store.update(uuid, now, null, status, NONE, PresenceStatus.online.name(), 0)) {
+      publish(uuid, now);
+    }
   }
 
   /**
@@ -95,30 +101,9 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.kernel.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
-    // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
-      }
+    store.remove(uuid);
+    if (userStatusCache != null) {
+      userStatusCache.remove(uuid);
     }
   }
 
@@ -127,17 +112,7 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.kernel.api.presence.PresenceService#getStatus(java.lang.String)
    */
   public String getStatus(String uuid) {
-    // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
-    }
-    return result;
+    return getStatuses(Collections.singletonList(uuid)).get(uuid);
   }
 
   /**
@@ -145,37 +120,112 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.kernel.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
+    return getLocations(Collections.singletonList(uuid)).get(uuid);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.presence.PresenceService#getStatuses(java.util.Collection)
+   */
+  public Map<String, String> getStatuses(Collection<String> uuids) {
+    Map<String, String> statuses = Maps.newHashMap();
+    getPresence(uuids, statuses, Maps.<String, String> newHashMap());
+    return statuses;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.presence.PresenceService#getLocations(java.util.Collection)
+   */
+  public Map<String, String> getLocations(Collection<String> uuids) {
+    Map<String, String> locations = Maps.newHashMap();
+    getPresence(uuids, Maps.<String, String> newHashMap(), locations);
+    return locations;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.presence.PresenceService#getPresence(java.util.Collection,
+   *      java.util.Map, java.util.Map)
+   */
+  public void getPresence(Collection<String> uuids, Map<String, String> statuses,
+      Map<String, String> locations) {
+    List<String> users = new ArrayList<String>(uuids);
+    String[] userStatuses = new String[users.size()];
+    String[] userLocations = new String[users.size()];
+    lookup(users, userStatuses, userLocations);
+    for (int i = 0; i < userStatuses.length; i++) {
+      // TODO should the default status really be offline if not set? -AZ
+      statuses.put(users.get(i), userStatuses[i] == null ? PresenceStatus.offline.name()
+          : userStatuses[i]);
+      locations.put(users.get(i), userLocations[i] == null ? NONE : userLocations[i]);
+    }
+  }
+
+  /**
+   * Find the status and location of each user, from the store where possible and in one
+   * bulk read of the cluster cache for the rest.
+   *
+   * @param users
+   * @param statuses
+   *          filled with the status of each user by position, null if not online.
+   * @param locations
+   *          filled with the location of each user by position, null if not online.
+   */
+  private void lookup(List<String> users, String[] statuses, String[] locations) {
+    int now = getTimeStamp();
+    if (store.read(users, now, PresenceStore.REMOTE, statuses, locations) == 0) {
+      return;
+    }
+    if (userStatusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return;
+    }
+    List<String> missing = new ArrayList<String>();
+    for (int i = 0; i < statuses.length; i++) {
+      if (statuses[i] == null) {
+        missing.add(users.get(i));
       }
     }
-    return location;
+    Map<String, String> found = userStatusCache.getAll(missing);
+    List<String> offline = new ArrayList<String>();
+    for (int i = 0; i < statuses.length; i++) {
+      if (statuses[i] == null) {
+        String uuid = users.get(i);
+        String[] locationStatus = parseStatus(found.get(uuid), now);
+        if (locationStatus == null) {
+          offline.add(uuid);
+        } else {
+          locations[i] = locationStatus[LOCATION_ELEMENT];
+          statuses[i] = locationStatus.length > STATUS_ELEMENT ? locationStatus[STATUS_ELEMENT]
+              : PresenceStatus.online.name();
+          store.update(uuid, Integer.parseInt(locationStatus[TIMESTAMP_ELEMENT]),
+              locations[i], statuses[i], NONE, PresenceStatus.online.name(),
+              PresenceStore.REMOTE);
+        }
+      }
+    }
+    store.removeAll(offline);
   }
 
-  private String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
+  /**
+   * @param currentStatus
+   *          the status as held in the cluster cache.
+   * @param now
+   * @return the elements of the status, or null if there is none or it has timed out.
+   */
+  private String[] parseStatus(String currentStatus, int now) {
+    if (currentStatus != null) {
+      String[] locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
+      if (locationStatus.length > LOCATION_ELEMENT) {
+        // timed out ?
+        long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
+        if (lastTs > now - PRESENCE_TTL / TICK) {
+          return locationStatus;
         }
       }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
     }
-    return result;
+    return null;
   }
 
   /**
@@ -185,11 +235,7 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.util.List)
    */
   public Map<String, String> online(List<String> connections) {
-    Map<String, String> online = Maps.newHashMap();
-    for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
-    }
-    return online;
+    return getStatuses(connections);
   }
 
   /**
@@ -198,23 +244,10 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.kernel.api.presence.PresenceService#online(java.lang.String)
    */
   public Map<String, String> online(String location) {
-    if (locationCache != null) {
-      Map<String, String> locationInstanceCache = locationCache.get(location);
-      if (locationInstanceCache != null) {
-        Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
-          }
-        }
-        return onlineMap;
-      }
-    } else {
-      LOGGER.warn("Location cache is null, check the cacheManager");
+    if (StringUtils.isEmpty(location) || NONE.equals(location)) {
+      return ImmutableMap.of();
     }
-    return ImmutableMap.of();
+    return store.online(location, getTimeStamp());
   }
 
   /**
@@ -224,107 +257,47 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void ping(String uuid, String location) {
-    long now = getTimeStamp();
+    int now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
-      location = "none";
+      location = NONE;
     }
     if (StringUtils.isEmpty(uuid)) {
-      uuid = "none";
+      uuid = NONE;
     }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
-
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
-        }
-      }
+    if (store.update(uuid, now, location, null, NONE, PresenceStatus.online.name(), 0)) {
+      publish(uuid, now);
     }
   }
 
   /**
    * @return
    */
-  private long getTimeStamp() {
+  private int getTimeStamp() {
     long now = System.currentTimeMillis();
     // make now slow changing, 20s resolution
-    return now / 20000;
+    return (int) (now / TICK);
   }
 
   /**
-   * Update the users location cache.
-   * 
+   * Write the users record through to the cluster cache.
+   *
    * @param uuid
    *          the user id
    * @param now
    *          the timestamp
-   * @param location
-   *          the location, null if not provided in this update
-   * @param status
-   *          the status, null if not provided in this update
-   * @return true if an update was performed.
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
+  private void publish(String uuid, int now) {
     if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
-      }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
-        }
-      }
-
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
-        }
+      String[] status = new String[1];
+      String[] location = new String[1];
+      store.read(Collections.singletonList(uuid), now, 0, status, location);
+      if (status[0] != null) {
+        userStatusCache.put(uuid, ':' + StringUtils.join(new String[] { uuid,
+            String.valueOf(now), location[0], status[0] }, ':'));
       }
     } else {
       LOGGER.warn("User status cache is null, check the cacheManager");
     }
-    return update;
-  }
-
-  /**
-   * @param uuid
-   * @param location
-   * @return
-   */
-  private String getLocationKey(String uuid, String location) {
-    return uuid + ":" + location;
   }
 
 }
@@ -0,0 +1,534 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in memory store of user presence. Each user has a fixed width record of ints in a
+ * single array holding the timestamp, the location code and the status code. Users are
+ * found through an open addressed table of record numbers, so there is no per user
+ * object other than the user id. Locations and statuses are interned to codes with a
+ * reference count, so free text statuses are forgotten when no user has them. The users
+ * at each location are chained through their records so that a location can be listed
+ * without visiting every user.
+ */
+public class PresenceStore {
+
+  /**
+   * The width of a record.
+   */
+  private static final int WIDTH = 6;
+  private static final int TIMESTAMP = 0;
+  private static final int LOCATION = 1;
+  private static final int STATUS = 2;
+  private static final int FLAGS = 3;
+  /**
+   * The next and previous record at the same location, plus one, 0 for none.
+   */
+  private static final int NEXT = 4;
+  private static final int PREV = 5;
+  /**
+   * Set on records that were loaded from another node rather than written here.
+   */
+  public static final int REMOTE = 1;
+  /**
+   * How often, in writes, to sweep out expired records.
+   */
+  private static final int SWEEP_INTERVAL = 4096;
+
+  /**
+   * A table of interned strings, code 0 is null.
+   */
+  private static final class Codes {
+    private Map<String, Integer> codes = new HashMap<String, Integer>();
+    private List<String> values = new ArrayList<String>();
+    private int[] refs = new int[16];
+    private int[] free = new int[16];
+    private int nfree = 0;
+
+    private Codes() {
+      values.add(null);
+    }
+
+    private int acquire(String value) {
+      if (value == null) {
+        return 0;
+      }
+      Integer code = codes.get(value);
+      if (code == null) {
+        if (nfree > 0) {
+          code = free[--nfree];
+          values.set(code, value);
+        } else {
+          code = values.size();
+          values.add(value);
+          if (code >= refs.length) {
+            int[] r = new int[refs.length * 2];
+            System.arraycopy(refs, 0, r, 0, refs.length);
+            refs = r;
+          }
+        }
+        codes.put(value, code);
+      }
+      refs[code]++;
+      return code;
+    }
+
+    private void release(int code) {
+      if (code != 0 && --refs[code] == 0) {
+        codes.remove(values.get(code));
+        values.set(code, null);
+        if (nfree == free.length) {
+          int[] f = new int[free.length * 2];
+          System.arraycopy(free, 0, f, 0, free.length);
+          free = f;
+        }
+        free[nfree++] = code;
+      }
+    }
+
+    private String get(int code) {
+      return values.get(code);
+    }
+
+    private int size() {
+      return codes.size();
+    }
+  }
+
+  private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  /**
+   * Open addressed table of record numbers plus one, 0 is empty.
+   */
+  private int[] table;
+  private int size = 0;
+  private String[] users;
+  private int[] records;
+  private int[] freeSlots;
+  private int nfreeSlots = 0;
+  private int nslots = 0;
+  private Codes locations = new Codes();
+  private Codes statuses = new Codes();
+  /**
+   * The first record at each location code, plus one.
+   */
+  private int[] locationHeads = new int[16];
+  private int writes = 0;
+  private int ttl;
+
+  /**
+   * @param ttl
+   *          how many timestamp ticks a record lives for without an update.
+   */
+  public PresenceStore(int ttl) {
+    this.ttl = ttl;
+    users = new String[1024];
+    records = new int[users.length * WIDTH];
+    freeSlots = new int[users.length];
+    table = new int[users.length * 2];
+  }
+
+  /**
+   * Update a users record, creating it if necessary.
+   *
+   * @param user
+   *          the user id.
+   * @param timestamp
+   *          the current timestamp.
+   * @param location
+   *          the new location, null to keep the current one.
+   * @param status
+   *          the new status, null to keep the current one.
+   * @param defaultLocation
+   *          the location to use for a new record when none is given.
+   * @param defaultStatus
+   *          the status to use for a new record when none is given.
+   * @param flags
+   *          the flags of the record.
+   * @return true if the record changed.
+   */
+  public boolean update(String user, int timestamp, String location, String status,
+      String defaultLocation, String defaultStatus, int flags) {
+    lock.writeLock().lock();
+    try {
+      if (++writes % SWEEP_INTERVAL == 0) {
+        sweep(timestamp - ttl);
+      }
+      int slot = find(user);
+      if (slot < 0 || records[slot * WIDTH + TIMESTAMP] <= timestamp - ttl) {
+        if (slot >= 0) {
+          removeSlot(user, slot);
+        }
+        slot = allocate(user);
+        int r = slot * WIDTH;
+        records[r + TIMESTAMP] = timestamp;
+        records[r + LOCATION] = locations.acquire(location == null ? defaultLocation
+            : location);
+        records[r + STATUS] = statuses.acquire(status == null ? defaultStatus : status);
+        records[r + FLAGS] = flags;
+        index(records[r + LOCATION], slot);
+        return true;
+      }
+      int r = slot * WIDTH;
+      boolean changed = false;
+      if (records[r + TIMESTAMP] != timestamp) {
+        records[r + TIMESTAMP] = timestamp;
+        changed = true;
+      }
+      if (location != null && !location.equals(locations.get(records[r + LOCATION]))) {
+        int code = locations.acquire(location);
+        unindex(slot);
+        locations.release(records[r + LOCATION]);
+        records[r + LOCATION] = code;
+        index(code, slot);
+        changed = true;
+      }
+      if (status != null && !status.equals(statuses.get(records[r + STATUS]))) {
+        int code = statuses.acquire(status);
+        statuses.release(records[r + STATUS]);
+        records[r + STATUS] = code;
+        changed = true;
+      }
+      records[r + FLAGS] = flags;
+      return changed;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a user.
+   *
+   * @param user
+   * @return true if the user was in the store.
+   */
+  public boolean remove(String user) {
+    lock.writeLock().lock();
+    try {
+      int slot = find(user);
+      if (slot >= 0) {
+        removeSlot(user, slot);
+        return true;
+      }
+      return false;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a number of users, only taking the write lock if any of them are present.
+   *
+   * @param users
+   */
+  public void removeAll(Collection<String> users) {
+    if (users.isEmpty()) {
+      return;
+    }
+    lock.readLock().lock();
+    try {
+      boolean present = false;
+      for (String user : users) {
+        if (find(user) >= 0) {
+          present = true;
+          break;
+        }
+      }
+      if (!present) {
+        return;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    lock.writeLock().lock();
+    try {
+      for (String user : users) {
+        int slot = find(user);
+        if (slot >= 0) {
+          removeSlot(user, slot);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Read the status and location of a set of users in one pass.
+   *
+   * @param users
+   *          the users to read.
+   * @param timestamp
+   *          the current timestamp, records older than the ttl are ignored.
+   * @param refresh
+   *          records carrying any of these flags that were not updated at the current
+   *          timestamp are ignored, so that they can be reloaded.
+   * @param statusOut
+   *          the status of each user by position, untouched where the user was not
+   *          found.
+   * @param locationOut
+   *          the location of each user by position, untouched where the user was not
+   *          found.
+   * @return the number of users not found.
+   */
+  public int read(List<String> users, int timestamp, int refresh, String[] statusOut,
+      String[] locationOut) {
+    int missing = 0;
+    int expired = timestamp - ttl;
+    lock.readLock().lock();
+    try {
+      for (int i = 0; i < users.size(); i++) {
+        int slot = find(users.get(i));
+        if (slot >= 0) {
+          int r = slot * WIDTH;
+          int ts = records[r + TIMESTAMP];
+          if (ts > expired && (ts == timestamp || (records[r + FLAGS] & refresh) == 0)) {
+            statusOut[i] = statuses.get(records[r + STATUS]);
+            locationOut[i] = locations.get(records[r + LOCATION]);
+            continue;
+          }
+        }
+        missing++;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return missing;
+  }
+
+  /**
+   * @param location
+   * @param timestamp
+   *          the current timestamp, records older than the ttl are ignored.
+   * @return a map of user to status for every user at the location.
+   */
+  public Map<String, String> online(String location, int timestamp) {
+    Map<String, String> online = new HashMap<String, String>();
+    int expired = timestamp - ttl;
+    lock.readLock().lock();
+    try {
+      Integer code = locations.codes.get(location);
+      if (code != null && code < locationHeads.length) {
+        for (int next = locationHeads[code]; next != 0; next = records[(next - 1) * WIDTH
+            + NEXT]) {
+          int r = (next - 1) * WIDTH;
+          if (records[r + TIMESTAMP] > expired) {
+            online.put(users[next - 1], statuses.get(records[r + STATUS]));
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return online;
+  }
+
+  /**
+   * @return the number of users in the store, including any that have expired but not
+   *         yet been swept out.
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of distinct statuses held.
+   */
+  public int getStatusCount() {
+    lock.readLock().lock();
+    try {
+      return statuses.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Remove every record older than the timestamp, the write lock must be held.
+   *
+   * @param expired
+   */
+  private void sweep(int expired) {
+    for (int slot = 0; slot < nslots; slot++) {
+      String user = users[slot];
+      if (user != null && records[slot * WIDTH + TIMESTAMP] <= expired) {
+        removeSlot(user, slot);
+      }
+    }
+  }
+
+  /**
+   * @param user
+   * @return the record number of the user, or -1.
+   */
+  private int find(String user) {
+    int mask = table.length - 1;
+    for (int i = hash(user) & mask;; i = (i + 1) & mask) {
+      int slot = table[i] - 1;
+      if (slot < 0) {
+        return -1;
+      }
+      if (user.equals(users[slot])) {
+        return slot;
+      }
+    }
+  }
+
+  private static int hash(String user) {
+    int h = user.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    return h ^ (h >>> 7) ^ (h >>> 4);
+  }
+
+  private void insert(int slot) {
+    int mask = table.length - 1;
+    int i = hash(users[slot]) & mask;
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = slot + 1;
+  }
+
+  /**
+   * Remove a record number from the table, shifting back any entries that probed past
+   * it so that lookups do not stop early.
+   *
+   * @param slot
+   */
+  private void delete(int slot) {
+    int mask = table.length - 1;
+    int i = hash(users[slot]) & mask;
+    while (table[i] != slot + 1) {
+      i = (i + 1) & mask;
+    }
+    table[i] = 0;
+    for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+      int home = hash(users[table[j] - 1]) & mask;
+      // move the entry into the gap if the gap lies between its home and where it is.
+      if ((j > i && (home <= i || home > j)) || (j < i && home <= i && home > j)) {
+        table[i] = table[j];
+        table[j] = 0;
+        i = j;
+      }
+    }
+  }
+
+  private int allocate(String user) {
+    int slot;
+    if (nfreeSlots > 0) {
+      slot = freeSlots[--nfreeSlots];
+    } else {
+      if (nslots == users.length) {
+        int capacity = users.length * 2;
+        String[] u = new String[capacity];
+        System.arraycopy(users, 0, u, 0, users.length);
+        users = u;
+        int[] r = new int[capacity * WIDTH];
+        System.arraycopy(records, 0, r, 0, records.length);
+        records = r;
+        int[] f = new int[capacity];
+        System.arraycopy(freeSlots, 0, f, 0, freeSlots.length);
+        freeSlots = f;
+        table = new int[capacity * 2];
+        for (int i = 0; i < nslots; i++) {
+          if (users[i] != null) {
+            insert(i);
+          }
+        }
+      }
+      slot = nslots++;
+    }
+    users[slot] = user;
+    insert(slot);
+    size++;
+    return slot;
+  }
+
+  private void removeSlot(String user, int slot) {
+    int r = slot * WIDTH;
+    unindex(slot);
+    locations.release(records[r + LOCATION]);
+    statuses.release(records[r + STATUS]);
+    delete(slot);
+    for (int i = 0; i < WIDTH; i++) {
+      records[r + i] = 0;
+    }
+    users[slot] = null;
+    size--;
+    freeSlots[nfreeSlots++] = slot;
+  }
+
+  /**
+   * Add a record to the front of the chain for its location.
+   *
+   * @param location
+   * @param slot
+   */
+  private void index(int location, int slot) {
+    if (location != 0) {
+      if (location >= locationHeads.length) {
+        int[] h = new int[Math.max(location + 1, locationHeads.length * 2)];
+        System.arraycopy(locationHeads, 0, h, 0, locationHeads.length);
+        locationHeads = h;
+      }
+      int r = slot * WIDTH;
+      int head = locationHeads[location];
+      records[r + NEXT] = head;
+      records[r + PREV] = 0;
+      if (head != 0) {
+        records[(head - 1) * WIDTH + PREV] = slot + 1;
+      }
+      locationHeads[location] = slot + 1;
+    }
+  }
+
+  /**
+   * Take a record out of the chain for its location.
+   *
+   * @param slot
+   */
+  private void unindex(int slot) {
+    int r = slot * WIDTH;
+    int location = records[r + LOCATION];
+    if (location != 0) {
+      int next = records[r + NEXT];
+      int prev = records[r + PREV];
+      if (prev == 0) {
+        locationHeads[location] = next;
+      } else {
+        records[(prev - 1) * WIDTH + NEXT] = next;
+      }
+      if (next != 0) {
+        records[(next - 1) * WIDTH + PREV] = prev;
+      }
+      records[r + NEXT] = 0;
+      records[r + PREV] = 0;
+    }
+  }
+}
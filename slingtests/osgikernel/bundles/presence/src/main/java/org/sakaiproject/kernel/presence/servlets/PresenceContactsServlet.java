@@ -20,7 +20,9 @@ package org.sakaiproject.kernel.presence.servlets;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -105,12 +107,17 @@ public class PresenceContactsServlet extends SlingAllMethodsServlet {
       Session session = request.getResource().adaptTo(Node.class).getSession();
       List<String> userIds = connectionManager.getConnectedUsers(user,
           ConnectionState.ACCEPTED);
+      // look up the presence of every contact at once
+      Map<String, String> statuses = new HashMap<String, String>();
+      Map<String, String> locations = new HashMap<String, String>();
+      presenceService.getPresence(userIds, statuses, locations);
       output.key("contacts");
       output.array();
       for (String userId : userIds) {
         output.object();
         // put in the basics
-        PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
+        PresenceUtils.writePresence(output, userId, statuses.get(userId), locations
+            .get(userId));
         // add in the profile
         output.key("profile");
         Node profileNode = (Node) session.getItem(PersonalUtils.getProfilePath(userId));
@@ -30,6 +30,7 @@ import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.sakaiproject.kernel.memory.MapCacheImpl;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -137,4 +138,60 @@ public class PresenceServiceImplTest {
     }
   }
 
+  /**
+   * Test method for
+   * {@link org.sakaiproject.kernel.presence.PresenceServiceImpl#getStatuses(java.util.Collection)}
+   * .
+   */
+  @Test
+  public void testGetStatuses() {
+    presenceService.ping("user1", "locationA");
+    presenceService.setStatus("user1", "busy");
+    presenceService.ping("user2", "locationB");
+    // a user written by another node appears only in the cluster cache.
+    presenceStatusCache.put("user3", ":user3:" + (System.currentTimeMillis() / 20000)
+        + ":locationC:away");
+    List<String> users = Lists.newArrayList("user1", "user2", "user3", "user4");
+    Map<String, String> statuses = presenceService.getStatuses(users);
+    assertEquals(4, statuses.size());
+    assertEquals("busy", statuses.get("user1"));
+    assertEquals("online", statuses.get("user2"));
+    assertEquals("away", statuses.get("user3"));
+    assertEquals("offline", statuses.get("user4"));
+    Map<String, String> locations = presenceService.getLocations(users);
+    assertEquals("locationA", locations.get("user1"));
+    assertEquals("locationC", locations.get("user3"));
+    assertEquals("none", locations.get("user4"));
+    assertEquals(1, presenceService.online("locationC").size());
+
+    presenceService.clear("user1");
+    assertEquals("offline", presenceService.getStatus("user1"));
+    assertNull(presenceStatusCache.get("user1"));
+    assertEquals(0, presenceService.online("locationA").size());
+  }
+
+  /**
+   * Test method for
+   * {@link org.sakaiproject.kernel.presence.PresenceServiceImpl#getPresence(java.util.Collection, java.util.Map, java.util.Map)}
+   * .
+   */
+  @Test
+  public void testGetPresence() {
+    long tick = System.currentTimeMillis() / 20000;
+    presenceService.ping("user1", "locationA");
+    presenceStatusCache.put("user2", ":user2:" + tick + ":locationB:away");
+    // five minutes is 15 ticks, older records have timed out.
+    presenceStatusCache.put("user3", ":user3:" + (tick - 16) + ":locationC:away");
+    List<String> users = Lists.newArrayList("user1", "user2", "user3");
+    Map<String, String> statuses = new HashMap<String, String>();
+    Map<String, String> locations = new HashMap<String, String>();
+    presenceService.getPresence(users, statuses, locations);
+    assertEquals("online", statuses.get("user1"));
+    assertEquals("locationA", locations.get("user1"));
+    assertEquals("away", statuses.get("user2"));
+    assertEquals("locationB", locations.get("user2"));
+    assertEquals("offline", statuses.get("user3"));
+    assertEquals("none", locations.get("user3"));
+  }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ */
+public class PresenceStoreTest {
+
+  @Test
+  public void testUpdateAndRead() {
+    PresenceStore store = new PresenceStore(15);
+    assertTrue(store.update("a", 100, "loc1", null, "none", "online", 0));
+    assertFalse(store.update("a", 100, "loc1", null, "none", "online", 0));
+    assertTrue(store.update("a", 100, null, "busy", "none", "online", 0));
+    assertTrue(store.update("b", 101, "loc1", "away", "none", "online", 0));
+    List<String> users = Arrays.asList("a", "b", "c");
+    String[] statuses = new String[3];
+    String[] locations = new String[3];
+    assertEquals(1, store.read(users, 101, 0, statuses, locations));
+    assertEquals("busy", statuses[0]);
+    assertEquals("loc1", locations[0]);
+    assertEquals("away", statuses[1]);
+    assertNull(statuses[2]);
+    assertEquals(2, store.online("loc1", 101).size());
+  }
+
+  @Test
+  public void testExpiryAndRefresh() {
+    PresenceStore store = new PresenceStore(15);
+    store.update("a", 100, "loc1", "busy", "none", "online", 0);
+    store.update("b", 100, "loc1", "away", "none", "online", PresenceStore.REMOTE);
+    List<String> users = Arrays.asList("a", "b");
+    String[] statuses = new String[2];
+    // remote records are only trusted for the tick they were loaded in.
+    assertEquals(1, store.read(users, 101, PresenceStore.REMOTE, statuses,
+        new String[2]));
+    assertEquals("busy", statuses[0]);
+    assertNull(statuses[1]);
+    // everything has expired.
+    assertEquals(2, store.read(users, 115, 0, new String[2], new String[2]));
+    assertEquals(0, store.online("loc1", 115).size());
+    // an expired record is replaced by a fresh one.
+    assertTrue(store.update("a", 115, null, null, "none", "online", 0));
+    statuses = new String[1];
+    store.read(Arrays.asList("a"), 115, 0, statuses, new String[1]);
+    assertEquals("online", statuses[0]);
+  }
+
+  @Test
+  public void testStatusesAreReleased() {
+    PresenceStore store = new PresenceStore(15);
+    for (int i = 0; i < 100; i++) {
+      store.update("user" + i, 100, "loc" + (i % 5), "status " + i, "none", "online", 0);
+    }
+    assertEquals(100, store.getStatusCount());
+    for (int i = 0; i < 100; i++) {
+      store.update("user" + i, 100, null, "online", "none", "online", 0);
+    }
+    assertEquals(1, store.getStatusCount());
+    for (int i = 0; i < 50; i++) {
+      store.remove("user" + i);
+    }
+    assertEquals(50, store.size());
+    assertEquals(10, store.online("loc0", 100).size());
+    store.removeAll(Arrays.asList("user50", "nobody"));
+    assertEquals(49, store.size());
+  }
+
+  @Test
+  public void testManyUsers() {
+    PresenceStore store = new PresenceStore(15);
+    List<String> all = new ArrayList<String>();
+    for (int i = 0; i < 5000; i++) {
+      all.add("user" + i);
+      store.update("user" + i, 100, "loc" + (i % 3), null, "none", "online", 0);
+    }
+    Random random = new Random(0);
+    List<String> removed = new ArrayList<String>();
+    for (String user : all) {
+      if (random.nextBoolean()) {
+        store.remove(user);
+        removed.add(user);
+      }
+    }
+    assertEquals(all.size() - removed.size(), store.size());
+    String[] statuses = new String[all.size()];
+    assertEquals(removed.size(), store.read(all, 100, 0, statuses, new String[all
+        .size()]));
+    int online = 0;
+    for (int i = 0; i < 3; i++) {
+      online += store.online("loc" + i, 100).size();
+    }
+    assertEquals(store.size(), online);
+  }
+}
@@ -37,6 +37,14 @@ public interface SearchConstants {
   *
   */
   public static final String PARAMS_PAGE = "page";
+  /**
+   * The continuation token of the next page, in keyset paging mode.
+   */
+  public static final String PARAMS_CURSOR = "cursor";
+  /**
+   * The continuation token of the next page, present when the page was full.
+   */
+  public static final String JSON_CURSOR = "cursor";
   /**
   *
   */
@@ -49,6 +57,21 @@ public interface SearchConstants {
   *
   */
   public static final String SAKAI_QUERY_TEMPLATE = "sakai:query-template";
+  /**
+   * The property the query is ordered by. When set, pages resume from the last sort key
+   * of the previous page, through the {_keyset} variable in the query template, rather
+   * than skipping rows.
+   */
+  public static final String SAKAI_QUERY_KEYSET = "sakai:query-keyset";
+  /**
+   * ascending or descending, the direction of the keyset order. Defaults to ascending.
+   */
+  public static final String SAKAI_QUERY_KEYSET_ORDER = "sakai:query-keyset-order";
+  /**
+   * The template variable that is replaced with the keyset range predicate, it starts
+   * with " and " so it can follow an existing condition.
+   */
+  public static final String KEYSET_VARIABLE = "_keyset";
   /**
  *
  */
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A {@link NodeIterator} over the paths of a cached search result, nodes are loaded from
+ * the session as they are reached. Paths that can no longer be read are passed over. The
+ * iterator may carry on with the rest of a query result that was too large to cache.
+ */
+public class CachedNodeIterator implements NodeIterator {
+
+  private List<String> paths;
+  private Session session;
+  private int position = 0;
+  private Node next;
+  private NodeIterator rest;
+
+  /**
+   * @param paths
+   *          the paths of the result nodes, in result order.
+   * @param session
+   *          the session to load the nodes with.
+   */
+  public CachedNodeIterator(List<String> paths, Session session) {
+    this.paths = paths;
+    this.session = session;
+  }
+
+  /**
+   * @param paths
+   *          the paths of the first nodes of a result, in result order.
+   * @param session
+   *          the session to load the nodes with.
+   * @param rest
+   *          the result the paths were read from, positioned after them.
+   */
+  public CachedNodeIterator(List<String> paths, Session session, NodeIterator rest) {
+    this(paths, session);
+    this.rest = rest;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.NodeIterator#nextNode()
+   */
+  public Node nextNode() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Node n = next;
+    next = null;
+    return n;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#getPosition()
+   */
+  public long getPosition() {
+    long p = position;
+    if (rest != null && position == paths.size()) {
+      p = rest.getPosition();
+    }
+    return next == null ? p : p - 1;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#getSize()
+   */
+  public long getSize() {
+    return rest == null ? paths.size() : rest.getSize();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#skip(long)
+   */
+  public void skip(long skipNum) {
+    if (skipNum > 0 && next != null) {
+      next = null;
+      skipNum--;
+    }
+    if (position + skipNum > paths.size()) {
+      skipNum -= paths.size() - position;
+      position = paths.size();
+      if (rest == null) {
+        throw new NoSuchElementException();
+      }
+      rest.skip(skipNum);
+      return;
+    }
+    position += skipNum;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#hasNext()
+   */
+  public boolean hasNext() {
+    while (next == null && position < paths.size()) {
+      String path = paths.get(position++);
+      try {
+        if (session.itemExists(path)) {
+          Item item = session.getItem(path);
+          if (item.isNode()) {
+            next = (Node) item;
+          }
+        }
+      } catch (RepositoryException e) {
+        // the node has gone or is no longer readable, move on.
+      }
+    }
+    if (next == null && rest != null && rest.hasNext()) {
+      next = rest.nextNode();
+    }
+    return next != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#next()
+   */
+  public Object next() {
+    return nextNode();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#remove()
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import java.io.UnsupportedEncodingException;
+
+import javax.jcr.PropertyType;
+import javax.jcr.query.Query;
+
+/**
+ * The position of a keyset paged search, the sort key of the last row sent and how many
+ * rows with that key have been sent. The next page is queried from that key inclusive,
+ * the rows already sent with the same key are then skipped, so sort keys need not be
+ * unique. The token form is opaque to clients.
+ */
+public class KeysetCursor {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private int type;
+  private String value;
+  private long count;
+
+  /**
+   * @param type
+   *          the {@link PropertyType} of the sort key.
+   * @param value
+   *          the string form of the sort key.
+   * @param count
+   *          how many rows with this key have been sent.
+   */
+  public KeysetCursor(int type, String value, long count) {
+    this.type = type;
+    this.value = value;
+    this.count = count;
+  }
+
+  /**
+   * @return the {@link PropertyType} of the sort key.
+   */
+  public int getType() {
+    return type;
+  }
+
+  /**
+   * @return the string form of the sort key.
+   */
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * @return how many rows with the sort key have been sent.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @param token
+   *          a token from {@link #toToken()}.
+   * @return the cursor.
+   * @throws IllegalArgumentException
+   *           if the token is not valid.
+   */
+  public static KeysetCursor parse(String token) {
+    if (token == null || token.length() % 2 != 0) {
+      throw new IllegalArgumentException("Invalid cursor " + token);
+    }
+    try {
+      byte[] b = new byte[token.length() / 2];
+      for (int i = 0; i < b.length; i++) {
+        b[i] = (byte) Integer.parseInt(token.substring(i * 2, i * 2 + 2), 16);
+      }
+      String s = new String(b, "UTF-8");
+      int typeEnd = s.indexOf(':');
+      int countEnd = s.indexOf(':', typeEnd + 1);
+      if (typeEnd < 0 || countEnd < 0) {
+        throw new IllegalArgumentException("Invalid cursor " + token);
+      }
+      int type = Integer.parseInt(s.substring(0, typeEnd));
+      long count = Long.parseLong(s.substring(typeEnd + 1, countEnd));
+      return new KeysetCursor(type, s.substring(countEnd + 1), count);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid cursor " + token);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  /**
+   * @return the token to hand to the client.
+   */
+  public String toToken() {
+    try {
+      byte[] b = (type + ":" + count + ":" + value).getBytes("UTF-8");
+      StringBuilder sb = new StringBuilder(b.length * 2);
+      for (byte x : b) {
+        sb.append(HEX[(x >> 4) & 0xf]).append(HEX[x & 0xf]);
+      }
+      return sb.toString();
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  /**
+   * @param property
+   *          the name of the property the query is ordered by.
+   * @param descending
+   *          true if the query is in descending order.
+   * @param language
+   *          the query language.
+   * @return a predicate, starting with " and ", that selects rows from this cursor on.
+   * @throws IllegalArgumentException
+   *           if a numeric key is not a number.
+   */
+  public String getPredicate(String property, boolean descending, String language) {
+    String op = descending ? " <= " : " >= ";
+    if (Query.XPATH.equals(language)) {
+      return " and @" + property + op + literal(Query.XPATH);
+    }
+    return " and " + property + op + literal(Query.SQL);
+  }
+
+  private String literal(String language) {
+    switch (type) {
+    case PropertyType.LONG:
+      // parsed so that nothing but a number gets into the query.
+      return String.valueOf(Long.parseLong(value));
+    case PropertyType.DOUBLE:
+      return String.valueOf(Double.parseDouble(value));
+    case PropertyType.DATE:
+      if (Query.XPATH.equals(language)) {
+        return "xs:dateTime(" + quote(value) + ")";
+      }
+      return "TIMESTAMP " + quote(value);
+    default:
+      return quote(value);
+    }
+  }
+
+  private static String quote(String s) {
+    return "'" + s.replace("'", "''") + "'";
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ * Wraps the result nodes of a keyset paged search, tracking the sort key of the nodes
+ * handed out so the cursor of the next page can be made once the page is written.
+ */
+public class KeysetNodeIterator implements NodeIterator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeysetNodeIterator.class);
+
+  private NodeIterator delegate;
+  private String property;
+  private KeysetCursor cursor;
+  private boolean lost;
+  private long returned;
+
+  /**
+   * @param delegate
+   *          the result nodes.
+   * @param property
+   *          the property the results are ordered by.
+   * @param cursor
+   *          the cursor this page started from, or null for the first page.
+   */
+  public KeysetNodeIterator(NodeIterator delegate, String property, KeysetCursor cursor) {
+    this.delegate = delegate;
+    this.property = property;
+    this.cursor = cursor;
+  }
+
+  /**
+   * @return the cursor after the last node handed out, or null if no node was handed out
+   *         or the last one had no sort key.
+   */
+  public KeysetCursor getCursor() {
+    return lost ? null : cursor;
+  }
+
+  /**
+   * @return how many nodes have been handed out.
+   */
+  public long getReturnedCount() {
+    return returned;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.NodeIterator#nextNode()
+   */
+  public Node nextNode() {
+    Node node = delegate.nextNode();
+    returned++;
+    lost = true;
+    try {
+      if (node.hasProperty(property)) {
+        Property p = node.getProperty(property);
+        String value = p.getString();
+        if (cursor != null && cursor.getType() == p.getType()
+            && cursor.getValue().equals(value)) {
+          cursor = new KeysetCursor(p.getType(), value, cursor.getCount() + 1);
+        } else {
+          cursor = new KeysetCursor(p.getType(), value, 1);
+        }
+        lost = false;
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to read sort key {} of a search result {} ", property, e
+          .getMessage());
+    }
+    return node;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#getPosition()
+   */
+  public long getPosition() {
+    return delegate.getPosition();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#getSize()
+   */
+  public long getSize() {
+    return delegate.getSize();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#skip(long)
+   */
+  public void skip(long skipNum) {
+    for (long i = 0; i < skipNum; i++) {
+      nextNode();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#hasNext()
+   */
+  public boolean hasNext() {
+    return delegate.hasNext();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#next()
+   */
+  public Object next() {
+    return nextNode();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#remove()
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
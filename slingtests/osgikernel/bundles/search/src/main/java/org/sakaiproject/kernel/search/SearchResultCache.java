@@ -0,0 +1,525 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.apache.jackrabbit.api.security.principal.PrincipalIterator;
+import org.apache.jackrabbit.api.security.principal.PrincipalManager;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+/**
+ * Caches the paths of search results, keyed on the expanded query statement, the query
+ * language and the principals of the searching user, so users that can see the same
+ * content share results. Each result has a scope, the deepest path all of its nodes must
+ * be under, taken from the statement. The cache listens to repository events and drops
+ * every result whose scope contains, or is contained by, a changed path. A query that is
+ * running is tracked with its scope, so only a change inside that scope stops its result
+ * from being cached.
+ */
+public class SearchResultCache implements EventListener, SearchResultCacheMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResultCache.class);
+  /**
+   * Changes under here can change the principals of a user.
+   */
+  private static final String SECURITY_PATH = "/rep:security";
+  private static final Pattern XPATH_ROOT = Pattern
+      .compile("^\\s*/jcr:root(/[^\\[\\(]*)(.?)");
+  private static final Pattern SQL_PATH = Pattern.compile(
+      "jcr:path\\s+(?i:like)\\s+'(/[^'%_]*)", Pattern.CASE_INSENSITIVE);
+  private static final Pattern LITERAL = Pattern.compile("'[^']*'|\"[^\"]*\"");
+  private static final Pattern SQL_OR = Pattern.compile("\\bor\\b",
+      Pattern.CASE_INSENSITIVE);
+
+  /**
+   * A cached result.
+   */
+  public static final class Result {
+    private List<String> paths;
+    private String scope;
+    private long expires;
+
+    private Result(List<String> paths, String scope, long expires) {
+      this.paths = paths;
+      this.scope = scope;
+      this.expires = expires;
+    }
+
+    /**
+     * @return the paths of the result nodes in order, or null if the result was too large
+     *         to cache.
+     */
+    public List<String> getPaths() {
+      return paths;
+    }
+  }
+
+  /**
+   * A query that is running, from {@link SearchResultCache#start(String, String)}.
+   */
+  public static final class Pending {
+    private String scope;
+    private boolean stale;
+
+    private Pending(String scope) {
+      this.scope = scope;
+    }
+  }
+
+  private int maxEntries;
+  private int maxRows;
+  private long ttl;
+  private Map<String, Result> entries;
+  private SortedMap<String, Set<String>> scopes = new TreeMap<String, Set<String>>();
+  private Map<String, String> principalKeys;
+  private Set<Pending> pending = new HashSet<Pending>();
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long expirations;
+  private long invalidations;
+
+  /**
+   * @param maxEntries
+   *          the most results to hold, and the most users whose principals are held.
+   * @param maxRows
+   *          the largest result that is cached.
+   * @param ttl
+   *          how long a result may be used for, in ms.
+   */
+  public SearchResultCache(int maxEntries, int maxRows, long ttl) {
+    this.maxEntries = maxEntries;
+    this.maxRows = maxRows;
+    this.ttl = ttl;
+    entries = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Result> eldest) {
+        if (size() > SearchResultCache.this.maxEntries) {
+          unscope(eldest.getKey(), eldest.getValue());
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+    principalKeys = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, String> eldest) {
+        return size() > SearchResultCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @return the largest number of rows that will be cached for a query.
+   */
+  public int getMaxRows() {
+    return maxRows;
+  }
+
+  /**
+   * @param statement
+   *          the expanded query.
+   * @param language
+   *          the query language.
+   * @param session
+   *          the session of the user searching.
+   * @return the key of the query for this user.
+   * @throws RepositoryException
+   */
+  public String getKey(String statement, String language, Session session)
+      throws RepositoryException {
+    return language + '\n' + getPrincipalKey(session) + '\n' + statement;
+  }
+
+  /**
+   * Track a query that is about to run, pass the result to
+   * {@link #put(String, Pending, List)} and always call {@link #finish(Pending)}.
+   *
+   * @param statement
+   *          the expanded query.
+   * @param language
+   *          the query language.
+   * @return the running query.
+   */
+  public synchronized Pending start(String statement, String language) {
+    Pending query = new Pending(scopeOf(statement, language));
+    pending.add(query);
+    return query;
+  }
+
+  /**
+   * Stop tracking a query, whether or not its result was cached.
+   *
+   * @param query
+   */
+  public synchronized void finish(Pending query) {
+    pending.remove(query);
+  }
+
+  /**
+   * @param key
+   * @return the cached result, or null.
+   */
+  public synchronized Result get(String key) {
+    Result result = entries.get(key);
+    if (result != null && result.expires < System.currentTimeMillis()) {
+      entries.remove(key);
+      unscope(key, result);
+      expirations++;
+      result = null;
+    }
+    if (result == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return result;
+  }
+
+  /**
+   * Cache a result, unless something in its scope changed while the query was running.
+   *
+   * @param key
+   * @param query
+   *          the query, from {@link #start(String, String)}.
+   * @param paths
+   *          the result paths, or null if the result has more than {@link #getMaxRows()}
+   *          rows.
+   */
+  public synchronized void put(String key, Pending query, List<String> paths) {
+    if (!pending.remove(query) || query.stale) {
+      return;
+    }
+    String scope = query.scope;
+    Result result = new Result(paths, scope, System.currentTimeMillis() + ttl);
+    Result previous = entries.put(key, result);
+    if (previous != null) {
+      unscope(key, previous);
+    }
+    Set<String> keys = scopes.get(scope);
+    if (keys == null) {
+      keys = new HashSet<String>();
+      scopes.put(scope, keys);
+    }
+    keys.add(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    Set<String> changed = new HashSet<String>();
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        String path = event.getPath();
+        if (event.getType() != Event.NODE_ADDED && event.getType() != Event.NODE_REMOVED) {
+          // property events carry the property path.
+          int i = path.lastIndexOf('/');
+          path = i > 0 ? path.substring(0, i) : "/";
+        }
+        changed.add(path);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to read event path, clearing search cache {} ", e.getMessage());
+        changed.add("/");
+      }
+    }
+    synchronized (this) {
+      for (String path : changed) {
+        invalidate(path);
+      }
+    }
+  }
+
+  /**
+   * Drop every result whose scope contains or is contained by the path.
+   *
+   * @param path
+   */
+  private void invalidate(String path) {
+    boolean security = path.startsWith(SECURITY_PATH);
+    if (security) {
+      principalKeys.clear();
+    }
+    for (Pending query : pending) {
+      if (security || overlaps(query.scope, path)) {
+        query.stale = true;
+      }
+    }
+    List<String> affected = new ArrayList<String>();
+    // scopes containing the path.
+    String p = path;
+    while (true) {
+      if (scopes.containsKey(p)) {
+        affected.add(p);
+      }
+      if ("/".equals(p)) {
+        break;
+      }
+      int i = p.lastIndexOf('/');
+      p = i > 0 ? p.substring(0, i) : "/";
+    }
+    // scopes under the path, '0' follows '/'.
+    if (!"/".equals(path)) {
+      affected.addAll(scopes.subMap(path + "/", path + "0").keySet());
+    } else {
+      affected.addAll(scopes.keySet());
+    }
+    for (String scope : affected) {
+      Set<String> keys = scopes.remove(scope);
+      if (keys != null) {
+        for (String key : keys) {
+          if (entries.remove(key) != null) {
+            invalidations++;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param scope
+   * @param path
+   * @return true if either is the other or under it.
+   */
+  private static boolean overlaps(String scope, String path) {
+    return isSameOrUnder(path, scope) || isSameOrUnder(scope, path);
+  }
+
+  private static boolean isSameOrUnder(String path, String root) {
+    return "/".equals(root) || path.equals(root) || path.startsWith(root + "/");
+  }
+
+  private void unscope(String key, Result result) {
+    Set<String> keys = scopes.get(result.scope);
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        scopes.remove(result.scope);
+      }
+    }
+  }
+
+  /**
+   * @param session
+   * @return the sorted principal names of the session user.
+   * @throws RepositoryException
+   */
+  private String getPrincipalKey(Session session) throws RepositoryException {
+    String userId = session.getUserID();
+    synchronized (this) {
+      String key = principalKeys.get(userId);
+      if (key != null) {
+        return key;
+      }
+    }
+    PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(session);
+    Set<String> names = new TreeSet<String>();
+    Principal principal = principalManager.getPrincipal(userId);
+    if (principal != null) {
+      names.add(principal.getName());
+      for (PrincipalIterator pi = principalManager.getGroupMembership(principal); pi
+          .hasNext();) {
+        names.add(pi.nextPrincipal().getName());
+      }
+    } else {
+      names.add(userId);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Iterator<String> i = names.iterator(); i.hasNext();) {
+      sb.append(i.next());
+      if (i.hasNext()) {
+        sb.append(',');
+      }
+    }
+    String key = sb.toString();
+    synchronized (this) {
+      principalKeys.put(userId, key);
+    }
+    return key;
+  }
+
+  /**
+   * @param statement
+   * @param language
+   * @return the deepest path that every result of the statement must be under.
+   */
+  static String scopeOf(String statement, String language) {
+    String scope = null;
+    // literals may hold anything, leave them out when looking at the structure.
+    String structure = LITERAL.matcher(statement).replaceAll("''");
+    if (Query.XPATH.equals(language)) {
+      if (structure.indexOf('|') >= 0) {
+        // a union has a root per branch.
+        return "/";
+      }
+      Matcher m = XPATH_ROOT.matcher(statement);
+      if (m.find()) {
+        scope = m.group(1);
+        int descendants = scope.indexOf("//");
+        if (descendants >= 0) {
+          scope = scope.substring(0, descendants);
+        } else if ("(".equals(m.group(2)) || scope.substring(scope.lastIndexOf('/'))
+            .indexOf('*') >= 0) {
+          // the last step is a test like element(...) or *, not a name.
+          scope = parent(scope);
+        }
+        scope = ISO9075.decode(scope);
+      }
+    } else {
+      if (SQL_OR.matcher(structure).find()) {
+        // a row may match without the path constraint.
+        return "/";
+      }
+      Matcher m = SQL_PATH.matcher(statement);
+      if (m.find()) {
+        scope = m.group(1);
+        if (!scope.endsWith("/")) {
+          // a partial name also matches siblings.
+          scope = parent(scope);
+        }
+      }
+    }
+    if (scope == null) {
+      return "/";
+    }
+    while (scope.endsWith("/")) {
+      scope = scope.substring(0, scope.length() - 1);
+    }
+    return scope.length() == 0 ? "/" : scope;
+  }
+
+  private static String parent(String path) {
+    int i = path.lastIndexOf('/');
+    return i > 0 ? path.substring(0, i) : "/";
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getHits()
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getMisses()
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getHitRate()
+   */
+  public synchronized double getHitRate() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0.0 : (double) hits / lookups;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getEvictions()
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getExpirations()
+   */
+  public synchronized long getExpirations() {
+    return expirations;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getInvalidations()
+   */
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getSize()
+   */
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#clear()
+   */
+  public synchronized void clear() {
+    for (Pending query : pending) {
+      query.stale = true;
+    }
+    entries.clear();
+    scopes.clear();
+    principalKeys.clear();
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+    expirations = 0;
+    invalidations = 0;
+  }
+}
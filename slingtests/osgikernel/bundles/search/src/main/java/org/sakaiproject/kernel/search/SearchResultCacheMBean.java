@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+/**
+ * JMX view of the search result cache.
+ */
+public interface SearchResultCacheMBean {
+
+  /**
+   * @return the number of searches answered from the cache.
+   */
+  long getHits();
+
+  /**
+   * @return the number of searches that had to be run.
+   */
+  long getMisses();
+
+  /**
+   * @return hits as a fraction of all lookups.
+   */
+  double getHitRate();
+
+  /**
+   * @return the number of results dropped to make room for others.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of results dropped because they outlived the time to live.
+   */
+  long getExpirations();
+
+  /**
+   * @return the number of results dropped because content under their scope changed.
+   */
+  long getInvalidations();
+
+  /**
+   * @return the number of results held.
+   */
+  int getSize();
+
+  /**
+   * Drop every cached result and reset the counters.
+   */
+  void clear();
+
+}
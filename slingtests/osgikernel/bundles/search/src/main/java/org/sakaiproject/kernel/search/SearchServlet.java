@@ -17,13 +17,18 @@
  */
 package org.sakaiproject.kernel.search;
 
+import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_CURSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_QUERY;
 import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_RESULTS;
+import static org.sakaiproject.kernel.api.search.SearchConstants.KEYSET_VARIABLE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_CURSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_PROVIDER_NAMES;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_KEYSET;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_KEYSET_ORDER;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
@@ -42,6 +47,7 @@ import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
@@ -53,26 +59,38 @@ import org.sakaiproject.kernel.api.search.SearchResultProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * The <code>SearchServlet</code> uses nodes from the
  * 
+ * Results are cached by {@link SearchResultCache} once the servlet is activated with a
+ * repository to observe.
+ * 
  * @scr.component immediate="true" label="SearchServlet"
  *                description="a generic resource driven search servlet"
  * @scr.service interface="javax.servlet.Servlet"
@@ -82,6 +100,8 @@ import javax.servlet.http.HttpServletResponse;
  * @scr.property name="sling.servlet.resourceTypes" values.0="sakai/search"
  * @scr.property name="sling.servlet.methods" value="GET"
  * @scr.property name="sling.servlet.extensions" value="json"
+ * @scr.property name="sakai.search.maxrows" value="1000" type="Integer"
+ *               label="The most results sent in one page"
  * @scr.reference name="SearchResultProcessor"
  *                interface="org.sakaiproject.kernel.api.search.SearchResultProcessor"
  *                bind="bindSearchResultProcessor"
@@ -97,6 +117,9 @@ import javax.servlet.http.HttpServletResponse;
  *                bind="bindSearchPropertyProvider"
  *                unbind="unbindSearchPropertyProvider" cardinality="0..n"
  *                policy="dynamic"
+ * @scr.reference name="SlingRepository"
+ *                interface="org.apache.sling.jcr.api.SlingRepository"
+ *                bind="bindSlingRepository" unbind="unbindSlingRepository"
  */
 public class SearchServlet extends SlingAllMethodsServlet {
 
@@ -106,6 +129,25 @@ public class SearchServlet extends SlingAllMethodsServlet {
   private static final long serialVersionUID = 4130126304725079596L;
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SearchServlet.class);
+  /**
+   * The most search results held in the cache.
+   */
+  private static final int CACHE_MAX_ENTRIES = 1000;
+  /**
+   * Searches with more results than this are not cached.
+   */
+  private static final int CACHE_MAX_ROWS = 500;
+  /**
+   * How long a cached result is used for, in ms.
+   */
+  private static final long CACHE_TTL = 300000L;
+  private static final String PROP_MAX_ROWS = "sakai.search.maxrows";
+  private static final int DEFAULT_MAX_ROWS = 1000;
+  /**
+   * The response buffer, results are flushed to the client each time it fills.
+   */
+  private static final int OUTPUT_BUFFER_SIZE = 8192;
+  private static final String CACHE_MBEAN_NAME = "org.sakaiproject.kernel:type=SearchResultCache";
   private SearchResultProcessor defaultSearchProcessor = new SearchResultProcessor() {
     public void writeNode(JSONWriter write, Node resultNode)
         throws JSONException, RepositoryException {
@@ -139,6 +181,11 @@ public class SearchServlet extends SlingAllMethodsServlet {
   private List<ServiceReference> delayedPropertyReferences = new ArrayList<ServiceReference>();
   private List<ServiceReference> delayedBatchReferences = new ArrayList<ServiceReference>();
 
+  private SlingRepository slingRepository;
+  private Session observationSession;
+  private SearchResultCache resultCache;
+  private int maxRows = DEFAULT_MAX_ROWS;
+
   protected void output(JSONWriter write, NodeIterator resultNodes, long start,
       long end) throws RepositoryException, JSONException {
   }
@@ -163,25 +210,48 @@ public class SearchServlet extends SlingAllMethodsServlet {
         }
         
         
-        int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
+        int nitems = Math.min(intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25),
+            maxRows);
         int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
 
+        // keyset paging resumes after the sort key of the last page, rather than skipping.
+        String keysetProperty = null;
+        KeysetCursor cursor = null;
+        String keysetPredicate = "";
+        if (node.hasProperty(SAKAI_QUERY_KEYSET)) {
+          keysetProperty = node.getProperty(SAKAI_QUERY_KEYSET).getString();
+          boolean descending = node.hasProperty(SAKAI_QUERY_KEYSET_ORDER)
+              && "descending".equals(node.getProperty(SAKAI_QUERY_KEYSET_ORDER)
+                  .getString());
+          RequestParameter cursorParam = request.getRequestParameter(PARAMS_CURSOR);
+          if (cursorParam != null) {
+            try {
+              cursor = KeysetCursor.parse(cursorParam.getString());
+              keysetPredicate = cursor.getPredicate(keysetProperty, descending,
+                  queryLanguage);
+            } catch (IllegalArgumentException e) {
+              response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+              return;
+            }
+            offset = 0;
+          }
+        }
+
         String queryString = processQueryTemplate(request, queryTemplate,
-            queryLanguage, propertyProviderName);
+            queryLanguage, propertyProviderName, keysetPredicate);
 
         LOGGER.debug("Posting Query {} ", queryString);
-        QueryManager queryManager = node.getSession().getWorkspace()
-            .getQueryManager();
-        Query query = queryManager.createQuery(queryString, queryLanguage);
-        QueryResult result = query.execute();
+        NodeIterator resultNodes = executeQuery(node.getSession(), queryString,
+            queryLanguage);
 
-        JSONWriter write = new JSONWriter(response.getWriter());
+        PrintWriter out = response.getWriter();
+        Writer buffer = new BufferedWriter(out, OUTPUT_BUFFER_SIZE);
+        JSONWriter write = new JSONWriter(buffer);
         write.object();
         write.key(JSON_QUERY);
         write.value(queryString);
         write.key(PARAMS_ITEMS_PER_PAGE);
         write.value(nitems);
-        NodeIterator resultNodes = result.getNodes();
         write.key(TOTAL);
         long total = resultNodes.getSize();
         write.value(total);
@@ -211,19 +281,47 @@ public class SearchServlet extends SlingAllMethodsServlet {
         }
         long start = Math.min(offset, total);
         long end = Math.min(offset + nitems, total + 1);
-        resultNodes.skip(start);
-        if (searchBatchProcessor != defaultSearchBatchProcessor) {
-          searchBatchProcessor.writeNodeIterator(write, resultNodes, start, end);
-          LOGGER.info("Using batch processor for results");
-        }else {
-          for (long i = start; i < end && resultNodes.hasNext(); i++) {
-            LOGGER.info("Using regular processor for results");
-            Node resultNode = resultNodes.nextNode();
-            searchProcessor.writeNode(write, resultNode);
+        try {
+          if (cursor != null) {
+            // rows sharing the last sort key that were sent with the previous page.
+            resultNodes.skip(cursor.getCount());
+            start = 0;
+            end = nitems;
+          } else {
+            resultNodes.skip(start);
+          }
+        } catch (NoSuchElementException e) {
+          // past the end, the page is empty.
+        }
+        KeysetNodeIterator keysetNodes = null;
+        if (keysetProperty != null) {
+          keysetNodes = new KeysetNodeIterator(resultNodes, keysetProperty, cursor);
+          resultNodes = keysetNodes;
+        }
+        // rows are written as they are read, and stop at the end of the page. Batch
+        // processors see every remaining row and apply start and end themselves.
+        boolean batch = searchBatchProcessor != defaultSearchBatchProcessor;
+        StreamingNodeIterator streamingNodes = new StreamingNodeIterator(resultNodes,
+            batch ? Long.MAX_VALUE : end - start, buffer, out);
+        if (batch) {
+          LOGGER.debug("Using batch processor for results");
+          searchBatchProcessor.writeNodeIterator(write, streamingNodes, start, end);
+        } else {
+          while (streamingNodes.hasNext()) {
+            searchProcessor.writeNode(write, streamingNodes.nextNode());
           }
         }
+        if (streamingNodes.isAborted()) {
+          return;
+        }
         write.endArray();
+        if (keysetNodes != null && keysetNodes.getReturnedCount() == end - start
+            && keysetNodes.getCursor() != null) {
+          write.key(JSON_CURSOR);
+          write.value(keysetNodes.getCursor().toToken());
+        }
         write.endObject();
+        buffer.flush();
       }
     } catch (RepositoryException e) {
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e
@@ -236,6 +334,64 @@ public class SearchServlet extends SlingAllMethodsServlet {
     }
   }
 
+  /**
+   * Run the query, or use the cached result of an identical query by a user with the
+   * same principals.
+   * 
+   * @param session
+   *          the session of the user searching.
+   * @param queryString
+   *          the expanded query.
+   * @param queryLanguage
+   *          the query language.
+   * @return the result nodes.
+   * @throws RepositoryException
+   */
+  private NodeIterator executeQuery(Session session, String queryString,
+      String queryLanguage) throws RepositoryException {
+    SearchResultCache cache = resultCache;
+    String key = null;
+    if (cache != null) {
+      key = cache.getKey(queryString, queryLanguage, session);
+      SearchResultCache.Result cached = cache.get(key);
+      if (cached != null) {
+        if (cached.getPaths() != null) {
+          return new CachedNodeIterator(cached.getPaths(), session);
+        }
+        // known to be too large to cache.
+        key = null;
+      }
+    }
+    QueryManager queryManager = session.getWorkspace().getQueryManager();
+    Query query = queryManager.createQuery(queryString, queryLanguage);
+    if (key == null) {
+      return query.execute().getNodes();
+    }
+    SearchResultCache.Pending pending = cache.start(queryString, queryLanguage);
+    try {
+      NodeIterator resultNodes = query.execute().getNodes();
+      int maxRows = cache.getMaxRows();
+      if (resultNodes.getSize() > maxRows) {
+        cache.put(key, pending, null);
+        return resultNodes;
+      }
+      List<String> paths = new ArrayList<String>();
+      while (resultNodes.hasNext()) {
+        if (paths.size() == maxRows) {
+          // the size was not known up front, carry on with the rest of the result rather
+          // than hold it all.
+          cache.put(key, pending, null);
+          return new CachedNodeIterator(paths, session, resultNodes);
+        }
+        paths.add(resultNodes.nextNode().getPath());
+      }
+      cache.put(key, pending, paths);
+      return new CachedNodeIterator(paths, session);
+    } finally {
+      cache.finish(pending);
+    }
+  }
+
   private int intRequestParameter(SlingHttpServletRequest request,
       String paramName, int defaultVal) {
     RequestParameter param = request.getRequestParameter(paramName);
@@ -265,6 +421,26 @@ public class SearchServlet extends SlingAllMethodsServlet {
    */
   protected String processQueryTemplate(SlingHttpServletRequest request,
       String queryTemplate, String queryLanguage, String propertyProviderName) {
+    return processQueryTemplate(request, queryTemplate, queryLanguage,
+        propertyProviderName, "");
+  }
+
+  /**
+   * Processes a query template as above, replacing {_keyset} with the unescaped keyset
+   * predicate.
+   * 
+   * @param request
+   *          the request.
+   * @param queryTemplate
+   *          the query template.
+   * @param propertyProviderName
+   * @param keysetPredicate
+   *          the keyset range predicate, empty for the first page.
+   * @return A processed query template.
+   */
+  protected String processQueryTemplate(SlingHttpServletRequest request,
+      String queryTemplate, String queryLanguage, String propertyProviderName,
+      String keysetPredicate) {
     Map<String, String> propertiesMap = loadUserProperties(request,
         propertyProviderName);
 
@@ -288,7 +464,10 @@ public class SearchServlet extends SlingAllMethodsServlet {
             v = val[0];
             defaultValue = val[1];
           }
-          if (v.startsWith("_")) {
+          if (KEYSET_VARIABLE.equals(v)) {
+            // built from a parsed cursor, already quoted for the query language.
+            sb.append(keysetPredicate);
+          } else if (v.startsWith("_")) {
             String value = propertiesMap.get(v);
             if (value != null) {
               sb.append(escapeString(value, queryLanguage));
@@ -547,6 +726,29 @@ public class SearchServlet extends SlingAllMethodsServlet {
   }
 
   protected void activate(ComponentContext componentContext) {
+    maxRows = OsgiUtil.toInteger(componentContext.getProperties().get(PROP_MAX_ROWS),
+        DEFAULT_MAX_ROWS);
+    if (slingRepository != null) {
+      try {
+        SearchResultCache cache = new SearchResultCache(CACHE_MAX_ENTRIES,
+            CACHE_MAX_ROWS, CACHE_TTL);
+        observationSession = slingRepository.loginAdministrative(null);
+        observationSession.getWorkspace().getObservationManager().addEventListener(
+            cache,
+            Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED
+                | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, "/", true, null,
+            null, false);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CACHE_MBEAN_NAME);
+        if (mbeanServer.isRegistered(name)) {
+          mbeanServer.unregisterMBean(name);
+        }
+        mbeanServer.registerMBean(cache, name);
+        resultCache = cache;
+      } catch (Exception e) {
+        LOGGER.warn("Search results will not be cached: " + e.getMessage(), e);
+      }
+    }
 
     synchronized (delayedReferences) {
       osgiComponentContext = componentContext;
@@ -571,4 +773,38 @@ public class SearchServlet extends SlingAllMethodsServlet {
     }
   }
 
+  protected void deactivate(ComponentContext componentContext) {
+    SearchResultCache cache = resultCache;
+    resultCache = null;
+    if (observationSession != null) {
+      try {
+        if (cache != null) {
+          observationSession.getWorkspace().getObservationManager()
+              .removeEventListener(cache);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to stop observing for the search cache {} ", e.getMessage());
+      }
+      observationSession.logout();
+      observationSession = null;
+    }
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(CACHE_MBEAN_NAME);
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Unable to unregister the search cache {} ", e.getMessage());
+    }
+  }
+
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
+
 }
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.NoSuchElementException;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+
+/**
+ * Hands search results to a processor as they are read from the query, ending after a
+ * number of rows or once the client has gone away. Every few rows the JSON written so
+ * far is flushed to the response, so nothing more than a buffer of output is held, and
+ * the response is checked for a failed write.
+ */
+public class StreamingNodeIterator implements NodeIterator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamingNodeIterator.class);
+  /**
+   * How many rows are written between flushes.
+   */
+  static final int FLUSH_ROWS = 25;
+
+  private NodeIterator delegate;
+  private long limit;
+  private Writer buffer;
+  private PrintWriter out;
+  private long returned;
+  private long checked;
+  private boolean aborted;
+
+  /**
+   * @param delegate
+   *          the result nodes.
+   * @param limit
+   *          the most nodes to hand out.
+   * @param buffer
+   *          the buffered writer the results are written to.
+   * @param out
+   *          the response writer under the buffer.
+   */
+  public StreamingNodeIterator(NodeIterator delegate, long limit, Writer buffer,
+      PrintWriter out) {
+    this.delegate = delegate;
+    this.limit = limit;
+    this.buffer = buffer;
+    this.out = out;
+  }
+
+  /**
+   * @return true if writing stopped because the client went away.
+   */
+  public boolean isAborted() {
+    return aborted;
+  }
+
+  /**
+   * @return how many nodes have been handed out.
+   */
+  public long getReturnedCount() {
+    return returned;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#hasNext()
+   */
+  public boolean hasNext() {
+    if (aborted || returned >= limit) {
+      return false;
+    }
+    if (returned > checked && returned % FLUSH_ROWS == 0) {
+      checked = returned;
+      if (clientGone()) {
+        return false;
+      }
+    }
+    return delegate.hasNext();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.NodeIterator#nextNode()
+   */
+  public Node nextNode() {
+    if (aborted || returned >= limit) {
+      throw new NoSuchElementException();
+    }
+    returned++;
+    return delegate.nextNode();
+  }
+
+  private boolean clientGone() {
+    try {
+      buffer.flush();
+    } catch (IOException e) {
+      aborted = true;
+    }
+    // a PrintWriter swallows write failures, checkError is the only way to see them.
+    if (!aborted && out.checkError()) {
+      aborted = true;
+    }
+    if (aborted) {
+      LOGGER.debug("Client went away after {} search results ", returned);
+    }
+    return aborted;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#getPosition()
+   */
+  public long getPosition() {
+    return delegate.getPosition();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#getSize()
+   */
+  public long getSize() {
+    return delegate.getSize();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#skip(long)
+   */
+  public void skip(long skipNum) {
+    for (long i = 0; i < skipNum; i++) {
+      nextNode();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#next()
+   */
+  public Object next() {
+    return nextNode();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#remove()
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -22,7 +22,7 @@ public class NodeSearchBatchResultProcessor implements SearchBatchResultProcesso
   public void writeNodeIterator(JSONWriter write, NodeIterator nodeIterator, long start,
       long end) throws JSONException, RepositoryException {
 
-    while (nodeIterator.hasNext()) {
+    for (long i = start; i < end && nodeIterator.hasNext(); i++) {
       ExtendedJSONWriter.writeNodeToWriter(write, nodeIterator.nextNode());
     }
 
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * 
+ */
+public class CachedNodeIteratorTest {
+
+  @Test
+  public void testCarriesOnWithTheRestOfTheResult() throws RepositoryException {
+    Node a = createMock(Node.class);
+    expect(a.isNode()).andReturn(true).anyTimes();
+    Node c = createMock(Node.class);
+    Session session = createMock(Session.class);
+    expect(session.itemExists("/a")).andReturn(true);
+    expect(session.getItem("/a")).andReturn(a);
+    expect(session.itemExists("/b")).andReturn(false);
+    NodeIterator rest = createMock(NodeIterator.class);
+    // the first two rows have already been read from the result.
+    expect(rest.getSize()).andReturn(-1L).anyTimes();
+    expect(rest.hasNext()).andReturn(true);
+    expect(rest.nextNode()).andReturn(c);
+    expect(rest.getPosition()).andReturn(3L);
+    expect(rest.hasNext()).andReturn(false);
+    replay(a, c, session, rest);
+
+    CachedNodeIterator iterator = new CachedNodeIterator(Arrays.asList("/a", "/b"),
+        session, rest);
+    assertEquals(-1L, iterator.getSize());
+    assertTrue(iterator.hasNext());
+    assertSame(a, iterator.nextNode());
+    assertTrue(iterator.hasNext());
+    assertSame(c, iterator.nextNode());
+    assertEquals(3L, iterator.getPosition());
+    assertFalse(iterator.hasNext());
+  }
+}
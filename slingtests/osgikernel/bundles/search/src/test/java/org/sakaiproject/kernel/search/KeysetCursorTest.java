@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+
+/**
+ * 
+ */
+public class KeysetCursorTest {
+
+  @Test
+  public void testToken() {
+    KeysetCursor cursor = new KeysetCursor(PropertyType.STRING, "it's: \u00e9", 3);
+    KeysetCursor parsed = KeysetCursor.parse(cursor.toToken());
+    assertEquals(PropertyType.STRING, parsed.getType());
+    assertEquals("it's: \u00e9", parsed.getValue());
+    assertEquals(3, parsed.getCount());
+    for (String bad : new String[] { "abc", "zz", "6869" }) {
+      try {
+        KeysetCursor.parse(bad);
+        fail("Expected " + bad + " to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected.
+      }
+    }
+  }
+
+  @Test
+  public void testPredicate() {
+    KeysetCursor date = new KeysetCursor(PropertyType.DATE, "2009-05-01T10:00:00.000Z", 1);
+    assertEquals(" and @sakai:created <= xs:dateTime('2009-05-01T10:00:00.000Z')", date
+        .getPredicate("sakai:created", true, Query.XPATH));
+    assertEquals(" and sakai:created >= TIMESTAMP '2009-05-01T10:00:00.000Z'", date
+        .getPredicate("sakai:created", false, Query.SQL));
+    KeysetCursor string = new KeysetCursor(PropertyType.STRING, "o'brien", 1);
+    assertEquals(" and @name >= 'o''brien'", string.getPredicate("name", false,
+        Query.XPATH));
+    assertEquals(" and @size <= 42", new KeysetCursor(PropertyType.LONG, "42", 1)
+        .getPredicate("size", true, Query.XPATH));
+    try {
+      new KeysetCursor(PropertyType.LONG, "1 or 1=1", 1).getPredicate("size", true,
+          Query.SQL);
+      fail("Expected a non numeric key to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected.
+    }
+  }
+
+  @Test
+  public void testTiesAreCounted() throws RepositoryException {
+    NodeIterator nodes = createMock(NodeIterator.class);
+    expect(nodes.nextNode()).andReturn(node("a"));
+    expect(nodes.nextNode()).andReturn(node("b"));
+    expect(nodes.nextNode()).andReturn(node("b"));
+    replay(nodes);
+    KeysetNodeIterator iterator = new KeysetNodeIterator(nodes, "key", new KeysetCursor(
+        PropertyType.STRING, "a", 2));
+    iterator.nextNode();
+    assertEquals(3, iterator.getCursor().getCount());
+    iterator.nextNode();
+    iterator.nextNode();
+    assertEquals("b", iterator.getCursor().getValue());
+    assertEquals(2, iterator.getCursor().getCount());
+    assertEquals(3, iterator.getReturnedCount());
+  }
+
+  @Test
+  public void testMissingKeyLosesCursor() throws RepositoryException {
+    Node keyless = createMock(Node.class);
+    expect(keyless.hasProperty("key")).andReturn(false);
+    replay(keyless);
+    NodeIterator nodes = createMock(NodeIterator.class);
+    expect(nodes.nextNode()).andReturn(keyless);
+    replay(nodes);
+    KeysetNodeIterator iterator = new KeysetNodeIterator(nodes, "key", null);
+    iterator.nextNode();
+    assertNull(iterator.getCursor());
+  }
+
+  private Node node(String key) throws RepositoryException {
+    Property property = createMock(Property.class);
+    expect(property.getString()).andReturn(key).anyTimes();
+    expect(property.getType()).andReturn(PropertyType.STRING).anyTimes();
+    Node node = createMock(Node.class);
+    expect(node.hasProperty("key")).andReturn(true).anyTimes();
+    expect(node.getProperty("key")).andReturn(property).anyTimes();
+    replay(property, node);
+    return node;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.principal.PrincipalManager;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.query.Query;
+
+/**
+ * 
+ */
+public class SearchResultCacheTest {
+
+  private static final List<String> PATHS = Arrays.asList("/a/b/c");
+
+  @Test
+  public void testScopeOf() {
+    assertEquals("/_user/message/ab/bob", SearchResultCache.scopeOf(
+        "/jcr:root/_user/message/ab/bob//*[@sakai:type='message']", Query.XPATH));
+    assertEquals("/sites", SearchResultCache.scopeOf(
+        "/jcr:root/sites/element(*, sakai:site)", Query.XPATH));
+    assertEquals("/sites", SearchResultCache.scopeOf("/jcr:root/sites/*[@a='b']",
+        Query.XPATH));
+    assertEquals("/sites/a", SearchResultCache.scopeOf("/jcr:root/sites/a[@a='b']",
+        Query.XPATH));
+    assertEquals("/", SearchResultCache.scopeOf("//*[jcr:contains(.,'x')]", Query.XPATH));
+    assertEquals("/sites/public", SearchResultCache.scopeOf(
+        "select * from nt:base where jcr:path like '/sites/public/%'", Query.SQL));
+    assertEquals("/sites", SearchResultCache.scopeOf(
+        "select * from nt:base where jcr:path like '/sites/pub%'", Query.SQL));
+    // _ matches any character in a like pattern.
+    assertEquals("/", SearchResultCache.scopeOf(
+        "select * from nt:base where jcr:path like '/_user/public/%'", Query.SQL));
+    assertEquals("/", SearchResultCache.scopeOf("select * from nt:base", Query.SQL));
+    // unions and ors are not held to one root.
+    assertEquals("/", SearchResultCache.scopeOf("/jcr:root/a//* | /jcr:root/b//*",
+        Query.XPATH));
+    assertEquals("/", SearchResultCache.scopeOf(
+        "select * from nt:base where jcr:path like '/a/%' or jcr:path like '/b/%'",
+        Query.SQL));
+    assertEquals("/a", SearchResultCache.scopeOf(
+        "select * from nt:base where jcr:path like '/a/%' and title = 'this or that'",
+        Query.SQL));
+    assertEquals("/a", SearchResultCache.scopeOf("/jcr:root/a//*[@title='x|y']",
+        Query.XPATH));
+  }
+
+  @Test
+  public void testInvalidation() {
+    SearchResultCache cache = new SearchResultCache(10, 10, 60000);
+    cache.put("inside", cache.start("/jcr:root/a/b//*", Query.XPATH), PATHS);
+    cache.put("above", cache.start("/jcr:root/a/b/c/d//*", Query.XPATH), PATHS);
+    cache.put("beside", cache.start("/jcr:root/a/x//*", Query.XPATH), PATHS);
+    // a property change on /a/b/c is a change to the node /a/b/c.
+    cache.onEvent(events(event(Event.PROPERTY_CHANGED, "/a/b/c/title")));
+    assertNull(cache.get("inside"));
+    assertNull(cache.get("above"));
+    assertNotNull(cache.get("beside"));
+    assertEquals(2, cache.getInvalidations());
+    cache.onEvent(events(event(Event.NODE_REMOVED, "/a")));
+    assertNull(cache.get("beside"));
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testStaleResultIsNotCached() {
+    SearchResultCache cache = new SearchResultCache(10, 10, 60000);
+    SearchResultCache.Pending query = cache.start("/jcr:root/a//*", Query.XPATH);
+    cache.onEvent(events(event(Event.NODE_ADDED, "/a/b")));
+    cache.put("key", query, PATHS);
+    assertNull(cache.get("key"));
+  }
+
+  @Test
+  public void testChangeElsewhereKeepsRunningQuery() {
+    SearchResultCache cache = new SearchResultCache(10, 10, 60000);
+    SearchResultCache.Pending query = cache.start("/jcr:root/a//*", Query.XPATH);
+    SearchResultCache.Pending everywhere = cache.start("//*[@x='y']", Query.XPATH);
+    cache.onEvent(events(event(Event.NODE_ADDED, "/elsewhere")));
+    cache.put("key", query, PATHS);
+    cache.put("everywhere", everywhere, PATHS);
+    assertNotNull(cache.get("key"));
+    assertNull(cache.get("everywhere"));
+  }
+
+  @Test
+  public void testFinishedQueryIsNotCached() {
+    SearchResultCache cache = new SearchResultCache(10, 10, 60000);
+    SearchResultCache.Pending query = cache.start("/jcr:root/a//*", Query.XPATH);
+    cache.finish(query);
+    cache.put("key", query, PATHS);
+    assertNull(cache.get("key"));
+  }
+
+  @Test
+  public void testEvictionAndStatistics() {
+    SearchResultCache cache = new SearchResultCache(2, 10, 60000);
+    cache.put("a", cache.start("/jcr:root/a//*", Query.XPATH), PATHS);
+    cache.put("b", cache.start("/jcr:root/b//*", Query.XPATH), null);
+    assertNotNull(cache.get("a"));
+    cache.put("c", cache.start("/jcr:root/c//*", Query.XPATH), PATHS);
+    assertNull("Expected the least recently used to go", cache.get("b"));
+    assertEquals(PATHS, cache.get("a").getPaths());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    // the evicted entry is no longer scoped, so this invalidates nothing.
+    cache.onEvent(events(event(Event.NODE_ADDED, "/b/x")));
+    assertEquals(0, cache.getInvalidations());
+    assertEquals(2, cache.getSize());
+  }
+
+  @Test
+  public void testPrincipalKeysAreBounded() throws Exception {
+    SearchResultCache cache = new SearchResultCache(1, 10, 60000);
+    // bob is looked up again once alice has pushed him out, alice only once.
+    JackrabbitSession bob = principalSession("bob", 2);
+    JackrabbitSession alice = principalSession("alice", 1);
+    assertEquals(Query.XPATH + "\nbob\n/jcr:root/a//*", cache.getKey("/jcr:root/a//*",
+        Query.XPATH, bob));
+    cache.getKey("/jcr:root/a//*", Query.XPATH, alice);
+    cache.getKey("/jcr:root/b//*", Query.XPATH, alice);
+    cache.getKey("/jcr:root/a//*", Query.XPATH, bob);
+    verify(bob, alice);
+  }
+
+  private JackrabbitSession principalSession(String userId, int lookups)
+      throws Exception {
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    PrincipalManager principalManager = createMock(PrincipalManager.class);
+    expect(session.getUserID()).andReturn(userId).anyTimes();
+    expect(session.getPrincipalManager()).andReturn(principalManager).times(lookups);
+    expect(principalManager.getPrincipal(userId)).andReturn(null).times(lookups);
+    replay(session, principalManager);
+    return session;
+  }
+
+  private Event event(int type, String path) {
+    Event event = createMock(Event.class);
+    try {
+      expect(event.getType()).andReturn(type).anyTimes();
+      expect(event.getPath()).andReturn(path).anyTimes();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    replay(event);
+    return event;
+  }
+
+  private EventIterator events(Event... events) {
+    final List<Event> list = Arrays.asList(events);
+    return new EventIterator() {
+      private Iterator<Event> i = list.iterator();
+      private long position = 0;
+
+      public Event nextEvent() {
+        position++;
+        return i.next();
+      }
+
+      public long getPosition() {
+        return position;
+      }
+
+      public long getSize() {
+        return list.size();
+      }
+
+      public void skip(long skipNum) {
+        for (long n = 0; n < skipNum; n++) {
+          nextEvent();
+        }
+      }
+
+      public boolean hasNext() {
+        return i.hasNext();
+      }
+
+      public Object next() {
+        return nextEvent();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
@@ -2,8 +2,12 @@ package org.sakaiproject.kernel.search;
 
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.kernel.api.search.SearchConstants.REG_BATCH_PROCESSOR_NAMES;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SEARCH_BATCH_RESULT_PROCESSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_KEYSET;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
@@ -12,13 +16,20 @@ import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_BATCHRESU
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.search.SearchBatchResultProcessor;
 import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Hashtable;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -37,6 +48,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
   private SlingHttpServletResponse response;
   private SearchServlet searchServlet;
   private StringWriter stringWriter;
+  private ComponentContext componentContext;
 
   private static final String SQL_QUERY = "select * from \\y where x = '{q}'";
 
@@ -92,6 +104,54 @@ public class SearchServletTest extends AbstractEasyMockTest {
     executeQuery(queryNode);
   }
 
+  @Test
+  public void testBatchProcessorSeesEveryRow() throws Exception {
+    Node queryNode = prepareNodeSessionWithQueryManagerAndResultNodes(
+        "select * from y where x = 'foo'", createMock(Node.class), createMock(Node.class),
+        createMock(Node.class));
+
+    addStringPropertyToNode(queryNode, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    addStringPropertyToNode(queryNode, SAKAI_QUERY_LANGUAGE, Query.SQL);
+    expect(queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)).andReturn(false).anyTimes();
+    addStringPropertyToNode(queryNode, SAKAI_BATCHRESULTPROCESSOR, "count");
+
+    Resource resource = createMock(Resource.class);
+    expect(resource.adaptTo(Node.class)).andReturn(queryNode);
+
+    request = createMock(SlingHttpServletRequest.class);
+    expect(request.getRemoteUser()).andReturn("bob").anyTimes();
+    expect(request.getResource()).andReturn(resource);
+    expect(request.getRequestParameter(PARAMS_PAGE)).andReturn(null);
+    addStringRequestParameter(request, "items", "1");
+    addStringRequestParameter(request, "q", "foo");
+
+    // counts every row, as the tag counting processors do.
+    SearchBatchResultProcessor processor = new SearchBatchResultProcessor() {
+      public void writeNodeIterator(JSONWriter write, NodeIterator nodeIterator,
+          long start, long end) throws JSONException, RepositoryException {
+        int rows = 0;
+        while (nodeIterator.hasNext()) {
+          nodeIterator.nextNode();
+          rows++;
+        }
+        write.value(rows);
+      }
+    };
+    ServiceReference serviceReference = createMock(ServiceReference.class);
+    expect(serviceReference.getProperty(Constants.SERVICE_ID)).andReturn(1L).anyTimes();
+    expect(serviceReference.getProperty(REG_BATCH_PROCESSOR_NAMES)).andReturn("count")
+        .anyTimes();
+    componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(new Hashtable<String, Object>())
+        .anyTimes();
+    expect(componentContext.locateService(SEARCH_BATCH_RESULT_PROCESSOR, serviceReference))
+        .andReturn(processor).anyTimes();
+    searchServlet.bindSearchBatchResultProcessor(serviceReference);
+
+    executeQuery(queryNode);
+    assertTrue(stringWriter.toString(), stringWriter.toString().contains("[3]"));
+  }
+
   @Test
   public void testDefaultLanguageAndBadItemCount() throws ValueFormatException,
       RepositoryException, IOException, ServletException {
@@ -159,16 +219,22 @@ public class SearchServletTest extends AbstractEasyMockTest {
 
   private Node prepareNodeSessionWithQueryManagerAndResultNode(Node resultNode,
       String expectedQuery) throws RepositoryException {
+    if (resultNode == null) {
+      return prepareNodeSessionWithQueryManagerAndResultNodes(expectedQuery);
+    }
+    return prepareNodeSessionWithQueryManagerAndResultNodes(expectedQuery, resultNode);
+  }
+
+  private Node prepareNodeSessionWithQueryManagerAndResultNodes(String expectedQuery,
+      Node... resultNodes) throws RepositoryException {
     Node queryNode = createMock(Node.class);
 
     NodeIterator nodeIterator = createMock(NodeIterator.class);
-    if (resultNode == null) {
-      expect(nodeIterator.hasNext()).andReturn(false);
-    } else {
+    for (Node resultNode : resultNodes) {
       expect(nodeIterator.hasNext()).andReturn(true);
       expect(nodeIterator.nextNode()).andReturn(resultNode);
-      expect(nodeIterator.hasNext()).andReturn(false);
     }
+    expect(nodeIterator.hasNext()).andReturn(false);
     nodeIterator.skip(0);
     expect(nodeIterator.getSize()).andReturn(500L).anyTimes();
 
@@ -188,6 +254,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(session.getWorkspace()).andReturn(workspace);
 
     expect(queryNode.getSession()).andReturn(session);
+    expect(queryNode.hasProperty(SAKAI_QUERY_KEYSET)).andReturn(false).anyTimes();
 
     return queryNode;
   }
@@ -197,11 +264,13 @@ public class SearchServletTest extends AbstractEasyMockTest {
     stringWriter = new StringWriter();
     response = createMock(SlingHttpServletResponse.class);
     expect(response.getWriter()).andReturn(new PrintWriter(stringWriter));
-    searchServlet = new SearchServlet();
     expect(queryNode.hasProperty(SAKAI_RESULTPROCESSOR)).andReturn(false)
         .anyTimes();
 
     replay();
+    if (componentContext != null) {
+      searchServlet.activate(componentContext);
+    }
 
     searchServlet.doGet(request, response);
     stringWriter.close();
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+
+/**
+ * 
+ */
+public class StreamingNodeIteratorTest {
+
+  @Test
+  public void testLimit() {
+    NodeIterator nodes = createMock(NodeIterator.class);
+    expect(nodes.hasNext()).andReturn(true).anyTimes();
+    expect(nodes.nextNode()).andReturn(createMock(Node.class)).anyTimes();
+    replay(nodes);
+    PrintWriter out = new PrintWriter(new StringWriter());
+    StreamingNodeIterator iterator = new StreamingNodeIterator(nodes, 60,
+        new BufferedWriter(out), out);
+    int n = 0;
+    while (iterator.hasNext()) {
+      iterator.nextNode();
+      n++;
+    }
+    assertEquals(60, n);
+    assertFalse(iterator.isAborted());
+  }
+
+  @Test
+  public void testClientAbort() throws IOException {
+    NodeIterator nodes = createMock(NodeIterator.class);
+    expect(nodes.hasNext()).andReturn(true).anyTimes();
+    expect(nodes.nextNode()).andReturn(createMock(Node.class)).anyTimes();
+    replay(nodes);
+    PrintWriter out = new PrintWriter(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Connection reset by peer");
+      }
+    });
+    Writer buffer = new BufferedWriter(out);
+    StreamingNodeIterator iterator = new StreamingNodeIterator(nodes, 1000, buffer, out);
+    int n = 0;
+    while (iterator.hasNext()) {
+      iterator.nextNode();
+      buffer.write("{\"row\":" + n + "}");
+      n++;
+    }
+    assertTrue(iterator.isAborted());
+    assertEquals(StreamingNodeIterator.FLUSH_ROWS, n);
+  }
+}
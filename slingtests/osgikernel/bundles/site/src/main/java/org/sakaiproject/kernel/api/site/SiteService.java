@@ -21,6 +21,7 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -286,6 +287,30 @@ public interface SiteService {
   Map<String, List<Group>> getMembership(Session session, String user)
       throws SiteException;
 
+  /**
+   * Get the sites a user is a member of without resolving the groups, served from
+   * memory once the user has been seen.
+   * 
+   * @param session
+   *          the session to read the groups of the user with.
+   * @param user
+   *          the id of the user.
+   * @return the paths of the sites, each with the ids of the groups that make the user a
+   *         member.
+   * @throws SiteException
+   */
+  Map<String, List<String>> getMembershipIds(Session session, String user)
+      throws SiteException;
+
+  /**
+   * Tell the service the sites an authorizable is part of have been changed directly,
+   * so memberships derived from them are read again.
+   * 
+   * @param authorizables
+   *          the ids of the authorizables whose sites changed.
+   */
+  void sitesChanged(Collection<String> authorizables);
+
   /**
    * Gets the default site template for the node, this must be a node that exist and is
    * readable by the current session.
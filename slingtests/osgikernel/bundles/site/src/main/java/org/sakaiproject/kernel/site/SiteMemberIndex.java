@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import org.sakaiproject.kernel.api.site.SortField;
+import org.sakaiproject.kernel.api.site.SortOrder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * The users of a site kept sorted on one field, so a page in either direction is a slice.
+ * Names sort ignoring case; ties are broken by the other name and then by id. Users
+ * added after the index was built wait in a pending set and are placed, with a binary
+ * search, the next time a page is read, so the names of only those users are read.
+ * <p>
+ * Not thread safe, {@link SiteMembers} guards it.
+ */
+public class SiteMemberIndex {
+
+  /**
+   * Reads the names a user is sorted by.
+   */
+  public interface NameReader {
+    /**
+     * @param userId
+     * @return the first and last name of the user, either may be null.
+     * @throws RepositoryException
+     */
+    String[] getNames(String userId) throws RepositoryException;
+  }
+
+  private static final class Entry {
+    private final String id;
+    private final String primary;
+    private final String secondary;
+
+    private Entry(String id, String primary, String secondary) {
+      this.id = id;
+      this.primary = primary;
+      this.secondary = secondary;
+    }
+  }
+
+  private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+    public int compare(Entry o1, Entry o2) {
+      int i = o1.primary.compareTo(o2.primary);
+      if (i == 0) {
+        i = o1.secondary.compareTo(o2.secondary);
+        if (i == 0) {
+          i = o1.id.compareTo(o2.id);
+        }
+      }
+      return i;
+    }
+  };
+
+  private final SortField field;
+  private final ArrayList<Entry> entries;
+  private final Map<String, Entry> byId;
+  private final Set<String> pending = new LinkedHashSet<String>();
+
+  private SiteMemberIndex(SortField field, ArrayList<Entry> entries) {
+    this.field = field;
+    this.entries = entries;
+    this.byId = new HashMap<String, Entry>(entries.size() * 2);
+    for (Entry e : entries) {
+      byId.put(e.id, e);
+    }
+  }
+
+  /**
+   * Build an index, reading the names of every user.
+   *
+   * @param field
+   *          the field to sort on.
+   * @param users
+   *          the ids of the users.
+   * @param names
+   *          reads the names of a user, not used when sorting on id.
+   * @return the index.
+   * @throws RepositoryException
+   */
+  public static SiteMemberIndex build(SortField field, Collection<String> users,
+      NameReader names) throws RepositoryException {
+    ArrayList<Entry> entries = new ArrayList<Entry>(users.size());
+    for (String user : users) {
+      entries.add(newEntry(field, user, names));
+    }
+    Collections.sort(entries, ORDER);
+    return new SiteMemberIndex(field, entries);
+  }
+
+  /**
+   * @return the field the index is sorted on.
+   */
+  public SortField getField() {
+    return field;
+  }
+
+  /**
+   * @return the number of users placed in the index.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @param id
+   * @return true if the user is in the index or waiting to be placed.
+   */
+  public boolean contains(String id) {
+    return byId.containsKey(id) || pending.contains(id);
+  }
+
+  /**
+   * A user to place when the index is next read.
+   *
+   * @param id
+   */
+  public void add(String id) {
+    if (!byId.containsKey(id)) {
+      pending.add(id);
+    }
+  }
+
+  /**
+   * Take a user out of the index.
+   *
+   * @param id
+   */
+  public void remove(String id) {
+    pending.remove(id);
+    Entry e = byId.remove(id);
+    if (e != null) {
+      entries.remove(Collections.binarySearch(entries, e, ORDER));
+    }
+  }
+
+  /**
+   * Read the names of a user again, the next time the index is read.
+   *
+   * @param id
+   */
+  public void refresh(String id) {
+    if (byId.containsKey(id)) {
+      remove(id);
+      pending.add(id);
+    }
+  }
+
+  /**
+   * @param order
+   *          the direction to page in.
+   * @param start
+   *          the first item.
+   * @param nitems
+   *          the number of items.
+   * @param names
+   *          reads the names of users waiting to be placed.
+   * @return the ids of the users in the page.
+   * @throws RepositoryException
+   */
+  public List<String> page(SortOrder order, int start, int nitems, NameReader names)
+      throws RepositoryException {
+    placePending(names);
+    int size = entries.size();
+    int from = Math.min(Math.max(start, 0), size);
+    int to = Math.min(size, from + Math.max(nitems, 0));
+    List<String> page = new ArrayList<String>(to - from);
+    boolean desc = SortOrder.desc.equals(order);
+    for (int i = from; i < to; i++) {
+      page.add(entries.get(desc ? size - 1 - i : i).id);
+    }
+    return page;
+  }
+
+  private void placePending(NameReader names) throws RepositoryException {
+    // each user leaves pending as it is placed, so a failed read leaves the rest pending.
+    for (Iterator<String> ids = pending.iterator(); ids.hasNext();) {
+      String id = ids.next();
+      Entry e = newEntry(field, id, names);
+      int i = Collections.binarySearch(entries, e, ORDER);
+      entries.add(i < 0 ? -i - 1 : i, e);
+      byId.put(id, e);
+      ids.remove();
+    }
+  }
+
+  private static Entry newEntry(SortField field, String id, NameReader names)
+      throws RepositoryException {
+    if (SortField.id.equals(field)) {
+      return new Entry(id, id, "");
+    }
+    String[] n = names.getNames(id);
+    String firstName = normalize(n == null ? null : n[0]);
+    String lastName = normalize(n == null ? null : n[1]);
+    if (SortField.firstName.equals(field)) {
+      return new Entry(id, firstName, lastName);
+    }
+    return new Entry(id, lastName, firstName);
+  }
+
+  private static String normalize(String name) {
+    return name == null ? "" : name.toLowerCase();
+  }
+}
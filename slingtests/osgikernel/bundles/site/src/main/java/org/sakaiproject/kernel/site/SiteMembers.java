@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import org.sakaiproject.kernel.api.site.Sort;
+import org.sakaiproject.kernel.api.site.SortField;
+import org.sakaiproject.kernel.site.SiteMemberIndex.NameReader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * The flattened membership of a site: every group and user reachable from the
+ * authorizables of the site, each with the group it was found through. Held by id
+ * only, so it can be shared between sessions. Users may be added in place as they join
+ * a group of the site; anything else builds a new membership.
+ * <p>
+ * For each sort field a {@link SiteMemberIndex} is built on first use and then kept
+ * current as users are added, so a sorted page is a slice of the index.
+ */
+public class SiteMembers {
+
+  private final String[] authorizables;
+  private final Map<String, String> groups;
+  private final Map<String, String> users;
+  private final List<String> groupList;
+  private final List<String> userList;
+  private final Map<SortField, SiteMemberIndex> indexes = new EnumMap<SortField, SiteMemberIndex>(
+      SortField.class);
+
+  /**
+   * @param authorizables
+   *          the authorizables of the site this was built from.
+   * @param groups
+   *          the groups of the site in the order found, mapped to their parent group,
+   *          null for groups of the site itself. Not copied.
+   * @param users
+   *          the users of the site in the order found, mapped to their parent group. Not
+   *          copied.
+   */
+  public SiteMembers(String[] authorizables, Map<String, String> groups,
+      Map<String, String> users) {
+    this.authorizables = authorizables;
+    this.groups = groups;
+    this.users = users;
+    this.groupList = new ArrayList<String>(groups.keySet());
+    this.userList = new ArrayList<String>(users.keySet());
+  }
+
+  /**
+   * @param authorizables
+   *          the authorizables now on the site.
+   * @return true if this was built from the same authorizables.
+   */
+  public boolean isBuiltFrom(String[] authorizables) {
+    return Arrays.equals(this.authorizables, authorizables);
+  }
+
+  /**
+   * @return the number of groups.
+   */
+  public synchronized int getGroupCount() {
+    return groupList.size();
+  }
+
+  /**
+   * @return the ids of all the groups in the order they were found.
+   */
+  public synchronized List<String> getGroups() {
+    return new ArrayList<String>(groupList);
+  }
+
+  /**
+   * @return the number of users.
+   */
+  public synchronized int getUserCount() {
+    return userList.size();
+  }
+
+  /**
+   * @return the ids of all the users in the order they were found.
+   */
+  public synchronized List<String> getUsers() {
+    return new ArrayList<String>(userList);
+  }
+
+  /**
+   * @param start
+   *          the first user.
+   * @param nitems
+   *          the number of users.
+   * @return a page of the users in the order they were found.
+   */
+  public synchronized List<String> getUsers(int start, int nitems) {
+    int from = Math.min(Math.max(start, 0), userList.size());
+    int to = Math.min(userList.size(), from + Math.max(nitems, 0));
+    return new ArrayList<String>(userList.subList(from, to));
+  }
+
+  /**
+   * A page of users in sort order. The index for the field is built on first use,
+   * outside the lock so other readers are not held up, and reused after that.
+   *
+   * @param sort
+   *          the field and order to sort on.
+   * @param start
+   *          the first user.
+   * @param nitems
+   *          the number of users.
+   * @param names
+   *          reads the names of users, only those not yet in the index are read.
+   * @return the page of user ids.
+   * @throws RepositoryException
+   */
+  public List<String> getUsers(Sort sort, int start, int nitems, NameReader names)
+      throws RepositoryException {
+    SortField field = sort.getField();
+    List<String> snapshot = null;
+    synchronized (this) {
+      SiteMemberIndex index = indexes.get(field);
+      if (index != null) {
+        return index.page(sort.getOrder(), start, nitems, names);
+      }
+      snapshot = new ArrayList<String>(userList);
+    }
+    SiteMemberIndex built = SiteMemberIndex.build(field, snapshot, names);
+    synchronized (this) {
+      SiteMemberIndex index = indexes.get(field);
+      if (index == null) {
+        // users added while building are in the list after the snapshot.
+        for (int i = snapshot.size(); i < userList.size(); i++) {
+          built.add(userList.get(i));
+        }
+        indexes.put(field, built);
+        index = built;
+      }
+      return index.page(sort.getOrder(), start, nitems, names);
+    }
+  }
+
+  /**
+   * @param id
+   * @return true if the id is a user or group of the site.
+   */
+  public synchronized boolean isMember(String id) {
+    return users.containsKey(id) || groups.containsKey(id);
+  }
+
+  /**
+   * @param id
+   * @return true if the id is a user of the site.
+   */
+  public synchronized boolean hasUser(String id) {
+    return users.containsKey(id);
+  }
+
+  /**
+   * @param id
+   * @return true if the id is a group of the site.
+   */
+  public synchronized boolean hasGroup(String id) {
+    return groups.containsKey(id);
+  }
+
+  /**
+   * @param id
+   * @return true if the id is one of the authorizables of the site itself.
+   */
+  public boolean hasAuthorizable(String id) {
+    for (String a : authorizables) {
+      if (a.equals(id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param id
+   *          a user or group of the site.
+   * @return the group the member was found through, or null.
+   */
+  public synchronized String getParent(String id) {
+    String parent = users.get(id);
+    if (parent == null) {
+      parent = groups.get(id);
+    }
+    return parent;
+  }
+
+  /**
+   * Add a user that has just joined a group of the site.
+   *
+   * @param group
+   *          a group of the site.
+   * @param user
+   *          the user.
+   * @return true if the user was added, false if they were already a member.
+   */
+  public synchronized boolean addUser(String group, String user) {
+    if (users.containsKey(user)) {
+      return false;
+    }
+    users.put(user, group);
+    userList.add(user);
+    for (SiteMemberIndex index : indexes.values()) {
+      index.add(user);
+    }
+    return true;
+  }
+
+  /**
+   * The names of a user may have changed, place them again in each index when next
+   * read.
+   *
+   * @param user
+   */
+  public synchronized void refreshUser(String user) {
+    for (SiteMemberIndex index : indexes.values()) {
+      index.refresh(user);
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds the flattened membership of the most recently used sites, keyed by site path.
+ * Authorizable events only touch the sites they concern: a user joining a group of a
+ * site is added in place, a changed user is placed again in the sorted indexes of the
+ * sites it is in, any other change to a group of a site drops that site so it
+ * is built again on next use. A build only installs its result if nothing changed while
+ * it was running.
+ */
+public class SiteMembersCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SiteMembersCache.class);
+
+  private final Map<String, SiteMembers> sites;
+  private long generation;
+
+  /**
+   * @param maxSites
+   *          the number of sites to hold before the least recently used is dropped.
+   */
+  public SiteMembersCache(final int maxSites) {
+    sites = new LinkedHashMap<String, SiteMembers>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, SiteMembers> eldest) {
+        return size() > maxSites;
+      }
+    };
+  }
+
+  /**
+   * @param sitePath
+   * @return the membership of the site, or null if it is not held.
+   */
+  public synchronized SiteMembers get(String sitePath) {
+    return sites.get(sitePath);
+  }
+
+  /**
+   * @return a counter that moves on every change, pass it to
+   *         {@link #put(String, SiteMembers, long)}.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Hold a membership that has just been built.
+   *
+   * @param sitePath
+   * @param members
+   * @param buildGeneration
+   *          the generation before the build started.
+   * @return true if it was held, false if something changed during the build.
+   */
+  public synchronized boolean put(String sitePath, SiteMembers members,
+      long buildGeneration) {
+    if (generation != buildGeneration) {
+      return false;
+    }
+    sites.put(sitePath, members);
+    return true;
+  }
+
+  /**
+   * A user joined a group, add them to every site the group is part of.
+   *
+   * @param group
+   * @param user
+   */
+  public synchronized void memberAdded(String group, String user) {
+    generation++;
+    for (SiteMembers members : sites.values()) {
+      if (members.hasGroup(group)) {
+        members.addUser(group, user);
+      }
+    }
+  }
+
+  /**
+   * A member left a group. The member may still reach the site through another group,
+   * so every site the group is part of is dropped.
+   *
+   * @param group
+   */
+  public synchronized void memberRemoved(String group) {
+    generation++;
+    for (Iterator<SiteMembers> i = sites.values().iterator(); i.hasNext();) {
+      if (i.next().hasGroup(group)) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * An authorizable was created, changed or removed.
+   *
+   * @param id
+   * @param removed
+   *          true if the authorizable was removed, in which case sites it is a user of
+   *          are dropped as well. A user that was only changed stays, to be placed
+   *          again in the sorted indexes of the sites it is in.
+   */
+  public synchronized void authorizableChanged(String id, boolean removed) {
+    generation++;
+    for (Iterator<SiteMembers> i = sites.values().iterator(); i.hasNext();) {
+      SiteMembers members = i.next();
+      if (members.hasGroup(id) || members.hasAuthorizable(id)
+          || (removed && members.isMember(id))) {
+        i.remove();
+      } else if (members.hasUser(id)) {
+        members.refreshUser(id);
+      }
+    }
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    generation++;
+    sites.clear();
+  }
+
+  /**
+   * @return the number of sites held.
+   */
+  public synchronized int size() {
+    return sites.size();
+  }
+
+  /**
+   * Apply an authorizable event from the user manager.
+   *
+   * @param event
+   */
+  public void handleEvent(Event event) {
+    Object operation = event.getProperty(AuthorizableEvent.OPERATION);
+    Object principalName = event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    if (!(operation instanceof Operation) || principalName == null) {
+      return;
+    }
+    String id = principalName.toString();
+    switch ((Operation) operation) {
+    case join:
+      Object user = event.getProperty(AuthorizableEvent.USER);
+      try {
+        if (user instanceof Authorizable) {
+          memberAdded(id, ((Authorizable) user).getID());
+          break;
+        }
+      } catch (RepositoryException e) {
+        LOGGER.debug("Unable to read joining user {} ", e.getMessage());
+      }
+      memberRemoved(id);
+      break;
+    case part:
+      memberRemoved(id);
+      break;
+    case delete:
+      authorizableChanged(id, true);
+      break;
+    default:
+      authorizableChanged(id, false);
+      break;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * The reverse of {@link SiteMembersCache}: for the most recently used users, the sites
+ * they are a member of, each with the groups that make them a member. Keyed by user id
+ * and held by id only, so it can be shared between sessions.
+ * <p>
+ * Authorizable events drop the users they concern: a user joining or leaving a group
+ * drops that user, any other change to a group drops every user in it, so the sites of
+ * the group are read again on next use. A build only installs its result if nothing
+ * changed while it was running.
+ */
+public class SiteMembershipCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SiteMembershipCache.class);
+
+  /**
+   * The membership of one user, never changed once built.
+   */
+  public static final class Memberships {
+    private final Set<String> groups;
+    private final Map<String, List<String>> sites;
+
+    /**
+     * @param groups
+     *          every group the user is a member of, whether or not it is part of a site.
+     *          Not copied.
+     * @param sites
+     *          the site paths the user is a member of, each with the ids of the groups
+     *          that make them a member. Not copied.
+     */
+    public Memberships(Set<String> groups, Map<String, List<String>> sites) {
+      this.groups = groups;
+      this.sites = Collections.unmodifiableMap(sites);
+    }
+
+    /**
+     * @return the site paths, each with the ids of the groups that make the user a
+     *         member.
+     */
+    public Map<String, List<String>> getSites() {
+      return sites;
+    }
+
+    /**
+     * @param group
+     * @return true if the user is a member of the group.
+     */
+    public boolean hasGroup(String group) {
+      return groups.contains(group);
+    }
+  }
+
+  private final Map<String, Memberships> users;
+  private long generation;
+
+  /**
+   * @param maxUsers
+   *          the number of users to hold before the least recently used is dropped.
+   */
+  public SiteMembershipCache(final int maxUsers) {
+    users = new LinkedHashMap<String, Memberships>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Memberships> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * @param user
+   * @return the memberships of the user, or null if they are not held.
+   */
+  public synchronized Memberships get(String user) {
+    return users.get(user);
+  }
+
+  /**
+   * @return a counter that moves on every change, pass it to
+   *         {@link #put(String, Memberships, long)}.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Hold memberships that have just been built.
+   *
+   * @param user
+   * @param memberships
+   * @param buildGeneration
+   *          the generation before the build started.
+   * @return true if they were held, false if something changed during the build.
+   */
+  public synchronized boolean put(String user, Memberships memberships,
+      long buildGeneration) {
+    if (generation != buildGeneration) {
+      return false;
+    }
+    users.put(user, memberships);
+    return true;
+  }
+
+  /**
+   * The groups of a user have changed, drop the user.
+   *
+   * @param user
+   */
+  public synchronized void userChanged(String user) {
+    generation++;
+    users.remove(user);
+  }
+
+  /**
+   * A group, or the sites it is part of, have changed, drop every user in it.
+   *
+   * @param group
+   */
+  public synchronized void groupChanged(String group) {
+    generation++;
+    for (Iterator<Memberships> i = users.values().iterator(); i.hasNext();) {
+      if (i.next().hasGroup(group)) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    generation++;
+    users.clear();
+  }
+
+  /**
+   * @return the number of users held.
+   */
+  public synchronized int size() {
+    return users.size();
+  }
+
+  /**
+   * Apply an authorizable event from the user manager.
+   *
+   * @param event
+   */
+  public void handleEvent(Event event) {
+    Object operation = event.getProperty(AuthorizableEvent.OPERATION);
+    Object principalName = event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    if (!(operation instanceof Operation) || principalName == null) {
+      return;
+    }
+    String id = principalName.toString();
+    switch ((Operation) operation) {
+    case join:
+    case part:
+      Object member = event.getProperty(AuthorizableEvent.USER);
+      try {
+        if (member instanceof Group) {
+          // everybody in the member group gained or lost the sites of this one.
+          groupChanged(((Group) member).getID());
+          break;
+        } else if (member instanceof Authorizable) {
+          userChanged(((Authorizable) member).getID());
+          break;
+        }
+      } catch (RepositoryException e) {
+        LOGGER.debug("Unable to read member {} ", e.getMessage());
+      }
+      clear();
+      break;
+    case create:
+      userChanged(id);
+      break;
+    case delete:
+      userChanged(id);
+      groupChanged(id);
+      break;
+    default:
+      // the sites of a group may have been changed through the user manager.
+      groupChanged(id);
+      break;
+    }
+  }
+}
@@ -17,9 +17,9 @@
  */
 package org.sakaiproject.kernel.site;
 
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
@@ -28,19 +28,28 @@ import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.site.SiteException;
 import org.sakaiproject.kernel.api.site.SiteService;
 import org.sakaiproject.kernel.api.site.Sort;
+import org.sakaiproject.kernel.api.site.SortOrder;
+import org.sakaiproject.kernel.site.SiteMembershipCache.Memberships;
 import org.sakaiproject.kernel.util.JcrUtils;
 import org.sakaiproject.kernel.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.jcr.Item;
 import javax.jcr.Node;
@@ -62,12 +71,18 @@ import javax.servlet.http.HttpServletResponse;
  * @scr.component immediate="true" label="SiteService"
  *                description="Sakai Site Service implementation"
  * @scr.service interface="org.sakaiproject.kernel.api.site.SiteService"
+ * @scr.service interface="org.osgi.service.event.EventHandler"
  * @scr.property name="service.description"
  *               value="Provides a site service to manage sites."
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="event.topics" values.0="org/apache/sling/jackrabbit/usermanager/event/create"
+ *                                   values.1="org/apache/sling/jackrabbit/usermanager/event/update"
+ *                                   values.2="org/apache/sling/jackrabbit/usermanager/event/delete"
+ *                                   values.3="org/apache/sling/jackrabbit/usermanager/event/join"
+ *                                   values.4="org/apache/sling/jackrabbit/usermanager/event/part"
  * @scr.reference name="eventAdmin" interface="org.osgi.service.event.EventAdmin"
  */
-public class SiteServiceImpl implements SiteService {
+public class SiteServiceImpl implements SiteService, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SiteServiceImpl.class);
 
@@ -82,10 +97,37 @@ public class SiteServiceImpl implements SiteService {
   public static final String DEFAULT_SITE = "/sites/default.html";
 
   /**
-   * The maximum size of any list before we truncate. The user is warned.
+   * The size of a site listing above which the user is warned.
    */
   private static final int MAXLISTSIZE = 10000;
 
+  /**
+   * The number of sites whose flattened membership is held in memory.
+   */
+  private static final int MAX_CACHED_SITES = 500;
+
+  /**
+   * The number of users whose sites are held in memory.
+   */
+  private static final int MAX_CACHED_USERS = 5000;
+
+  /**
+   * The profile properties members are sorted on.
+   */
+  private static final String FIRST_NAME = "firstName";
+  private static final String LAST_NAME = "lastName";
+
+  /**
+   * The flattened membership of recently used sites.
+   */
+  private final SiteMembersCache membersCache = new SiteMembersCache(MAX_CACHED_SITES);
+
+  /**
+   * The sites of recently used users.
+   */
+  private final SiteMembershipCache membershipCache = new SiteMembershipCache(
+      MAX_CACHED_USERS);
+
   /**
    * The OSGi Event Admin Service.
    */
@@ -187,6 +229,8 @@ public class SiteServiceImpl implements SiteService {
 
       if (Joinable.yes.equals(groupJoin) && Joinable.yes.equals(siteJoin)) {
         targetGroup.addMember(userAuthorizable);
+        membersCache.memberAdded(targetGroup.getID(), userAuthorizable.getID());
+        membershipCache.userChanged(userAuthorizable.getID());
         postEvent(SiteEvent.joinedSite, site, targetGroup);
 
       } else {
@@ -236,6 +280,8 @@ public class SiteServiceImpl implements SiteService {
         throw new SiteException(HttpServletResponse.SC_CONFLICT, "User " + user
             + " was not a member of " + requestedGroup);
       }
+      membersCache.memberRemoved(targetGroup.getID());
+      membershipCache.userChanged(userAuthorizable.getID());
       postEvent(SiteEvent.unjoinedSite, site, targetGroup);
 
     } catch (RepositoryException e) {
@@ -285,7 +331,6 @@ public class SiteServiceImpl implements SiteService {
      */
     // low cost check
     try {
-      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
       if (site.hasProperty(SiteService.AUTHORIZABLE)) {
         Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
         for (Value v : values) {
@@ -294,18 +339,9 @@ public class SiteServiceImpl implements SiteService {
             return true;
           }
         }
-        // expensive more complete check
-        for (Value v : values) {
-          String groupName = v.getString();
-          Authorizable siteAuthorizable = userManager.getAuthorizable(groupName);
-          if (siteAuthorizable instanceof Group) {
-            Group siteGroup = (Group) siteAuthorizable;
-            if (siteGroup.isMember(targetGroup)) {
-              return true;
-            }
-
-          }
-        }
+        // complete check, against the flattened membership of the site
+        return getSiteMembers(site, toIds(values)).isMember(
+            targetGroup.getID());
       }
     } catch (RepositoryException ex) {
       LOGGER.warn(ex.getMessage(), ex);
@@ -323,6 +359,14 @@ public class SiteServiceImpl implements SiteService {
     }
   }
 
+  private String[] toIds(Value[] values) throws RepositoryException {
+    String[] ids = new String[values.length];
+    for (int i = 0; i < values.length; i++) {
+      ids[i] = values[i].getString();
+    }
+    return ids;
+  }
+
   /**
    * @param site
    * @return true if the site is joinable
@@ -426,36 +470,17 @@ public class SiteServiceImpl implements SiteService {
    */
   public Iterator<Group> getGroups(Node site, int start, int nitems, Sort[] sort)
       throws SiteException {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<GroupKey> comparitor = buildCompoundComparitor(sort);
-      List<GroupKey> sortedList = Lists.sortedCopy(membership.getGroups().keySet(), comparitor);
-      Iterator<GroupKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapGroups(Iterators.limit(sortedIterator, nitems));
-    }
-
-    // no sort requested.
-
-    List<GroupKey> finalList = Lists.immutableList(membership.getGroups().keySet());
-    Iterator<GroupKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapGroups(Iterators.limit(unsortedIterator, nitems));
-  }
-
-  public Iterator<Group> unwrapGroups(final Iterator<GroupKey> underlying) {
-    return new Iterator<Group>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
-
-      public Group next() {
-        return underlying.next().getGroup();
-      }
-
-      public void remove() {
-        underlying.remove();
+    try {
+      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
+      List<String> groups = getSiteMembers(site).getGroups();
+      if (sort != null && sort.length > 0) {
+        groups = Lists.sortedCopy(groups, buildCompoundComparitor(sort));
       }
-    };
+      return resolve(userManager, page(groups, start, nitems), Group.class);
+    } catch (RepositoryException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
   }
 
   /**
@@ -465,174 +490,211 @@ public class SiteServiceImpl implements SiteService {
    *      int, org.sakaiproject.kernel.api.site.Sort[])
    */
   public Iterator<User> getMembers(Node site, int start, int nitems, Sort[] sort) {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<UserKey> comparitor = buildCompoundComparitor(sort);
-      List<UserKey> sortedList = Lists.sortedCopy(membership.getUsers().keySet(), comparitor);
-      Iterator<UserKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapUsers(Iterators.limit(sortedIterator, nitems));
+    try {
+      Session session = site.getSession();
+      UserManager userManager = AccessControlUtil.getUserManager(session);
+      SiteMembers members = getSiteMembers(site);
+      List<String> users;
+      if (sort != null && sort.length > 0) {
+        // the sorted index is shared by every caller, so names are read as admin.
+        ProfileNameReader names = new ProfileNameReader(slingRepository);
+        try {
+          users = members.getUsers(sort[0], start, nitems, names);
+        } finally {
+          names.logout();
+        }
+      } else {
+        users = members.getUsers(start, nitems);
+      }
+      return resolve(userManager, users, User.class);
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to list members of {} ", site, e);
+      return Lists.<User> newArrayList().iterator();
     }
+  }
+
+  public int getMemberCount(Node site) {
+    try {
+      return getSiteMembers(site).getUserCount();
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to count members of {} ", site, e);
+      return 0;
+    }
+  }
 
-    // no sort requested.
-    List<UserKey> finalList = Lists.immutableList(membership.getUsers().keySet());
-    Iterator<UserKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapUsers(Iterators.limit(unsortedIterator, nitems));
+  /**
+   * @return the part of the list for the page.
+   */
+  private List<String> page(List<String> ids, int start, int nitems) {
+    int from = Math.min(Math.max(start, 0), ids.size());
+    int to = Math.min(ids.size(), from + Math.max(nitems, 0));
+    return ids.subList(from, to);
   }
 
-  public Iterator<User> unwrapUsers(final Iterator<UserKey> underlying) {
-    return new Iterator<User>() {
+  /**
+   * Reads the names of users from their profiles, for the sorted member indexes. The
+   * administrative session is only opened when a name has to be read.
+   */
+  private static final class ProfileNameReader implements SiteMemberIndex.NameReader {
+    private final SlingRepository slingRepository;
+    private Session session;
+
+    private ProfileNameReader(SlingRepository slingRepository) {
+      this.slingRepository = slingRepository;
+    }
 
-      public boolean hasNext() {
-        return underlying.hasNext();
+    public String[] getNames(String userId) throws RepositoryException {
+      if (session == null) {
+        session = slingRepository.loginAdministrative(null);
+      }
+      String profilePath = PersonalUtils.getProfilePath(userId);
+      if (!session.itemExists(profilePath)) {
+        return null;
       }
+      Item item = session.getItem(profilePath);
+      if (!item.isNode()) {
+        return null;
+      }
+      Node profile = (Node) item;
+      return new String[] { getName(profile, FIRST_NAME), getName(profile, LAST_NAME) };
+    }
 
-      public User next() {
-        return underlying.next().getUser();
+    private String getName(Node profile, String name) throws RepositoryException {
+      if (!profile.hasProperty(name)) {
+        return null;
+      }
+      Property property = profile.getProperty(name);
+      if (property.getDefinition().isMultiple()) {
+        Value[] values = property.getValues();
+        return values.length == 0 ? null : values[0].getString();
       }
+      return property.getString();
+    }
 
-      public void remove() {
-        underlying.remove();
+    private void logout() {
+      if (session != null) {
+        session.logout();
+        session = null;
       }
-    };
+    }
   }
 
-  public int getMemberCount(Node site) {
-    return getMembershipTree(site).getUsers().size();
+  /**
+   * Resolve a page of ids to authorizables, skipping any that have gone.
+   */
+  private <T extends Authorizable> Iterator<T> resolve(UserManager userManager,
+      List<String> ids, Class<T> type) throws RepositoryException {
+    List<T> authorizables = Lists.newArrayList();
+    for (String id : ids) {
+      Authorizable a = userManager.getAuthorizable(id);
+      if (type.isInstance(a)) {
+        authorizables.add(type.cast(a));
+      } else {
+        LOGGER.debug("{} is no longer a {} ", id, type.getSimpleName());
+      }
+    }
+    return authorizables.iterator();
   }
 
   /**
-   * Builds a membership tree of users and groups for the site, because of the tree like
-   * nature of membership we may want to think of a more efficient way of performing this
-   * operation, however, there are no queries to perform this and it may be better to have
-   * this in memory. We are taking a google like approach to this operation, limiting the
-   * set to a practical size. If this become a real problem, then we might want to put the
-   * members of a site into a JPA mapped table, although that will require a tree cache
-   * invalidation scheme to keep upto date. Membership is derived not always declared.
-   * 
+   * @return the flattened membership of the site, built if it is not held or the
+   *         authorizables of the site have changed. The membership is shared by every
+   *         caller, so it is built with an administrative session; callers resolve what
+   *         they list with their own.
+   */
+  private SiteMembers getSiteMembers(Node site) throws RepositoryException {
+    String[] authorizables = new String[0];
+    if (site.hasProperty(SiteService.AUTHORIZABLE)) {
+      authorizables = toIds(getPropertyValues(site, SiteService.AUTHORIZABLE));
+    } else {
+      LOGGER.debug(
+          "Site ({}) does not have Authorizable property ({}) and thus has no memberships",
+          site.getPath(), SiteService.AUTHORIZABLE);
+    }
+    return getSiteMembers(site, authorizables);
+  }
+
+  private SiteMembers getSiteMembers(Node site, String[] authorizables)
+      throws RepositoryException {
+    String sitePath = site.getPath();
+    SiteMembers members = membersCache.get(sitePath);
+    if (members == null || !members.isBuiltFrom(authorizables)) {
+      long generation = membersCache.getGeneration();
+      Session adminSession = slingRepository.loginAdministrative(null);
+      try {
+        members = buildSiteMembers(AccessControlUtil.getUserManager(adminSession),
+            authorizables);
+      } finally {
+        adminSession.logout();
+      }
+      membersCache.put(sitePath, members, generation);
+    }
+    return members;
+  }
+
+  /**
+   * Flattens the membership of users and groups for the site. Membership is derived not
+   * always declared, so nested groups are expanded; the result is held by
+   * {@link SiteMembersCache} until an authorizable event says it has changed.
    * 
-   * @param site
-   *          the site
-   * @return a membership tree
+   * @param userManager
+   * @param authorizables
+   *          the authorizables of the site.
+   * @return the flattened membership.
+   * @throws RepositoryException
    */
-  private MembershipTree getMembershipTree(Node site) {
-    Map<GroupKey, Membership> groups = Maps.newLinkedHashMap();
-    Map<UserKey, Membership> users = Maps.newLinkedHashMap();
-    try {
-      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
-      if (site.hasProperty(SiteService.AUTHORIZABLE)) {
-        Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
-        for (Value v : values) {
-          String groupId = v.getString();
-          Authorizable a = userManager.getAuthorizable(groupId);
-          if (a instanceof Group) {
-            if (!groups.containsKey(a)) {
-              groups.put(new GroupKey((Group) a), new Membership(null, a));
-              populateMembers((Group) a, groups, users);
-            }
-          } else if (a instanceof User) {
-            if (!users.containsKey(a)) {
-              users.put(new UserKey((User) a), new Membership(null, a));
-            }
-          } else if (a == null) {
-            // if a is null
-            LOGGER.warn("Authorizable could not be resolved from groupId: {}", groupId);
-          } else {
-            // if a is not one of the known types
-            LOGGER.warn("Cannot handle Authorizable {} of type {}", a, (a == null ? "null" : a
-                .getClass()));
-          }
+  private SiteMembers buildSiteMembers(UserManager userManager, String[] authorizables)
+      throws RepositoryException {
+    LinkedHashMap<String, String> groups = Maps.newLinkedHashMap();
+    LinkedHashMap<String, String> users = Maps.newLinkedHashMap();
+    for (String groupId : authorizables) {
+      Authorizable a = userManager.getAuthorizable(groupId);
+      if (a instanceof Group) {
+        if (!groups.containsKey(a.getID())) {
+          groups.put(a.getID(), null);
+          populateMembers((Group) a, groups, users);
         }
-
-        // might want to cache the unsorted lists at this point, although they are already
-        // cached by JCR.
+      } else if (a instanceof User) {
+        if (!users.containsKey(a.getID())) {
+          users.put(a.getID(), null);
+        }
+      } else if (a == null) {
+        // if a is null
+        LOGGER.warn("Authorizable could not be resolved from groupId: {}", groupId);
       } else {
-        LOGGER.info(
-            "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
-                .getPath(), SiteService.AUTHORIZABLE);
+        // if a is not one of the known types
+        LOGGER.warn("Cannot handle Authorizable {} of type {}", a, a.getClass());
       }
-    } catch (RepositoryException ex) {
-      LOGGER.warn("Failed to build membership Tree for {} ", site, ex);
     }
-    return new MembershipTree(groups, users);
+    if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
+      LOGGER.warn("Large site listing of {} users and {} groups, please consider using "
+          + "dynamic membership rather than explicit members groups", users.size(), groups
+          .size());
+    }
+    return new SiteMembers(authorizables, groups, users);
   }
 
   /**
-   * Build a compound set of comparators for performing sorts.
+   * Build a comparator for the sort specification. Only ids are held, so every field is
+   * compared on the id of the authorizable.
    * 
    * @param sort
-   *          the sort array to base the compound set
-   * @return the first comparator in the set.
+   *          the sort array, in order of preference.
+   * @return the comparator.
    */
-  @SuppressWarnings("unchecked")
-  private <T extends AuthorizableKey> Comparator<T> buildCompoundComparitor(Sort[] sort) {
-    if (sort.length == 0) {
-      return null;
-    }
-    final Comparator<T>[] comparitors = new Comparator[sort.length];
-    int i = 0;
-    for (final Sort s : sort) {
-
-      final int next = i + 1;
-      comparitors[i++] = new Comparator<T>() {
-
-        /**
-         * Compare the objects
-         */
-        public int compare(T o1, T o2) {
-          try {
-            Object c1 = o1.getAuthorizable().getID();
-            Object c2 = o2.getAuthorizable().getID();
-            switch (s.getField()) {
-            case firstName:
-            case id:
-            case lastName:
-            }
-            switch (s.getOrder()) {
-            case asc:
-              if (c1 instanceof Comparable) {
-                Comparable cc1 = (Comparable<?>) c1;
-                int i = cc1.compareTo(c2);
-                if (i == 0) {
-                  i = compareNext(o1, o2);
-                }
-                return i;
-              }
-              return 0;
-            case desc:
-              if (c2 instanceof Comparable) {
-                Comparable cc2 = (Comparable<?>) c2;
-                int i = cc2.compareTo(c1);
-                if (i == 0) {
-                  i = compareNext(o1, o2);
-                }
-                return i;
-              }
-              return 0;
-            }
-          } catch (RepositoryException e) {
-          }
-          return 0;
-        }
-
-        /**
-         * Chain to the next comparator in the ordering list.
-         * 
-         * @param o1
-         *          the first object to compare.
-         * @param o2
-         *          the second object to compare.
-         * @return the result of the next comparator in the chain or 0 if this is the last
-         *         one.
-         */
-        private int compareNext(T o1, T o2) {
-          if (next < comparitors.length) {
-            return comparitors[next].compare(o1, o2);
+  private Comparator<String> buildCompoundComparitor(final Sort[] sort) {
+    return new Comparator<String>() {
+      public int compare(String o1, String o2) {
+        for (Sort s : sort) {
+          int i = SortOrder.desc.equals(s.getOrder()) ? o2.compareTo(o1) : o1
+              .compareTo(o2);
+          if (i != 0) {
+            return i;
           }
-          return 0;
         }
-      };
-    }
-    return comparitors[0];
+        return 0;
+      }
+    };
   }
 
   /**
@@ -642,29 +704,23 @@ public class SiteServiceImpl implements SiteService {
    * @param group
    *          the group for which we want to know all members.
    * @param groups
-   *          the groups associated with the site.
+   *          the groups associated with the site, to their parent.
    * @param users
-   *          the users associated with the sites, extracted from groups
+   *          the users associated with the sites, extracted from groups, to their parent.
    * @throws RepositoryException
    */
-  @SuppressWarnings("unchecked")
-  private void populateMembers(Group group, Map<GroupKey, Membership> groups,
-      Map<UserKey, Membership> users) throws RepositoryException {
+  private void populateMembers(Group group, Map<String, String> groups,
+      Map<String, String> users) throws RepositoryException {
     for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
       Authorizable a = igm.next();
-      if (!groups.containsKey(a)) {
-        if (a instanceof Group) {
-          groups.put(new GroupKey((Group) a), new Membership(group, a));
+      String id = a.getID();
+      if (a instanceof Group) {
+        if (!groups.containsKey(id)) {
+          groups.put(id, group.getID());
           populateMembers((Group) a, groups, users);
-        } else {
-          users.put(new UserKey((User) a), new Membership(group, a));
         }
-      }
-      if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
-        LOGGER
-            .warn("Large site listing, please consider using dynamic membership rather than explicit members groups parent Group {} "
-                + group.getID());
-        return;
+      } else if (!users.containsKey(id)) {
+        users.put(id, group.getID());
       }
     }
   }
@@ -677,27 +733,15 @@ public class SiteServiceImpl implements SiteService {
    * @throws ValueFormatException
    * @see org.sakaiproject.kernel.api.site.SiteService#getMembership(org.apache.jackrabbit.api.security.user.User)
    */
-  @SuppressWarnings("unchecked")
   public Map<String, List<Group>> getMembership(Session session, String user) throws SiteException {
     try {
       Map<String, List<Group>> sites = Maps.newHashMap();
       UserManager userManager = AccessControlUtil.getUserManager(session);
-      Authorizable a = userManager.getAuthorizable(user);
-      if (a instanceof User) {
-        User u = (User) a;
-        for (Iterator<Group> igroup = u.memberOf(); igroup.hasNext();) {
-          Group group = igroup.next();
-          if (group.hasProperty(SiteService.SITES)) {
-            Value[] siteReferences = group.getProperty(SiteService.SITES);
-            for (Value v : siteReferences) {
-              List<Group> g = sites.get(v.getString());
-              if (g == null) {
-                g = Lists.newArrayList();
-                sites.put(v.getString(), g);
-              }
-              g.add(group);
-            }
-          }
+      for (Entry<String, List<String>> site : getMembershipIds(session, user).entrySet()) {
+        List<Group> groups = Lists.newArrayList(resolve(userManager, site.getValue(),
+            Group.class));
+        if (!groups.isEmpty()) {
+          sites.put(site.getKey(), groups);
         }
       }
       return sites;
@@ -706,6 +750,79 @@ public class SiteServiceImpl implements SiteService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.site.SiteService#getMembershipIds(javax.jcr.Session,
+   *      java.lang.String)
+   */
+  public Map<String, List<String>> getMembershipIds(Session session, String user)
+      throws SiteException {
+    try {
+      Memberships memberships = membershipCache.get(user);
+      if (memberships == null) {
+        long generation = membershipCache.getGeneration();
+        // shared by every caller, so built with an administrative session.
+        Session adminSession = slingRepository.loginAdministrative(null);
+        try {
+          memberships = buildMemberships(AccessControlUtil.getUserManager(adminSession),
+              user);
+        } finally {
+          adminSession.logout();
+        }
+        membershipCache.put(user, memberships, generation);
+      }
+      return memberships.getSites();
+    } catch (RepositoryException e) {
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.site.SiteService#sitesChanged(java.util.Collection)
+   */
+  public void sitesChanged(Collection<String> authorizables) {
+    for (String id : authorizables) {
+      membershipCache.groupChanged(id);
+    }
+  }
+
+  /**
+   * Reads the sites of every group the user is a member of, the result is held by
+   * {@link SiteMembershipCache} until an authorizable event says it has changed.
+   * 
+   * @param userManager
+   * @param user
+   * @return the memberships of the user.
+   * @throws RepositoryException
+   */
+  @SuppressWarnings("unchecked")
+  private Memberships buildMemberships(UserManager userManager, String user)
+      throws RepositoryException {
+    Set<String> groups = Sets.newHashSet();
+    Map<String, List<String>> sites = Maps.newHashMap();
+    Authorizable a = userManager.getAuthorizable(user);
+    if (a instanceof User) {
+      for (Iterator<Group> igroup = ((User) a).memberOf(); igroup.hasNext();) {
+        Group group = igroup.next();
+        groups.add(group.getID());
+        if (group.hasProperty(SiteService.SITES)) {
+          for (Value v : group.getProperty(SiteService.SITES)) {
+            List<String> g = sites.get(v.getString());
+            if (g == null) {
+              g = Lists.newArrayList();
+              sites.put(v.getString(), g);
+            }
+            g.add(group.getID());
+          }
+        }
+      }
+    }
+    return new Memberships(groups, sites);
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -784,6 +901,16 @@ public class SiteServiceImpl implements SiteService {
     return null;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    membersCache.handleEvent(event);
+    membershipCache.handleEvent(event);
+  }
+
   protected void bindSlingRepository(SlingRepository slingRepository) {
     this.slingRepository = slingRepository;
   }
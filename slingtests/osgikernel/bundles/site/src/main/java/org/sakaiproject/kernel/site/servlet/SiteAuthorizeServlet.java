@@ -214,6 +214,11 @@ public class SiteAuthorizeServlet extends AbstractSiteServlet {
       if (session.hasPendingChanges()) {
         session.save();
       }
+      if (changes > 0) {
+        Set<String> changed = new HashSet<String>(removed.keySet());
+        changed.addAll(added.keySet());
+        getSiteService().sitesChanged(changed);
+      }
       return;
     } catch (RepositoryException e) {
       LOGGER.warn(e.getMessage(), e);
@@ -17,7 +17,6 @@
  */
 package org.sakaiproject.kernel.site.servlet;
 
-import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
@@ -62,11 +61,11 @@ public class SiteMembershipServlet extends AbstractSiteServlet {
     try {
       String u = request.getRemoteUser();
       Session session = request.getResourceResolver().adaptTo(Session.class);
-      Map<String, List<Group>> membership = getSiteService().getMembership(session, u);
+      Map<String, List<String>> membership = getSiteService().getMembershipIds(session, u);
 
       ExtendedJSONWriter output = new ExtendedJSONWriter(response.getWriter());
       output.array();
-      for (Entry<String, List<Group>> site : membership.entrySet()) {
+      for (Entry<String, List<String>> site : membership.entrySet()) {
         Resource resource = request.getResourceResolver().resolve(site.getKey());
 
         if (resource.getResourceType() != Resource.RESOURCE_TYPE_NON_EXISTING) {
@@ -76,7 +75,7 @@ public class SiteMembershipServlet extends AbstractSiteServlet {
           output.key("groups");
 
           output.array();
-          for (Group g : site.getValue()) {
+          for (String g : site.getValue()) {
             output.value(g);
           }
           output.endArray();
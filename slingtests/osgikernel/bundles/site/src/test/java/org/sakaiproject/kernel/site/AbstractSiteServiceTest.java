@@ -58,6 +58,8 @@ public class AbstractSiteServiceTest extends AbstractEasyMockTest {
     Group group = createMock(Group.class);
     registerAuthorizable(group, groupName);
     expect(group.isMember(isA(Authorizable.class))).andReturn(false).anyTimes();
+    expect(group.getDeclaredMembers()).andReturn(new ArrayList<Authorizable>().iterator())
+        .anyTimes();
     return group;
   }
 
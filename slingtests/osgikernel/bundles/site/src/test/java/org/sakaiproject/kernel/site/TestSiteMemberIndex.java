@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.api.site.Sort;
+import org.sakaiproject.kernel.api.site.SortField;
+import org.sakaiproject.kernel.api.site.SortOrder;
+import org.sakaiproject.kernel.site.SiteMemberIndex.NameReader;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+
+public class TestSiteMemberIndex {
+
+  private final Map<String, String[]> profiles = new HashMap<String, String[]>();
+  private int reads;
+  private final NameReader names = new NameReader() {
+    public String[] getNames(String userId) throws RepositoryException {
+      reads++;
+      return profiles.get(userId);
+    }
+  };
+
+  public TestSiteMemberIndex() {
+    profiles.put("u1", new String[] { "Carol", "Adams" });
+    profiles.put("u2", new String[] { "alice", "Brown" });
+    profiles.put("u3", new String[] { "Alice", "Adams" });
+    profiles.put("u4", new String[] { null, "Zed" });
+  }
+
+  @Test
+  public void testFirstName() throws RepositoryException {
+    SiteMemberIndex index = SiteMemberIndex.build(SortField.firstName, Arrays.asList(
+        "u1", "u2", "u3", "u4"), names);
+    assertEquals(Arrays.asList("u4", "u3", "u2", "u1"), index.page(SortOrder.asc, 0, 10,
+        names));
+    assertEquals(Arrays.asList("u1", "u2"), index.page(SortOrder.desc, 0, 2, names));
+    assertEquals(Arrays.asList("u3", "u4"), index.page(SortOrder.desc, 2, 2, names));
+  }
+
+  @Test
+  public void testLastName() throws RepositoryException {
+    SiteMemberIndex index = SiteMemberIndex.build(SortField.lastName, Arrays.asList(
+        "u1", "u2", "u3", "u4"), names);
+    assertEquals(Arrays.asList("u3", "u1", "u2", "u4"), index.page(SortOrder.asc, 0, 10,
+        names));
+  }
+
+  @Test
+  public void testIdReadsNoNames() throws RepositoryException {
+    SiteMemberIndex index = SiteMemberIndex.build(SortField.id, Arrays.asList("u3",
+        "u1", "u2"), names);
+    index.add("u0");
+    assertEquals(Arrays.asList("u3", "u2", "u1", "u0"), index.page(SortOrder.desc, 0,
+        10, names));
+    assertEquals(0, reads);
+  }
+
+  @Test
+  public void testIncremental() throws RepositoryException {
+    SiteMemberIndex index = SiteMemberIndex.build(SortField.lastName, Arrays.asList(
+        "u1", "u2"), names);
+    reads = 0;
+    index.add("u3");
+    index.add("u4");
+    assertTrue(index.contains("u3"));
+    assertEquals(Arrays.asList("u3", "u1", "u2", "u4"), index.page(SortOrder.asc, 0, 10,
+        names));
+    assertEquals(2, reads);
+
+    profiles.put("u1", new String[] { "Carol", "Young" });
+    index.refresh("u1");
+    index.remove("u3");
+    assertEquals(Arrays.asList("u2", "u1", "u4"), index.page(SortOrder.asc, 0, 10, names));
+    assertEquals(3, reads);
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void testFailedReadLeavesTheRestPending() throws RepositoryException {
+    SiteMemberIndex index = SiteMemberIndex.build(SortField.lastName, Arrays.asList(
+        "u1"), names);
+    index.add("u2");
+    index.add("u3");
+    NameReader failing = new NameReader() {
+      public String[] getNames(String userId) throws RepositoryException {
+        if ("u3".equals(userId)) {
+          throw new RepositoryException("Profile of u3 could not be read");
+        }
+        return names.getNames(userId);
+      }
+    };
+    try {
+      index.page(SortOrder.asc, 0, 10, failing);
+      fail();
+    } catch (RepositoryException e) {
+      // expected
+    }
+    assertEquals(2, index.size());
+    assertTrue(index.contains("u3"));
+    reads = 0;
+    assertEquals(Arrays.asList("u3", "u1", "u2"), index.page(SortOrder.asc, 0, 10,
+        names));
+    assertEquals(1, reads);
+  }
+
+  @Test
+  public void testPageBounds() throws RepositoryException {
+    SiteMemberIndex index = SiteMemberIndex.build(SortField.id, Arrays.asList("u1",
+        "u2"), names);
+    assertEquals(0, index.page(SortOrder.asc, 5, 10, names).size());
+    assertEquals(0, index.page(SortOrder.asc, 0, 0, names).size());
+    assertEquals(Arrays.asList("u2"), index.page(SortOrder.asc, 1, 10, names));
+  }
+
+  @Test
+  public void testSiteMembersKeepsIndexCurrent() throws RepositoryException {
+    LinkedHashMap<String, String> groups = new LinkedHashMap<String, String>();
+    groups.put("g1", null);
+    LinkedHashMap<String, String> users = new LinkedHashMap<String, String>();
+    users.put("u1", "g1");
+    users.put("u2", "g1");
+    SiteMembers members = new SiteMembers(new String[] { "g1" }, groups, users);
+    Sort byFirstName = new Sort(SortField.firstName, SortOrder.asc);
+    assertEquals(Arrays.asList("u2", "u1"), members.getUsers(byFirstName, 0, 10, names));
+
+    members.addUser("g1", "u3");
+    reads = 0;
+    List<String> page = members.getUsers(byFirstName, 0, 10, names);
+    assertEquals(Arrays.asList("u3", "u2", "u1"), page);
+    assertEquals(1, reads);
+    assertEquals(Arrays.asList("u1", "u2", "u3"), members.getUsers(0, 10));
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent.Operation;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+
+public class TestSiteMembersCache {
+
+  private static final String SITE = "/sites/physics";
+
+  @Test
+  public void testMemberAddedInPlace() {
+    SiteMembersCache cache = new SiteMembersCache(10);
+    SiteMembers members = physics();
+    cache.put(SITE, members, cache.getGeneration());
+
+    cache.memberAdded("g-physics-lab", "carol");
+    assertSame(members, cache.get(SITE));
+    assertEquals(3, members.getUserCount());
+    assertTrue(members.isMember("carol"));
+    assertEquals("g-physics-lab", members.getParent("carol"));
+
+    // joining a group of no site leaves the site alone.
+    cache.memberAdded("g-chemistry", "dave");
+    assertSame(members, cache.get(SITE));
+  }
+
+  @Test
+  public void testEventsDropOnlyAffectedSites() {
+    SiteMembersCache cache = new SiteMembersCache(10);
+    cache.put(SITE, physics(), cache.getGeneration());
+
+    // a user changing their profile does not change membership.
+    cache.handleEvent(event(Operation.update, "alice"));
+    assertTrue(cache.get(SITE) != null);
+    cache.handleEvent(event(Operation.part, "g-chemistry"));
+    assertTrue(cache.get(SITE) != null);
+
+    cache.handleEvent(event(Operation.part, "g-physics-lab"));
+    assertNull(cache.get(SITE));
+  }
+
+  @Test
+  public void testDeletedUserDropsSite() {
+    SiteMembersCache cache = new SiteMembersCache(10);
+    cache.put(SITE, physics(), cache.getGeneration());
+    cache.handleEvent(event(Operation.delete, "bob"));
+    assertNull(cache.get(SITE));
+  }
+
+  @Test
+  public void testCreatedAuthorizableOfSiteDropsSite() {
+    SiteMembersCache cache = new SiteMembersCache(10);
+    cache.put(SITE, new SiteMembers(new String[] { "g-new" },
+        new LinkedHashMap<String, String>(), new LinkedHashMap<String, String>()), cache
+        .getGeneration());
+    cache.handleEvent(event(Operation.create, "g-new"));
+    assertNull(cache.get(SITE));
+  }
+
+  @Test
+  public void testChangeDuringBuild() {
+    SiteMembersCache cache = new SiteMembersCache(10);
+    long generation = cache.getGeneration();
+    cache.memberRemoved("g-physics");
+    assertFalse(cache.put(SITE, physics(), generation));
+    assertNull(cache.get(SITE));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedDropped() {
+    SiteMembersCache cache = new SiteMembersCache(2);
+    cache.put("/sites/a", physics(), cache.getGeneration());
+    cache.put("/sites/b", physics(), cache.getGeneration());
+    cache.get("/sites/a");
+    cache.put("/sites/c", physics(), cache.getGeneration());
+    assertEquals(2, cache.size());
+    assertNull(cache.get("/sites/b"));
+  }
+
+  private SiteMembers physics() {
+    LinkedHashMap<String, String> groups = new LinkedHashMap<String, String>();
+    groups.put("g-physics", null);
+    groups.put("g-physics-lab", "g-physics");
+    LinkedHashMap<String, String> users = new LinkedHashMap<String, String>();
+    users.put("alice", "g-physics");
+    users.put("bob", "g-physics-lab");
+    return new SiteMembers(new String[] { "g-physics" }, groups, users);
+  }
+
+  private Event event(Operation operation, String principalName) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(AuthorizableEvent.OPERATION, operation);
+    properties.put(AuthorizableEvent.PRINCIPAL_NAME, principalName);
+    return new Event(operation.getTopic(), properties);
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent.Operation;
+import org.sakaiproject.kernel.site.SiteMembershipCache.Memberships;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class TestSiteMembershipCache {
+
+  @Test
+  public void testHeldUntilChanged() {
+    SiteMembershipCache cache = new SiteMembershipCache(10);
+    cache.put("alice", alice(), cache.getGeneration());
+    assertEquals(Arrays.asList("g-physics-lab"), cache.get("alice").getSites().get(
+        "/sites/physics"));
+
+    // another user, or a group alice is not in, leaves alice alone.
+    cache.userChanged("bob");
+    cache.groupChanged("g-chemistry");
+    assertTrue(cache.get("alice") != null);
+
+    // a group alice is in that has no site may just have gained one.
+    cache.groupChanged("g-staff");
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testEvents() {
+    SiteMembershipCache cache = new SiteMembershipCache(10);
+    cache.put("alice", alice(), cache.getGeneration());
+    cache.handleEvent(event(Operation.update, "alice"));
+    assertTrue(cache.get("alice") != null);
+    cache.handleEvent(event(Operation.update, "g-physics-lab"));
+    assertNull(cache.get("alice"));
+
+    cache.put("alice", alice(), cache.getGeneration());
+    cache.handleEvent(event(Operation.delete, "alice"));
+    assertNull(cache.get("alice"));
+
+    cache.put("alice", alice(), cache.getGeneration());
+    cache.handleEvent(event(Operation.create, "alice"));
+    assertNull(cache.get("alice"));
+
+    // a join that does not say who joined could be anybody.
+    cache.put("alice", alice(), cache.getGeneration());
+    cache.handleEvent(event(Operation.join, "g-chemistry"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testChangeDuringBuild() {
+    SiteMembershipCache cache = new SiteMembershipCache(10);
+    long generation = cache.getGeneration();
+    cache.userChanged("bob");
+    assertFalse(cache.put("alice", alice(), generation));
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedDropped() {
+    SiteMembershipCache cache = new SiteMembershipCache(2);
+    cache.put("a", alice(), cache.getGeneration());
+    cache.put("b", alice(), cache.getGeneration());
+    cache.get("a");
+    cache.put("c", alice(), cache.getGeneration());
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b"));
+  }
+
+  private Memberships alice() {
+    Set<String> groups = new HashSet<String>(Arrays.asList("g-physics-lab", "g-staff"));
+    Map<String, List<String>> sites = new HashMap<String, List<String>>();
+    sites.put("/sites/physics", Arrays.asList("g-physics-lab"));
+    return new Memberships(groups, sites);
+  }
+
+  private Event event(Operation operation, String principalName) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(AuthorizableEvent.OPERATION, operation);
+    properties.put(AuthorizableEvent.PRINCIPAL_NAME, principalName);
+    return new Event(operation.getTopic(), properties);
+  }
+}
@@ -3,6 +3,7 @@ package org.sakaiproject.kernel.site;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
@@ -35,7 +36,13 @@ public class TestSiteService extends AbstractEasyMockTest {
     Node siteNode = createMock(Node.class);
     JackrabbitSession session = createMock(JackrabbitSession.class);
     expect(siteNode.getSession()).andReturn(session);
+    expect(siteNode.getPath()).andReturn("/sites/test").anyTimes();
     expect(session.getUserManager()).andReturn(userManager);
+    JackrabbitSession adminSession = createMock(JackrabbitSession.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession);
+    expect(adminSession.getUserManager()).andReturn(userManager);
+    adminSession.logout();
+    expectLastCall();
     addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] { new MockValue("group1"),
         new MockValue("group2") });
 
@@ -43,9 +50,12 @@ public class TestSiteService extends AbstractEasyMockTest {
     Group group2 = createMock(Group.class);
     expect(userManager.getAuthorizable("group1")).andReturn(group1);
     expect(userManager.getAuthorizable("group2")).andReturn(group2);
-    expect(group1.getDeclaredMembers()).andReturn(createUserIterator("bob"));
+    User bob = createMock(User.class);
+    expect(bob.getID()).andReturn("bob").anyTimes();
+    expect(userManager.getAuthorizable("bob")).andReturn(bob);
+    expect(group1.getDeclaredMembers()).andReturn(createUserIterator(bob));
     expect(group1.getID()).andReturn("group1").anyTimes();
-    expect(group2.getDeclaredMembers()).andReturn(createUserIterator("bob"));
+    expect(group2.getDeclaredMembers()).andReturn(createUserIterator(bob));
     expect(group2.getID()).andReturn("group2").anyTimes();
 
     replay();
@@ -61,9 +71,7 @@ public class TestSiteService extends AbstractEasyMockTest {
     verify();
   }
 
-  private Iterator<Authorizable> createUserIterator(String userName) throws RepositoryException {
-    final User mockUser = createMock(User.class);
-    expect(mockUser.getID()).andReturn(userName).anyTimes();
+  private Iterator<Authorizable> createUserIterator(final User mockUser) {
     return new Iterator<Authorizable>() {
 
       boolean had = false;
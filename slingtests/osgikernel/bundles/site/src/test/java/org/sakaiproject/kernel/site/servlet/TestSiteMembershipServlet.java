@@ -86,6 +86,9 @@ public class TestSiteMembershipServlet extends AbstractSiteServiceServletTest {
     JSONObject site = (JSONObject) sites.get(0);
     assertEquals("Expected siteref to match path", TEST_SITE_PATH, site
         .get("siteref"));
+    JSONArray groups = site.getJSONArray("groups");
+    assertEquals("Expected 1 group", 1, groups.length());
+    assertEquals("Expected the site group", TEST_SITE_GROUP, groups.getString(0));
   }
 
   private Resource dummySiteResource(String path) {
@@ -0,0 +1,217 @@
+package org.sakaiproject.kernel.smtp;
+
+import org.sakaiproject.kernel.api.message.MessageConstants;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * An inbound message read once off the wire, kept in memory up to a threshold and in a
+ * temporary file above it. The body can be read as often as needed without copying it,
+ * MimeMultipart reads the parts of a {@link SharedInputStream} in place.
+ */
+public class MessageSpool {
+
+  private byte[] memory;
+  private File file;
+  private long size;
+  private long bodyOffset;
+  private String digest;
+  private List<InputStream> opened = new ArrayList<InputStream>();
+
+  private MessageSpool() {
+  }
+
+  /**
+   * Read a message to the end.
+   *
+   * @param data
+   *          the message as it arrives.
+   * @param threshold
+   *          the largest message kept in memory, in bytes.
+   * @return the spooled message, to be deleted when done with.
+   * @throws IOException
+   */
+  public static MessageSpool spool(InputStream data, int threshold) throws IOException {
+    MessageSpool spool = new MessageSpool();
+    MessageDigest sha1;
+    try {
+      sha1 = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("No SHA-1 digest available");
+    }
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    OutputStream out = buffer;
+    byte[] chunk = new byte[8192];
+    try {
+      int n;
+      while ((n = data.read(chunk)) != -1) {
+        sha1.update(chunk, 0, n);
+        spool.size += n;
+        if (spool.file == null && spool.size > threshold) {
+          spool.file = File.createTempFile("sakai-smtp", ".eml");
+          out = new FileOutputStream(spool.file);
+          buffer.writeTo(out);
+          buffer = null;
+        }
+        out.write(chunk, 0, n);
+      }
+    } catch (IOException e) {
+      spool.delete();
+      throw e;
+    } finally {
+      if (spool.file != null) {
+        out.close();
+      }
+    }
+    if (spool.file == null) {
+      spool.memory = buffer.toByteArray();
+    }
+    StringBuilder sb = new StringBuilder();
+    for (byte b : sha1.digest()) {
+      sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+    }
+    spool.digest = sb.toString();
+    return spool;
+  }
+
+  /**
+   * Read the headers of the message into a map, keyed by the lower cased header name.
+   * Continuation lines are skipped. The body starts after the blank line that ends
+   * them.
+   *
+   * @param mapProperties
+   * @throws IOException
+   */
+  public void parseHeaders(Map<String, Object> mapProperties) throws IOException {
+    InputStream in = new BufferedInputStream(open());
+    try {
+      long[] offset = new long[1];
+      String line;
+      while ((line = readHeaderLine(in, offset)) != null && line.length() > 0) {
+        String[] headerParts = line.split(": ", 2);
+        if (headerParts.length == 2 && headerParts[0].length() > 0) {
+          if ("subject".equalsIgnoreCase(headerParts[0])) {
+            mapProperties.put(MessageConstants.PROP_SAKAI_SUBJECT, headerParts[1]);
+          } else if (headerParts[0].charAt(0) != ' ' && headerParts[0].charAt(0) != '\t') {
+            mapProperties.put(headerParts[0].toLowerCase(), headerParts[1]);
+          }
+        }
+      }
+      bodyOffset = offset[0];
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the body of the message, after the headers read by
+   *         {@link #parseHeaders(Map)}. Closed by {@link #delete()} if not before.
+   * @throws IOException
+   */
+  public InputStream getBody() throws IOException {
+    InputStream body = ((SharedInputStream) open()).newStream(bodyOffset, -1);
+    opened.add(body);
+    return body;
+  }
+
+  /**
+   * @return the size of the body in bytes.
+   */
+  public long getBodySize() {
+    return size - bodyOffset;
+  }
+
+  /**
+   * @return the size of the whole message in bytes.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the SHA-1 of the whole message, in hex.
+   */
+  public String getDigest() {
+    return digest;
+  }
+
+  /**
+   * @return true if the message was too big to keep in memory.
+   */
+  public boolean isOnDisk() {
+    return file != null;
+  }
+
+  /**
+   * Close every stream opened on the message and remove the temporary file.
+   */
+  public void delete() {
+    for (InputStream in : opened) {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // nothing more can be done.
+      }
+    }
+    opened.clear();
+    memory = null;
+    if (file != null && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  private InputStream open() throws IOException {
+    InputStream in = file != null ? new SharedFileInputStream(file)
+        : new SharedByteArrayInputStream(memory);
+    opened.add(in);
+    return in;
+  }
+
+  /**
+   * @return the next line without its CRLF, or null at the end of the stream.
+   */
+  private static String readHeaderLine(InputStream data, long[] offset) throws IOException {
+    StringBuilder string = new StringBuilder();
+    int c = data.read();
+    if (c == -1) {
+      return null;
+    }
+    while (c != -1) {
+      offset[0]++;
+      if (c == '\r') {
+        c = data.read();
+        if (c == -1) {
+          string.append('\r');
+          break;
+        }
+        if (c == '\n') {
+          offset[0]++;
+          break;
+        }
+        string.append('\r');
+        continue;
+      }
+      if (c == '\n') {
+        break;
+      }
+      string.append((char) c);
+      c = data.read();
+    }
+    return string.toString();
+  }
+}
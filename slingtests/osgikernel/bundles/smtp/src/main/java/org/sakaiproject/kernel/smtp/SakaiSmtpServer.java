@@ -1,11 +1,18 @@
 package org.sakaiproject.kernel.smtp;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.message.MessageConstants;
 import org.sakaiproject.kernel.api.message.MessagingService;
+import org.sakaiproject.kernel.util.ACLUtils;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.sakaiproject.kernel.util.PathUtils;
+import org.sakaiproject.kernel.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.TooMuchDataException;
@@ -15,10 +22,10 @@ import org.subethamail.smtp.server.SMTPServer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -40,6 +47,15 @@ public class SakaiSmtpServer implements SimpleMessageListener {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SakaiSmtpServer.class);
   private static final int MAX_PROPERTY_SIZE = 32 * 1024;
+  private static final int DEFAULT_SPOOL_THRESHOLD = 64 * 1024;
+
+  /**
+   * @scr.property value="65536" type="Integer" name="sakai.smtp.spool.threshold"
+   *               description="Messages larger than this many bytes are spooled to disk."
+   */
+  static final String SPOOL_THRESHOLD = "sakai.smtp.spool.threshold";
+
+  private int spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
   
   private SMTPServer server;
   
@@ -51,6 +67,10 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   
   public void activate(ComponentContext context) throws Exception {
     LOGGER.info("Starting SMTP server");
+    Integer threshold = (Integer) context.getProperties().get(SPOOL_THRESHOLD);
+    if (threshold != null) {
+      spoolThreshold = threshold;
+    }
     server = new SMTPServer(new SimpleMessageListenerAdapter(this));
     server.setPort(8025);
     server.start();
@@ -67,17 +87,12 @@ public class SakaiSmtpServer implements SimpleMessageListener {
    * @see org.subethamail.smtp.helper.SimpleMessageListener#accept(java.lang.String, java.lang.String)
    */
   public boolean accept(String from, String recipient) {
-    Session session = null;
     try {
-      session = slingRepository.loginAdministrative(null);
-      List<String> mailboxen = messagingService.getMailboxesForEmailAddress(session, recipient);
+      // answered from the address index, without a login or a query.
+      List<String> mailboxen = messagingService.getMailboxesForEmailAddress(recipient);
       return mailboxen.size() > 0;
     } catch (RepositoryException e) {
       LOGGER.error("Unable to look up user", e);
-    } finally {
-      if (session != null) {
-        session.logout();
-      }
     }
     return false;
   }
@@ -85,32 +100,62 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   public void deliver(String from, String recipient, InputStream data)
       throws TooMuchDataException, IOException {
     LOGGER.info("Got message FROM: " + from + " TO: " + recipient);
+    MessageSpool spool = MessageSpool.spool(data, spoolThreshold);
     Session session = null;
     try {
-      session = slingRepository.loginAdministrative(null);
-      List<String> mailboxen = messagingService.getMailboxesForEmailAddress(session, recipient);
+      List<String> mailboxen = messagingService.getMailboxesForEmailAddress(recipient);
       if (mailboxen.size() == 0) {
         throw new IOException("Unexpectedly few mailboxes for delivery");
       }
-      String firstTarget = mailboxen.remove(0);
       Map<String, Object> mapProperties = new HashMap<String, Object>();
+      spool.parseHeaders(mapProperties);
+      session = slingRepository.loginAdministrative(null);
+      // small bodies are written into each message as they always were, only large ones
+      // are shared.
+      boolean inline = spool.getBodySize() < MAX_PROPERTY_SIZE;
+      if (!inline) {
+        String bodyPath = writeSharedBody(session, spool, mapProperties);
+        LOGGER.debug("Body of {} bytes at {} ", spool.getBodySize(), bodyPath);
+        mapProperties.put(MessageConstants.PROP_SAKAI_BODYPATH, bodyPath);
+        UserManager userManager = AccessControlUtil.getUserManager(session);
+        for (String mailbox : mailboxen) {
+          Authorizable authorizable = userManager.getAuthorizable(mailbox);
+          if (authorizable != null) {
+            ACLUtils.addEntry(bodyPath, authorizable, session, ACLUtils.READ_GRANTED);
+          }
+        }
+        if (session.hasPendingChanges()) {
+          session.save();
+        }
+      }
+
+      String messageId = (String) mapProperties.get("message-id");
+      String contentType = (String) mapProperties.get("content-type");
+      boolean multipart = contentType != null
+          && contentType.toLowerCase().startsWith("multipart/");
+      if (inline && !multipart) {
+        mapProperties.put(MessageConstants.PROP_SAKAI_BODY, IOUtils.toString(spool
+            .getBody()));
+      }
       mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
           MessageConstants.SAKAI_MESSAGE_RT);
       mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
       mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
       mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-      Session userSession = session.impersonate(new SimpleCredentials(firstTarget, "dummy".toCharArray()));
-      Node createdMessage = writeMessage(userSession, mapProperties, data);
-      LOGGER.info("Created message at: " + createdMessage.getPath());
-      String messageId = createdMessage.getProperty("message-id").getString();
-      LOGGER.info("Message id was: " + messageId);
-      userSession.save();
-      for (Iterator<String> iter = mailboxen.iterator(); iter.hasNext();) {
-        String ccPrincipal = iter.next();
-        messagingService.copyMessage(session, ccPrincipal, firstTarget, messageId);
-      }
-      if (session.hasPendingChanges()) {
-        session.save();
+      for (String mailbox : mailboxen) {
+        Session userSession = session.impersonate(new SimpleCredentials(mailbox, "dummy"
+            .toCharArray()));
+        try {
+          Node createdMessage = messageId == null ? messagingService.create(userSession,
+              mapProperties) : messagingService.create(userSession, mapProperties,
+              messageId);
+          if (inline && multipart) {
+            writeInlineParts(userSession, createdMessage, contentType, spool);
+          }
+          LOGGER.info("Created message at: " + createdMessage.getPath());
+        } finally {
+          userSession.logout();
+        }
       }
     } catch (RepositoryException e) {
       LOGGER.error("Unable to write message", e);
@@ -119,38 +164,75 @@ public class SakaiSmtpServer implements SimpleMessageListener {
       if (session != null) {
         session.logout();
       }
+      spool.delete();
     }
   }
 
-  private Node writeMessage(Session session, Map<String, Object> mapProperties,
-      InputStream data) throws IOException, RepositoryException {
-    parseSMTPHeaders(mapProperties, data);
-    StreamCopier streamCopier = new StreamCopier(data);
+  /**
+   * Write the parts of a small multipart message under the message, or the whole body as
+   * sakai:body if it cannot be parsed.
+   */
+  private void writeInlineParts(Session session, Node message, String contentType,
+      MessageSpool spool) throws IOException, RepositoryException {
     try {
-      MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(mapProperties, streamCopier));
-      Node message = messagingService.create(session, mapProperties, (String)mapProperties.get("message-id"));
-      writeMultipartToNode(session, message, multipart);
-      return message;
+      writeMultipartToNode(session, message, new MimeMultipart(new SMTPDataSource(
+          contentType, spool.getBody())));
     } catch (MessagingException e) {
-      mapProperties.put(MessageConstants.PROP_SAKAI_BODY, streamCopier.getContents());
-      return messagingService.create(session, mapProperties);
+      LOGGER.info("Unable to parse multipart message, storing it whole: {}", e.getMessage());
+      session.refresh(false);
+      message.setProperty(MessageConstants.PROP_SAKAI_BODY, IOUtils.toString(spool
+          .getBody()));
     }
+    session.save();
   }
 
-  private void parseSMTPHeaders(Map<String,Object> mapProperties, InputStream data) throws IOException {
-    String line;
-    while ((line = readHeaderLine(data)) != null && line.length() > 0) {
-      String[] headerParts = line.split(": ", 2);
-      if (headerParts.length == 2) {
-        if ("subject".equalsIgnoreCase(headerParts[0])) {
-          mapProperties.put(MessageConstants.PROP_SAKAI_SUBJECT, headerParts[1]);
-        } else if (headerParts[0].charAt(0) != ' '){
-          mapProperties.put(headerParts[0].toLowerCase(), headerParts[1]);
-        }
+  /**
+   * Write the body of a large message once, under a path derived from its message id and
+   * the digest of its content, so the deliveries of the same message to each recipient
+   * share it. The digest keeps a message from reaching another body by reusing its id.
+   * Readers find it through sakai:bodypath on each message.
+   *
+   * @return the path of the shared body.
+   */
+  private String writeSharedBody(Session session, MessageSpool spool,
+      Map<String, Object> mapProperties) throws IOException, RepositoryException {
+    String key;
+    try {
+      key = StringUtils.sha1Hash(mapProperties.get("message-id") + ":" + spool.getDigest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("Unable to hash message key");
+    }
+    String bodyPath = PathUtils.toInternalHashedPath(MessageConstants._SHARED_MESSAGE, key,
+        "");
+    if (session.itemExists(bodyPath)) {
+      return bodyPath;
+    }
+    Node body = JcrUtils.deepGetOrCreateNode(session, bodyPath);
+    String contentType = (String) mapProperties.get("content-type");
+    try {
+      if (contentType != null && contentType.toLowerCase().startsWith("multipart/")) {
+        MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType, spool
+            .getBody()));
+        writeMultipartToNode(session, body, multipart);
+        session.save();
+        return bodyPath;
       }
-    }    
+    } catch (MessagingException e) {
+      LOGGER.info("Unable to parse multipart message, storing it whole: {}", e.getMessage());
+      session.refresh(false);
+      body = JcrUtils.deepGetOrCreateNode(session, bodyPath);
+    }
+    Node fileNode = body.addNode("body", "nt:file");
+    Node resourceNode = fileNode.addNode("jcr:content", "nt:resource");
+    resourceNode.setProperty("jcr:mimeType", contentType == null ? "text/plain"
+        : contentType);
+    resourceNode.setProperty("jcr:data", session.getValueFactory().createValue(
+        spool.getBody()));
+    resourceNode.setProperty("jcr:lastModified", Calendar.getInstance());
+    session.save();
+    return bodyPath;
   }
-  
+
   private void writeMultipartToNode(Session session, Node message, MimeMultipart multipart) throws RepositoryException, MessagingException, IOException {
     int count = multipart.getCount();
     for (int i=0; i<count; i++) {
@@ -199,28 +281,4 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     }
   }
 
-  private String readHeaderLine(InputStream data) throws IOException {
-    StringBuilder string = new StringBuilder("");
-    while (true) {
-      int c = data.read();
-      if (c == -1)
-        return string.toString();
-      if (c == '\r') {
-        c = data.read();
-        if (c == -1) {
-          string.append('\r');
-          return string.toString();
-        }
-        if (c == '\n') {
-          return string.toString();
-        } else {
-          string.append('\r');
-          string.append((char)c);
-        }
-      } else {
-        string.append((char)c);
-      }
-    }
-  }
-
 }